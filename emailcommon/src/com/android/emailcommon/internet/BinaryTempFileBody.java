@@ -58,6 +58,9 @@ public class BinaryTempFileBody implements Body {
     }
 
     public InputStream getInputStream() throws MessagingException {
+        if (mFile == null) {
+            throw new MessagingException("No body; it was never written, or was moved");
+        }
         try {
             return new BinaryTempFileBodyInputStream(new FileInputStream(mFile));
         }
@@ -66,6 +69,20 @@ public class BinaryTempFileBody implements Body {
         }
     }
 
+    /**
+     * Moves the temp file to {@code file}, rather than copying it, after which the Body is
+     * disposed of: it no longer refers to the file, which it would otherwise delete once read.
+     * Returns false if it couldn't be moved (e.g. to another file system), in which case the
+     * Body is left as it was.
+     */
+    public boolean moveTo(File file) {
+        if (mFile == null || !mFile.renameTo(file)) {
+            return false;
+        }
+        mFile = null;
+        return true;
+    }
+
     public void writeTo(OutputStream out) throws IOException, MessagingException {
         InputStream in = getInputStream();
         Base64OutputStream base64Out = new Base64OutputStream(
@@ -19,6 +19,8 @@ package com.android.emailcommon.mail;
 import com.android.emailcommon.service.SearchParams;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.OutputStream;
+import java.util.List;
 
 public abstract class Folder {
     public enum OpenMode {
@@ -53,6 +55,21 @@ public abstract class Folder {
         public void loadAttachmentProgress(int progress);
     }
 
+    /**
+     * Callback for changes reported by the server while a folder is idling.
+     * See {@link Folder#idle(IdleListener, int)}.
+     */
+    public interface IdleListener {
+        /** New messages arrived in the folder.  Only the UIDs of {@code messages} are known. */
+        public void messagesArrived(Message[] messages);
+        /** The flags of {@code messages} were changed, e.g. by another client. */
+        public void flagsChanged(Message[] messages);
+        /** Messages were removed from the folder; which ones is not known. */
+        public void messagesExpunged();
+        /** The messages with the given UIDs were removed from the folder. */
+        public void messagesVanished(String[] uids);
+    }
+
     /**
      * Forces an open of the MailProvider. If the provider is already open this
      * function returns without doing anything.
@@ -157,6 +174,101 @@ public abstract class Folder {
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Fetches the contents of several parts at once.  {@code parts[i]} must be a part of
+     * {@code messages[i]}.  The default implementation fetches one part at a time; stores that
+     * are able to batch the requests should override it.
+     */
+    public void fetchParts(Message[] messages, Part[] parts, MessageRetrievalListener listener)
+            throws MessagingException {
+        final FetchProfile fp = new FetchProfile();
+        for (int i = 0; i < messages.length; i++) {
+            fp.clear();
+            fp.add(parts[i]);
+            fetch(new Message[] { messages[i] }, fp, listener);
+        }
+    }
+
+    /**
+     * Reports if {@link #fetchPartRange} can be used, i.e. if a part can be fetched in several
+     * chunks.  The folder must be open.
+     * Note: Not typically implemented in stores, so not abstract.
+     */
+    public boolean canFetchPartRanges() {
+        return false;
+    }
+
+    /**
+     * Fetches up to {@code length} bytes of the content of part {@code partId} of message
+     * {@code uid}, starting at {@code offset}, and writes them to {@code out}.  The content is
+     * still in its content transfer encoding.  The folder must be open.
+     *
+     * @return the number of bytes written, which is less than {@code length} only once the end
+     * of the part has been reached
+     */
+    public int fetchPartRange(String uid, String partId, long offset, int length,
+            OutputStream out) throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Returns the identifier of the current set of UIDs of this (open) folder, e.g. the IMAP
+     * UIDVALIDITY, or null if the store doesn't report one.  If it changes, any state kept
+     * about the folder's messages, such as the value of {@link #getHighestModSeq()}, must be
+     * discarded.
+     */
+    public String getUidValidity() {
+        return null;
+    }
+
+    /**
+     * Returns the highest modification sequence of this (open) folder, e.g. the IMAP
+     * HIGHESTMODSEQ (RFC 4551), or 0 if the store doesn't keep track of it.  If it hasn't
+     * changed since the last sync, no message has changed either.
+     */
+    public long getHighestModSeq() {
+        return 0;
+    }
+
+    /**
+     * Returns the messages whose flags changed since {@code modSeq}, a value previously
+     * returned by {@link #getHighestModSeq()}, with their flags set.  The UIDs of the messages
+     * which have been removed since then are added to {@code vanishedUids}, if the store reports
+     * them.
+     * Note: Not typically implemented in stores, so not abstract.
+     */
+    public Message[] getMessagesChangedSince(long modSeq, List<String> vanishedUids)
+            throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Reports if the server can notify us of changes to this folder, i.e. if
+     * {@link #idle(IdleListener, int)} can be used.  The folder must be open.
+     * Note: Not typically implemented in stores, so not abstract.
+     */
+    public boolean canIdle() {
+        return false;
+    }
+
+    /**
+     * Waits for the server to report changes to this folder, and passes them to
+     * {@code listener}.  Returns as soon as a change has been reported, or once
+     * {@code timeoutMillis} has passed without any.  The folder must be open.
+     *
+     * @return true if any change was reported
+     */
+    public boolean idle(IdleListener listener, int timeoutMillis) throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Ends a running {@link #idle(IdleListener, int)} from another thread, by dropping the
+     * connection it waits on; the idle call then throws a MessagingException.
+     */
+    public void abortIdle() {
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
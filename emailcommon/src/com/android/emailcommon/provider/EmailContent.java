@@ -548,6 +548,21 @@ public abstract class EmailContent {
         public static final Uri NOTIFIER_URI =
             Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
 
+        // The full-text search index of the messages' subject, sender and body
+        public static final String SEARCH_TABLE_NAME = "MessageSearch";
+        // Searches the local messages for the terms given by SEARCH_QUERY_PARAMETER; the result
+        // has SEARCH_PROJECTION, best matches first, and can be narrowed by a selection on the
+        // Message table
+        public static final Uri SEARCH_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/messageSearch");
+        public static final String SEARCH_QUERY_PARAMETER = "query";
+        public static final String SEARCH_SNIPPET = "searchSnippet";
+        public static final String[] SEARCH_PROJECTION = new String[] {
+            RECORD_ID, SEARCH_SNIPPET
+        };
+        public static final int SEARCH_ID_COLUMN = 0;
+        public static final int SEARCH_SNIPPET_COLUMN = 1;
+
         public static final String KEY_TIMESTAMP_DESC = MessageColumns.TIMESTAMP + " desc";
 
         public static final int CONTENT_ID_COLUMN = 0;
@@ -1118,6 +1133,8 @@ public abstract class EmailContent {
         public static final String UI_DESTINATION = "uiDestination";
         // The UIProvider downloaded size of the attachment
         public static final String UI_DOWNLOADED_SIZE = "uiDownloadedSize";
+        // The SHA-1 of the content, if it's kept in the AttachmentStore
+        public static final String CONTENT_HASH = "contentHash";
     }
 
     public static final class Attachment extends EmailContent
@@ -1501,6 +1518,12 @@ public abstract class EmailContent {
         public static final String TOTAL_COUNT = "totalCount";
         // For compatibility with Email1
         public static final String LAST_SEEN_MESSAGE_KEY = "lastSeenMessageKey";
+        // The highest modification sequence (e.g. IMAP HIGHESTMODSEQ) seen at the last sync
+        public static final String HIGHEST_MOD_SEQ = "highestModSeq";
+        // Cached count of the unread, dated messages added since lastNotifiedMessageKey (i.e.
+        // those to notify of); not part of Mailbox.CONTENT_PROJECTION, so that it's always read
+        // from the database
+        public static final String NEW_UNREAD_COUNT = "newUnreadCount";
     }
 
     public interface HostAuthColumns {
@@ -62,6 +62,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
     public int mLastNotifiedMessageCount;
     public int mTotalCount;
     public long mLastSeenMessageKey;
+    public long mHighestModSeq;
 
     public static final int CONTENT_ID_COLUMN = 0;
     public static final int CONTENT_DISPLAY_NAME_COLUMN = 1;
@@ -86,6 +87,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
     public static final int CONTENT_LAST_NOTIFIED_MESSAGE_COUNT_COLUMN = 20;
     public static final int CONTENT_TOTAL_COUNT_COLUMN = 21;
     public static final int CONTENT_LAST_SEEN_MESSAGE_KEY_COLUMN = 22;
+    public static final int CONTENT_HIGHEST_MOD_SEQ_COLUMN = 23;
 
     /**
      * <em>NOTE</em>: If fields are added or removed, the method {@link #getHashes()}
@@ -100,7 +102,8 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         MailboxColumns.SYNC_STATUS, MailboxColumns.PARENT_KEY, MailboxColumns.LAST_TOUCHED_TIME,
         MailboxColumns.UI_SYNC_STATUS, MailboxColumns.UI_LAST_SYNC_RESULT,
         MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY, MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT,
-        MailboxColumns.TOTAL_COUNT, MailboxColumns.LAST_SEEN_MESSAGE_KEY
+        MailboxColumns.TOTAL_COUNT, MailboxColumns.LAST_SEEN_MESSAGE_KEY,
+        MailboxColumns.HIGHEST_MOD_SEQ
     };
 
     private static final String ACCOUNT_AND_MAILBOX_TYPE_SELECTION =
@@ -333,6 +336,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         mLastNotifiedMessageCount = cursor.getInt(CONTENT_LAST_NOTIFIED_MESSAGE_COUNT_COLUMN);
         mTotalCount = cursor.getInt(CONTENT_TOTAL_COUNT_COLUMN);
         mLastSeenMessageKey = cursor.getLong(CONTENT_LAST_SEEN_MESSAGE_KEY_COLUMN);
+        mHighestModSeq = cursor.getLong(CONTENT_HIGHEST_MOD_SEQ_COLUMN);
     }
 
     @Override
@@ -360,6 +364,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         values.put(MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT, mLastNotifiedMessageCount);
         values.put(MailboxColumns.TOTAL_COUNT, mTotalCount);
         values.put(MailboxColumns.LAST_SEEN_MESSAGE_KEY, mLastSeenMessageKey);
+        values.put(MailboxColumns.HIGHEST_MOD_SEQ, mHighestModSeq);
         return values;
     }
 
@@ -625,6 +630,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         dest.writeInt(mLastNotifiedMessageCount);
         dest.writeInt(mTotalCount);
         dest.writeLong(mLastSeenMessageKey);
+        dest.writeLong(mHighestModSeq);
     }
 
     public Mailbox(Parcel in) {
@@ -652,6 +658,7 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         mLastNotifiedMessageCount = in.readInt();
         mTotalCount = in.readInt();
         mLastSeenMessageKey = in.readLong();
+        mHighestModSeq = in.readLong();
     }
 
     public static final Parcelable.Creator<Mailbox> CREATOR = new Parcelable.Creator<Mailbox>() {
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+
+/**
+ * A content-addressed store of the content of the attachments, in which an attachment saved
+ * several times (e.g. forwarded along a thread, or received in several accounts) is only kept
+ * once.  The files of the store are named after the SHA-1 of their content, which is computed
+ * while they are written, and the {@link AttachmentColumns#CONTENT_HASH} of the attachments
+ * refers to them; a file is deleted once no attachment refers to it any more.
+ *
+ * The store is optional: attachments are only saved to it while it's enabled, and the
+ * attachments saved to files of their own are still read from them.
+ */
+public class AttachmentStore {
+    private static final String STORE_DIRECTORY = "attachment_store";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long TMP_FILE_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final String[] HASH_PROJECTION = new String[] {
+            AttachmentColumns.CONTENT_HASH };
+    private static final String[] SIZE_PROJECTION = new String[] {
+            AttachmentColumns.SIZE };
+    private static final String HASH_SELECTION = AttachmentColumns.CONTENT_HASH + "=?";
+    private static final String HAS_HASH_SELECTION = AttachmentColumns.CONTENT_HASH
+            + " IS NOT NULL";
+
+    /** Serializes the creation and deletion of the files with the changes of the references */
+    private static final Object sLock = new Object();
+    private static volatile boolean sEnabled;
+
+    /**
+     * The storage used by the store, and the storage it saves.
+     */
+    public static class Stats {
+        /** The number of files of the store */
+        public int mFileCount;
+        /** The total size of the files of the store */
+        public long mStoredBytes;
+        /** The number of attachments saved to the store */
+        public int mAttachmentCount;
+        /** The total size of the attachments saved to the store */
+        public long mAttachmentBytes;
+
+        /**
+         * Returns the storage that saving each attachment to a file of its own would have used
+         * on top of the store.
+         */
+        public long getSavedBytes() {
+            return mAttachmentBytes - mStoredBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "[AttachmentStore: " + mAttachmentCount + " attachments, " + mAttachmentBytes
+                    + " bytes in " + mFileCount + " files, " + mStoredBytes + " bytes; saved "
+                    + getSavedBytes() + " bytes]";
+        }
+    }
+
+    /**
+     * Sets whether the attachments are saved to the store.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static File getStoreDirectory(Context context) {
+        return context.getDatabasePath(STORE_DIRECTORY);
+    }
+
+    /**
+     * Returns the file of the store with the given content hash.
+     */
+    public static File getStoreFile(Context context, String hash) {
+        return new File(getStoreDirectory(context), hash);
+    }
+
+    /**
+     * Returns the file of the store to which an attachment refers, or null if it doesn't refer
+     * to any.
+     */
+    public static File getAttachmentFile(Context context, long attachmentId) {
+        if (!getStoreDirectory(context).exists()) {
+            return null;
+        }
+        final String hash = Utility.getFirstRowString(context,
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId),
+                HASH_PROJECTION, null, null, null, 0);
+        return (hash == null) ? null : getStoreFile(context, hash);
+    }
+
+    /**
+     * Saves the content of an attachment to the store, unless the store already has it, and
+     * refers the attachment to it.
+     *
+     * @return the size of the content
+     */
+    public static long save(Context context, InputStream in, long attachmentId)
+            throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException impossible) {
+            throw new IOException(impossible.toString());
+        }
+        final File dir = getStoreDirectory(context);
+        dir.mkdirs();
+        final File tmpFile = File.createTempFile("attachment", TMP_SUFFIX, dir);
+        try {
+            final long size;
+            final OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                size = IOUtils.copy(new DigestInputStream(in, digest), out);
+            } finally {
+                out.close();
+            }
+            final StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                Utility.byteToHex(hash, b);
+            }
+            synchronized (sLock) {
+                final File file = getStoreFile(context, hash.toString());
+                if (!file.exists() && !tmpFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmpFile);
+                }
+                final String oldHash = Utility.getFirstRowString(context,
+                        ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId),
+                        HASH_PROJECTION, null, null, null, 0);
+                final ContentValues cv = new ContentValues();
+                cv.put(AttachmentColumns.CONTENT_HASH, hash.toString());
+                context.getContentResolver().update(
+                        ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId), cv,
+                        null, null);
+                if (oldHash != null && !oldHash.equals(hash.toString())) {
+                    deleteIfUnreferenced(context, oldHash);
+                }
+            }
+            return size;
+        } finally {
+            // Nothing left to delete once it's renamed
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Drops the references of the attachments matching a selection to the store, and deletes
+     * the files no other attachment refers to.
+     */
+    public static void release(Context context, String selection, String[] selectionArgs) {
+        if (!getStoreDirectory(context).exists()) {
+            // The store was never used
+            return;
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        final String hashSelection = "(" + selection + ") AND " + HAS_HASH_SELECTION;
+        synchronized (sLock) {
+            final HashSet<String> hashes = new HashSet<String>();
+            final Cursor c = resolver.query(Attachment.CONTENT_URI, HASH_PROJECTION,
+                    hashSelection, selectionArgs, null);
+            if (c == null) return;
+            try {
+                while (c.moveToNext()) {
+                    hashes.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            if (hashes.isEmpty()) return;
+            final ContentValues cv = new ContentValues();
+            cv.putNull(AttachmentColumns.CONTENT_HASH);
+            resolver.update(Attachment.CONTENT_URI, cv, hashSelection, selectionArgs);
+            for (String hash : hashes) {
+                deleteIfUnreferenced(context, hash);
+            }
+        }
+    }
+
+    /**
+     * Drops the reference of an attachment to the store, if any.
+     */
+    public static void release(Context context, long attachmentId) {
+        release(context, EmailContent.RECORD_ID + "=?",
+                new String[] { Long.toString(attachmentId) });
+    }
+
+    private static void deleteIfUnreferenced(Context context, String hash) {
+        if (EmailContent.count(context, Attachment.CONTENT_URI, HASH_SELECTION,
+                new String[] { hash }) == 0) {
+            getStoreFile(context, hash).delete();
+        }
+    }
+
+    /**
+     * Deletes the files of the store that no attachment refers to, e.g. because their
+     * attachments were deleted without being released, and the temp files of interrupted saves.
+     */
+    public static void collectGarbage(Context context) {
+        synchronized (sLock) {
+            final File[] files = getStoreDirectory(context).listFiles();
+            if (files == null) return;
+            final HashSet<String> hashes = getReferencedHashes(context);
+            // The temp files of the saves in progress are recent
+            final long tmpExpiration = System.currentTimeMillis() - TMP_FILE_MAX_AGE;
+            int deleted = 0;
+            for (File file : files) {
+                final String name = file.getName();
+                final boolean garbage = name.endsWith(TMP_SUFFIX)
+                        ? file.lastModified() < tmpExpiration : !hashes.contains(name);
+                if (garbage && file.delete()) {
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                Log.d(Logging.LOG_TAG, "Deleted " + deleted + " unreferenced attachment files");
+            }
+        }
+    }
+
+    private static HashSet<String> getReferencedHashes(Context context) {
+        final HashSet<String> hashes = new HashSet<String>();
+        final Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                HASH_PROJECTION, HAS_HASH_SELECTION, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    hashes.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the storage used by the store, and the storage it saves.
+     */
+    public static Stats getStats(Context context) {
+        final Stats stats = new Stats();
+        final File[] files = getStoreDirectory(context).listFiles();
+        if (files == null) {
+            return stats;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(TMP_SUFFIX)) {
+                stats.mFileCount++;
+                stats.mStoredBytes += file.length();
+            }
+        }
+        final Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                SIZE_PROJECTION, HAS_HASH_SELECTION, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    stats.mAttachmentCount++;
+                    stats.mAttachmentBytes += c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return stats;
+    }
+}
@@ -42,6 +42,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
 
 public class AttachmentUtilities {
     public static final String AUTHORITY = "com.android.email.attachmentprovider";
@@ -50,6 +51,8 @@ public class AttachmentUtilities {
     public static final String FORMAT_RAW = "RAW";
     public static final String FORMAT_THUMBNAIL = "THUMBNAIL";
 
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+
     public static class Columns {
         public static final String _ID = "_id";
         public static final String DATA = "_data";
@@ -179,6 +182,74 @@ public class AttachmentUtilities {
         return context.getDatabasePath(accountId + ".db_att");
     }
 
+    /**
+     * Return the directory of the cached thumbnails of the attachments, or null if there is no
+     * cache directory (e.g. in an isolated test context).  The thumbnails of an attachment are
+     * named after {@link #getThumbnailPrefix}.
+     */
+    public static File getThumbnailDirectory(Context context) {
+        try {
+            return new File(context.getCacheDir(), THUMBNAIL_DIRECTORY);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the file in which the (encoded) content of an attachment is kept while it's being
+     * downloaded in chunks, or null if there is no cache directory.  Its length is the offset at
+     * which a failed download resumes.
+     */
+    public static File getPartialAttachmentFile(Context context, long attachmentId) {
+        try {
+            return new File(context.getCacheDir(), "attachment-" + attachmentId + ".partial");
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the number of bytes saved so far by the download of an attachment in chunks.
+     */
+    public static long getPartialAttachmentLength(Context context, long attachmentId) {
+        File file = getPartialAttachmentFile(context, attachmentId);
+        return (file == null) ? 0 : file.length();
+    }
+
+    private static void deletePartialAttachmentFile(Context context, long attachmentId) {
+        File file = getPartialAttachmentFile(context, attachmentId);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Return the prefix of the names of the cached thumbnails of an attachment, which are
+     * followed by their size.
+     */
+    public static String getThumbnailPrefix(long accountId, long attachmentId) {
+        return accountId + "_" + attachmentId + "_";
+    }
+
+    /**
+     * Delete the cached thumbnails whose names start with one of the given prefixes.
+     */
+    private static void deleteThumbnails(Context context, HashSet<String> prefixes) {
+        if (prefixes.isEmpty()) return;
+        File dir = getThumbnailDirectory(context);
+        File[] files = (dir == null) ? null : dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix)) {
+                    file.delete();
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Helper to convert unknown or unmapped attachments to something useful based on filename
      * extensions. The mime type is inferred based upon the table below. It's not perfect, but
@@ -313,6 +384,7 @@ public class AttachmentUtilities {
         Uri uri = ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, messageId);
         Cursor c = context.getContentResolver().query(uri, Attachment.ID_PROJECTION,
                 null, null, null);
+        HashSet<String> thumbnailPrefixes = new HashSet<String>();
         try {
             while (c.moveToNext()) {
                 long attachmentId = c.getLong(Attachment.ID_PROJECTION_COLUMN);
@@ -321,10 +393,16 @@ public class AttachmentUtilities {
                 // it just returns false, which we ignore, and proceed to the next file.
                 // This entire loop is best-effort only.
                 attachmentFile.delete();
+                deletePartialAttachmentFile(context, attachmentId);
+                thumbnailPrefixes.add(getThumbnailPrefix(accountId, attachmentId));
             }
         } finally {
             c.close();
         }
+        deleteThumbnails(context, thumbnailPrefixes);
+        // The content kept in the store is only deleted with its last reference
+        AttachmentStore.release(context, AttachmentColumns.MESSAGE_KEY + "=?",
+                new String[] { Long.toString(messageId) });
     }
 
     /**
@@ -357,13 +435,35 @@ public class AttachmentUtilities {
      */
     public static void deleteAllAccountAttachmentFiles(Context context, long accountId) {
         File[] files = getAttachmentDirectory(context, accountId).listFiles();
-        if (files == null) return;
-        for (File file : files) {
-            boolean result = file.delete();
-            if (!result) {
-                Log.e(Logging.LOG_TAG, "Failed to delete attachment file " + file.getName());
+        if (files != null) {
+            for (File file : files) {
+                boolean result = file.delete();
+                if (!result) {
+                    Log.e(Logging.LOG_TAG, "Failed to delete attachment file " + file.getName());
+                }
             }
         }
+        // The partial files are named after the attachments only
+        Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.ID_PROJECTION, AttachmentColumns.ACCOUNT_KEY + "=?",
+                new String[] { Long.toString(accountId) }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    long attachmentId = c.getLong(Attachment.ID_PROJECTION_COLUMN);
+                    deletePartialAttachmentFile(context, attachmentId);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        HashSet<String> thumbnailPrefixes = new HashSet<String>();
+        thumbnailPrefixes.add(accountId + "_");
+        deleteThumbnails(context, thumbnailPrefixes);
+        AttachmentStore.release(context, AttachmentColumns.ACCOUNT_KEY + "=?",
+                new String[] { Long.toString(accountId) });
+        // Also catch the content of the attachments deleted without being released
+        AttachmentStore.collectGarbage(context);
     }
 
     private static long copyFile(InputStream in, File file) throws IOException {
@@ -387,13 +487,23 @@ public class AttachmentUtilities {
         long size;
         try {
             if (attachment.mUiDestination == UIProvider.AttachmentDestination.CACHE) {
-                File saveIn = getAttachmentDirectory(context, accountId);
-                if (!saveIn.exists()) {
-                    saveIn.mkdirs();
-                }
                 File file = getAttachmentFilename(context, accountId, attachmentId);
-                file.createNewFile();
-                size = copyFile(in, file);
+                if (AttachmentStore.isEnabled()) {
+                    try {
+                        size = AttachmentStore.save(context, in, attachmentId);
+                    } finally {
+                        in.close();
+                    }
+                    file.delete();
+                } else {
+                    File saveIn = getAttachmentDirectory(context, accountId);
+                    if (!saveIn.exists()) {
+                        saveIn.mkdirs();
+                    }
+                    file.createNewFile();
+                    size = copyFile(in, file);
+                    AttachmentStore.release(context, attachmentId);
+                }
                 contentUri = getAttachmentUri(accountId, attachmentId).toString();
             } else if (Utility.isExternalStorageMounted()) {
                 File downloads = Environment.getExternalStoragePublicDirectory(
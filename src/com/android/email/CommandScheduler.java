@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Runs the commands of {@link MessagingController} on a small pool of worker threads, by
+ * priority.
+ *
+ * Each command is submitted to a lane (an account, typically).  The commands of a lane are
+ * started one at a time, unless they are marked as
+ * belonging to a mailbox: consecutive mailbox commands of a lane run in parallel (up to
+ * {@code maxParallelPerLane}, and never two for the same mailbox), while any other command waits
+ * for them all to finish and is waited for.  Different lanes run in parallel, and the workers
+ * take turns between the lanes that have commands to run, so that a lane with a long backlog
+ * doesn't hold the others back.
+ *
+ * Each command has a priority: the workers start the most urgent command that can be started,
+ * and a lane starts its most urgent command first (commands of the same priority keep their
+ * order).  Long running commands call {@link #yieldToUrgentCommands} between units of work (e.g.
+ * messages), so that more urgent commands don't wait for them when all the workers are busy:
+ * they are run right there, on the thread of the yielding command, which resumes afterwards.
+ */
+/* package */ class CommandScheduler {
+    /** The mailbox of the commands that don't belong to one, and run alone in their lane */
+    public static final long NO_MAILBOX = -1;
+
+    /** Priority of the commands the user is waiting for, e.g. loading the message being viewed */
+    public static final int PRIORITY_FOREGROUND = 0;
+    /** Priority of the refreshes the user asked for */
+    public static final int PRIORITY_USER_REFRESH = 1;
+    /** Priority of the periodic syncs and other background work */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static class Command {
+        final long mLane;
+        final long mMailboxId;
+        final int mPriority;
+        final String mDescription;
+        final Runnable mRunnable;
+
+        Command(long lane, long mailboxId, int priority, String description,
+                Runnable runnable) {
+            mLane = lane;
+            mMailboxId = mailboxId;
+            mPriority = priority;
+            mDescription = description;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public String toString() {
+            return mDescription;
+        }
+    }
+
+    private static class Lane {
+        final long mKey;
+        /** The commands waiting to be started, in order */
+        final LinkedList<Command> mPending = new LinkedList<Command>();
+        /** The mailboxes of the running mailbox commands */
+        final HashSet<Long> mRunningMailboxes = new HashSet<Long>();
+        int mRunningCount;
+        /** Whether the lane is in {@link CommandScheduler#mReadyLanes} */
+        boolean mReady;
+
+        Lane(long key) {
+            mKey = key;
+        }
+
+        /**
+         * Returns the command the lane starts next: the first of its most urgent commands, or
+         * null if it has none.
+         */
+        Command getNext() {
+            Command next = null;
+            for (Command command : mPending) {
+                if (next == null || command.mPriority < next.mPriority) {
+                    next = command;
+                }
+            }
+            return next;
+        }
+
+        /**
+         * Whether the next command can be started now.
+         */
+        boolean canStartNext(int maxParallel) {
+            final Command next = getNext();
+            if (next == null) {
+                return false;
+            }
+            if (next.mMailboxId == NO_MAILBOX) {
+                return mRunningCount == 0;
+            }
+            // A running command that doesn't belong to a mailbox runs alone; it isn't in
+            // mRunningMailboxes, so the count tells it apart
+            return mRunningCount == mRunningMailboxes.size()
+                    && mRunningCount < maxParallel
+                    && !mRunningMailboxes.contains(next.mMailboxId);
+        }
+    }
+
+    private final int mMaxParallelPerLane;
+    private final Thread[] mWorkers;
+
+    /** All the lanes with pending or running commands, by key */
+    private final HashMap<Long, Lane> mLanes = new HashMap<Long, Lane>();
+    /**
+     * The lanes whose next command can be started, in the order they'll be served (within a
+     * priority)
+     */
+    private final LinkedList<Lane> mReadyLanes = new LinkedList<Lane>();
+    private int mPendingCount;
+    private int mRunningCount;
+    /** The number of workers waiting for a command */
+    private int mIdleCount;
+
+    /** The command run by the current (worker) thread, if any */
+    private final ThreadLocal<Command> mCurrentCommand = new ThreadLocal<Command>();
+
+    /**
+     * Creates the scheduler and starts its {@code workerCount} threads.
+     */
+    public CommandScheduler(String name, int workerCount, int maxParallelPerLane) {
+        mMaxParallelPerLane = maxParallelPerLane;
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runCommands();
+                }
+            }, name + "-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queues {@code runnable} in {@code lane}, with priority {@code priority}.  If
+     * {@code mailboxId} isn't {@link #NO_MAILBOX}, the command may run in parallel with the
+     * commands of the lane for other mailboxes.
+     */
+    public synchronized void submit(long lane, long mailboxId, int priority, String description,
+            Runnable runnable) {
+        Lane l = mLanes.get(lane);
+        if (l == null) {
+            l = new Lane(lane);
+            mLanes.put(lane, l);
+        }
+        l.mPending.add(new Command(lane, mailboxId, priority, description, runnable));
+        mPendingCount++;
+        updateReadyLocked(l);
+    }
+
+    /**
+     * Adds {@code lane} to the ready lanes (at the end, so that it waits for its turn) if its
+     * next command can be started, and wakes up a worker to start it; removes it if its next
+     * command (which a more urgent one may have replaced) can't be started anymore.
+     */
+    private void updateReadyLocked(Lane lane) {
+        final boolean ready = lane.canStartNext(mMaxParallelPerLane);
+        if (ready && !lane.mReady) {
+            lane.mReady = true;
+            mReadyLanes.add(lane);
+            notify();
+        } else if (!ready && lane.mReady) {
+            lane.mReady = false;
+            mReadyLanes.remove(lane);
+        }
+    }
+
+    /**
+     * Returns the first of the ready lanes whose next command is the most urgent one, or null if
+     * none is more urgent than {@code priority}.
+     */
+    private Lane getMostUrgentLaneLocked(int priority) {
+        Lane mostUrgent = null;
+        int mostUrgentPriority = priority;
+        for (Lane lane : mReadyLanes) {
+            final int lanePriority = lane.getNext().mPriority;
+            if (lanePriority < mostUrgentPriority) {
+                mostUrgent = lane;
+                mostUrgentPriority = lanePriority;
+            }
+        }
+        return mostUrgent;
+    }
+
+    private synchronized Command takeNext() throws InterruptedException {
+        Lane lane;
+        while ((lane = getMostUrgentLaneLocked(Integer.MAX_VALUE)) == null) {
+            mIdleCount++;
+            try {
+                wait();
+            } finally {
+                mIdleCount--;
+            }
+        }
+        return startLocked(lane);
+    }
+
+    /**
+     * Takes the command of {@code lane} to start next, and marks it running.
+     */
+    private Command startLocked(Lane lane) {
+        mReadyLanes.remove(lane);
+        lane.mReady = false;
+        final Command command = lane.getNext();
+        lane.mPending.remove(command);
+        mPendingCount--;
+        mRunningCount++;
+        lane.mRunningCount++;
+        if (command.mMailboxId != NO_MAILBOX) {
+            lane.mRunningMailboxes.add(command.mMailboxId);
+        }
+        // Another mailbox command of the lane may be able to start as well
+        updateReadyLocked(lane);
+        return command;
+    }
+
+    private synchronized void finish(Command command) {
+        final Lane lane = mLanes.get(command.mLane);
+        mRunningCount--;
+        lane.mRunningCount--;
+        if (command.mMailboxId != NO_MAILBOX) {
+            lane.mRunningMailboxes.remove(command.mMailboxId);
+        }
+        if (lane.mRunningCount == 0 && lane.mPending.isEmpty()) {
+            mLanes.remove(lane.mKey);
+        } else {
+            updateReadyLocked(lane);
+        }
+    }
+
+    private void runCommands() {
+        // TODO: add an end test to this infinite loop
+        while (true) {
+            final Command command;
+            try {
+                command = takeNext();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            run(command);
+        }
+    }
+
+    private void run(Command command) {
+        final Command previous = mCurrentCommand.get();
+        mCurrentCommand.set(command);
+        try {
+            command.mRunnable.run();
+        } catch (RuntimeException e) {
+            // Don't let one command take a worker down with it
+            Log.e(Logging.LOG_TAG, "Command " + command + " failed", e);
+        } finally {
+            mCurrentCommand.set(previous);
+            finish(command);
+        }
+    }
+
+    /**
+     * Runs, on the calling thread, the commands more urgent than the one it's running, if no
+     * worker is free to run them.  Called by long running commands between units of work; does
+     * nothing when called outside of a command.
+     */
+    public void yieldToUrgentCommands() {
+        final Command current = mCurrentCommand.get();
+        if (current == null) {
+            return;
+        }
+        for (;;) {
+            final Command urgent;
+            synchronized (this) {
+                if (mIdleCount > 0) {
+                    // A free worker will take care of it
+                    return;
+                }
+                final Lane lane = getMostUrgentLaneLocked(current.mPriority);
+                if (lane == null) {
+                    return;
+                }
+                urgent = startLocked(lane);
+            }
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, current + " yields to " + urgent);
+            }
+            run(urgent);
+        }
+    }
+
+    /**
+     * Whether any command is running.
+     */
+    public synchronized boolean isBusy() {
+        return mRunningCount > 0;
+    }
+
+    /**
+     * Whether any command is waiting to be started.
+     */
+    public synchronized boolean hasPendingCommands() {
+        return mPendingCount > 0;
+    }
+}
@@ -30,6 +30,8 @@ import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.android.email.mail.Store;
+import com.android.email.mail.store.Pop3Store;
 import com.android.email.mail.store.Pop3Store.Pop3Message;
 import com.android.email.provider.AccountBackupRestore;
 import com.android.email.service.EmailServiceUtils;
@@ -398,7 +400,8 @@ public class Controller {
      * a simple message list.  We should also at this point queue up a background task of
      * downloading some/all of the messages in this mailbox, but that should be interruptable.
      */
-    public void updateMailbox(final long accountId, final long mailboxId, boolean userRequest) {
+    public void updateMailbox(final long accountId, final long mailboxId,
+            final boolean userRequest) {
 
         IEmailService service = getServiceForAccount(accountId);
         if (service != null) {
@@ -422,7 +425,8 @@ public class Controller {
                             mailbox.mType == Mailbox.TYPE_SEARCH) {
                         return;
                     }
-                    mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener);
+                    mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener,
+                            userRequest);
                 }
             });
         }
@@ -708,7 +712,7 @@ public class Controller {
                 mProviderContext.getContentResolver().update(uri, cv, null, null);
                 // Trigger a refresh using the new, longer limit
                 mailbox.mVisibleLimit += Email.VISIBLE_LIMIT_INCREMENT;
-                mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener);
+                mLegacyController.synchronizeMailbox(account, mailbox, mLegacyListener, true);
             }
         });
     }
@@ -1154,6 +1158,13 @@ public class Controller {
             // Delete account data, attachments, PIM data, etc.
             deleteSyncedDataSync(accountId);
 
+            // Drop the store of the account, and the connections it keeps open
+            try {
+                Store.removeInstance(account, context);
+            } catch (MessagingException me) {
+                Log.w(Logging.LOG_TAG, "Unable to remove the store of account " + accountId, me);
+            }
+
             // Now delete the account itself
             Uri uri = ContentUris.withAppendedId(Account.CONTENT_URI, accountId);
             context.getContentResolver().delete(uri, null, null);
@@ -1191,6 +1202,8 @@ public class Controller {
             // Delete synced attachments
             AttachmentUtilities.deleteAllAccountAttachmentFiles(mProviderContext,
                     accountId);
+            // Delete the POP3 UIDL index, if any
+            Pop3Store.deleteUidlIndex(mProviderContext, accountId);
 
             // Delete synced email, leaving only an empty inbox.  We do this in two phases:
             // 1. Delete all non-inbox mailboxes (which will delete all of their messages)
@@ -33,6 +33,7 @@ import com.android.emailcommon.Logging;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.service.EmailServiceProxy;
+import com.android.emailcommon.utility.AttachmentStore;
 import com.android.emailcommon.utility.EmailAsyncTask;
 import com.android.emailcommon.utility.Utility;
 
@@ -195,6 +196,7 @@ public class Email extends Application {
         DEBUG = prefs.getEnableDebugLogging();
         sDebugInhibitGraphicsAcceleration = prefs.getInhibitGraphicsAcceleration();
         enableStrictMode(prefs.getEnableStrictMode());
+        AttachmentStore.setEnabled(prefs.getEnableAttachmentStore());
         TempDirectory.setTempDirectory(this);
 
         // Tie MailRefreshManager to the Controller.
@@ -24,6 +24,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.BinaryTempFileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMessage;
@@ -31,6 +32,7 @@ import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
 import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.Message.RecipientType;
@@ -40,6 +42,7 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentStore;
 import com.android.emailcommon.utility.AttachmentUtilities;
 
 import org.apache.commons.io.IOUtils;
@@ -288,22 +291,41 @@ public class LegacyConversions {
      */
     public static void saveAttachmentBody(Context context, Part part, Attachment localAttachment,
             long accountId) throws MessagingException, IOException {
-        if (part.getBody() != null) {
+        final Body body = part.getBody();
+        if (body != null) {
             long attachmentId = localAttachment.mId;
 
-            InputStream in = part.getBody().getInputStream();
-
             File saveIn = AttachmentUtilities.getAttachmentDirectory(context, accountId);
-            if (!saveIn.exists()) {
-                saveIn.mkdirs();
-            }
             File saveAs = AttachmentUtilities.getAttachmentFilename(context, accountId,
                     attachmentId);
-            saveAs.createNewFile();
-            FileOutputStream out = new FileOutputStream(saveAs);
-            long copySize = IOUtils.copy(in, out);
-            in.close();
-            out.close();
+            long copySize;
+            if (AttachmentStore.isEnabled()) {
+                // The content is hashed as it's written, so it's copied even from a temp file
+                InputStream in = body.getInputStream();
+                try {
+                    copySize = AttachmentStore.save(context, in, attachmentId);
+                } finally {
+                    in.close();
+                }
+                saveAs.delete();
+            } else {
+                if (!saveIn.exists()) {
+                    saveIn.mkdirs();
+                }
+                // A body decoded into a temp file is simply moved into place
+                if (body instanceof BinaryTempFileBody
+                        && ((BinaryTempFileBody) body).moveTo(saveAs)) {
+                    copySize = saveAs.length();
+                } else {
+                    InputStream in = body.getInputStream();
+                    saveAs.createNewFile();
+                    FileOutputStream out = new FileOutputStream(saveAs);
+                    copySize = IOUtils.copy(in, out);
+                    in.close();
+                    out.close();
+                }
+                AttachmentStore.release(context, attachmentId);
+            }
 
             // update the attachment with the extra information we now know
             String contentUriString = AttachmentUtilities.getAttachmentUri(
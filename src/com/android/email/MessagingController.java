@@ -23,14 +23,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
-import android.os.Process;
 import android.text.TextUtils;
+import android.util.Base64DataException;
 import android.util.Log;
 
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.internet.BinaryTempFileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
@@ -53,35 +54,39 @@ import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.emailcommon.utility.Utility;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 
 /**
- * Starts a long running (application) Thread that will run through commands
- * that require remote mailbox access. This class is used to serialize and
- * prioritize these commands. Each method that will submit a command requires a
- * MessagingListener instance to be provided. It is expected that that listener
- * has also been added as a registered listener using addListener(). When a
- * command is to be executed, if the listener that was provided with the command
- * is no longer registered the command is skipped. The design idea for the above
+ * Starts long running (application) Threads that will run through commands
+ * that require remote mailbox access. This class is used to serialize the commands
+ * of each account, while different accounts are served in parallel, and to
+ * prioritize the commands the user is waiting for (see {@link CommandScheduler}). Each
+ * method that will submit a command requires a MessagingListener instance to be provided.
+ * It is expected that that listener has also been added as a registered listener using
+ * addListener(). When a command is to be executed, if the listener that was provided with
+ * the command is no longer registered the command is skipped. The design idea for the above
  * is that when an Activity starts it registers as a listener. When it is paused
  * it removes itself. Thus, any commands that that activity submitted are
  * removed from the queue once the activity is no longer active.
  */
-public class MessagingController implements Runnable {
+public class MessagingController {
 
     /**
      * The maximum message size that we'll consider to be "small". A small message is downloaded
@@ -103,9 +108,70 @@ public class MessagingController implements Runnable {
      */
     private static final int MAX_SMALL_MESSAGE_SIZE = (25 * 1024);
 
+    /**
+     * The number of large messages whose viewable parts are requested from the server at once.
+     * A batch is committed to the provider only after all of its parts are downloaded, so this
+     * also bounds how long newly synced messages stay invisible.
+     */
+    private static final int LARGE_MESSAGE_FETCH_BATCH_SIZE = 25;
+
+    /**
+     * The size of the chunks in which attachments are fetched, from the stores that can fetch
+     * ranges of a part.  A failed download resumes from the last chunk that was saved.
+     */
+    private static final int ATTACHMENT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of threads running commands.  Commands of different accounts run in parallel,
+     * so that one slow server doesn't hold the other accounts back.
+     */
+    private static final int WORKER_COUNT = 3;
+
+    /**
+     * The number of mailboxes of one (IMAP) account that are synced in parallel; each one uses a
+     * connection of its own.  Kept under the size of the connection pool of ImapStore.
+     */
+    private static final int MAX_PARALLEL_MAILBOX_SYNCS = 2;
+
+    /**
+     * The lane of the commands that load what the user is looking at (messages, attachments)
+     * from an IMAP account, which doesn't wait for the sync of the account: each command gets a
+     * connection of its own.  The other stores share one connection between all the commands of
+     * an account, so their loads stay in the lane of their account (see
+     * {@link #getUserLoadLane}), as do the attachments loaded in the background.
+     */
+    @VisibleForTesting
+    static final long LANE_USER_LOADS = -2;
+
     private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
     private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
     private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
+    private static final Flag[] FLAG_LIST_DELETED = new Flag[] { Flag.DELETED };
+
+    /**
+     * The columns of a message that the upsync of its pending changes depends on.  The scans of
+     * the updated and deleted messages read only these, rather than whole messages.
+     */
+    private static final String[] PENDING_CHANGE_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, SyncColumns.SERVER_ID, MessageColumns.ACCOUNT_KEY,
+        MessageColumns.MAILBOX_KEY, MessageColumns.FLAG_READ, MessageColumns.FLAG_FAVORITE,
+        MessageColumns.FLAGS, MessageColumns.MESSAGE_ID, MessageColumns.PROTOCOL_SEARCH_INFO
+    };
+    private static final int PENDING_CHANGE_ID_COLUMN = 0;
+    private static final int PENDING_CHANGE_SERVER_ID_COLUMN = 1;
+    private static final int PENDING_CHANGE_ACCOUNT_KEY_COLUMN = 2;
+    private static final int PENDING_CHANGE_MAILBOX_KEY_COLUMN = 3;
+    private static final int PENDING_CHANGE_FLAG_READ_COLUMN = 4;
+    private static final int PENDING_CHANGE_FLAG_FAVORITE_COLUMN = 5;
+    private static final int PENDING_CHANGE_FLAGS_COLUMN = 6;
+    private static final int PENDING_CHANGE_MESSAGE_ID_COLUMN = 7;
+    private static final int PENDING_CHANGE_PROTOCOL_SEARCH_INFO_COLUMN = 8;
+
+    /** Selects the current version of the messages that are in the updated table */
+    private static final String UPDATED_MESSAGES_SELECTION = EmailContent.RECORD_ID
+            + " in (select " + EmailContent.RECORD_ID + " from "
+            + EmailContent.Message.UPDATED_TABLE_NAME + " where "
+            + MessageColumns.ACCOUNT_KEY + "=?)";
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
@@ -126,14 +192,18 @@ public class MessagingController implements Runnable {
     }
 
     private static MessagingController sInstance = null;
-    private final BlockingQueue<Command> mCommands = new LinkedBlockingQueue<Command>();
-    private final Thread mThread;
+    private final CommandScheduler mScheduler;
+
+    /**
+     * Locks serializing the processing of the pending actions of each account, which the
+     * parallel syncs of its mailboxes all start with.  Accessed only while synchronized on itself.
+     */
+    private final HashMap<Long, Object> mPendingActionsLocks = new HashMap<Long, Object>();
 
     /**
      * All access to mListeners *must* be synchronized
      */
     private final GroupMessagingListener mListeners = new GroupMessagingListener();
-    private boolean mBusy;
     private final Context mContext;
     private final Controller mController;
 
@@ -148,8 +218,8 @@ public class MessagingController implements Runnable {
     protected MessagingController(Context _context, Controller _controller) {
         mContext = _context.getApplicationContext();
         mController = _controller;
-        mThread = new Thread(this);
-        mThread.start();
+        mScheduler = new CommandScheduler("MessagingController", WORKER_COUNT,
+                MAX_PARALLEL_MAILBOX_SYNCS);
     }
 
     /**
@@ -171,40 +241,71 @@ public class MessagingController implements Runnable {
         sInstance = mockController;
     }
 
-    // TODO: seems that this reading of mBusy isn't thread-safe
     public boolean isBusy() {
-        return mBusy;
+        return mScheduler.isBusy();
     }
 
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        // TODO: add an end test to this infinite loop
-        while (true) {
-            Command command;
-            try {
-                command = mCommands.take();
-            } catch (InterruptedException e) {
-                continue; //re-test the condition on the eclosing while
-            }
-            if (command.listener == null || isActiveListener(command.listener)) {
-                mBusy = true;
-                command.runnable.run();
-                mListeners.controllerCommandCompleted(mCommands.size() > 0);
+    /**
+     * Queues a command of the account {@code accountId}, to be run after its previous commands
+     * of the same or a more urgent priority (one of the {@code CommandScheduler.PRIORITY_*}).
+     * The command is skipped if {@code listener} isn't registered anymore by then.
+     */
+    @VisibleForTesting
+    void put(String description, long accountId, int priority,
+            MessagingListener listener, Runnable runnable) {
+        put(description, accountId, CommandScheduler.NO_MAILBOX, priority, listener, runnable);
+    }
+
+    /**
+     * Queues a command, in lane {@code lane}.  If {@code mailboxId} isn't
+     * {@link CommandScheduler#NO_MAILBOX}, the command may run in parallel with the commands of
+     * the lane for other mailboxes.
+     */
+    private void put(String description, long lane, long mailboxId, int priority,
+            final MessagingListener listener, final Runnable runnable) {
+        mScheduler.submit(lane, mailboxId, priority, description, new Runnable() {
+            public void run() {
+                if (listener == null || isActiveListener(listener)) {
+                    runnable.run();
+                    mListeners.controllerCommandCompleted(mScheduler.hasPendingCommands());
+                }
             }
-            mBusy = false;
+        });
+    }
+
+    /**
+     * Returns the mailbox under which a sync of {@code mailbox} is queued: the mailbox itself if
+     * the syncs of the mailboxes of {@code account} can run in parallel, i.e. if each gets a
+     * connection of its own, or {@link CommandScheduler#NO_MAILBOX} otherwise.
+     */
+    private long getParallelSyncMailbox(Account account, Mailbox mailbox) {
+        if (HostAuth.SCHEME_IMAP.equals(account.getProtocol(mContext))) {
+            return mailbox.mId;
         }
+        return CommandScheduler.NO_MAILBOX;
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        try {
-            Command command = new Command();
-            command.listener = listener;
-            command.runnable = runnable;
-            command.description = description;
-            mCommands.add(command);
+    /**
+     * Returns the lane of a load the user is waiting for, from account {@code accountId}:
+     * {@link #LANE_USER_LOADS} if it can run in parallel with the sync of the account, i.e. if
+     * it gets a connection of its own, or the lane of the account otherwise.
+     */
+    @VisibleForTesting
+    long getUserLoadLane(long accountId) {
+        if (HostAuth.SCHEME_IMAP.equals(Account.getProtocol(mContext, accountId))) {
+            return LANE_USER_LOADS;
         }
-        catch (IllegalStateException ie) {
-            throw new Error(ie);
+        return accountId;
+    }
+
+    private Object getPendingActionsLock(long accountId) {
+        synchronized (mPendingActionsLocks) {
+            Object lock = mPendingActionsLocks.get(accountId);
+            if (lock == null) {
+                lock = new Object();
+                mPendingActionsLocks.put(accountId, lock);
+            }
+            return lock;
         }
     }
 
@@ -245,6 +346,10 @@ public class MessagingController implements Runnable {
      * @param listener A listener to notify
      */
     void listFolders(final long accountId, MessagingListener listener) {
+        listFolders(accountId, CommandScheduler.PRIORITY_USER_REFRESH, listener);
+    }
+
+    private void listFolders(final long accountId, int priority, MessagingListener listener) {
         final Account account = Account.restoreAccountWithId(mContext, accountId);
         if (account == null) {
             Log.i(Logging.LOG_TAG, "Could not load account id " + accountId
@@ -252,7 +357,7 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.listFoldersStarted(accountId);
-        put("listFolders", listener, new Runnable() {
+        put("listFolders", accountId, priority, listener, new Runnable() {
             // TODO For now, mailbox addition occurs in the server-dependent store implementation,
             // but, mailbox removal occurs here. Instead, each store should be responsible for
             // content synchronization (addition AND removal) since each store will likely need
@@ -328,6 +433,15 @@ public class MessagingController implements Runnable {
      */
     public void synchronizeMailbox(final Account account,
             final Mailbox folder, MessagingListener listener) {
+        synchronizeMailbox(account, folder, listener, false);
+    }
+
+    /**
+     * Start background synchronization of the specified folder, ahead of the background work if
+     * {@code userRequest} is set.
+     */
+    public void synchronizeMailbox(final Account account,
+            final Mailbox folder, MessagingListener listener, boolean userRequest) {
         /*
          * We don't ever sync the Outbox.
          */
@@ -335,7 +449,10 @@ public class MessagingController implements Runnable {
             return;
         }
         mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
-        put("synchronizeMailbox", listener, new Runnable() {
+        put("synchronizeMailbox", account.mId, getParallelSyncMailbox(account, folder),
+                userRequest ? CommandScheduler.PRIORITY_USER_REFRESH
+                        : CommandScheduler.PRIORITY_BACKGROUND,
+                listener, new Runnable() {
             public void run() {
                 synchronizeMailboxSynchronous(account, folder);
             }
@@ -384,6 +501,98 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Start background synchronization of changes the server reported for the specified
+     * folder, e.g. while it was idling.  Only {@code newMessages} are downloaded and only the
+     * flags of {@code changedMessages} are updated, and only the messages of
+     * {@code vanishedUids} are deleted; if {@code expunged} is set, we can't tell which messages
+     * went away, so a full sync is done instead.
+     *
+     * @param account the account the folder belongs to
+     * @param folder the folder the changes were reported for
+     * @param newMessages the messages that arrived; only their UIDs need to be set
+     * @param changedMessages the messages whose flags changed, with their UIDs and flags set
+     * @param vanishedUids the UIDs of the messages the server reported as removed
+     * @param expunged true if any message was removed from the folder without its UID
+     */
+    public void synchronizeMailboxChanges(final Account account, final Mailbox folder,
+            final Message[] newMessages, final Message[] changedMessages,
+            final String[] vanishedUids, final boolean expunged) {
+        mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
+        put("synchronizeMailboxChanges", account.mId, getParallelSyncMailbox(account, folder),
+                CommandScheduler.PRIORITY_BACKGROUND, null, new Runnable() {
+            public void run() {
+                if (expunged) {
+                    synchronizeMailboxSynchronous(account, folder);
+                } else {
+                    synchronizeMailboxChangesSynchronous(account, folder, newMessages,
+                            changedMessages, vanishedUids);
+                }
+            }
+        });
+    }
+
+    private void synchronizeMailboxChangesSynchronous(final Account account,
+            final Mailbox folder, Message[] newMessages, Message[] changedMessages,
+            String[] vanishedUids) {
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+        mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
+        NotificationController nc = NotificationController.getInstance(mContext);
+        try {
+            processPendingActionsSynchronous(account);
+
+            HashMap<String, LocalMessageInfo> localMessageMap =
+                    getLocalMessageMap(account, folder);
+            Store remoteStore = Store.getInstance(account, mContext);
+            // The account might have been deleted
+            if (remoteStore == null) return;
+            Folder remoteFolder = remoteStore.getFolder(folder.mServerId);
+            remoteFolder.open(OpenMode.READ_WRITE);
+
+            // Same selection as step 7 of synchronizeMailboxGeneric, for the new messages only
+            ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
+            for (Message message : newMessages) {
+                LocalMessageInfo localMessage = localMessageMap.get(message.getUid());
+                if (localMessage == null ||
+                        (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED)) {
+                    unsyncedMessages.add(message);
+                }
+            }
+            ArrayList<Long> unseenMessages = new ArrayList<Long>();
+            if (unsyncedMessages.size() > 0) {
+                downloadFlagAndEnvelope(account, folder, remoteFolder, unsyncedMessages,
+                        localMessageMap, unseenMessages);
+            }
+            SyncBatch batch = new SyncBatch(mContext.getContentResolver());
+            updateLocalFlags(remoteFolder, changedMessages, localMessageMap, batch);
+            // Messages the server reported as removed (QRESYNC)
+            for (String uid : vanishedUids) {
+                LocalMessageInfo localMessage = localMessageMap.get(uid);
+                if (localMessage != null) {
+                    deleteLocalMessage(account, localMessage, batch);
+                }
+            }
+            batch.flush();
+            loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, folder);
+
+            int totalMessages = remoteFolder.getMessageCount();
+            remoteFolder.close(false);
+            mListeners.synchronizeMailboxFinished(account.mId, folder.mId, totalMessages,
+                    unseenMessages.size(), unseenMessages);
+            // Clear authentication notification for this account
+            nc.cancelLoginFailedNotification(account.mId);
+        } catch (MessagingException e) {
+            if (Logging.LOGD) {
+                Log.v(Logging.LOG_TAG, "synchronizeMailboxChanges", e);
+            }
+            if (e instanceof AuthenticationFailedException) {
+                // Generate authentication notification
+                nc.showLoginFailedNotification(account.mId);
+            }
+            mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+        }
+    }
+
     /**
      * Lightweight record for the first pass of message sync, where I'm just seeing if
      * the local message requires sync.  Later (for messages that need syncing) we'll do a full
@@ -429,6 +638,14 @@ public class MessagingController implements Runnable {
         }
     }
 
+    private static void saveOrUpdate(EmailContent content, SyncBatch batch) {
+        if (content.isSaved()) {
+            batch.update(content.getUri(), content.toContentValues());
+        } else {
+            batch.insert(content);
+        }
+    }
+
     /**
      * Load the structure and body of messages not yet synced
      * @param account the account we're syncing
@@ -440,6 +657,19 @@ public class MessagingController implements Runnable {
     void loadUnsyncedMessages(final Account account, Folder remoteFolder,
             ArrayList<Message> unsyncedMessages, final Mailbox toMailbox)
             throws MessagingException {
+        // The messages are written in batches; whatever was downloaded is written even if the
+        // connection fails part way
+        final SyncBatch batch = new SyncBatch(mContext.getContentResolver());
+        try {
+            loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, toMailbox, batch);
+        } finally {
+            batch.flush();
+        }
+    }
+
+    private void loadUnsyncedMessages(final Account account, Folder remoteFolder,
+            ArrayList<Message> unsyncedMessages, final Mailbox toMailbox, final SyncBatch batch)
+            throws MessagingException {
 
         // 1. Divide the unsynced messages into small & large (by size)
 
@@ -465,7 +695,12 @@ public class MessagingController implements Runnable {
         // this is going to be inefficient and duplicate work we've already done.  2.  It's going
         // back to the DB for a local message that we already had (and discarded).
 
-        // For small messages, we specify "body", which returns everything (incl. attachments)
+        // For small messages, we specify "body", which returns everything (incl. attachments).
+        // The fetch is still outstanding when a message is retrieved, so the urgent commands
+        // can only run then if they don't need its connection, i.e. if each command gets a
+        // connection of its own.
+        final boolean yieldDuringFetch =
+                HostAuth.SCHEME_IMAP.equals(account.getProtocol(mContext));
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.BODY);
         remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]), fp,
@@ -473,7 +708,10 @@ public class MessagingController implements Runnable {
                     public void messageRetrieved(Message message) {
                         // Store the updated message locally and mark it fully loaded
                         copyOneMessageToProvider(message, account, toMailbox,
-                                EmailContent.Message.FLAG_LOADED_COMPLETE);
+                                EmailContent.Message.FLAG_LOADED_COMPLETE, batch);
+                        if (yieldDuringFetch) {
+                            mScheduler.yieldToUrgentCommands();
+                        }
                     }
 
                     @Override
@@ -486,43 +724,67 @@ public class MessagingController implements Runnable {
         fp.clear();
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(largeMessages.toArray(new Message[largeMessages.size()]), fp, null);
+        ArrayList<Message> unstructuredMessages = new ArrayList<Message>();
+        ArrayList<Message> structuredMessages = new ArrayList<Message>();
         for (Message message : largeMessages) {
             if (message.getBody() == null) {
-                // POP doesn't support STRUCTURE mode, so we'll just do a partial download
-                // (hopefully enough to see some/all of the body) and mark the message for
-                // further download.
-                fp.clear();
-                fp.add(FetchProfile.Item.BODY_SANE);
-                //  TODO a good optimization here would be to make sure that all Stores set
-                //  the proper size after this fetch and compare the before and after size. If
-                //  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
-                remoteFolder.fetch(new Message[] { message }, fp, null);
+                unstructuredMessages.add(message);
+            } else {
+                structuredMessages.add(message);
+            }
+        }
 
+        // POP doesn't support STRUCTURE mode, so we'll just do a partial download
+        // (hopefully enough to see some/all of the body) and mark the message for
+        // further download.
+        if (unstructuredMessages.size() > 0) {
+            fp.clear();
+            fp.add(FetchProfile.Item.BODY_SANE);
+            //  TODO a good optimization here would be to make sure that all Stores set
+            //  the proper size after this fetch and compare the before and after size. If
+            //  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
+            remoteFolder.fetch(unstructuredMessages.toArray(
+                    new Message[unstructuredMessages.size()]), fp, null);
+            for (Message message : unstructuredMessages) {
                 // Store the partially-loaded message and mark it partially loaded
                 copyOneMessageToProvider(message, account, toMailbox,
-                        EmailContent.Message.FLAG_LOADED_PARTIAL);
-            } else {
-                // We have a structure to deal with, from which
-                // we can pull down the parts we want to actually store.
-                // Build a list of parts we are interested in. Text parts will be downloaded
-                // right now, attachments will be left for later.
+                        EmailContent.Message.FLAG_LOADED_PARTIAL, batch);
+                mScheduler.yieldToUrgentCommands();
+            }
+        }
+
+        // We have a structure to deal with, from which we can pull down the parts we want to
+        // actually store.  Text parts will be downloaded right now, attachments will be left for
+        // later.  The viewable parts of a batch of messages are requested together, so that the
+        // store can pipeline the requests.
+        for (int start = 0; start < structuredMessages.size();
+                start += LARGE_MESSAGE_FETCH_BATCH_SIZE) {
+            final int end = Math.min(start + LARGE_MESSAGE_FETCH_BATCH_SIZE,
+                    structuredMessages.size());
+            ArrayList<Message> partOwners = new ArrayList<Message>();
+            ArrayList<Part> viewableParts = new ArrayList<Part>();
+            for (int i = start; i < end; i++) {
+                Message message = structuredMessages.get(i);
                 ArrayList<Part> viewables = new ArrayList<Part>();
                 ArrayList<Part> attachments = new ArrayList<Part>();
                 MimeUtility.collectParts(message, viewables, attachments);
-                // Download the viewables immediately
                 for (Part part : viewables) {
-                    fp.clear();
-                    fp.add(part);
-                    // TODO what happens if the network connection dies? We've got partial
-                    // messages with incorrect status stored.
-                    remoteFolder.fetch(new Message[] { message }, fp, null);
+                    partOwners.add(message);
+                    viewableParts.add(part);
                 }
+            }
+            // Download the viewables immediately
+            // TODO what happens if the network connection dies? We've got partial
+            // messages with incorrect status stored.
+            remoteFolder.fetchParts(partOwners.toArray(new Message[partOwners.size()]),
+                    viewableParts.toArray(new Part[viewableParts.size()]), null);
+            for (int i = start; i < end; i++) {
                 // Store the updated message locally and mark it fully loaded
-                copyOneMessageToProvider(message, account, toMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                copyOneMessageToProvider(structuredMessages.get(i), account, toMailbox,
+                        EmailContent.Message.FLAG_LOADED_COMPLETE, batch);
             }
+            mScheduler.yieldToUrgentCommands();
         }
-
     }
 
     public void downloadFlagAndEnvelope(final Account account, final Mailbox mailbox,
@@ -540,6 +802,32 @@ public class MessagingController implements Runnable {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
+        // The messages are written in batches, so new messages only get their ids (which are
+        // reported as unseen) once the batch is applied; those that failed to be written are
+        // left out
+        final SyncBatch batch = new SyncBatch(mContext.getContentResolver());
+        final ArrayList<EmailContent.Message> unseenLocalMessages =
+                new ArrayList<EmailContent.Message>();
+        try {
+            fetchFlagAndEnvelope(account, mailbox, remoteFolder, unsyncedMessages, fp,
+                    localMapCopy, batch, unseenLocalMessages);
+        } finally {
+            batch.flush();
+            if (unseenMessages != null) {
+                for (EmailContent.Message localMessage : unseenLocalMessages) {
+                    if (localMessage.isSaved()) {
+                        unseenMessages.add(localMessage.mId);
+                    }
+                }
+            }
+        }
+    }
+
+    private void fetchFlagAndEnvelope(final Account account, final Mailbox mailbox,
+            Folder remoteFolder, ArrayList<Message> unsyncedMessages, FetchProfile fp,
+            final HashMap<String, LocalMessageInfo> localMapCopy, final SyncBatch batch,
+            final ArrayList<EmailContent.Message> unseenLocalMessages)
+            throws MessagingException {
         remoteFolder.fetch(unsyncedMessages.toArray(new Message[0]), fp,
                 new MessageRetrievalListener() {
                     @Override
@@ -563,10 +851,10 @@ public class MessagingController implements Runnable {
                                     LegacyConversions.updateMessageFields(localMessage,
                                             message, account.mId, mailbox.mId);
                                     // Commit the message to the local store
-                                    saveOrUpdate(localMessage, mContext);
+                                    saveOrUpdate(localMessage, batch);
                                     // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
+                                    if (!message.isSet(Flag.SEEN)) {
+                                        unseenLocalMessages.add(localMessage);
                                     }
                                 } catch (MessagingException me) {
                                     Log.e(Logging.LOG_TAG,
@@ -716,6 +1004,116 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Returns an index, by server id, of the messages in the local mailbox.
+     */
+    private HashMap<String, LocalMessageInfo> getLocalMessageMap(Account account,
+            Mailbox mailbox) {
+        Cursor localUidCursor = null;
+        HashMap<String, LocalMessageInfo> localMessageMap = new HashMap<String, LocalMessageInfo>();
+
+        try {
+            localUidCursor = mContext.getContentResolver().query(
+                    EmailContent.Message.CONTENT_URI,
+                    LocalMessageInfo.PROJECTION,
+                    EmailContent.MessageColumns.ACCOUNT_KEY + "=?" +
+                    " AND " + MessageColumns.MAILBOX_KEY + "=?",
+                    new String[] {
+                            String.valueOf(account.mId),
+                            String.valueOf(mailbox.mId)
+                    },
+                    null);
+            while (localUidCursor.moveToNext()) {
+                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
+                localMessageMap.put(info.mServerId, info);
+            }
+        } finally {
+            if (localUidCursor != null) {
+                localUidCursor.close();
+            }
+        }
+        return localMessageMap;
+    }
+
+    /**
+     * Deletes a local message, its attachment files, and its updated/deleted rows.  The rows are
+     * deleted when {@code batch} is applied.
+     */
+    private void deleteLocalMessage(Account account, LocalMessageInfo infoToDelete,
+            SyncBatch batch) {
+        // Delete associated data (attachment files)
+        // Attachment & Body records are auto-deleted when we delete the Message record
+        AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
+                infoToDelete.mId);
+
+        // Delete the message itself
+        batch.delete(ContentUris.withAppendedId(
+                EmailContent.Message.CONTENT_URI, infoToDelete.mId));
+
+        // Delete extra rows (e.g. synced or deleted)
+        batch.delete(ContentUris.withAppendedId(
+                EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId));
+        batch.delete(ContentUris.withAppendedId(
+                EmailContent.Message.DELETED_CONTENT_URI, infoToDelete.mId));
+    }
+
+    /**
+     * Updates the SEEN/FLAGGED/ANSWERED flags of the local copies of {@code remoteMessages},
+     * for the flags the remote folder supports.  Messages that aren't in
+     * {@code localMessageMap} are skipped.
+     */
+    private void updateLocalFlags(Folder remoteFolder, Message[] remoteMessages,
+            HashMap<String, LocalMessageInfo> localMessageMap, SyncBatch batch)
+            throws MessagingException {
+        boolean remoteSupportsSeen = false;
+        boolean remoteSupportsFlagged = false;
+        boolean remoteSupportsAnswered = false;
+        for (Flag flag : remoteFolder.getPermanentFlags()) {
+            if (flag == Flag.SEEN) {
+                remoteSupportsSeen = true;
+            }
+            if (flag == Flag.FLAGGED) {
+                remoteSupportsFlagged = true;
+            }
+            if (flag == Flag.ANSWERED) {
+                remoteSupportsAnswered = true;
+            }
+        }
+        // Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
+        if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
+            for (Message remoteMessage : remoteMessages) {
+                LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
+                if (localMessageInfo == null) {
+                    continue;
+                }
+                boolean localSeen = localMessageInfo.mFlagRead;
+                boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
+                boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
+                boolean localFlagged = localMessageInfo.mFlagFavorite;
+                boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
+                boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
+                int localFlags = localMessageInfo.mFlags;
+                boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+                boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
+                boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
+                if (newSeen || newFlagged || newAnswered) {
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
+                    ContentValues updateValues = new ContentValues();
+                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
+                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
+                    if (remoteAnswered) {
+                        localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
+                    } else {
+                        localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
+                    }
+                    updateValues.put(MessageColumns.FLAGS, localFlags);
+                    batch.update(uri, updateValues);
+                }
+            }
+        }
+    }
+
     /**
      * Generic synchronizer - used for POP3 and IMAP.
      *
@@ -745,30 +1143,7 @@ public class MessagingController implements Runnable {
         }
 
         // 1.  Get the message list from the local store and create an index of the uids
-
-        Cursor localUidCursor = null;
-        HashMap<String, LocalMessageInfo> localMessageMap = new HashMap<String, LocalMessageInfo>();
-
-        try {
-            localUidCursor = resolver.query(
-                    EmailContent.Message.CONTENT_URI,
-                    LocalMessageInfo.PROJECTION,
-                    EmailContent.MessageColumns.ACCOUNT_KEY + "=?" +
-                    " AND " + MessageColumns.MAILBOX_KEY + "=?",
-                    new String[] {
-                            String.valueOf(account.mId),
-                            String.valueOf(mailbox.mId)
-                    },
-                    null);
-            while (localUidCursor.moveToNext()) {
-                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
-                localMessageMap.put(info.mServerId, info);
-            }
-        } finally {
-            if (localUidCursor != null) {
-                localUidCursor.close();
-            }
-        }
+        HashMap<String, LocalMessageInfo> localMessageMap = getLocalMessageMap(account, mailbox);
 
         // 2.  Open the remote folder and create the remote folder if necessary
 
@@ -863,84 +1238,56 @@ public class MessagingController implements Runnable {
         }
 
         // 9. Refresh the flags for any messages in the local store that we didn't just download.
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        remoteFolder.fetch(remoteMessages, fp, null);
-        boolean remoteSupportsSeen = false;
-        boolean remoteSupportsFlagged = false;
-        boolean remoteSupportsAnswered = false;
-        for (Flag flag : remoteFolder.getPermanentFlags()) {
-            if (flag == Flag.SEEN) {
-                remoteSupportsSeen = true;
-            }
-            if (flag == Flag.FLAGGED) {
-                remoteSupportsFlagged = true;
-            }
-            if (flag == Flag.ANSWERED) {
-                remoteSupportsAnswered = true;
-            }
-        }
-        // Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
-        if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
-                LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
-                if (localMessageInfo == null) {
-                    continue;
-                }
-                boolean localSeen = localMessageInfo.mFlagRead;
-                boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
-                boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
-                boolean localFlagged = localMessageInfo.mFlagFavorite;
-                boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
-                boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
-                int localFlags = localMessageInfo.mFlags;
-                boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
-                boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
-                boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
-                if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
-                    if (remoteAnswered) {
-                        localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
-                    } else {
-                        localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
-                    }
-                    updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
-                }
+        // If the server tracks modification sequences and the UIDs are still valid, only the
+        // messages that changed since the last sync are fetched (none, if the folder's
+        // HIGHESTMODSEQ hasn't moved); otherwise the flags of the whole window are.
+        final String uidValidity = remoteFolder.getUidValidity();
+        final long highestModSeq = remoteFolder.getHighestModSeq();
+        Message[] changedMessages = new Message[0];
+        final ArrayList<String> vanishedUids = new ArrayList<String>();
+        if (highestModSeq > 0 && mailbox.mHighestModSeq > 0
+                && uidValidity != null && uidValidity.equals(mailbox.mSyncKey)) {
+            if (highestModSeq != mailbox.mHighestModSeq) {
+                changedMessages = remoteFolder.getMessagesChangedSince(mailbox.mHighestModSeq,
+                        vanishedUids);
             }
+        } else {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            remoteFolder.fetch(remoteMessages, fp, null);
+            changedMessages = remoteMessages;
         }
+        final SyncBatch batch = new SyncBatch(resolver);
+        updateLocalFlags(remoteFolder, changedMessages, localMessageMap, batch);
 
         // 10. Remove any messages that are in the local store but no longer on the remote store.
+        // This includes messages the server reported as removed since the last sync (QRESYNC).
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
+        for (String uid : vanishedUids) {
+            if (localMessageMap.containsKey(uid)) {
+                localUidsToDelete.add(uid);
+            }
+        }
         for (String uidToDelete : localUidsToDelete) {
-            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
-
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                    infoToDelete.mId);
-
-            // Delete the message itself
-            Uri uriToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.CONTENT_URI, infoToDelete.mId);
-            resolver.delete(uriToDelete, null, null);
-
-            // Delete extra rows (e.g. synced or deleted)
-            Uri syncRowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(syncRowToDelete, null, null);
-            Uri deletERowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(deletERowToDelete, null, null);
+            deleteLocalMessage(account, localMessageMap.get(uidToDelete), batch);
         }
+        batch.flush();
 
         loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, mailbox);
 
+        // 11. Remember the folder's state, so the next sync only needs to fetch what changed
+        if (highestModSeq != mailbox.mHighestModSeq
+                || !TextUtils.equals(uidValidity, mailbox.mSyncKey)) {
+            ContentValues cv = new ContentValues();
+            cv.put(MailboxColumns.HIGHEST_MOD_SEQ, highestModSeq);
+            cv.put(MailboxColumns.SYNC_KEY, uidValidity);
+            resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId), cv,
+                    null, null);
+            mailbox.mHighestModSeq = highestModSeq;
+            mailbox.mSyncKey = uidValidity;
+        }
+
         // 14. Clean up and report results
         remoteFolder.close(false);
 
@@ -959,6 +1306,15 @@ public class MessagingController implements Runnable {
      */
     public void copyOneMessageToProvider(Message message, Account account,
             Mailbox folder, int loadStatus) {
+        copyOneMessageToProvider(message, account, folder, loadStatus, null);
+    }
+
+    /**
+     * Same as {@link #copyOneMessageToProvider(Message, Account, Mailbox, int)}, but the message
+     * and its body are written when {@code batch} is applied.
+     */
+    private void copyOneMessageToProvider(Message message, Account account,
+            Mailbox folder, int loadStatus, SyncBatch batch) {
         EmailContent.Message localMessage = null;
         Cursor c = null;
         try {
@@ -978,7 +1334,7 @@ public class MessagingController implements Runnable {
                 localMessage = EmailContent.getContent(c, EmailContent.Message.class);
                 localMessage.mMailboxKey = folder.mId;
                 localMessage.mAccountKey = account.mId;
-                copyOneMessageToProvider(message, localMessage, loadStatus, mContext);
+                copyOneMessageToProvider(message, localMessage, loadStatus, mContext, batch);
             }
         } finally {
             if (c != null) {
@@ -997,8 +1353,18 @@ public class MessagingController implements Runnable {
      *        EmailContent.Message.LOADED)
      * @param context the context to be used for EmailProvider
      */
-    public void copyOneMessageToProvider(Message message, EmailContent.Message localMessage,
-            int loadStatus, Context context) {
+    public void copyOneMessageToProvider(Message message, EmailContent.Message localMessage,
+            int loadStatus, Context context) {
+        copyOneMessageToProvider(message, localMessage, loadStatus, context, null);
+    }
+
+    /**
+     * Same as {@link #copyOneMessageToProvider(Message, EmailContent.Message, int, Context)}, but
+     * the message and its body are written when {@code batch} is applied.  If {@code batch} is
+     * null, they are written (in a single batch) before returning.
+     */
+    private void copyOneMessageToProvider(Message message, EmailContent.Message localMessage,
+            int loadStatus, Context context, SyncBatch batch) {
         try {
 
             EmailContent.Body body = EmailContent.Body.restoreBodyWithMessageId(context,
@@ -1018,22 +1384,19 @@ public class MessagingController implements Runnable {
 
                 ConversionUtilities.updateBodyFields(body, localMessage, viewables);
 
-                // Commit the message & body to the local store immediately
-                saveOrUpdate(localMessage, context);
-                saveOrUpdate(body, context);
-
-                // process (and save) attachments
+                // process (and save) attachments first, so that the message can be written
+                // once, with its final attachment & load flags
                 LegacyConversions.updateAttachments(context, localMessage, attachments);
-
-                // One last update of message with two updated flags
                 localMessage.mFlagLoaded = loadStatus;
 
-                ContentValues cv = new ContentValues();
-                cv.put(EmailContent.MessageColumns.FLAG_ATTACHMENT, localMessage.mFlagAttachment);
-                cv.put(EmailContent.MessageColumns.FLAG_LOADED, localMessage.mFlagLoaded);
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI,
-                        localMessage.mId);
-                context.getContentResolver().update(uri, cv, null, null);
+                // Commit the message & body to the local store
+                SyncBatch messageBatch = (batch != null) ? batch
+                        : new SyncBatch(context.getContentResolver());
+                saveOrUpdate(localMessage, messageBatch);
+                saveOrUpdate(body, messageBatch);
+                if (batch == null) {
+                    messageBatch.flush();
+                }
 
             } catch (MessagingException me) {
                 Log.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
@@ -1047,7 +1410,8 @@ public class MessagingController implements Runnable {
     }
 
     public void processPendingActions(final long accountId) {
-        put("processPendingActions", null, new Runnable() {
+        put("processPendingActions", accountId, CommandScheduler.PRIORITY_BACKGROUND, null,
+                new Runnable() {
             public void run() {
                 try {
                     Account account = Account.restoreAccountWithId(mContext, accountId);
@@ -1090,14 +1454,17 @@ public class MessagingController implements Runnable {
         ContentResolver resolver = mContext.getContentResolver();
         String[] accountIdArgs = new String[] { Long.toString(account.mId) };
 
-        // Handle deletes first, it's always better to get rid of things first
-        processPendingDeletesSynchronous(account, resolver, accountIdArgs);
+        // The syncs of several mailboxes of the account may get here at the same time
+        synchronized (getPendingActionsLock(account.mId)) {
+            // Handle deletes first, it's always better to get rid of things first
+            processPendingDeletesSynchronous(account, resolver, accountIdArgs);
 
-        // Handle uploads (currently, only to sent messages)
-        processPendingUploadsSynchronous(account, resolver, accountIdArgs);
+            // Handle uploads (currently, only to sent messages)
+            processPendingUploadsSynchronous(account, resolver, accountIdArgs);
 
-        // Now handle updates / upsyncs
-        processPendingUpdatesSynchronous(account, resolver, accountIdArgs);
+            // Now handle updates / upsyncs
+            processPendingUpdatesSynchronous(account, resolver, accountIdArgs);
+        }
     }
 
     /**
@@ -1150,56 +1517,31 @@ public class MessagingController implements Runnable {
     private void processPendingDeletesSynchronous(Account account,
             ContentResolver resolver, String[] accountIdArgs) {
         Cursor deletes = resolver.query(EmailContent.Message.DELETED_CONTENT_URI,
-                EmailContent.Message.CONTENT_PROJECTION,
+                PENDING_CHANGE_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
-        long lastMessageId = -1;
+        PendingChangePlanner planner = new PendingChangePlanner();
+        ArrayList<Long> messageIds = new ArrayList<Long>();
         try {
-            // Defer setting up the store until we know we need to access it
-            Store remoteStore = null;
             // loop through messages marked as deleted
             while (deletes.moveToNext()) {
-                boolean deleteFromTrash = false;
-
-                EmailContent.Message oldMessage =
-                        EmailContent.getContent(deletes, EmailContent.Message.class);
-
-                if (oldMessage != null) {
-                    lastMessageId = oldMessage.mId;
-
-                    Mailbox mailbox = getRemoteMailboxForMessage(oldMessage);
-                    if (mailbox == null) {
-                        continue; // Mailbox removed. Move to the next message.
-                    }
-                    deleteFromTrash = mailbox.mType == Mailbox.TYPE_TRASH;
-
-                    // Load the remote store if it will be needed
-                    if (remoteStore == null && deleteFromTrash) {
-                        remoteStore = Store.getInstance(account, mContext);
-                    }
-
-                    // Dispatch here for specific change types
-                    if (deleteFromTrash) {
-                        // Move message to trash
-                        processPendingDeleteFromTrash(remoteStore, account, mailbox, oldMessage);
-                    }
+                EmailContent.Message oldMessage = restorePendingChange(deletes);
+                Mailbox mailbox = getRemoteMailboxForMessage(oldMessage);
+                if (mailbox == null) {
+                    continue; // Mailbox removed. Move to the next message.
                 }
-
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.DELETED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
-            }
-        } catch (MessagingException me) {
-            // Presumably an error here is an account connection failure, so there is
-            // no point in continuing through the rest of the pending updates.
-            if (Email.DEBUG) {
-                Log.d(Logging.LOG_TAG, "Unable to process pending delete for id="
-                            + lastMessageId + ": " + me);
+                // We only support delete-from-trash here
+                if (mailbox.mType == Mailbox.TYPE_TRASH && !isLocalOnly(oldMessage)) {
+                    planner.addChange(mailbox, PendingChangePlanner.OP_DELETE, null,
+                            oldMessage, oldMessage.mServerId);
+                }
+                messageIds.add(oldMessage.mId);
             }
         } finally {
             deletes.close();
         }
+        processPendingChanges(account, planner, messageIds,
+                EmailContent.Message.DELETED_CONTENT_URI);
     }
 
     /**
@@ -1313,20 +1655,36 @@ public class MessagingController implements Runnable {
      * Scan for messages that are in the Message_Updates table, look for differences that
      * we can deal with, and do the work.
      *
+     * The changes are planned first, and then applied in batches: one command for all the
+     * messages of a mailbox that get the same change (see {@link PendingChangePlanner}).
+     *
      * @param account
      * @param resolver
      * @param accountIdArgs
      */
     private void processPendingUpdatesSynchronous(Account account,
             ContentResolver resolver, String[] accountIdArgs) {
+        // The current version of the updated messages, read in one query rather than one per
+        // message
+        HashMap<Long, EmailContent.Message> newMessages = new HashMap<Long, EmailContent.Message>();
+        Cursor current = resolver.query(EmailContent.Message.CONTENT_URI,
+                PENDING_CHANGE_PROJECTION, UPDATED_MESSAGES_SELECTION, accountIdArgs, null);
+        try {
+            while (current.moveToNext()) {
+                EmailContent.Message message = restorePendingChange(current);
+                newMessages.put(message.mId, message);
+            }
+        } finally {
+            current.close();
+        }
+
         Cursor updates = resolver.query(EmailContent.Message.UPDATED_CONTENT_URI,
-                EmailContent.Message.CONTENT_PROJECTION,
+                PENDING_CHANGE_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
-        long lastMessageId = -1;
+        PendingChangePlanner planner = new PendingChangePlanner();
+        ArrayList<Long> messageIds = new ArrayList<Long>();
         try {
-            // Defer setting up the store until we know we need to access it
-            Store remoteStore = null;
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
             // loop through messages marked as needing updates
@@ -1337,11 +1695,8 @@ public class MessagingController implements Runnable {
                 boolean changeMailbox = false;
                 boolean changeAnswered = false;
 
-                EmailContent.Message oldMessage =
-                    EmailContent.getContent(updates, EmailContent.Message.class);
-                lastMessageId = oldMessage.mId;
-                EmailContent.Message newMessage =
-                    EmailContent.Message.restoreMessageWithId(mContext, oldMessage.mId);
+                EmailContent.Message oldMessage = restorePendingChange(updates);
+                EmailContent.Message newMessage = newMessages.get(oldMessage.mId);
                 if (newMessage != null) {
                     mailbox = Mailbox.restoreMailboxWithId(mContext, newMessage.mMailboxKey);
                     if (mailbox == null) {
@@ -1360,38 +1715,266 @@ public class MessagingController implements Runnable {
                         (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
                }
 
-                // Load the remote store if it will be needed
-                if (remoteStore == null &&
-                        (changeMoveToTrash || changeRead || changeFlagged || changeMailbox ||
-                                changeAnswered)) {
-                    remoteStore = Store.getInstance(account, mContext);
-                }
-
                 // Dispatch here for specific change types
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(remoteStore, account, mailbox, oldMessage,
-                            newMessage);
+                    planPendingMoveToTrash(planner, account, mailbox, oldMessage, newMessage);
                 } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(remoteStore, mailbox, changeRead, changeFlagged,
+                    planPendingDataChange(planner, mailbox, changeRead, changeFlagged,
                             changeMailbox, changeAnswered, oldMessage, newMessage);
                 }
+                messageIds.add(oldMessage.mId);
+            }
+        } finally {
+            updates.close();
+        }
+        processPendingChanges(account, planner, messageIds,
+                EmailContent.Message.UPDATED_CONTENT_URI);
+    }
 
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
+    /**
+     * Restores the columns of {@link #PENDING_CHANGE_PROJECTION} into a message.
+     */
+    private static EmailContent.Message restorePendingChange(Cursor c) {
+        EmailContent.Message message = new EmailContent.Message();
+        message.mId = c.getLong(PENDING_CHANGE_ID_COLUMN);
+        message.mServerId = c.getString(PENDING_CHANGE_SERVER_ID_COLUMN);
+        message.mAccountKey = c.getLong(PENDING_CHANGE_ACCOUNT_KEY_COLUMN);
+        message.mMailboxKey = c.getLong(PENDING_CHANGE_MAILBOX_KEY_COLUMN);
+        message.mFlagRead = c.getInt(PENDING_CHANGE_FLAG_READ_COLUMN) == 1;
+        message.mFlagFavorite = c.getInt(PENDING_CHANGE_FLAG_FAVORITE_COLUMN) == 1;
+        message.mFlags = c.getInt(PENDING_CHANGE_FLAGS_COLUMN);
+        message.mMessageId = c.getString(PENDING_CHANGE_MESSAGE_ID_COLUMN);
+        message.mProtocolSearchInfo = c.getString(PENDING_CHANGE_PROTOCOL_SEARCH_INFO_COLUMN);
+        return message;
+    }
+
+    /**
+     * Applies the changes planned by {@code planner} to the server, and deletes the rows of
+     * {@code changesUri} (the shadow table of the updated or deleted messages) once all the
+     * changes of their messages have been applied.  The rows of the messages without any change
+     * to apply are deleted right away.
+     *
+     * @param messageIds the ids of the messages whose rows were planned
+     */
+    private void processPendingChanges(Account account, PendingChangePlanner planner,
+            List<Long> messageIds, Uri changesUri) {
+        ContentResolver resolver = mContext.getContentResolver();
+        for (long messageId : messageIds) {
+            if (!planner.isPending(messageId)) {
+                resolver.delete(ContentUris.withAppendedId(changesUri, messageId), null, null);
             }
+        }
 
+        PendingChangePlanner.Batch lastBatch = null;
+        try {
+            // Defer setting up the store until we know we need to access it
+            Store remoteStore = null;
+            // The folder of the current mailbox, which is null if it can't be written to
+            Folder remoteFolder = null;
+            long remoteMailboxId = Mailbox.NO_MAILBOX;
+            boolean expunge = false;
+            for (PendingChangePlanner.Batch batch : planner.getBatches()) {
+                lastBatch = batch;
+                if (remoteStore == null) {
+                    remoteStore = Store.getInstance(account, mContext);
+                }
+                // The batches of a mailbox are next to each other
+                if (batch.mMailbox.mId != remoteMailboxId) {
+                    closeRemoteFolder(remoteFolder, expunge);
+                    remoteFolder = openRemoteFolder(remoteStore, batch.mMailbox);
+                    remoteMailboxId = batch.mMailbox.mId;
+                    expunge = false;
+                }
+                if (remoteFolder != null) {
+                    expunge |= applyPendingBatch(remoteStore, remoteFolder, batch);
+                }
+                for (long messageId : planner.finish(batch)) {
+                    resolver.delete(ContentUris.withAppendedId(changesUri, messageId), null,
+                            null);
+                }
+            }
+            closeRemoteFolder(remoteFolder, expunge);
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
-            // no point in continuing through the rest of the pending updates.
+            // no point in continuing through the rest of the pending changes.
             if (Email.DEBUG) {
-                Log.d(Logging.LOG_TAG, "Unable to process pending update for id="
-                            + lastMessageId + ": " + me);
+                Log.d(Logging.LOG_TAG, "Unable to process pending changes " + lastBatch + ": "
+                        + me);
+            }
+        }
+    }
+
+    /**
+     * Opens the remote folder of {@code mailbox} for writing, or returns null if it doesn't
+     * exist or can't be written to.
+     */
+    private static Folder openRemoteFolder(Store remoteStore, Mailbox mailbox)
+            throws MessagingException {
+        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+        if (!remoteFolder.exists()) {
+            return null;
+        }
+        remoteFolder.open(OpenMode.READ_WRITE);
+        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+            remoteFolder.close(false);
+            return null;
+        }
+        return remoteFolder;
+    }
+
+    private static void closeRemoteFolder(Folder remoteFolder, boolean expunge)
+            throws MessagingException {
+        if (remoteFolder != null) {
+            if (expunge) {
+                remoteFolder.expunge();
+            }
+            remoteFolder.close(false);
+        }
+    }
+
+    /**
+     * Returns the remote messages of {@code changes}, and maps them by UID into
+     * {@code changesByUid}.  The messages that can't be found are left out.
+     */
+    private static Message[] getRemoteMessages(Store remoteStore, Folder remoteFolder,
+            List<PendingChangePlanner.Change> changes,
+            HashMap<String, PendingChangePlanner.Change> changesByUid)
+            throws MessagingException {
+        // When the store allows it, don't look up each message; the commands ignore the
+        // UIDs that don't exist anymore
+        boolean batch = remoteStore.canBatchUidCommands();
+        ArrayList<Message> messages = new ArrayList<Message>(changes.size());
+        for (PendingChangePlanner.Change change : changes) {
+            Message message = batch ? remoteFolder.createMessage(change.mServerId)
+                    : remoteFolder.getMessage(change.mServerId);
+            if (message != null) {
+                messages.add(message);
+                changesByUid.put(change.mServerId, change);
+            }
+        }
+        return messages.toArray(Message.EMPTY_ARRAY);
+    }
+
+    /**
+     * Applies {@code batch} in {@code remoteFolder}, the remote folder of its mailbox.
+     *
+     * @return whether messages were marked deleted, so that the folder has to be expunged
+     */
+    private boolean applyPendingBatch(Store remoteStore, Folder remoteFolder,
+            PendingChangePlanner.Batch batch) throws MessagingException {
+        final HashMap<String, PendingChangePlanner.Change> changesByUid =
+                new HashMap<String, PendingChangePlanner.Change>();
+        Message[] messages =
+                getRemoteMessages(remoteStore, remoteFolder, batch.getChanges(), changesByUid);
+        if (messages.length == 0) {
+            return false;
+        }
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "Applying " + batch + " to " + messages.length + " messages");
+        }
+        switch (batch.mOperation) {
+            case PendingChangePlanner.OP_SET_SEEN:
+                remoteFolder.setFlags(messages, FLAG_LIST_SEEN, batch.mValue);
+                return false;
+            case PendingChangePlanner.OP_SET_FLAGGED:
+                remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, batch.mValue);
+                return false;
+            case PendingChangePlanner.OP_SET_ANSWERED:
+                remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED, batch.mValue);
+                return false;
+            case PendingChangePlanner.OP_MOVE: {
+                Folder toFolder = remoteStore.getFolder(batch.mTargetMailbox.mServerId);
+                if (!toFolder.exists()) {
+                    return false;
+                }
+                // We may need the message ids to search for the messages in the destination
+                // folder
+                setMessageIds(messages, changesByUid);
+                // Copy the messages to their new folder
+                remoteFolder.copyMessages(messages, toFolder,
+                        new PendingCopyCallbacks(changesByUid, false));
+                // Delete the messages from the remote source folder
+                remoteFolder.setFlags(messages, FLAG_LIST_DELETED, true);
+                return true;
+            }
+            case PendingChangePlanner.OP_MOVE_TO_TRASH: {
+                // Find the remote trash folder, and create it if not found
+                Folder remoteTrashFolder = remoteStore.getFolder(batch.mTargetMailbox.mServerId);
+                if (!remoteTrashFolder.exists()) {
+                    remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+                }
+                // Try to copy the messages into the remote trash folder
+                // Note, this entire section will be skipped for POP3 because there's no
+                // remote trash
+                if (remoteTrashFolder.exists()) {
+                    // Because remoteTrashFolder may be new, we need to explicitly open it
+                    remoteTrashFolder.open(OpenMode.READ_WRITE);
+                    if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
+                        remoteTrashFolder.close(false);
+                        return false;
+                    }
+                    setMessageIds(messages, changesByUid);
+                    remoteFolder.copyMessages(messages, remoteTrashFolder,
+                            new PendingCopyCallbacks(changesByUid, true));
+                    remoteTrashFolder.close(false);
+                }
+                // Delete the messages from the remote source folder
+                remoteFolder.setFlags(messages, FLAG_LIST_DELETED, true);
+                return true;
+            }
+            case PendingChangePlanner.OP_DELETE:
+                remoteFolder.setFlags(messages, FLAG_LIST_DELETED, true);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + batch.mOperation);
+        }
+    }
+
+    private static void setMessageIds(Message[] messages,
+            HashMap<String, PendingChangePlanner.Change> changesByUid)
+            throws MessagingException {
+        for (Message message : messages) {
+            String messageId = changesByUid.get(message.getUid()).mMessage.mMessageId;
+            if (messageId != null) {
+                message.setMessageId(messageId);
+            }
+        }
+    }
+
+    /**
+     * Records the new UIDs of the messages copied by a batch.
+     */
+    private class PendingCopyCallbacks implements MessageUpdateCallbacks {
+        private final HashMap<String, PendingChangePlanner.Change> mChangesByUid;
+        private final boolean mDeleteNotFound;
+
+        /**
+         * @param deleteNotFound whether to delete the local copy of a message that doesn't
+         * exist on the server anymore
+         */
+        PendingCopyCallbacks(HashMap<String, PendingChangePlanner.Change> changesByUid,
+                boolean deleteNotFound) {
+            mChangesByUid = changesByUid;
+            mDeleteNotFound = deleteNotFound;
+        }
+
+        @Override
+        public void onMessageUidChange(Message message, String newUid) {
+            PendingChangePlanner.Change change = mChangesByUid.get(message.getUid());
+            if (change != null) {
+                ContentValues cv = new ContentValues();
+                cv.put(EmailContent.Message.SERVER_ID, newUid);
+                mContext.getContentResolver().update(change.mMessage.getUri(), cv, null, null);
+            }
+        }
+
+        @Override
+        public void onMessageNotFound(Message message) {
+            PendingChangePlanner.Change change = mChangesByUid.get(message.getUid());
+            if (mDeleteNotFound && change != null) {
+                mContext.getContentResolver().delete(change.mMessage.getUri(), null, null);
             }
-        } finally {
-            updates.close();
         }
     }
 
@@ -1447,9 +2030,17 @@ public class MessagingController implements Runnable {
     }
 
     /**
-     * Upsync changes to read, flagged, or mailbox
+     * Whether {@code message} exists only locally, and has nothing to update on the server.
+     */
+    private static boolean isLocalOnly(EmailContent.Message message) {
+        return message.mServerId == null || message.mServerId.equals("")
+                || message.mServerId.startsWith(LOCAL_SERVERID_PREFIX);
+    }
+
+    /**
+     * Plan the upsync of changes to read, flagged, or mailbox
      *
-     * @param remoteStore the remote store for this mailbox
+     * @param planner the planner of the changes
      * @param mailbox the mailbox the message is stored in
      * @param changeRead whether the message's read state has changed
      * @param changeFlagged whether the message's flagged state has changed
@@ -1457,10 +2048,10 @@ public class MessagingController implements Runnable {
      * @param oldMessage the message in it's pre-change state
      * @param newMessage the current version of the message
      */
-    private void processPendingDataChange(Store remoteStore, Mailbox mailbox, boolean changeRead,
-            boolean changeFlagged, boolean changeMailbox, boolean changeAnswered,
-            EmailContent.Message oldMessage, final EmailContent.Message newMessage)
-            throws MessagingException {
+    private void planPendingDataChange(PendingChangePlanner planner, Mailbox mailbox,
+            boolean changeRead, boolean changeFlagged, boolean changeMailbox,
+            boolean changeAnswered, EmailContent.Message oldMessage,
+            EmailContent.Message newMessage) {
         // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
         // being moved
         Mailbox newMailbox = mailbox;
@@ -1468,8 +2059,7 @@ public class MessagingController implements Runnable {
         mailbox = getRemoteMailboxForMessage(oldMessage);
 
         // 0. No remote update if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
+        if (isLocalOnly(newMessage) || (mailbox == null)) {
             return;
         }
 
@@ -1478,21 +2068,7 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return;
-        }
-
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
-        }
+        // 2. Plan the changes to the message
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG,
                     "Update for msg id=" + newMessage.mId
@@ -1502,62 +2078,41 @@ public class MessagingController implements Runnable {
                     + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
                     + " new mailbox=" + newMessage.mMailboxKey);
         }
-        Message[] messages = new Message[] { remoteMessage };
+        String serverId = newMessage.mServerId;
         if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
+            planner.addFlagChange(mailbox, PendingChangePlanner.OP_SET_SEEN,
+                    newMessage.mFlagRead, newMessage, serverId);
         }
         if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
+            planner.addFlagChange(mailbox, PendingChangePlanner.OP_SET_FLAGGED,
+                    newMessage.mFlagFavorite, newMessage, serverId);
         }
         if (changeAnswered) {
-            remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED,
-                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
+            planner.addFlagChange(mailbox, PendingChangePlanner.OP_SET_ANSWERED,
+                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0,
+                    newMessage, serverId);
         }
         if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
-                return;
-            }
-            // We may need the message id to search for the message in the destination folder
-            remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.Message.SERVER_ID, newUid);
-                    // We only have one message, so, any updates _must_ be for it. Otherwise,
-                    // we'd have to cycle through to find the one with the same server ID.
-                    mContext.getContentResolver().update(ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, newMessage.mId), cv, null, null);
-                }
-                @Override
-                public void onMessageNotFound(Message message) {
-                }
-            });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+            planner.addChange(mailbox, PendingChangePlanner.OP_MOVE, newMailbox, newMessage,
+                    serverId);
         }
-        remoteFolder.close(false);
     }
 
     /**
-     * Process a pending trash message command.
+     * Plan a pending trash message command.
      *
-     * @param remoteStore the remote store we're working in
+     * @param planner the planner of the changes
      * @param account The account in which we are working
      * @param newMailbox The local trash mailbox
      * @param oldMessage The message copy that was saved in the updates shadow table
      * @param newMessage The message that was moved to the mailbox
      */
-    private void processPendingMoveToTrash(Store remoteStore,
+    private void planPendingMoveToTrash(PendingChangePlanner planner,
             Account account, Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+            EmailContent.Message newMessage) {
 
         // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+        if (isLocalOnly(newMessage)) {
             return;
         }
 
@@ -1591,117 +2146,10 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        // The rest of this method handles server-side deletion
-
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteFolder.close(false);
-            return;
-        }
-
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
-        }
-
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
-        }
-
-        // 7.  Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
-                return;
-            }
-
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
-                    new Folder.MessageUpdateCallbacks() {
-                public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.Message.SERVER_ID, newUid);
-                    mContext.getContentResolver().update(newMessage.getUri(), cv, null, null);
-                }
-
-                /**
-                 * This will be called if the deleted message doesn't exist and can't be
-                 * deleted (e.g. it was already deleted from the server.)  In this case,
-                 * attempt to delete the local copy as well.
-                 */
-                public void onMessageNotFound(Message message) {
-                    mContext.getContentResolver().delete(newMessage.getUri(), null, null);
-                }
-            });
-            remoteTrashFolder.close(false);
-        }
-
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
-        remoteFolder.close(false);
-    }
-
-    /**
-     * Process a pending trash message command.
-     *
-     * @param remoteStore the remote store we're working in
-     * @param account The account in which we are working
-     * @param oldMailbox The local trash mailbox
-     * @param oldMessage The message that was deleted from the trash
-     */
-    private void processPendingDeleteFromTrash(Store remoteStore,
-            Account account, Mailbox oldMailbox, EmailContent.Message oldMessage)
-            throws MessagingException {
-
-        // 1. We only support delete-from-trash here
-        if (oldMailbox.mType != Mailbox.TYPE_TRASH) {
-            return;
-        }
-
-        // 2.  Find the remote trash folder (that we are deleting from), and open it
-        Folder remoteTrashFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            return;
-        }
-
-        remoteTrashFolder.open(OpenMode.READ_WRITE);
-        if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteTrashFolder.close(false);
-            return;
-        }
-
-        // 3. Find the remote original message
-        Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteTrashFolder.close(false);
-            return;
-        }
-
-        // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
-        remoteTrashFolder.close(false);
+        // 4. Plan the server-side deletion: a copy to the remote trash folder, and a delete
+        // from the mailbox we deleted from
+        planner.addChange(oldMailbox, PendingChangePlanner.OP_MOVE_TO_TRASH, newMailbox,
+                newMessage, oldMessage.mServerId);
     }
 
     /**
@@ -1844,7 +2292,9 @@ public class MessagingController implements Runnable {
      */
     public void loadMessageForView(final long messageId, MessagingListener listener) {
         mListeners.loadMessageForViewStarted(messageId);
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        final long accountId = Account.getAccountIdForMessageId(mContext, messageId);
+        put("loadMessageForViewRemote", getUserLoadLane(accountId),
+                CommandScheduler.PRIORITY_FOREGROUND, listener, new Runnable() {
             public void run() {
                 try {
                     // 1. Resample the message, in case it disappeared or synced while
@@ -1910,7 +2360,10 @@ public class MessagingController implements Runnable {
             final long attachmentId, MessagingListener listener, final boolean background) {
         mListeners.loadAttachmentStarted(accountId, messageId, attachmentId, true);
 
-        put("loadAttachment", listener, new Runnable() {
+        put("loadAttachment", background ? accountId : getUserLoadLane(accountId),
+                background ? CommandScheduler.PRIORITY_BACKGROUND
+                        : CommandScheduler.PRIORITY_FOREGROUND,
+                listener, new Runnable() {
             public void run() {
                 try {
                     //1. Check if the attachment is already here and return early in that case
@@ -1970,12 +2423,20 @@ public class MessagingController implements Runnable {
                     storeMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "multipart/mixed");
                     storeMessage.setBody(multipart);
 
-                    // 4. Now ask for the attachment to be fetched
-                    FetchProfile fp = new FetchProfile();
-                    fp.add(storePart);
-                    remoteFolder.fetch(new Message[] { storeMessage }, fp,
-                            mController.new MessageRetrievalListenerBridge(
-                                    messageId, attachmentId));
+                    // 4. Now ask for the attachment to be fetched; in chunks if possible, so
+                    // that a failed download can be resumed
+                    MessageRetrievalListener listener = mController.new
+                            MessageRetrievalListenerBridge(messageId, attachmentId);
+                    boolean inChunks = remoteFolder.canFetchPartRanges()
+                            && attachment.mLocation != null;
+                    if (inChunks) {
+                        loadAttachmentInChunks(remoteFolder, message.mServerId, attachment,
+                                storePart, listener);
+                    } else {
+                        FetchProfile fp = new FetchProfile();
+                        fp.add(storePart);
+                        remoteFolder.fetch(new Message[] { storeMessage }, fp, listener);
+                    }
 
                     // If we failed to load the attachment, throw an Exception here, so that
                     // AttachmentDownloadService knows that we failed
@@ -1986,6 +2447,10 @@ public class MessagingController implements Runnable {
                     // 5. Save the downloaded file and update the attachment as necessary
                     LegacyConversions.saveAttachmentBody(mContext, storePart, attachment,
                             accountId);
+                    if (inChunks) {
+                        AttachmentUtilities.getPartialAttachmentFile(mContext, attachmentId)
+                                .delete();
+                    }
 
                     // 6. Report success
                     mListeners.loadAttachmentFinished(accountId, messageId, attachmentId);
@@ -2000,6 +2465,64 @@ public class MessagingController implements Runnable {
             }});
     }
 
+    /**
+     * Fetches the content of {@code attachment} in chunks, and sets it, decoded, as the body of
+     * {@code storePart}.  The bytes fetched so far are kept in
+     * {@link AttachmentUtilities#getPartialAttachmentFile}, so that the download resumes where it
+     * stopped the last time, if it failed.
+     */
+    private void loadAttachmentInChunks(Folder remoteFolder, String uid,
+            Attachment attachment, Part storePart, final MessageRetrievalListener listener)
+            throws MessagingException {
+        // The attachment is base64 encoded (see loadAttachment), i.e. about 4/3 of its size
+        final long encodedSize = attachment.mSize * 4 / 3;
+        InputStream in = null;
+        try {
+            in = new ResumablePartInputStream(remoteFolder, uid, attachment.mLocation,
+                    AttachmentUtilities.getPartialAttachmentFile(mContext, attachment.mId),
+                    ATTACHMENT_CHUNK_SIZE, new ResumablePartInputStream.ProgressListener() {
+                @Override
+                public void onChunkSaved(long savedLength) {
+                    if (encodedSize > 0) {
+                        listener.loadAttachmentProgress(
+                                (int) Math.min(99, savedLength * 100 / encodedSize));
+                    }
+                }
+            });
+            // The decoder reads the saved chunks and the new ones as a single stream
+            in = MimeUtility.getInputStreamForContentTransferEncoding(in, "base64");
+            BinaryTempFileBody body = new BinaryTempFileBody();
+            OutputStream out = body.getOutputStream();
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } catch (Base64DataException bde) {
+                String warning = "\n\n" + Email.getMessageDecodeErrorString();
+                out.write(warning.getBytes());
+            } finally {
+                out.close();
+            }
+            storePart.setBody(body);
+        } catch (IOException ioe) {
+            // A failure to fetch a chunk comes wrapped; it's passed on as is
+            if (ioe.getCause() instanceof MessagingException) {
+                throw (MessagingException) ioe.getCause();
+            }
+            throw new MessagingException(MessagingException.IOERROR, ioe.toString(), ioe);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
     /**
      * Attempt to send any messages that are sitting in the Outbox.
      * @param account
@@ -2007,7 +2530,8 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account, final long sentFolderId,
             MessagingListener listener) {
-        put("sendPendingMessages", listener, new Runnable() {
+        put("sendPendingMessages", account.mId, CommandScheduler.PRIORITY_USER_REFRESH, listener,
+                new Runnable() {
             public void run() {
                 sendPendingMessagesSynchronous(account, sentFolderId);
             }
@@ -2032,6 +2556,7 @@ public class MessagingController implements Runnable {
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 EmailContent.Message.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId) },
                 null);
+        Sender sender = null;
         try {
             // 2.  exit early
             if (c.getCount() <= 0) {
@@ -2040,7 +2565,8 @@ public class MessagingController implements Runnable {
             // 3. do one-time setup of the Sender & other stuff
             mListeners.sendPendingMessagesStarted(account.mId, -1);
 
-            Sender sender = Sender.getInstance(mContext, account);
+            // The sender keeps its session across the messages, until it's closed below
+            sender = Sender.getInstance(mContext, account);
             Store remoteStore = Store.getInstance(account, mContext);
             boolean requireMoveMessageToSentFolder = remoteStore.requireCopyMessageToSentFolder();
             ContentValues moveToSentValues = null;
@@ -2105,6 +2631,13 @@ public class MessagingController implements Runnable {
             mListeners.sendPendingMessagesFailed(account.mId, -1, me);
         } finally {
             c.close();
+            if (sender != null) {
+                try {
+                    sender.close();
+                } catch (MessagingException me) {
+                    // Ignore
+                }
+            }
         }
     }
 
@@ -2123,10 +2656,11 @@ public class MessagingController implements Runnable {
         mListeners.checkMailStarted(mContext, accountId, tag);
 
         // This puts the command on the queue (not synchronous)
-        listFolders(accountId, null);
+        listFolders(accountId, CommandScheduler.PRIORITY_BACKGROUND, null);
 
         // Put this on the queue as well so it follows listFolders
-        put("checkMail", listener, new Runnable() {
+        put("checkMail", accountId, CommandScheduler.PRIORITY_BACKGROUND, listener,
+                new Runnable() {
             public void run() {
                 // send any pending outbound messages.  note, there is a slight race condition
                 // here if we somehow don't have a sent folder, but this should never happen
@@ -2155,19 +2689,6 @@ public class MessagingController implements Runnable {
         });
     }
 
-    private static class Command {
-        public Runnable runnable;
-
-        public MessagingListener listener;
-
-        public String description;
-
-        @Override
-        public String toString() {
-            return description;
-        }
-    }
-
     /** Results of the latest synchronization. */
     private static class SyncResults {
         /** The total # of messages in the folder */
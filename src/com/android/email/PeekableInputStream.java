@@ -55,9 +55,14 @@ public class PeekableInputStream extends InputStream {
     public int read(byte[] b, int offset, int length) throws IOException {
         if (!mPeeked) {
             return mIn.read(b, offset, length);
+        } else if (length == 0) {
+            return 0;
         } else {
-            b[0] = (byte)mPeekedByte;
             mPeeked = false;
+            if (mPeekedByte == -1) {
+                return -1;
+            }
+            b[offset] = (byte)mPeekedByte;
             int r = mIn.read(b, offset + 1, length - 1);
             if (r == -1) {
                 return 1;
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Groups the pending changes of the messages of an account into batches, each of which
+ * {@link MessagingController} applies to the server with one command for all its messages
+ * (e.g. one UID STORE, or one UID COPY), instead of one command per message.
+ *
+ * A batch is a remote mailbox, an operation and, for the flag operations, the new value of the
+ * flag.  A flag change that undoes a change already planned for the same message (e.g. marking
+ * a message unread that was marked read) cancels it, rather than adding a command of its own.
+ */
+/* package */ class PendingChangePlanner {
+    /** Set or clear the SEEN flag */
+    public static final int OP_SET_SEEN = 0;
+    /** Set or clear the FLAGGED flag */
+    public static final int OP_SET_FLAGGED = 1;
+    /** Set or clear the ANSWERED flag */
+    public static final int OP_SET_ANSWERED = 2;
+    /** Move to another mailbox */
+    public static final int OP_MOVE = 3;
+    /** Move to the trash */
+    public static final int OP_MOVE_TO_TRASH = 4;
+    /** Delete, e.g. from the trash */
+    public static final int OP_DELETE = 5;
+
+    /**
+     * A message of a batch.
+     */
+    public static class Change {
+        /** The message, in its current state (for the updates that follow the change) */
+        public final EmailContent.Message mMessage;
+        /** The UID of the message in the mailbox of the batch */
+        public final String mServerId;
+
+        Change(EmailContent.Message message, String serverId) {
+            mMessage = message;
+            mServerId = serverId;
+        }
+    }
+
+    /**
+     * Messages of the same remote mailbox, to which the same operation is applied.
+     */
+    public static class Batch {
+        /** The remote mailbox the operation is applied in */
+        public final Mailbox mMailbox;
+        public final int mOperation;
+        /** The new value of the flag, for the flag operations */
+        public final boolean mValue;
+        /** The mailbox the messages are moved to, for the move operations */
+        public final Mailbox mTargetMailbox;
+        /** The changes of the batch, by message id */
+        private final LinkedHashMap<Long, Change> mChanges = new LinkedHashMap<Long, Change>();
+        /** The order in which the mailbox of the batch was first seen */
+        private final int mMailboxOrder;
+
+        Batch(Mailbox mailbox, int operation, boolean value, Mailbox targetMailbox,
+                int mailboxOrder) {
+            mMailbox = mailbox;
+            mOperation = operation;
+            mValue = value;
+            mTargetMailbox = targetMailbox;
+            mMailboxOrder = mailboxOrder;
+        }
+
+        public List<Change> getChanges() {
+            return new ArrayList<Change>(mChanges.values());
+        }
+
+        public int size() {
+            return mChanges.size();
+        }
+
+        @Override
+        public String toString() {
+            return "[Batch mailbox=" + mMailbox.mId + " op=" + mOperation + " value=" + mValue
+                    + " size=" + mChanges.size() + "]";
+        }
+    }
+
+    /** Orders the batches by mailbox, and by operation within a mailbox */
+    private static final Comparator<Batch> EXECUTION_ORDER = new Comparator<Batch>() {
+        @Override
+        public int compare(Batch lhs, Batch rhs) {
+            if (lhs.mMailboxOrder != rhs.mMailboxOrder) {
+                return lhs.mMailboxOrder < rhs.mMailboxOrder ? -1 : 1;
+            }
+            return lhs.mOperation - rhs.mOperation;
+        }
+    };
+
+    /** The batches, by key */
+    private final LinkedHashMap<String, Batch> mBatches = new LinkedHashMap<String, Batch>();
+    /** The order in which each mailbox was first seen, by mailbox id */
+    private final HashMap<Long, Integer> mMailboxOrders = new HashMap<Long, Integer>();
+    /** The batch holding the change of each flag of each message, by message id and operation */
+    private final HashMap<String, Batch> mFlagChanges = new HashMap<String, Batch>();
+    /** The number of batches each message is in, by message id */
+    private final HashMap<Long, Integer> mBatchCounts = new HashMap<Long, Integer>();
+
+    private static String getKey(long mailboxId, int operation, boolean value,
+            Mailbox targetMailbox) {
+        return mailboxId + "/" + operation + "/" + value + "/"
+                + (targetMailbox == null ? "" : targetMailbox.mId);
+    }
+
+    /**
+     * Plans a change of a flag of {@code message}, in {@code mailbox}.
+     *
+     * @param operation one of {@link #OP_SET_SEEN}, {@link #OP_SET_FLAGGED} and
+     * {@link #OP_SET_ANSWERED}
+     * @param value the new value of the flag
+     */
+    public void addFlagChange(Mailbox mailbox, int operation, boolean value,
+            EmailContent.Message message, String serverId) {
+        final String flagKey = message.mId + "/" + operation;
+        final Batch planned = mFlagChanges.get(flagKey);
+        if (planned != null) {
+            if (planned.mValue != value) {
+                // The two changes cancel out
+                remove(planned, message.mId);
+                mFlagChanges.remove(flagKey);
+            }
+            return;
+        }
+        mFlagChanges.put(flagKey, add(mailbox, operation, value, null, message, serverId));
+    }
+
+    /**
+     * Plans an operation on {@code message} in {@code mailbox}: a move (to
+     * {@code targetMailbox}), a move to the trash, or a delete.
+     */
+    public void addChange(Mailbox mailbox, int operation, Mailbox targetMailbox,
+            EmailContent.Message message, String serverId) {
+        add(mailbox, operation, true, targetMailbox, message, serverId);
+    }
+
+    private Batch add(Mailbox mailbox, int operation, boolean value, Mailbox targetMailbox,
+            EmailContent.Message message, String serverId) {
+        final String key = getKey(mailbox.mId, operation, value, targetMailbox);
+        Batch batch = mBatches.get(key);
+        if (batch == null) {
+            Integer mailboxOrder = mMailboxOrders.get(mailbox.mId);
+            if (mailboxOrder == null) {
+                mailboxOrder = mMailboxOrders.size();
+                mMailboxOrders.put(mailbox.mId, mailboxOrder);
+            }
+            batch = new Batch(mailbox, operation, value, targetMailbox, mailboxOrder);
+            mBatches.put(key, batch);
+        }
+        if (batch.mChanges.put(message.mId, new Change(message, serverId)) == null) {
+            final Integer count = mBatchCounts.get(message.mId);
+            mBatchCounts.put(message.mId, count == null ? 1 : count + 1);
+        }
+        return batch;
+    }
+
+    private void remove(Batch batch, long messageId) {
+        batch.mChanges.remove(messageId);
+        if (batch.mChanges.isEmpty()) {
+            mBatches.remove(getKey(batch.mMailbox.mId, batch.mOperation, batch.mValue,
+                    batch.mTargetMailbox));
+        }
+        decrementBatchCount(messageId);
+    }
+
+    private boolean decrementBatchCount(long messageId) {
+        final int count = mBatchCounts.get(messageId) - 1;
+        if (count == 0) {
+            mBatchCounts.remove(messageId);
+            return true;
+        }
+        mBatchCounts.put(messageId, count);
+        return false;
+    }
+
+    /**
+     * Whether a change of the message is planned, and not finished yet.
+     */
+    public boolean isPending(long messageId) {
+        return mBatchCounts.containsKey(messageId);
+    }
+
+    /**
+     * Returns the batches, in the order they are to be applied: by mailbox (in the order the
+     * mailboxes were first seen), and within a mailbox, the flag changes first, then the moves,
+     * then the deletes.
+     */
+    public List<Batch> getBatches() {
+        final ArrayList<Batch> batches = new ArrayList<Batch>(mBatches.values());
+        Collections.sort(batches, EXECUTION_ORDER);
+        return batches;
+    }
+
+    /**
+     * Marks {@code batch} as applied, and returns the ids of its messages that have no pending
+     * change left.
+     */
+    public List<Long> finish(Batch batch) {
+        final ArrayList<Long> finished = new ArrayList<Long>();
+        for (long messageId : batch.mChanges.keySet()) {
+            if (decrementBatchCount(messageId)) {
+                finished.add(messageId);
+            }
+        }
+        return finished;
+    }
+}
@@ -43,6 +43,7 @@ public class Preferences {
     private static final String INHIBIT_GRAPHICS_ACCELERATION = "inhibitGraphicsAcceleration";
     private static final String FORCE_ONE_MINUTE_REFRESH = "forceOneMinuteRefresh";
     private static final String ENABLE_STRICT_MODE = "enableStrictMode";
+    private static final String ENABLE_ATTACHMENT_STORE = "enableAttachmentStore";
     private static final String DEVICE_UID = "deviceUID";
     private static final String ONE_TIME_INITIALIZATION_PROGRESS = "oneTimeInitializationProgress";
     private static final String AUTO_ADVANCE_DIRECTION = "autoAdvance";
@@ -169,6 +170,14 @@ public class Preferences {
         return mSharedPreferences.getBoolean(ENABLE_STRICT_MODE, false);
     }
 
+    public void setEnableAttachmentStore(boolean value) {
+        mSharedPreferences.edit().putBoolean(ENABLE_ATTACHMENT_STORE, value).apply();
+    }
+
+    public boolean getEnableAttachmentStore() {
+        return mSharedPreferences.getBoolean(ENABLE_ATTACHMENT_STORE, false);
+    }
+
     /**
      * Generate a new "device UID".  This is local to Email app only, to prevent possibility
      * of correlation with any other user activities in any other apps.
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the (still encoded) content of a part of a remote message, which is fetched in chunks
+ * with {@link Folder#fetchPartRange}, as it is read.
+ *
+ * Each chunk is appended to a partial file before it is handed out, so the length of the file
+ * is the offset at which a failed download resumes; the bytes of a chunk that was only partly
+ * written are a prefix of it, and are kept.  A resumed download first reads the bytes already
+ * saved from the partial file, so that the part can be decoded as a single stream, whichever
+ * chunks it was fetched in.
+ */
+/* package */ class ResumablePartInputStream extends InputStream {
+    /**
+     * Notified of the progress of the download.
+     */
+    public interface ProgressListener {
+        /**
+         * Called once the first {@code savedLength} bytes of the part have been saved to the
+         * partial file.
+         */
+        void onChunkSaved(long savedLength);
+    }
+
+    private final Folder mFolder;
+    private final String mUid;
+    private final String mPartId;
+    private final File mPartialFile;
+    private final int mChunkSize;
+    private final ProgressListener mListener;
+
+    /** The bytes already saved, read first; null once they have been */
+    private InputStream mSavedIn;
+    private final ByteArrayOutputStream mChunk;
+    private byte[] mChunkBytes;
+    private int mChunkPosition;
+    /** The number of bytes fetched and saved so far */
+    private long mSavedLength;
+    private boolean mReachedEnd;
+
+    /**
+     * @param partialFile the file in which the bytes fetched so far are kept; the download
+     * resumes after those it already holds (e.g. saved before a failure)
+     */
+    public ResumablePartInputStream(Folder folder, String uid, String partId, File partialFile,
+            int chunkSize, ProgressListener listener) throws IOException {
+        mFolder = folder;
+        mUid = uid;
+        mPartId = partId;
+        mPartialFile = partialFile;
+        mChunkSize = chunkSize;
+        mListener = listener;
+        mChunk = new ByteArrayOutputStream(chunkSize);
+
+        mSavedLength = partialFile.length();
+        if (mSavedLength > 0) {
+            mSavedIn = new FileInputStream(partialFile);
+        }
+    }
+
+    /**
+     * The number of bytes fetched and saved so far, including those saved before the download
+     * was resumed.
+     */
+    public long getSavedLength() {
+        return mSavedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mSavedIn != null) {
+            final int n = mSavedIn.read(b, off, len);
+            if (n != -1) {
+                return n;
+            }
+            mSavedIn.close();
+            mSavedIn = null;
+        }
+        if (mChunkBytes == null || mChunkPosition == mChunkBytes.length) {
+            if (mReachedEnd || !fetchChunk()) {
+                return -1;
+            }
+        }
+        final int n = Math.min(len, mChunkBytes.length - mChunkPosition);
+        System.arraycopy(mChunkBytes, mChunkPosition, b, off, n);
+        mChunkPosition += n;
+        return n;
+    }
+
+    /**
+     * Fetches the next chunk, and saves it.
+     *
+     * @return false if there was nothing left to fetch
+     */
+    private boolean fetchChunk() throws IOException {
+        mChunk.reset();
+        final int count;
+        try {
+            count = mFolder.fetchPartRange(mUid, mPartId, mSavedLength, mChunkSize, mChunk);
+        } catch (MessagingException me) {
+            final IOException ioe = new IOException("Failed to fetch part " + mPartId
+                    + " at " + mSavedLength);
+            ioe.initCause(me);
+            throw ioe;
+        }
+        mReachedEnd = count < mChunkSize;
+        if (count == 0) {
+            return false;
+        }
+        mChunkBytes = mChunk.toByteArray();
+        mChunkPosition = 0;
+
+        final FileOutputStream out = new FileOutputStream(mPartialFile, true);
+        try {
+            out.write(mChunkBytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        mSavedLength += mChunkBytes.length;
+        if (mListener != null) {
+            mListener.onChunkSaved(mSavedLength);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mSavedIn != null) {
+            mSavedIn.close();
+            mSavedIn = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+
+import java.util.ArrayList;
+
+/**
+ * Buffers the provider writes of a sync into {@link ContentProviderOperation} batches, which
+ * EmailProvider applies in a single transaction, with a single round of change notifications.
+ * Writing each row on its own costs a transaction and a round of notifications per row.
+ *
+ * A batch is applied as soon as it holds {@link #DEFAULT_MAX_OPERATIONS} operations (so that
+ * the database isn't locked for long), and by {@link #flush()}, which the owner must call before
+ * it reads back anything it wrote, and when it's done.
+ *
+ * If an operation fails, its batch is rolled back, and its operations are applied again one at
+ * a time, so that only the failing ones are lost, as when each row was written on its own.  The
+ * content of a failed insertion stays unsaved, so callers that report the rows they inserted
+ * must check {@link EmailContent#isSaved()} after flushing.
+ */
+public class SyncBatch {
+    /** Maximum number of operations applied in one transaction, by default */
+    public static final int DEFAULT_MAX_OPERATIONS = 100;
+
+    private final ContentResolver mResolver;
+    private final int mMaxOperations;
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    /** For each operation, the content that receives the id of the row it inserts (or null) */
+    private final ArrayList<EmailContent> mInsertedContent = new ArrayList<EmailContent>();
+    /** Number of batches applied so far */
+    private int mBatchCount;
+    /** Number of operations that failed so far */
+    private int mFailureCount;
+
+    public SyncBatch(ContentResolver resolver) {
+        this(resolver, DEFAULT_MAX_OPERATIONS);
+    }
+
+    public SyncBatch(ContentResolver resolver, int maxOperations) {
+        mResolver = resolver;
+        mMaxOperations = maxOperations;
+    }
+
+    /**
+     * Adds an operation to the batch, and applies the batch if it is full.
+     */
+    public void add(ContentProviderOperation operation) {
+        add(operation, null);
+    }
+
+    private void add(ContentProviderOperation operation, EmailContent insertedContent) {
+        mOperations.add(operation);
+        mInsertedContent.add(insertedContent);
+        if (mOperations.size() >= mMaxOperations) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the insertion of a new row for {@code content}.  Its id is set when the batch has been
+     * applied, unless the insertion failed.
+     */
+    public void insert(EmailContent content) {
+        add(ContentProviderOperation.newInsert(content.mBaseUri)
+                .withValues(content.toContentValues()).build(), content);
+    }
+
+    /**
+     * Adds the update of an existing row.
+     */
+    public void update(Uri uri, ContentValues values) {
+        add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+    }
+
+    /**
+     * Adds the deletion of an existing row.
+     */
+    public void delete(Uri uri) {
+        add(ContentProviderOperation.newDelete(uri).build());
+    }
+
+    /**
+     * Applies the operations added since the last batch, if any.
+     */
+    public void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        try {
+            ContentProviderResult[] results;
+            try {
+                results = mResolver.applyBatch(EmailContent.AUTHORITY, mOperations);
+            } catch (OperationApplicationException e) {
+                Log.w(Logging.LOG_TAG, "Sync batch failed, applying its operations one at a time: "
+                        + e);
+                results = applyEach();
+            }
+            for (int i = 0; i < results.length; i++) {
+                EmailContent content = mInsertedContent.get(i);
+                if (content != null && results[i] != null && results[i].uri != null) {
+                    content.mId = ContentUris.parseId(results[i].uri);
+                }
+            }
+            mBatchCount++;
+        } catch (RemoteException e) {
+            // This is fatal to a remote process
+            throw new IllegalStateException("Exception applying sync batch.");
+        } finally {
+            mOperations.clear();
+            mInsertedContent.clear();
+        }
+    }
+
+    /**
+     * Applies each operation of the batch in a transaction of its own.
+     *
+     * @return the results of the operations, with null for those that failed
+     */
+    private ContentProviderResult[] applyEach() throws RemoteException {
+        ContentProviderResult[] results = new ContentProviderResult[mOperations.size()];
+        ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+        for (int i = 0; i < results.length; i++) {
+            single.clear();
+            single.add(mOperations.get(i));
+            try {
+                results[i] = mResolver.applyBatch(EmailContent.AUTHORITY, single)[0];
+            } catch (OperationApplicationException e) {
+                Log.w(Logging.LOG_TAG, "Failed to apply " + mOperations.get(i) + ": " + e);
+                mFailureCount++;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of batches applied so far.
+     */
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * Returns the number of operations that failed, and were dropped, so far.
+     */
+    public int getFailureCount() {
+        return mFailureCount;
+    }
+}
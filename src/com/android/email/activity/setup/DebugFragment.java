@@ -23,6 +23,7 @@ import com.android.email.activity.UiUtilities;
 import com.android.email.service.EmailServiceUtils;
 import com.android.email.service.MailService;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.AttachmentStore;
 
 import android.app.Fragment;
 import android.content.Context;
@@ -46,6 +47,7 @@ public class DebugFragment extends Fragment implements OnCheckedChangeListener,
     private CheckBox mInhibitGraphicsAccelerationView;
     private CheckBox mForceOneMinuteRefreshView;
     private CheckBox mEnableStrictModeView;
+    private CheckBox mEnableAttachmentStoreView;
 
     private Preferences mPreferences;
 
@@ -102,6 +104,11 @@ public class DebugFragment extends Fragment implements OnCheckedChangeListener,
         mEnableStrictModeView.setChecked(mPreferences.getEnableStrictMode());
         mEnableStrictModeView.setOnCheckedChangeListener(this);
 
+        mEnableAttachmentStoreView = (CheckBox)
+                UiUtilities.getView(view, R.id.debug_enable_attachment_store);
+        mEnableAttachmentStoreView.setChecked(mPreferences.getEnableAttachmentStore());
+        mEnableAttachmentStoreView.setOnCheckedChangeListener(this);
+
         return view;
     }
 
@@ -133,6 +140,10 @@ public class DebugFragment extends Fragment implements OnCheckedChangeListener,
                 mPreferences.setEnableStrictMode(isChecked);
                 Email.enableStrictMode(isChecked);
                 break;
+            case R.id.debug_enable_attachment_store:
+                mPreferences.setEnableAttachmentStore(isChecked);
+                AttachmentStore.setEnabled(isChecked);
+                break;
         }
 
         Email.updateLoggingFlags(getActivity());
@@ -117,13 +117,26 @@ public abstract class Store {
      * at least an incoming server name).
      *
      * The store should have been notified already by calling delete(), and the caller should
-     * also take responsibility for deleting the matching LocalStore, etc.
+     * also take responsibility for deleting the matching LocalStore, etc.  The connections the
+     * store kept for reuse are closed.
      *
      * @throws MessagingException If the store cannot be removed or if the account is invalid.
      */
     public synchronized static Store removeInstance(Account account, Context context)
             throws MessagingException {
-        return sStores.remove(HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
+        Store store = sStores.remove(
+                HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
+        if (store != null) {
+            store.closeConnections();
+        }
+        return store;
+    }
+
+    /**
+     * Closes the idle connections that the store keeps for reuse, if any.  Called when the store
+     * is removed.
+     */
+    public void closeConnections() {
     }
 
     /**
@@ -146,6 +159,15 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * Whether the folders of this store can apply flag changes, copies and deletes to messages
+     * created from their UIDs alone (with {@link Folder#createMessage}), for many messages at
+     * once.  Otherwise, each message must be looked up with {@link Folder#getMessage} first.
+     */
+    public boolean canBatchUidCommands() {
+        return false;
+    }
+
     public Folder getFolder(String name) throws MessagingException {
         return null;
     }
@@ -35,6 +35,7 @@ import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 
 import java.io.IOException;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,9 +58,19 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** IDLE capability per RFC 2177 */
+    public static final int CAPABILITY_IDLE      = 1 << 4;
+    /** CONDSTORE capability per RFC 4551 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 5;
+    /** QRESYNC capability per RFC 5162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 6;
+    /** LITERAL+ capability per RFC 2088 */
+    public static final int CAPABILITY_LITERAL_PLUS = 1 << 7;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** Whether QRESYNC has been enabled, so that expunges are reported as VANISHED UIDs. */
+    private boolean mQresyncEnabled;
     private static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     Transport mTransport;
     private ImapResponseParser mParser;
@@ -138,6 +149,9 @@ class ImapConnection {
             // LOGIN
             doLogin();
 
+            // ENABLE QRESYNC (only valid in the Authenticated state)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
 
@@ -180,7 +194,7 @@ class ImapConnection {
     /**
      * Returns whether or not the specified capability is supported by the server.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
@@ -202,6 +216,18 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.IDLE)) {
+            mCapabilities |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            mCapabilities |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            mCapabilities |= CAPABILITY_QRESYNC;
+        }
+        if (capabilities.contains(ImapConstants.LITERAL_PLUS)) {
+            mCapabilities |= CAPABILITY_LITERAL_PLUS;
+        }
     }
 
     /**
@@ -222,6 +248,20 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Sets the handler the parser gives the literals to as they arrive, or null to store them.
+     * See {@link ImapResponseParser.LiteralHandler}.
+     */
+    void setLiteralHandler(ImapResponseParser.LiteralHandler handler) {
+        if (mParser != null) {
+            mParser.setLiteralHandler(handler);
+        }
+    }
+
+    long getLiteralBytesStoredForTest() {
+        return mParser != null ? mParser.getLiteralBytesStored() : 0;
+    }
+
     boolean isTransportOpenForTest() {
         return mTransport != null ? mTransport.isOpen() : false;
     }
@@ -248,6 +288,32 @@ class ImapConnection {
         return tag;
     }
 
+    /**
+     * Ends an IDLE command.  Unlike a regular command, DONE is not preceded by a tag.
+     */
+    void sendDone() throws IOException {
+        mTransport.writeLine(ImapConstants.DONE, null);
+        mDiscourse.addSentCommand(ImapConstants.DONE);
+    }
+
+    /**
+     * Closes the transport from another thread, so that a read blocked on it (e.g. while idling)
+     * fails with an IOException; the thread using the connection then closes it.
+     */
+    void abort() {
+        final Transport transport = mTransport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Sets the read timeout of the underlying socket.  Used to bound how long we wait while
+     * the connection is idling.
+     */
+    void setReadTimeout(int timeoutMillis) throws SocketException {
+        mTransport.setSoTimeout(timeoutMillis);
+    }
 
     /**
      * Send a single, complex command to the server.  The command will be preceded by an IMAP
@@ -437,6 +503,42 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Enables QRESYNC per RFC 5162, so that the server reports expunged messages by UID.  If the
+     * server does not support QRESYNC, this will perform no operation.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability) throws MessagingException {
+        mQresyncEnabled = false;
+        if (!hasQresyncCapability) return;
+
+        List<ImapResponse> responseList = Collections.emptyList();
+        try {
+            responseList = executeSimpleCommand(ImapConstants.ENABLE + " "
+                    + ImapConstants.QRESYNC);
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+        }
+
+        for (ImapResponse response : responseList) {
+            if (response.isDataResponse(0, ImapConstants.ENABLED)
+                    && response.contains(ImapConstants.QRESYNC)) {
+                mQresyncEnabled = true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether QRESYNC has been enabled on this connection.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     /**
      * Logs into the IMAP server
      */
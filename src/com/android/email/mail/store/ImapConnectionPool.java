@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.email.Clock;
+import com.android.email.Email;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The idle connections of an {@link ImapStore} (i.e. of one account), kept for reuse.
+ *
+ * A connection returned less than {@link #FRESHNESS_WINDOW} ago is handed out as is; an older
+ * one is first checked with a NOOP.  Connections idle for more than {@link #IDLE_TTL} (which
+ * servers and NATs are likely to have dropped by then) are closed, as is the least recently used
+ * connection when more than {@link #DEFAULT_MAX_SIZE} are returned.  The expired connections of
+ * all the pools are closed whenever a connection is returned to any pool, so that an account
+ * which isn't synced any more doesn't keep its connections open; the pool of a removed store is
+ * emptied by {@link #closeAll()}.  The evicted connections are closed on a worker thread, so
+ * that neither a checkout nor a checkin waits for the sockets of other connections.
+ *
+ * At most {@link #DEFAULT_MAX_CONNECTIONS} connections are checked out at once: a checkout beyond
+ * that waits up to {@link #CHECKOUT_WAIT} for one to be returned or discarded, and then creates a
+ * connection anyway, since a connection that is never returned (e.g. by a folder that is never
+ * closed) mustn't block the account forever.
+ */
+class ImapConnectionPool {
+    /** Maximum number of idle connections kept, by default */
+    static final int DEFAULT_MAX_SIZE = 4;
+    /** How long a returned connection is trusted to be alive, without a NOOP */
+    static final long FRESHNESS_WINDOW = 30 * DateUtils.SECOND_IN_MILLIS;
+    /** How long an idle connection is kept */
+    static final long IDLE_TTL = 5 * DateUtils.MINUTE_IN_MILLIS;
+    /** Maximum number of connections checked out at once, by default */
+    static final int DEFAULT_MAX_CONNECTIONS = 8;
+    /** How long a checkout waits for a connection when too many are checked out, by default */
+    static final long CHECKOUT_WAIT = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    private static class Entry {
+        final ImapConnection mConnection;
+        final long mReturnedTime;
+
+        Entry(ImapConnection connection, long returnedTime) {
+            mConnection = connection;
+            mReturnedTime = returnedTime;
+        }
+    }
+
+    /** All the pools, which are dropped along with their store */
+    private static final Set<ImapConnectionPool> sPools = Collections.newSetFromMap(
+            new WeakHashMap<ImapConnectionPool, Boolean>());
+
+    private final int mMaxSize;
+    private final int mMaxConnections;
+    private final long mCheckoutWait;
+    private Clock mClock = Clock.INSTANCE;
+
+    /** The idle connections; the most recently returned one first */
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+    /** The connections handed out, and not returned or discarded yet */
+    private final HashSet<ImapConnection> mCheckedOut = new HashSet<ImapConnection>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mCreationCount;
+    private int mEvictionCount;
+    private int mHealthCheckCount;
+    private int mOverflowCount;
+    private long mCheckoutNanos;
+
+    ImapConnectionPool() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_CONNECTIONS, CHECKOUT_WAIT);
+    }
+
+    ImapConnectionPool(int maxSize, int maxConnections, long checkoutWait) {
+        mMaxSize = maxSize;
+        mMaxConnections = maxConnections;
+        mCheckoutWait = checkoutWait;
+        synchronized (sPools) {
+            sPools.add(this);
+        }
+    }
+
+    @VisibleForTesting
+    void setClockForTest(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns the most recently returned connection that is still alive, or a new connection if
+     * there is none.  The connection is given {@code store} and the credentials.  If too many
+     * connections are checked out, waits for one to be returned first (see the class comment).
+     */
+    ImapConnection checkout(ImapStore store, String username, String password) {
+        final long start = System.nanoTime();
+        long waitDeadline = start + mCheckoutWait * 1000000;
+        final ArrayList<ImapConnection> expired = new ArrayList<ImapConnection>();
+        try {
+            for (;;) {
+                final Entry entry;
+                final long now = mClock.getTime();
+                synchronized (this) {
+                    evictExpiredLocked(now, expired);
+                    entry = mEntries.poll();
+                    if (entry == null) {
+                        final long waitMillis = (waitDeadline - System.nanoTime()) / 1000000;
+                        if (mCheckedOut.size() >= mMaxConnections && waitMillis > 0) {
+                            try {
+                                wait(waitMillis);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                waitDeadline = start;
+                            }
+                            continue;
+                        }
+                        return createLocked(store, username, password);
+                    }
+                    mCheckedOut.add(entry.mConnection);
+                }
+                entry.mConnection.setStore(store, username, password);
+                if (now - entry.mReturnedTime < FRESHNESS_WINDOW
+                        || isAlive(entry.mConnection)) {
+                    synchronized (this) {
+                        mHitCount++;
+                    }
+                    return entry.mConnection;
+                }
+                entry.mConnection.close();
+                synchronized (this) {
+                    mCheckedOut.remove(entry.mConnection);
+                    mEvictionCount++;
+                }
+            }
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                mCheckoutNanos += elapsed;
+            }
+            closeAllAsync(expired);
+        }
+    }
+
+    /**
+     * Creates a connection, once there is no idle one left, and counts it as checked out.  It
+     * isn't opened here, so this is cheap enough to do under the lock.
+     */
+    private ImapConnection createLocked(ImapStore store, String username, String password) {
+        if (mCheckedOut.size() >= mMaxConnections) {
+            Log.w(Logging.LOG_TAG, "Too many IMAP connections checked out; opening one more");
+            mOverflowCount++;
+        }
+        final ImapConnection connection = new ImapConnection(store, username, password);
+        mCheckedOut.add(connection);
+        mMissCount++;
+        mCreationCount++;
+        return connection;
+    }
+
+    /**
+     * Checks that a connection which has been idle for a while is still alive.
+     */
+    private boolean isAlive(ImapConnection connection) {
+        synchronized (this) {
+            mHealthCheckCount++;
+        }
+        try {
+            connection.executeSimpleCommand(ImapConstants.NOOP);
+            return true;
+        } catch (MessagingException e) {
+            // Fall through
+        } catch (IOException e) {
+            // Fall through
+        }
+        return false;
+    }
+
+    /**
+     * Keeps {@code connection} for reuse.  Its responses are destroyed.
+     */
+    void checkin(ImapConnection connection) {
+        connection.destroyResponses();
+        final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+        final long now = mClock.getTime();
+        synchronized (this) {
+            mCheckedOut.remove(connection);
+            evictExpiredLocked(now, evicted);
+            mEntries.addFirst(new Entry(connection, now));
+            while (mEntries.size() > mMaxSize) {
+                evicted.add(mEntries.removeLast().mConnection);
+                mEvictionCount++;
+            }
+            notifyAll();
+        }
+        evictExpiredFromOtherPools(evicted);
+        closeAllAsync(evicted);
+    }
+
+    /**
+     * Closes {@code connection}, which won't be returned, and stops counting it as checked out.
+     */
+    void discard(ImapConnection connection) {
+        synchronized (this) {
+            if (mCheckedOut.remove(connection)) {
+                notifyAll();
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Removes the connections of the other pools that have been idle for more than
+     * {@link #IDLE_TTL}, and adds them to {@code expired}, to be closed outside of the locks.
+     */
+    private void evictExpiredFromOtherPools(ArrayList<ImapConnection> expired) {
+        final ArrayList<ImapConnectionPool> pools;
+        synchronized (sPools) {
+            pools = new ArrayList<ImapConnectionPool>(sPools);
+        }
+        for (ImapConnectionPool pool : pools) {
+            if (pool != this) {
+                synchronized (pool) {
+                    pool.evictExpiredLocked(pool.mClock.getTime(), expired);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the connections idle for more than {@link #IDLE_TTL}, and adds them to
+     * {@code expired}, to be closed outside of the lock.
+     */
+    private void evictExpiredLocked(long now, ArrayList<ImapConnection> expired) {
+        // The oldest connections are at the end
+        while (!mEntries.isEmpty() && now - mEntries.getLast().mReturnedTime >= IDLE_TTL) {
+            expired.add(mEntries.removeLast().mConnection);
+            mEvictionCount++;
+        }
+    }
+
+    private static void closeAll(ArrayList<ImapConnection> connections) {
+        for (ImapConnection connection : connections) {
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "Closing idle IMAP connection");
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes {@code connections} on a worker thread.
+     */
+    private static void closeAllAsync(final ArrayList<ImapConnection> connections) {
+        if (connections.isEmpty()) {
+            return;
+        }
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                closeAll(connections);
+            }
+        });
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    void closeAll() {
+        final ArrayList<ImapConnection> connections = new ArrayList<ImapConnection>();
+        synchronized (this) {
+            for (Entry entry : mEntries) {
+                connections.add(entry.mConnection);
+            }
+            mEntries.clear();
+        }
+        closeAll(connections);
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Number of connections checked out, and not returned or discarded yet */
+    synchronized int getCheckedOutCount() {
+        return mCheckedOut.size();
+    }
+
+    /** Number of checkouts that reused an idle connection */
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of checkouts that found no live idle connection */
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Number of connections created */
+    synchronized int getCreationCount() {
+        return mCreationCount;
+    }
+
+    /** Number of idle connections closed, because they expired, died, or didn't fit */
+    synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Number of NOOPs sent to check idle connections */
+    synchronized int getHealthCheckCount() {
+        return mHealthCheckCount;
+    }
+
+    /** Number of connections created beyond the maximum, after waiting in vain */
+    synchronized int getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /** Average time a checkout took, NOOPs included, in microseconds */
+    synchronized long getAverageCheckoutMicros() {
+        final int checkouts = mHitCount + mMissCount;
+        return (checkouts == 0) ? 0 : mCheckoutNanos / checkouts / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImapConnectionPool: size=" + mEntries.size() + " checkedOut=" + mCheckedOut.size()
+                + " hits=" + mHitCount + " misses=" + mMissCount + " creations=" + mCreationCount
+                + " evictions=" + mEvictionCount + " healthChecks=" + mHealthCheckCount
+                + " overflows=" + mOverflowCount
+                + " avgCheckoutMicros=" + getAverageCheckoutMicros();
+    }
+}
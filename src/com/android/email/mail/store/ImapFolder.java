@@ -22,16 +22,19 @@ import android.util.Base64DataException;
 import android.util.Log;
 
 import com.android.email.Email;
+import com.android.email.FixedLengthInputStream;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
-import com.android.email.mail.transport.CountingOutputStream;
 import com.android.email.mail.transport.EOLConvertingOutputStream;
+import com.android.email.mail.transport.MailTransport;
+import com.android.email.mail.transport.SpoolOutputStream;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.BinaryTempFileBody;
 import com.android.emailcommon.internet.MimeBodyPart;
@@ -54,21 +57,60 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 
 class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /** Maximum number of UIDs requested by a single UID FETCH command */
+    private static final int FETCH_WINDOW_SIZE = 100;
+    /** Maximum number of UID FETCH commands sent before waiting for any of them to complete */
+    private static final int MAX_FETCHES_IN_FLIGHT = 4;
+
+    /**
+     * The size up to which a message being appended is spooled in memory; larger messages are
+     * spooled to a temp file.
+     */
+    private static final int APPEND_SPOOL_MEMORY_THRESHOLD = 256 * 1024;
+
+    /**
+     * Stands in a FETCH response for a literal that was consumed as it arrived, by a
+     * {@link StreamingLiteralHandler}.
+     */
+    private static final ImapString STREAMED_LITERAL = new ImapString() {
+        @Override public void destroy() {
+            // Don't call super.destroy().
+            // It's a shared object.  We don't want the mDestroyed to be set on this.
+        }
+
+        @Override public String getString() {
+            return "";
+        }
+
+        @Override public InputStream getAsStream() {
+            return Utility.streamFromAsciiString("");
+        }
+
+        @Override public String toString() {
+            return "[STREAMED]";
+        }
+    };
 
     private final ImapStore mStore;
     private final String mName;
     private int mMessageCount = -1;
+    /** UIDVALIDITY reported when the folder was selected, or null */
+    private String mUidValidity;
+    /** HIGHESTMODSEQ reported when the folder was selected, or 0 if not supported */
+    private long mHighestModSeq;
     private ImapConnection mConnection;
     private OpenMode mMode;
     private boolean mExists;
@@ -76,12 +118,23 @@ class ImapFolder extends Folder {
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
+    private int mFetchWindowSize = FETCH_WINDOW_SIZE;
+    private int mMaxFetchesInFlight = MAX_FETCHES_IN_FLIGHT;
 
     /*package*/ ImapFolder(ImapStore store, String name) {
         mStore = store;
         mName = name;
     }
 
+    /**
+     * Overrides the size of the UID windows and the depth of the fetch pipeline.
+     */
+    @VisibleForTesting
+    void setFetchWindowForTest(int windowSize, int maxFetchesInFlight) {
+        mFetchWindowSize = windowSize;
+        mMaxFetchesInFlight = maxFetchesInFlight;
+    }
+
     private void destroyResponses() {
         if (mConnection != null) {
             mConnection.destroyResponses();
@@ -131,6 +184,7 @@ class ImapFolder extends Folder {
             }
         } catch (AuthenticationFailedException e) {
             // Don't cache this connection, so we're forced to try connecting/login again
+            mStore.discardConnection(mConnection);
             mConnection = null;
             close(false);
             throw e;
@@ -257,7 +311,7 @@ class ImapFolder extends Folder {
         try {
             List<ImapResponse> responseList = mConnection.executeSimpleCommand(
                     String.format(ImapConstants.UID_COPY + " %s \"%s\"",
-                            ImapStore.joinMessageUids(messages),
+                            ImapStore.joinMessageUidSet(messages),
                             ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
             // Build a message map for faster UID matching
             HashMap<String, Message> messageMap = new HashMap<String, Message>();
@@ -518,13 +572,13 @@ class ImapFolder extends Folder {
         }
     }
 
-    public void fetchInternal(Message[] messages, FetchProfile fp,
-            MessageRetrievalListener listener) throws MessagingException {
+    public void fetchInternal(Message[] messages, final FetchProfile fp,
+            final MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
         checkOpen();
-        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
         for (Message m : messages) {
             messageMap.put(m.getUid(), m);
         }
@@ -572,44 +626,60 @@ class ImapFolder extends Folder {
             }
         }
 
-        try {
-            mConnection.sendCommand(String.format(
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            int messageNumber = 0;
-            do {
-                response = null;
-                try {
-                    response = mConnection.readResponse();
+        // Split the UIDs into windows; each window becomes one UID FETCH command
+        final String fields =
+                Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (int start = 0; start < messages.length; start += mFetchWindowSize) {
+            final int end = Math.min(start + mFetchWindowSize, messages.length);
+            commands.add(String.format(ImapConstants.UID_FETCH + " %s (%s)",
+                    ImapStore.joinMessageUids(messages, start, end), fields));
+        }
 
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
+        // The body and the part are read straight from the socket, as they arrive.  The body can
+        // only be, if parsing it first won't be undone by the envelope or the structure.
+        final boolean streamBody = (fp.contains(FetchProfile.Item.BODY)
+                || fp.contains(FetchProfile.Item.BODY_SANE))
+                && !fp.contains(FetchProfile.Item.ENVELOPE)
+                && !fp.contains(FetchProfile.Item.STRUCTURE);
+        final StreamingLiteralHandler literalHandler = new StreamingLiteralHandler() {
+            @Override
+            protected boolean onLiteral(ImapString key, String uid, InputStream in)
+                    throws IOException, MessagingException {
+                final ImapMessage message = (ImapMessage) messageMap.get(uid);
+                if (message == null) {
+                    return false;
+                }
+                if (streamBody && key.startsWith("BODY[]")) {
+                    message.parse(in);
+                    return true;
+                }
+                if (fetchPart != null && fetchPart.getSize() > 0
+                        && key.startsWith(ImapConstants.BODY + "[")
+                        && partIdOf(key).equals(getFirstPartId(fetchPart))) {
+                    fetchPartBody(fetchPart, in, listener);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        try {
+            pipelineFetchCommands(commands, literalHandler, new FetchResponseHandler() {
+                @Override
+                public void onFetchResponse(ImapList fetchList)
+                        throws IOException, MessagingException {
+                    literalHandler.throwDeferredException();
                     final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
                             .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
+                    if (TextUtils.isEmpty(uid)) return;
 
                     ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
+                    if (message == null) return;
 
                     if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
+                        setFlagsFromList(message,
+                                fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
                     }
                     if (fp.contains(FetchProfile.Item.ENVELOPE)) {
                         final Date internalDate = fetchList.getKeyedStringOrEmpty(
@@ -643,36 +713,323 @@ class ImapFolder extends Folder {
                         // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
                         // TODO Should we accept "RFC822" as well??
                         ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
+                        if (body != STREAMED_LITERAL) {
+                            message.parse(body.getAsStream());
+                        }
                     }
                     if (fetchPart != null && fetchPart.getSize() > 0) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentType = fetchPart.getContentType();
-                        String contentTransferEncoding = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                        // TODO Don't create 2 temp files.
-                        // decodeBody creates BinaryTempFileBody, but we could avoid this
-                        // if we implement ImapStringBody.
-                        // (We'll need to share a temp file.  Protect it with a ref-count.)
-                        fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                fetchPart.getSize(), listener));
+                        ImapString content = fetchList.getKeyedStringOrEmpty("BODY[", true);
+                        if (content != STREAMED_LITERAL) {
+                            fetchPartBody(fetchPart, content.getAsStream(), listener);
+                        }
                     }
 
                     if (listener != null) {
                         listener.messageRetrieved(message);
                     }
-                } finally {
-                    destroyResponses();
                 }
-            } while (!response.isTagged());
+            });
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
     }
 
+    /**
+     * Fetches the given parts, sending one UID FETCH per part.  Unlike calling
+     * {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)} for each part, the
+     * commands are pipelined, so fetching N parts takes far fewer than N round trips.
+     */
+    @Override
+    public void fetchParts(Message[] messages, Part[] parts,
+            final MessageRetrievalListener listener) throws MessagingException {
+        if (messages.length == 0) {
+            return;
+        }
+        checkOpen();
+        // Keyed by "UID ID"; responses are matched up with the part they belong to.
+        final HashMap<String, Part> partMap = new HashMap<String, Part>();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (int i = 0; i < messages.length; i++) {
+            final String[] partIds =
+                    parts[i].getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds == null) {
+                continue;
+            }
+            final String uid = messages[i].getUid();
+            partMap.put(uid + " " + partIds[0], parts[i]);
+            messageMap.put(uid, messages[i]);
+            commands.add(String.format(ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+                    uid, ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+                    partIds[0]));
+        }
+
+        // The parts are decoded straight from the socket, as they arrive
+        final StreamingLiteralHandler literalHandler = new StreamingLiteralHandler() {
+            @Override
+            protected boolean onLiteral(ImapString key, String uid, InputStream in)
+                    throws IOException, MessagingException {
+                if (!key.startsWith(ImapConstants.BODY + "[")) {
+                    return false;
+                }
+                final Part part = partMap.get(uid + " " + partIdOf(key));
+                if (part == null || part.getSize() <= 0) {
+                    return false;
+                }
+                fetchPartBody(part, in, listener);
+                return true;
+            }
+        };
+
+        try {
+            pipelineFetchCommands(commands, literalHandler, new FetchResponseHandler() {
+                @Override
+                public void onFetchResponse(ImapList fetchList)
+                        throws IOException, MessagingException {
+                    literalHandler.throwDeferredException();
+                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString();
+                    final Message message = messageMap.get(uid);
+                    if (message == null) return;
+
+                    for (int i = 0, count = fetchList.size(); i < count; i += 2) {
+                        final ImapString key = fetchList.getStringOrEmpty(i);
+                        if (!key.startsWith(ImapConstants.BODY + "[")) {
+                            continue;
+                        }
+                        final Part part = partMap.get(uid + " " + partIdOf(key));
+                        final ImapString content = fetchList.getStringOrEmpty(i + 1);
+                        if (part != null && part.getSize() > 0 && content != STREAMED_LITERAL) {
+                            fetchPartBody(part, content.getAsStream(), listener);
+                        }
+                    }
+                    if (listener != null) {
+                        listener.messageRetrieved(message);
+                    }
+                }
+            });
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    @Override
+    public boolean canFetchPartRanges() {
+        return isOpen();
+    }
+
+    /**
+     * Fetches a range of a part with a partial FETCH, i.e. UID FETCH (BODY.PEEK[ID]<O.L>).  The
+     * literal is copied to {@code out} straight from the socket.
+     */
+    @Override
+    public int fetchPartRange(final String uid, final String partId, long offset, int length,
+            final OutputStream out) throws MessagingException {
+        checkOpen();
+        final String command = String.format(ImapConstants.UID_FETCH + " %s (%s %s[%s]<%d.%d>)",
+                uid, ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partId,
+                offset, length);
+        final int[] count = new int[1];
+        final StreamingLiteralHandler literalHandler = new StreamingLiteralHandler() {
+            @Override
+            protected boolean onLiteral(ImapString key, String literalUid, InputStream in)
+                    throws IOException {
+                if (!uid.equals(literalUid) || !key.startsWith(ImapConstants.BODY + "[")
+                        || !partId.equals(partIdOf(key))) {
+                    return false;
+                }
+                count[0] += copyRange(in, out);
+                return true;
+            }
+        };
+
+        try {
+            pipelineFetchCommands(Arrays.asList(command), literalHandler,
+                    new FetchResponseHandler() {
+                @Override
+                public void onFetchResponse(ImapList fetchList) throws IOException {
+                    if (!uid.equals(fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString())) {
+                        return;
+                    }
+                    for (int i = 0, size = fetchList.size(); i < size; i += 2) {
+                        final ImapString key = fetchList.getStringOrEmpty(i);
+                        if (!key.startsWith(ImapConstants.BODY + "[")
+                                || !partId.equals(partIdOf(key))) {
+                            continue;
+                        }
+                        // Short ranges (or an empty one, past the end) may come as a string
+                        final ImapString content = fetchList.getStringOrEmpty(i + 1);
+                        if (content != STREAMED_LITERAL) {
+                            count[0] += copyRange(content.getAsStream(), out);
+                        }
+                    }
+                }
+            });
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+        return count[0];
+    }
+
+    private static int copyRange(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int count = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    long getLiteralBytesStoredForTest() {
+        return mConnection.getLiteralBytesStoredForTest();
+    }
+
+    /**
+     * Handles the data of a single untagged FETCH response.
+     */
+    private interface FetchResponseHandler {
+        void onFetchResponse(ImapList fetchList) throws IOException, MessagingException;
+    }
+
+    /**
+     * Hands the literals of FETCH responses to {@link #onLiteral} as they arrive, so that bodies
+     * are parsed or decoded straight from the socket, rather than first being stored in memory
+     * (or in a temp file) until the whole response has been read.
+     *
+     * A literal it consumes is replaced by {@link #STREAMED_LITERAL} in the response.  Since the
+     * rest of the response still has to be read, a {@link MessagingException} thrown while
+     * consuming a literal is deferred until {@link #throwDeferredException()} is called.
+     */
+    private abstract static class StreamingLiteralHandler
+            implements ImapResponseParser.LiteralHandler {
+        private MessagingException mDeferredException;
+
+        /**
+         * Consumes the literal keyed by {@code key} in the FETCH response of message {@code uid},
+         * and returns true, or returns false without reading it, to have it stored as usual.
+         */
+        protected abstract boolean onLiteral(ImapString key, String uid, InputStream in)
+                throws IOException, MessagingException;
+
+        @Override
+        public ImapString handleLiteral(ImapList list, FixedLengthInputStream in)
+                throws IOException {
+            // The literal must be the value of a key, and the UID must come before it
+            final int size = list.size();
+            if (size % 2 == 0) {
+                return null;
+            }
+            final String uid = list.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+            if (TextUtils.isEmpty(uid)) {
+                return null;
+            }
+            try {
+                if (!onLiteral(list.getStringOrEmpty(size - 1), uid, in)) {
+                    return null;
+                }
+            } catch (MessagingException me) {
+                if (mDeferredException == null) {
+                    mDeferredException = me;
+                }
+            }
+            return STREAMED_LITERAL;
+        }
+
+        /**
+         * Throws the exception thrown while consuming a literal, if any.
+         */
+        public void throwDeferredException() throws MessagingException {
+            final MessagingException me = mDeferredException;
+            if (me != null) {
+                mDeferredException = null;
+                throw me;
+            }
+        }
+    }
+
+    /**
+     * Returns the part ID of a "BODY[...]" key, e.g. "1.2" for "BODY[1.2]" or "BODY[1.2]<0>".
+     */
+    private static String partIdOf(ImapString key) {
+        final String section = key.getString();
+        final int end = section.indexOf(']');
+        if (end < 0) {
+            return "";
+        }
+        return section.substring(ImapConstants.BODY.length() + 1, end);
+    }
+
+    private static String getFirstPartId(Part part) throws MessagingException {
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        return (partIds != null) ? partIds[0] : null;
+    }
+
+    /**
+     * Sends the given UID FETCH commands on the current connection, keeping up to
+     * {@link #mMaxFetchesInFlight} commands outstanding, rather than waiting for each command to
+     * complete before sending the next one.
+     *
+     * Untagged FETCH responses are handed to {@code handler} as they arrive; tagged responses are
+     * matched against the outstanding tags to decide when the next command may be sent.  The
+     * literals are handed to {@code literalHandler} while they are being read.
+     *
+     * A tagged response that completes none of the outstanding commands is a protocol error,
+     * after which the responses can't be matched with their commands any more; it's reported as
+     * an IOException, so that the connection is dropped.
+     */
+    private void pipelineFetchCommands(List<String> commands,
+            ImapResponseParser.LiteralHandler literalHandler, FetchResponseHandler handler)
+            throws IOException, MessagingException {
+        mConnection.setLiteralHandler(literalHandler);
+        try {
+            pipelineFetchCommandsImpl(commands, handler);
+        } finally {
+            mConnection.setLiteralHandler(null);
+        }
+    }
+
+    private void pipelineFetchCommandsImpl(List<String> commands, FetchResponseHandler handler)
+            throws IOException, MessagingException {
+        final LinkedList<String> pendingTags = new LinkedList<String>();
+        int nextCommand = 0;
+        while (nextCommand < commands.size() || !pendingTags.isEmpty()) {
+            // Refill the pipeline
+            while (nextCommand < commands.size() && pendingTags.size() < mMaxFetchesInFlight) {
+                pendingTags.add(mConnection.sendCommand(commands.get(nextCommand++), false));
+            }
+            try {
+                final ImapResponse response = mConnection.readResponse();
+                if (response.isTagged()) {
+                    if (!pendingTags.remove(response.getTag())) {
+                        throw new IOException("Unexpected tagged response to UID FETCH: "
+                                + response);
+                    }
+                    if (!response.isOk() && Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, "UID FETCH failed: " + response);
+                    }
+                } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                    handler.onFetchResponse(response.getListOrEmpty(2));
+                }
+            } finally {
+                destroyResponses();
+            }
+        }
+    }
+
+    /**
+     * Decodes the content of a fetched part and sets it as the part's body.
+     */
+    private void fetchPartBody(Part part, InputStream bodyStream,
+            MessageRetrievalListener listener) throws IOException, MessagingException {
+        String contentTransferEncoding = part.getHeader(
+                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+        part.setBody(decodeBody(bodyStream, contentTransferEncoding, part.getSize(), listener));
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -708,6 +1065,260 @@ class ImapFolder extends Folder {
         return PERMANENT_FLAGS;
     }
 
+    /**
+     * Sets the flags of {@code message} we keep track of, according to a FLAGS list returned by
+     * the server.
+     */
+    private static void setFlagsFromList(ImapMessage message, ImapList flags)
+            throws MessagingException {
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+    }
+
+    @Override
+    public boolean canIdle() {
+        return isOpen() && mConnection.isCapable(ImapConnection.CAPABILITY_IDLE);
+    }
+
+    @Override
+    public void abortIdle() {
+        final ImapConnection connection;
+        synchronized (this) {
+            connection = mConnection;
+        }
+        if (connection != null) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * Issues an IDLE command (RFC 2177) and waits for the server to report a change.  The
+     * untagged responses usually only carry message sequence numbers, so once the command has
+     * ended, the UIDs of new messages, and the UIDs and flags of changed messages, are looked up
+     * with one more command each.  Expunges can't be mapped to UIDs without a full sync, so they
+     * are just reported as such; with QRESYNC, though, the server reports the UIDs of removed
+     * messages in VANISHED responses, which are passed on to
+     * {@link IdleListener#messagesVanished}.
+     */
+    @Override
+    public boolean idle(IdleListener listener, int timeoutMillis) throws MessagingException {
+        checkOpen();
+        final int oldMessageCount = mMessageCount;
+        final LinkedHashSet<Integer> changedMessageNumbers = new LinkedHashSet<Integer>();
+        final ArrayList<Message> changedMessages = new ArrayList<Message>();
+        final ArrayList<String> vanishedUids = new ArrayList<String>();
+        int vanishedCount = 0;
+        boolean expunged = false;
+        boolean changed = false;
+        try {
+            mConnection.setReadTimeout(timeoutMillis);
+            try {
+                mConnection.sendCommand(ImapConstants.IDLE, false);
+                boolean idling = false;
+                boolean doneSent = false;
+                for (;;) {
+                    final ImapResponse response;
+                    try {
+                        response = mConnection.readResponse();
+                    } catch (SocketTimeoutException e) {
+                        if (!idling || doneSent) {
+                            throw e;
+                        }
+                        // Nothing happened; end the command so that a new one can be issued.
+                        mConnection.sendDone();
+                        doneSent = true;
+                        continue;
+                    }
+                    if (response.isContinuationRequest()) {
+                        idling = true;
+                    } else if (response.isTagged()) {
+                        if (!response.isOk()) {
+                            throw new MessagingException("Unable to idle: "
+                                    + response.getStatusResponseTextOrEmpty());
+                        }
+                        break;
+                    } else if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+                        final int messageCount = response.getStringOrEmpty(0).getNumberOrZero();
+                        changed |= (messageCount != mMessageCount);
+                        mMessageCount = messageCount;
+                    } else if (response.isDataResponse(1, ImapConstants.EXPUNGE)) {
+                        mMessageCount--;
+                        expunged = true;
+                        changed = true;
+                    } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                        final int count = addVanishedUids(response, vanishedUids);
+                        if (!response.getListOrEmpty(1).is(0, ImapConstants.EARLIER)) {
+                            mMessageCount -= count;
+                            vanishedCount += count;
+                        }
+                        changed = true;
+                    } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                        final ImapList fetchList = response.getListOrEmpty(2);
+                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                .getString();
+                        if (TextUtils.isEmpty(uid)) {
+                            changedMessageNumbers.add(
+                                    response.getStringOrEmpty(0).getNumberOrZero());
+                        } else {
+                            final ImapMessage message = new ImapMessage(uid, this);
+                            setFlagsFromList(message,
+                                    fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
+                            changedMessages.add(message);
+                        }
+                        changed = true;
+                    }
+                    if (changed && idling && !doneSent) {
+                        mConnection.sendDone();
+                        doneSent = true;
+                    }
+                }
+            } finally {
+                mConnection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+
+        if (expunged || (vanishedCount > 0 && !changedMessageNumbers.isEmpty())) {
+            // We can't tell which messages the sequence numbers refer to anymore
+            listener.messagesExpunged();
+            return true;
+        }
+        // New messages are always added at the end of the folder
+        final int firstNewMessage = oldMessageCount - vanishedCount + 1;
+        if (mMessageCount >= firstNewMessage) {
+            listener.messagesArrived(getMessages(firstNewMessage, mMessageCount, null));
+        }
+        // Changes to the messages that just arrived will be picked up when they're downloaded
+        final ArrayList<Integer> messageNumbers = new ArrayList<Integer>();
+        for (Integer messageNumber : changedMessageNumbers) {
+            if (messageNumber > 0 && messageNumber < firstNewMessage) {
+                messageNumbers.add(messageNumber);
+            }
+        }
+        if (!messageNumbers.isEmpty()) {
+            changedMessages.addAll(Arrays.asList(fetchFlagsBySequence(messageNumbers)));
+        }
+        if (!changedMessages.isEmpty()) {
+            listener.flagsChanged(changedMessages.toArray(Message.EMPTY_ARRAY));
+        }
+        if (!vanishedUids.isEmpty()) {
+            listener.messagesVanished(vanishedUids.toArray(new String[vanishedUids.size()]));
+        }
+        return changed;
+    }
+
+    /**
+     * Adds the UIDs listed in a VANISHED response (RFC 5162) to {@code vanishedUids}.
+     *
+     * @return the number of UIDs in the response
+     */
+    private static int addVanishedUids(ImapResponse response, List<String> vanishedUids) {
+        final String[] uids = ImapUtility.getImapSequenceValues(
+                response.getStringOrEmpty(response.size() - 1).getString());
+        vanishedUids.addAll(Arrays.asList(uids));
+        return uids.length;
+    }
+
+    @Override
+    public String getUidValidity() {
+        return mUidValidity;
+    }
+
+    @Override
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * Fetches the flags that changed since {@code modSeq} with a CHANGEDSINCE modifier
+     * (RFC 4551), so that only the messages which actually changed are transferred.  With
+     * QRESYNC, the UIDs of the messages removed since then are requested too (RFC 5162).
+     */
+    @Override
+    public Message[] getMessagesChangedSince(long modSeq, List<String> vanishedUids)
+            throws MessagingException {
+        checkOpen();
+        final ArrayList<Message> messages = new ArrayList<Message>();
+        try {
+            String modifiers = ImapConstants.CHANGEDSINCE + " " + modSeq;
+            if (mConnection.isQresyncEnabled()) {
+                modifiers += " " + ImapConstants.VANISHED;
+            }
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(ImapConstants.UID_FETCH + " 1:* (%s %s) (%s)",
+                            ImapConstants.UID, ImapConstants.FLAGS, modifiers));
+            for (ImapResponse response : responses) {
+                if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                    addVanishedUids(response, vanishedUids);
+                    continue;
+                }
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    continue;
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                        .getString();
+                if (TextUtils.isEmpty(uid)) {
+                    continue;
+                }
+                final ImapMessage message = new ImapMessage(uid, this);
+                setFlagsFromList(message, fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
+                messages.add(message);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return messages.toArray(Message.EMPTY_ARRAY);
+    }
+
+    /**
+     * Returns the messages with the given sequence numbers, with their UIDs and flags set.
+     */
+    private Message[] fetchFlagsBySequence(List<Integer> messageNumbers)
+            throws MessagingException {
+        final ArrayList<Message> messages = new ArrayList<Message>(messageNumbers.size());
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(ImapConstants.FETCH + " %s (%s %s)",
+                            TextUtils.join(",", messageNumbers),
+                            ImapConstants.UID, ImapConstants.FLAGS));
+            for (ImapResponse response : responses) {
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    continue;
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                        .getString();
+                if (TextUtils.isEmpty(uid)) {
+                    continue;
+                }
+                final ImapMessage message = new ImapMessage(uid, this);
+                setFlagsFromList(message, fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS));
+                messages.add(message);
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return messages.toArray(Message.EMPTY_ARRAY);
+    }
+
     /**
      * Handle any untagged responses that the caller doesn't care to handle themselves.
      * @param responses
@@ -911,13 +1522,16 @@ class ImapFolder extends Folder {
     @Override
     public void appendMessages(Message[] messages) throws MessagingException {
         checkOpen();
+        final boolean literalPlus = mConnection.isCapable(ImapConnection.CAPABILITY_LITERAL_PLUS);
+        SpoolOutputStream spool = null;
         try {
             for (Message message : messages) {
-                // Create output count
-                CountingOutputStream out = new CountingOutputStream();
-                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                // Serialize the message once, to learn the length of the literal and to send it
+                spool = new SpoolOutputStream(APPEND_SPOOL_MEMORY_THRESHOLD);
+                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(spool);
                 message.writeTo(eolOut);
                 eolOut.flush();
+                spool.close();
                 // Create flag list (most often this will be "\SEEN")
                 String flagList = "";
                 Flag[] flags = message.getFlags();
@@ -936,25 +1550,28 @@ class ImapFolder extends Folder {
                     }
                 }
 
+                // With LITERAL+, the literal is sent right away instead of after a continuation
+                // request, which saves a round trip per message
                 mConnection.sendCommand(
-                        String.format(ImapConstants.APPEND + " \"%s\" (%s) {%d}",
+                        String.format(ImapConstants.APPEND + " \"%s\" (%s) {%d%s}",
                                 ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
                                 flagList,
-                                out.getCount()), false);
+                                spool.getLength(),
+                                literalPlus ? "+" : ""), false);
+                if (literalPlus) {
+                    sendAppendLiteral(spool);
+                }
                 ImapResponse response;
                 do {
                     response = mConnection.readResponse();
-                    if (response.isContinuationRequest()) {
-                        eolOut = new EOLConvertingOutputStream(
-                                mConnection.mTransport.getOutputStream());
-                        message.writeTo(eolOut);
-                        eolOut.write('\r');
-                        eolOut.write('\n');
-                        eolOut.flush();
+                    if (response.isContinuationRequest() && !literalPlus) {
+                        sendAppendLiteral(spool);
                     } else if (!response.isTagged()) {
                         handleUntaggedResponse(response);
                     }
                 } while (!response.isTagged());
+                spool.destroy();
+                spool = null;
 
                 // TODO Why not check the response?
 
@@ -996,10 +1613,24 @@ class ImapFolder extends Folder {
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
+            if (spool != null) {
+                spool.destroy();
+            }
             destroyResponses();
         }
     }
 
+    /**
+     * Sends a spooled message as the literal of an APPEND command, and ends the command.
+     */
+    private void sendAppendLiteral(SpoolOutputStream spool) throws IOException {
+        final OutputStream out = mConnection.mTransport.getOutputStream();
+        spool.writeTo(out);
+        out.write('\r');
+        out.write('\n');
+        out.flush();
+    }
+
     @Override
     public Message[] expunge() throws MessagingException {
         checkOpen();
@@ -1038,7 +1669,7 @@ class ImapFolder extends Folder {
         try {
             mConnection.executeSimpleCommand(String.format(
                     ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
+                    ImapStore.joinMessageUidSet(messages),
                     value ? "+" : "-",
                     allFlags));
 
@@ -1070,15 +1701,23 @@ class ImapFolder extends Folder {
 
     /**
      * Selects the folder for use. Before performing any operations on this folder, it
-     * must be selected.
+     * must be selected.  With CONDSTORE, the folder is selected with the CONDSTORE parameter
+     * (RFC 4551), so that the server reports its HIGHESTMODSEQ; enabling QRESYNC does this for
+     * all the folders of the connection.
      */
     private void doSelect() throws IOException, MessagingException {
-        List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+        String command = String.format(ImapConstants.SELECT + " \"%s\"",
+                ImapStore.encodeFolderName(mName, mStore.mPathPrefix));
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE)
+                && !mConnection.isQresyncEnabled()) {
+            command += " (" + ImapConstants.CONDSTORE + ")";
+        }
+        List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = null;
+        mHighestModSeq = 0;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -1089,6 +1728,12 @@ class ImapFolder extends Folder {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    // Servers that don't persist mod-sequences send NOMODSEQ instead (RFC 4551)
+                    mHighestModSeq = response.getListOrEmpty(1).getStringOrEmpty(1)
+                            .getLongOrZero();
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1112,7 +1757,7 @@ class ImapFolder extends Folder {
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "IO Exception detected: ", ioe);
         }
-        connection.close();
+        mStore.discardConnection(connection);
         if (connection == mConnection) {
             mConnection = null; // To prevent close() from returning the connection to the pool.
             close(false);
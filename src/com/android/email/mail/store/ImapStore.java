@@ -54,11 +54,10 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 
@@ -87,8 +86,7 @@ public class ImapStore extends Store {
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    private final ImapConnectionPool mConnectionPool = new ImapConnectionPool();
 
     /**
      * Static named constructor.
@@ -142,7 +140,7 @@ public class ImapStore extends Store {
     }
 
     @VisibleForTesting
-    Collection<ImapConnection> getConnectionPoolForTest() {
+    ImapConnectionPool getConnectionPoolForTest() {
         return mConnectionPool;
     }
 
@@ -315,6 +313,14 @@ public class ImapStore extends Store {
         return new ImapFolder(this, name);
     }
 
+    /**
+     * UID STORE, UID COPY and EXPUNGE ignore the UIDs that don't exist.
+     */
+    @Override
+    public boolean canBatchUidCommands() {
+        return true;
+    }
+
     /**
      * Creates a mailbox hierarchy out of the flat data provided by the server.
      */
@@ -425,12 +431,13 @@ public class ImapStore extends Store {
             saveMailboxList(mContext, mailboxes);
             return mailboxes.values().toArray(new Folder[] {});
         } catch (IOException ioe) {
-            connection.close();
+            discardConnection(connection);
+            connection = null;
             throw new MessagingException("Unable to get folder list.", ioe);
         } catch (AuthenticationFailedException afe) {
             // We do NOT want this connection pooled, or we will continue to send NOOP and SELECT
             // commands to the server
-            connection.destroyResponses();
+            discardConnection(connection);
             connection = null;
             throw afe;
         } finally {
@@ -501,26 +508,10 @@ public class ImapStore extends Store {
 
     /**
      * Gets a connection if one is available from the pool, or creates a new one if not.
+     * See {@link ImapConnectionPool} for when a pooled connection is checked with a NOOP.
      */
     ImapConnection getConnection() {
-        ImapConnection connection = null;
-        while ((connection = mConnectionPool.poll()) != null) {
-            try {
-                connection.setStore(this, mUsername, mPassword);
-                connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
-            } catch (MessagingException e) {
-                // Fall through
-            } catch (IOException e) {
-                // Fall through
-            }
-            connection.close();
-            connection = null;
-        }
-        if (connection == null) {
-            connection = new ImapConnection(this, mUsername, mPassword);
-        }
-        return connection;
+        return mConnectionPool.checkout(this, mUsername, mPassword);
     }
 
     /**
@@ -529,11 +520,24 @@ public class ImapStore extends Store {
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
-            connection.destroyResponses();
-            mConnectionPool.add(connection);
+            mConnectionPool.checkin(connection);
         }
     }
 
+    /**
+     * Closes a {@link ImapConnection} that won't be returned to the pool, such as one that failed.
+     */
+    void discardConnection(ImapConnection connection) {
+        if (connection != null) {
+            mConnectionPool.discard(connection);
+        }
+    }
+
+    @Override
+    public void closeConnections() {
+        mConnectionPool.closeAll();
+    }
+
     /**
      * Prepends the folder name with the given prefix and UTF-7 encodes it.
      */
@@ -571,14 +575,62 @@ public class ImapStore extends Store {
      * Returns UIDs of Messages joined with "," as the separator.
      */
     static String joinMessageUids(Message[] messages) {
+        return joinMessageUids(messages, 0, messages.length);
+    }
+
+    /**
+     * Returns UIDs of Messages in the range [{@code start}, {@code end}) joined with "," as the
+     * separator.
+     */
+    static String joinMessageUids(Message[] messages, int start, int end) {
         StringBuilder sb = new StringBuilder();
-        boolean notFirst = false;
-        for (Message m : messages) {
-            if (notFirst) {
+        for (int i = start; i < end; i++) {
+            if (i > start) {
                 sb.append(',');
             }
-            sb.append(m.getUid());
-            notFirst = true;
+            sb.append(messages[i].getUid());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the UIDs of Messages as a UID set, e.g. "1:5,7,9:12".  Runs of three or more
+     * consecutive UIDs are compressed into a range; the set is in ascending order.  If any UID is
+     * not a number, the UIDs are simply joined with "," instead.
+     */
+    static String joinMessageUidSet(Message[] messages) {
+        final long[] uids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            try {
+                uids[i] = Long.parseLong(messages[i].getUid());
+            } catch (NumberFormatException e) {
+                return joinMessageUids(messages);
+            }
+        }
+        Arrays.sort(uids);
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < uids.length) {
+            // Find the end of the run of consecutive UIDs starting at i
+            int end = i + 1;
+            while (end < uids.length && uids[end] <= uids[end - 1] + 1) {
+                end++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            if (uids[end - 1] - uids[i] >= 2) {
+                sb.append(uids[i]).append(':').append(uids[end - 1]);
+            } else {
+                // Not worth a range; duplicates are dropped
+                sb.append(uids[i]);
+                for (int j = i + 1; j < end; j++) {
+                    if (uids[j] != uids[j - 1]) {
+                        sb.append(',').append(uids[j]);
+                    }
+                }
+            }
+            i = end;
         }
         return sb.toString();
     }
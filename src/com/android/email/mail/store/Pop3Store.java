@@ -48,6 +48,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 public class Pop3Store extends Store {
     // All flags defining debug or development code settings must be FALSE
@@ -58,7 +59,19 @@ public class Pop3Store extends Store {
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
+    /**
+     * The number of commands sent ahead of their responses, to servers which advertise
+     * PIPELINING.  Kept small, since the commands are tiny but their responses can be large.
+     */
+    private static final int MAX_COMMANDS_IN_FLIGHT = 10;
+    /**
+     * The number of new messages beyond which their UIDs are asked for with a full listing,
+     * rather than with a UIDL command per message.
+     */
+    private static final int MAX_SINGLE_UIDLS = 50;
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
+    /** The saved UIDL index of the mailbox, or null if it can't be kept */
+    /* package */ Pop3UidlIndex mUidlIndex;
 
 //    /**
 //     * Detected latency, used for usage scaling.
@@ -98,6 +111,7 @@ public class Pop3Store extends Store {
     private Pop3Store(Context context, Account account) throws MessagingException {
         mContext = context;
         mAccount = account;
+        mUidlIndex = Pop3UidlIndex.getIndex(context, account.mId);
 
         HostAuth recvAuth = account.getOrCreateHostAuthRecv(context);
         if (recvAuth == null || !HostAuth.SCHEME_POP3.equalsIgnoreCase(recvAuth.mProtocol)) {
@@ -132,12 +146,23 @@ public class Pop3Store extends Store {
         }
     }
 
+    /**
+     * Deletes the saved UIDL index of an account, e.g. when it's deleted.
+     */
+    public static void deleteUidlIndex(Context context, long accountId) {
+        Pop3UidlIndex index = Pop3UidlIndex.getIndex(context, accountId);
+        if (index != null) {
+            index.delete();
+        }
+    }
+
     /**
      * For testing only.  Injects a different transport.  The transport should already be set
      * up and ready to use.  Do not use for real code.
      * @param testTransport The Transport to inject and use for all future communication.
      */
-    /* package */ void setTransport(Transport testTransport) {
+    @VisibleForTesting
+    void setTransport(Transport testTransport) {
         mTransport = testTransport;
     }
 
@@ -211,6 +236,14 @@ public class Pop3Store extends Store {
         private final HashMap<Integer, Pop3Message> mMsgNumToMsgMap
                 = new HashMap<Integer, Pop3Message>();
         private final HashMap<String, Integer> mUidToMsgNumMap = new HashMap<String, Integer>();
+        /** The UIDs of all the messages, by message number - 1, once known in this session */
+        private ArrayList<String> mAllUids;
+        /** The message numbers of {@link #mAllUids}, by UID; built when first needed */
+        private HashMap<String, Integer> mAllMsgNums;
+        /** Whether the saved UIDL index has been checked in this session */
+        private boolean mIndexChecked;
+        /** The numbers of the messages deleted in this session */
+        private final ArrayList<Integer> mDeletedMsgNums = new ArrayList<Integer>();
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
@@ -328,6 +361,10 @@ public class Pop3Store extends Store {
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
             mUidToMsgNumMap.clear();
+            mAllUids = null;
+            mAllMsgNums = null;
+            mIndexChecked = false;
+            mDeletedMsgNums.clear();
         }
 
         @Override
@@ -346,6 +383,7 @@ public class Pop3Store extends Store {
         public void close(boolean expunge) {
             try {
                 executeSimpleCommand("QUIT");
+                saveIndexAfterDeletions();
             }
             catch (Exception e) {
                 // ignore any problems here - just continue closing
@@ -353,6 +391,24 @@ public class Pop3Store extends Store {
             mTransport.close();
         }
 
+        /**
+         * The messages deleted in a session are removed by QUIT, which renumbers the messages
+         * that follow them.  The saved UIDL index is updated to match.
+         */
+        private void saveIndexAfterDeletions() {
+            if (mAllUids == null || mDeletedMsgNums.isEmpty() || mUidlIndex == null) {
+                return;
+            }
+            final HashSet<Integer> deleted = new HashSet<Integer>(mDeletedMsgNums);
+            final ArrayList<String> uids = new ArrayList<String>(mAllUids.size());
+            for (int i = 0, count = mAllUids.size(); i < count; i++) {
+                if (!deleted.contains(i + 1)) {
+                    uids.add(mAllUids.get(i));
+                }
+            }
+            mUidlIndex.write(uids);
+        }
+
         @Override
         public String getName() {
             return mName;
@@ -386,9 +442,16 @@ public class Pop3Store extends Store {
 
         @Override
         public Message getMessage(String uid) throws MessagingException {
-            if (mUidToMsgNumMap.size() == 0) {
+            if (mUidToMsgMap.get(uid) == null) {
                 try {
-                    indexMsgNums(1, mMessageCount);
+                    checkIndex();
+                    if (mAllUids != null) {
+                        final ArrayList<String> uids = new ArrayList<String>();
+                        uids.add(uid);
+                        indexUids(uids);
+                    } else if (mUidToMsgNumMap.size() == 0) {
+                        indexMsgNums(1, mMessageCount);
+                    }
                 } catch (IOException ioe) {
                     mTransport.close();
                     if (Email.DEBUG) {
@@ -447,9 +510,20 @@ public class Pop3Store extends Store {
             if (unindexedMessageCount == 0) {
                 return;
             }
+            checkIndex();
+            if (mAllUids != null) {
+                for (int msgNum = start; msgNum <= end; msgNum++) {
+                    if (mMsgNumToMsgMap.get(msgNum) == null) {
+                        indexMessage(msgNum, new Pop3Message(mAllUids.get(msgNum - 1), this));
+                    }
+                }
+                return;
+            }
             UidlParser parser = new UidlParser();
-            if (DEBUG_FORCE_SINGLE_LINE_UIDL ||
-                    (unindexedMessageCount < 50 && mMessageCount > 5000)) {
+            // Without a saved index, a full listing is avoided in extreme cases; otherwise it
+            // is used to build the index, which saves the next sessions from doing the same.
+            if (DEBUG_FORCE_SINGLE_LINE_UIDL || (mUidlIndex == null
+                    && unindexedMessageCount < MAX_SINGLE_UIDLS && mMessageCount > 5000)) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
                  * download.
@@ -466,6 +540,7 @@ public class Pop3Store extends Store {
                     }
                 }
             } else {
+                final ArrayList<String> allUids = newIndexOrNull();
                 String response = executeSimpleCommand("UIDL");
                 while ((response = mTransport.readLine()) != null) {
                     if (!parser.parseMultiLine(response)) {
@@ -475,6 +550,7 @@ public class Pop3Store extends Store {
                         break;
                     }
                     int msgNum = parser.mMessageNumber;
+                    addToIndex(allUids, msgNum, parser.mUniqueId);
                     if (msgNum >= start && msgNum <= end) {
                         Pop3Message message = mMsgNumToMsgMap.get(msgNum);
                         if (message == null) {
@@ -483,6 +559,98 @@ public class Pop3Store extends Store {
                         }
                     }
                 }
+                saveIndex(allUids);
+            }
+        }
+
+        /**
+         * Checks the UIDL index saved at the end of the last session, if any, against the server,
+         * and brings it up to date.  Messages are only ever removed from a POP3 mailbox, or added
+         * at its end, so if the last message of the index still has the same number, none of the
+         * messages before it has been removed either, and only the UIDs of the messages added
+         * after it have to be asked for.  Otherwise, the index is rebuilt from the next full
+         * listing.
+         */
+        private void checkIndex() throws IOException, MessagingException {
+            if (mIndexChecked || mUidlIndex == null) {
+                return;
+            }
+            mIndexChecked = true;
+            final ArrayList<String> uids = mUidlIndex.read();
+            final int savedCount = uids.size();
+            if (savedCount == 0 || savedCount > mMessageCount) {
+                return;
+            }
+            final UidlParser parser = new UidlParser();
+            if (!parser.parseSingleLine(executeSimpleCommand("UIDL " + savedCount))) {
+                throw new IOException();
+            }
+            if (!uids.get(savedCount - 1).equals(parser.mUniqueId)) {
+                return;
+            }
+            final int newCount = mMessageCount - savedCount;
+            if (newCount > 0) {
+                // Beyond some point, a full listing is cheaper than a command per message
+                final int maxNewCount = mCapabilities.pipelining
+                        ? Math.max(MAX_SINGLE_UIDLS, mMessageCount / 4) : MAX_SINGLE_UIDLS;
+                if (newCount > maxNewCount) {
+                    return;
+                }
+                final ArrayList<String> newUids = fetchUids(savedCount + 1, mMessageCount);
+                uids.addAll(newUids);
+                mUidlIndex.append(newUids);
+            }
+            mAllUids = uids;
+        }
+
+        /**
+         * Asks for the UIDs of messages {@code start} to {@code end}, with a UIDL command per
+         * message.
+         */
+        private ArrayList<String> fetchUids(final int start, int end)
+                throws IOException, MessagingException {
+            final ArrayList<String> uids = new ArrayList<String>();
+            final ArrayList<String> commands = new ArrayList<String>();
+            for (int msgNum = start; msgNum <= end; msgNum++) {
+                commands.add("UIDL " + msgNum);
+            }
+            final UidlParser parser = new UidlParser();
+            pipelineCommands(commands, new ResponseHandler() {
+                @Override
+                public void onResponse(int index, String response) throws IOException {
+                    if (!parser.parseSingleLine(response)
+                            || parser.mMessageNumber != start + index) {
+                        throw new IOException();
+                    }
+                    uids.add(parser.mUniqueId);
+                }
+            });
+            return uids;
+        }
+
+        /**
+         * Returns a list in which to collect the UIDs of a full listing, to be saved as the
+         * index, or null if no index is kept.
+         */
+        private ArrayList<String> newIndexOrNull() {
+            return (mUidlIndex != null) ? new ArrayList<String>(mMessageCount) : null;
+        }
+
+        private void addToIndex(ArrayList<String> allUids, int msgNum, String uid) {
+            // A listing with gaps can't be saved (see saveIndex)
+            if (allUids != null && msgNum == allUids.size() + 1) {
+                allUids.add(uid);
+            }
+        }
+
+        /**
+         * Saves the UIDs of a full listing as the index, if the listing is complete.
+         */
+        private void saveIndex(ArrayList<String> allUids) {
+            if (allUids != null && allUids.size() == mMessageCount) {
+                mUidlIndex.write(allUids);
+                mAllUids = allUids;
+                mAllMsgNums = null;
             }
         }
 
@@ -497,11 +665,28 @@ public class Pop3Store extends Store {
             if (unindexedUids.size() == 0) {
                 return;
             }
+            checkIndex();
+            if (mAllUids != null) {
+                if (mAllMsgNums == null) {
+                    mAllMsgNums = new HashMap<String, Integer>(mAllUids.size());
+                    for (int i = 0, count = mAllUids.size(); i < count; i++) {
+                        mAllMsgNums.put(mAllUids.get(i), i + 1);
+                    }
+                }
+                for (String uid : unindexedUids) {
+                    final Integer msgNum = mAllMsgNums.get(uid);
+                    if (msgNum != null) {
+                        indexMessage(msgNum, new Pop3Message(uid, this));
+                    }
+                }
+                return;
+            }
             /*
              * If we are missing uids in the cache the only sure way to
              * get them is to do a full UIDL list. A possible optimization
              * would be trying UIDL for the latest X messages and praying.
              */
+            final ArrayList<String> allUids = newIndexOrNull();
             UidlParser parser = new UidlParser();
             String response = executeSimpleCommand("UIDL");
             while ((response = mTransport.readLine()) != null) {
@@ -509,6 +694,7 @@ public class Pop3Store extends Store {
                 if (parser.mEndOfMessage) {
                     break;
                 }
+                addToIndex(allUids, parser.mMessageNumber, parser.mUniqueId);
                 if (unindexedUids.contains(parser.mUniqueId)) {
                     Pop3Message message = mUidToMsgMap.get(parser.mUniqueId);
                     if (message == null) {
@@ -517,6 +703,7 @@ public class Pop3Store extends Store {
                     indexMessage(parser.mMessageNumber, message);
                 }
             }
+            saveIndex(allUids);
         }
 
         /**
@@ -661,6 +848,17 @@ public class Pop3Store extends Store {
                 }
                 throw new MessagingException("fetch", ioe);
             }
+            // With PIPELINING, the bodies are requested several at a time.  TOP is only
+            // pipelined if the server advertises it, so that it needn't fall back to RETR.
+            if (mCapabilities.pipelining && messages.length > 1) {
+                if (fp.contains(FetchProfile.Item.BODY)) {
+                    fetchBodies(messages, -1, listener);
+                    return;
+                } else if (fp.contains(FetchProfile.Item.BODY_SANE) && mCapabilities.top) {
+                    fetchBodies(messages, FETCH_BODY_SANE_SUGGESTED_SIZE / 76, listener);
+                    return;
+                }
+            }
             for (int i = 0, count = messages.length; i < count; i++) {
                 Message message = messages[i];
                 if (!(message instanceof Pop3Message)) {
@@ -796,24 +994,76 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
-                        in = new LoggingInputStream(in);
-                    }
-                    message.parse(new Pop3ResponseInputStream(in));
+                parseBody(message, lines);
+            }
+        }
+
+        /**
+         * Fetches the bodies of several messages, with pipelined RETR or TOP commands.
+         *
+         * @param lines the number of lines to fetch with TOP, or -1 to fetch the entire
+         * messages with RETR
+         */
+        private void fetchBodies(final Message[] messages, final int lines,
+                final MessageRetrievalListener listener) throws MessagingException {
+            final ArrayList<String> commands = new ArrayList<String>();
+            for (Message message : messages) {
+                if (!(message instanceof Pop3Message)) {
+                    throw new MessagingException("Pop3Store.fetch called with non-Pop3 Message");
                 }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
-                    if (lines == -1) {
-                        throw me;
+                int msgNum = mUidToMsgNumMap.get(message.getUid());
+                commands.add((lines == -1) ? String.format("RETR %d", msgNum)
+                        : String.format("TOP %d %d", msgNum, lines));
+            }
+            try {
+                pipelineCommands(commands, new ResponseHandler() {
+                    @Override
+                    public void onResponse(int index, String response)
+                            throws IOException, MessagingException {
+                        Pop3Message message = (Pop3Message) messages[index];
+                        parseBody(message, lines);
+                        if (listener != null) {
+                            listener.messageRetrieved(message);
+                        }
                     }
+                });
+            } catch (IOException ioe) {
+                mTransport.close();
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, ioe.toString());
                 }
+                throw new MessagingException("Unable to fetch message", ioe);
+            }
+        }
+
+        /**
+         * Parses the multi-line response of a RETR or TOP command into {@code message}.
+         */
+        private void parseBody(Pop3Message message, int lines)
+                throws IOException, MessagingException {
+            InputStream in = mTransport.getInputStream();
+            if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
+                in = new LoggingInputStream(in);
+            }
+            Pop3ResponseInputStream body = new Pop3ResponseInputStream(in);
+            try {
+                message.parse(body);
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
+                }
+            }
+            // Whatever the parser left of the response has to be read, so that the next
+            // response is read from its start
+            while (body.read() != -1) {
+                // skip
             }
         }
 
@@ -846,8 +1096,11 @@ public class Pop3Store extends Store {
             }
             try {
                 for (Message message : messages) {
-                    executeSimpleCommand(String.format("DELE %s",
-                            mUidToMsgNumMap.get(message.getUid())));
+                    Integer msgNum = mUidToMsgNumMap.get(message.getUid());
+                    executeSimpleCommand(String.format("DELE %s", msgNum));
+                    if (msgNum != null) {
+                        mDeletedMsgNums.add(msgNum);
+                    }
                 }
             }
             catch (IOException ioe) {
@@ -905,6 +1158,50 @@ public class Pop3Store extends Store {
             return capabilities;
         }
 
+        /**
+         * Handles the response of one of the commands sent by {@link #pipelineCommands}.
+         */
+        private abstract class ResponseHandler {
+            /**
+             * Handles the (first line of the) response of {@code commands[index]}, and reads the
+             * rest of it, if it's a multi-line response.
+             */
+            public abstract void onResponse(int index, String response)
+                    throws IOException, MessagingException;
+        }
+
+        /**
+         * Sends the given commands, and hands their responses to {@code handler}, in order.  If
+         * the server advertises PIPELINING, up to {@link #MAX_COMMANDS_IN_FLIGHT} commands are
+         * sent ahead of their responses, rather than one per round trip.  Reopens the connection,
+         * if it is closed.
+         */
+        private void pipelineCommands(List<String> commands, ResponseHandler handler)
+                throws IOException, MessagingException {
+            open(OpenMode.READ_WRITE);
+            final int maxInFlight = mCapabilities.pipelining ? MAX_COMMANDS_IN_FLIGHT : 1;
+            int sent = 0;
+            for (int i = 0, count = commands.size(); i < count; i++) {
+                while (sent < count && sent < i + maxInFlight) {
+                    mTransport.writeLine(commands.get(sent++), null);
+                }
+                final String response = mTransport.readLine();
+                try {
+                    if (response.length() > 1 && response.charAt(0) == '-') {
+                        throw new MessagingException(response);
+                    }
+                    handler.onResponse(i, response);
+                } catch (MessagingException me) {
+                    // The responses to the commands already sent after this one would be taken
+                    // for the responses of the next commands
+                    if (sent > i + 1) {
+                        mTransport.close();
+                    }
+                    throw me;
+                }
+            }
+        }
+
         /**
          * Send a single command and wait for a single line response.  Reopens the connection,
          * if it is closed.  Leaves the connection open.
@@ -1003,7 +1300,7 @@ public class Pop3Store extends Store {
         public boolean user;
         /** the optional UIDL command is supported (unused) */
         public boolean uidl;
-        /** the server is capable of accepting multiple commands at a time (unused) */
+        /** the server is capable of accepting multiple commands at a time */
         public boolean pipelining;
 
         @Override
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The UIDs of the messages of a POP3 mailbox, by message number, as they were at the end of
+ * the last session.  They are kept in a file, one UID per line, so that a new session only has
+ * to ask the server for the UIDs of the messages added since.
+ *
+ * The index is only a cache: a failure to read or write it is logged, and the UIDs are then
+ * asked for again.
+ */
+/* package */ class Pop3UidlIndex {
+    private static final String FILE_PREFIX = "pop3_uidl_";
+
+    private final File mFile;
+
+    /* package */ Pop3UidlIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the index of the POP3 mailbox of an account, or null if the index can't be kept
+     * (e.g. in an isolated test context, which has no usable files directory).
+     */
+    public static Pop3UidlIndex getIndex(Context context, long accountId) {
+        final File dir;
+        try {
+            dir = context.getFilesDir();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        if (dir == null || !dir.isDirectory()) {
+            return null;
+        }
+        return new Pop3UidlIndex(new File(dir, FILE_PREFIX + accountId));
+    }
+
+    /**
+     * Returns the saved UIDs; the UID of message number n is at n - 1.  The list is empty if
+     * there is no index yet.
+     */
+    public ArrayList<String> read() {
+        final ArrayList<String> uids = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile),
+                    "US-ASCII"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                uids.add(line);
+            }
+        } catch (FileNotFoundException e) {
+            // No index yet
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read the UIDL index " + mFile + ": " + e);
+            uids.clear();
+        } finally {
+            closeQuietly(reader);
+        }
+        return uids;
+    }
+
+    /**
+     * Adds the UIDs of the messages that follow those already saved.
+     */
+    public void append(List<String> uids) {
+        save(uids, true);
+    }
+
+    /**
+     * Replaces the saved UIDs.
+     */
+    public void write(List<String> uids) {
+        save(uids, false);
+    }
+
+    private void save(List<String> uids, boolean append) {
+        // A rewrite goes to a temp file first, so that a failure doesn't leave a partial index;
+        // a partial append is caught by the check of the last UID when the index is next read.
+        final File file = append ? mFile : new File(mFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, append), "US-ASCII"));
+            for (String uid : uids) {
+                writer.write(uid);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!append && !file.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + file);
+            }
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to save the UIDL index " + mFile + ": " + e);
+            closeQuietly(writer);
+            file.delete();
+            delete();
+        }
+    }
+
+    /**
+     * Deletes the index.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
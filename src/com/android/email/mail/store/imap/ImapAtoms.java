@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+/**
+ * The atoms that make up most of the responses (keywords, system flags, MIME types...), as shared
+ * {@link ImapString} instances, so that the parser doesn't allocate a new string each time it
+ * reads one.
+ *
+ * Atoms are looked up as they are spelled by servers (case-sensitively), so that
+ * {@link ImapString#getString()} returns exactly what was received.
+ */
+/* package */ final class ImapAtoms {
+    private static final String[] ATOMS = {
+        // Keywords
+        ImapConstants.ALERT, ImapConstants.BAD, ImapConstants.BODY, ImapConstants.BODYSTRUCTURE,
+        ImapConstants.BYE, ImapConstants.CAPABILITY, ImapConstants.EXISTS, ImapConstants.EXPUNGE,
+        ImapConstants.FETCH, ImapConstants.FLAGS, ImapConstants.HIGHESTMODSEQ,
+        ImapConstants.INTERNALDATE, ImapConstants.LIST, ImapConstants.LSUB, ImapConstants.NO,
+        ImapConstants.OK, ImapConstants.PERMANENTFLAGS, ImapConstants.PREAUTH,
+        ImapConstants.READ_ONLY, ImapConstants.READ_WRITE, ImapConstants.RFC822_SIZE,
+        ImapConstants.SEARCH, ImapConstants.STATUS, ImapConstants.UID, ImapConstants.UIDNEXT,
+        ImapConstants.UIDVALIDITY, ImapConstants.UNSEEN, ImapConstants.VANISHED,
+        ImapConstants.EARLIER, ImapConstants.COPYUID, ImapConstants.APPENDUID,
+        ImapConstants.TRYCREATE, ImapConstants.INBOX, "ENVELOPE", "MODSEQ", "RECENT",
+        "MESSAGES",
+        // Flags, as servers spell them
+        "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+        "\\Noselect", "\\HasChildren", "\\HasNoChildren",
+        // BODYSTRUCTURE
+        "TEXT", "PLAIN", "HTML", "MIXED", "ALTERNATIVE", "RELATED", "IMAGE", "APPLICATION",
+        "MESSAGE", "RFC822", "CHARSET", "UTF-8", "US-ASCII", "ISO-8859-1", "7BIT", "8BIT",
+        "BASE64", "QUOTED-PRINTABLE", "ATTACHMENT", "INLINE", "NAME", "FILENAME", "BOUNDARY",
+        "text", "plain", "html", "mixed", "alternative", "related", "charset", "utf-8",
+        "us-ascii", "iso-8859-1", "7bit", "8bit", "base64", "quoted-printable", "attachment",
+        "inline", "name", "filename", "boundary",
+    };
+
+    /** Open addressing hash table of the atoms; its size is a power of 2 */
+    private static final ImapString[] TABLE = new ImapString[256];
+
+    static {
+        for (String atom : ATOMS) {
+            int i = hash(atom.toCharArray(), atom.length()) & (TABLE.length - 1);
+            while (TABLE[i] != null) {
+                if (TABLE[i].getString().equals(atom)) {
+                    break;
+                }
+                i = (i + 1) & (TABLE.length - 1);
+            }
+            TABLE[i] = ImapSimpleString.newConstant(atom);
+        }
+    }
+
+    private ImapAtoms() {
+    }
+
+    private static int hash(char[] chars, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the shared instance of the atom in the first {@code length} chars of
+     * {@code chars}, or null if it isn't a known atom.
+     */
+    public static ImapString get(char[] chars, int length) {
+        int i = hash(chars, length) & (TABLE.length - 1);
+        for (;;) {
+            final ImapString atom = TABLE[i];
+            if (atom == null) {
+                return null;
+            }
+            if (equals(atom.getString(), chars, length)) {
+                return atom;
+            }
+            i = (i + 1) & (TABLE.length - 1);
+        }
+    }
+
+    private static boolean equals(String s, char[] chars, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.email.mail.store.imap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Class represents an IMAP list.
@@ -36,13 +37,66 @@ public class ImapList extends ImapElement {
         }
     };
 
-    private ArrayList<ImapElement> mList = new ArrayList<ImapElement>();
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Recycles the backing arrays of the lists built by a parser.  Lists return their array to
+     * the pool when they are destroyed, i.e. when the parser destroys its responses.  It's only
+     * used by the thread that reads the responses, so it isn't synchronized.
+     */
+    /* package */ static class ArrayPool {
+        private static final int MAX_POOLED_ARRAYS = 64;
+
+        private final ArrayList<ImapElement[]> mArrays = new ArrayList<ImapElement[]>();
+
+        ImapElement[] obtain() {
+            final int size = mArrays.size();
+            return (size > 0) ? mArrays.remove(size - 1) : new ImapElement[INITIAL_CAPACITY];
+        }
+
+        void recycle(ImapElement[] array) {
+            if (mArrays.size() < MAX_POOLED_ARRAYS) {
+                mArrays.add(array);
+            }
+        }
+
+        /* package for test */ int size() {
+            return mArrays.size();
+        }
+    }
+
+    /** The pool the backing array is taken from and returned to, or null */
+    private final ArrayPool mPool;
+    private ImapElement[] mList;
+    private int mSize;
+
+    public ImapList() {
+        this(null);
+    }
+
+    /* package */ ImapList(ArrayPool pool) {
+        mPool = pool;
+    }
 
     /* package */ void add(ImapElement e) {
         if (e == null) {
             throw new RuntimeException("Can't add null");
         }
-        mList.add(e);
+        if (mList == null) {
+            mList = (mPool != null) ? mPool.obtain() : new ImapElement[INITIAL_CAPACITY];
+        } else if (mSize == mList.length) {
+            final ImapElement[] grown = Arrays.copyOf(mList, mSize * 2);
+            recycle(mList);
+            mList = grown;
+        }
+        mList[mSize++] = e;
+    }
+
+    private void recycle(ImapElement[] array) {
+        if (mPool != null) {
+            Arrays.fill(array, null);
+            mPool.recycle(array);
+        }
     }
 
     @Override
@@ -56,7 +110,8 @@ public class ImapList extends ImapElement {
     }
 
     public final int size() {
-        return mList.size();
+        checkNotDestroyed();
+        return mSize;
     }
 
     public final boolean isEmpty() {
@@ -87,7 +142,7 @@ public class ImapList extends ImapElement {
      * If {@code index} is out of range, returns {@link ImapElement#NONE}.
      */
     public final ImapElement getElementOrNone(int index) {
-        return (index >= mList.size()) ? ImapElement.NONE : mList.get(index);
+        return (index >= size()) ? ImapElement.NONE : mList[index];
     }
 
     /**
@@ -115,7 +170,7 @@ public class ImapList extends ImapElement {
     /* package */ final ImapElement getKeyedElementOrNull(String key, boolean prefixMatch) {
         for (int i = 1; i < size(); i += 2) {
             if (is(i-1, key, prefixMatch)) {
-                return mList.get(i);
+                return mList[i];
             }
         }
         return null;
@@ -169,18 +224,31 @@ public class ImapList extends ImapElement {
 
     @Override
     public void destroy() {
-        if (mList != null) {
-            for (ImapElement e : mList) {
-                e.destroy();
+        if (!isDestroyed()) {
+            for (int i = 0; i < mSize; i++) {
+                mList[i].destroy();
             }
-            mList = null;
+            if (mList != null) {
+                recycle(mList);
+                mList = null;
+            }
+            mSize = 0;
         }
         super.destroy();
     }
 
     @Override
     public String toString() {
-        return mList.toString();
+        final StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mList[i]);
+        }
+        sb.append(']');
+        return sb.toString();
     }
 
     /**
@@ -201,7 +269,7 @@ public class ImapList extends ImapElement {
      */
     private final StringBuilder flatten(StringBuilder sb) {
         sb.append('[');
-        for (int i = 0; i < mList.size(); i++) {
+        for (int i = 0; i < size(); i++) {
             if (i > 0) {
                 sb.append(',');
             }
@@ -226,7 +294,7 @@ public class ImapList extends ImapElement {
             return false;
         }
         for (int i = 0; i < size(); i++) {
-            if (!mList.get(i).equalsForTest(thatList.getElementOrNone(i))) {
+            if (!mList[i].equalsForTest(thatList.getElementOrNone(i))) {
                 return false;
             }
         }
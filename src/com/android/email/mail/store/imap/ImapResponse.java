@@ -25,6 +25,11 @@ public class ImapResponse extends ImapList {
     private final boolean mIsContinuationRequest;
 
     /* package */ ImapResponse(String tag, boolean isContinuationRequest) {
+        this(tag, isContinuationRequest, null);
+    }
+
+    /* package */ ImapResponse(String tag, boolean isContinuationRequest, ArrayPool pool) {
+        super(pool);
         mTag = tag;
         mIsContinuationRequest = isContinuationRequest;
     }
@@ -44,6 +49,13 @@ public class ImapResponse extends ImapList {
         return mTag != null;
     }
 
+    /**
+     * @return the tag of the response, or null if it's not a tagged response.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a continuation request.
      */
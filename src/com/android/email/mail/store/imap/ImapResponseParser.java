@@ -29,6 +29,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 
 /**
@@ -54,11 +55,15 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /**
+     * Buffer the tokens are read into, one byte per char, before they're turned into strings (or
+     * looked up in {@link ImapAtoms}).  It's reused, and grows as needed.
+     */
+    private char[] mToken = new char[128];
+    private int mTokenLength;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /** The backing arrays of the lists, recycled when the responses are destroyed */
+    private final ImapList.ArrayPool mArrayPool = new ImapList.ArrayPool();
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -66,6 +71,29 @@ public class ImapResponseParser {
      */
     private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+    /** Handler given the literals as they arrive, if any.  See {@link LiteralHandler}. */
+    private LiteralHandler mLiteralHandler;
+
+    /** Number of literal bytes stored in {@link ImapMemoryLiteral}s and temp files so far */
+    private long mLiteralBytesStored;
+
+    /**
+     * Handles literals straight from the stream, as they arrive, so that large ones (e.g. message
+     * bodies) can be consumed without first being stored in memory or in a temp file.
+     */
+    public interface LiteralHandler {
+        /**
+         * Called when a literal is found in {@code list}, which holds the elements parsed before
+         * it, the last of them being its key (e.g. "BODY[]").
+         *
+         * If the handler consumes the literal, it returns the string that stands for it in the
+         * response, and whatever it leaves unread in {@code in} is skipped.  Otherwise, it returns
+         * null without reading anything, and the literal is stored as usual.
+         */
+        public ImapString handleLiteral(ImapList list, FixedLengthInputStream in)
+                throws IOException, MessagingException;
+    }
+
     /**
      * Exception thrown when we receive BYE.  It derives from IOException, so it'll be treated
      * in the same way EOF does.
@@ -97,6 +125,25 @@ public class ImapResponseParser {
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
 
+    /**
+     * Sets the handler given the literals as they arrive, or null to store them all.
+     */
+    public void setLiteralHandler(LiteralHandler handler) {
+        mLiteralHandler = handler;
+    }
+
+    /**
+     * Returns the number of literal bytes stored (rather than given to the literal handler)
+     * so far.
+     */
+    public long getLiteralBytesStored() {
+        return mLiteralBytesStored;
+    }
+
+    /* package for test */ int getPooledArrayCount() {
+        return mArrayPool.size();
+    }
+
     private static IOException newEOSException() {
         final String message = "End of stream reached";
         if (Email.DEBUG) {
@@ -169,6 +216,9 @@ public class ImapResponseParser {
             // Parser crash -- log network activities.
             onParseError(e);
             throw e;
+        } catch (SocketTimeoutException e) {
+            // Nothing arrived in time, e.g. while idling.  Don't wait for more bytes to log.
+            throw e;
         } catch (IOException e) {
             // Network error, or received an unexpected char.
             onParseError(e);
@@ -218,19 +268,67 @@ public class ImapResponseParser {
     }
 
     /**
-     * Read bytes until we find {@code end}, and return all as string.
-     * The {@code end} will be read (rather than peeked) and won't be included in the result.
+     * Append one byte to {@link #mToken}.
      */
-    /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+    private void appendToken(int ch) {
+        if (mTokenLength == mToken.length) {
+            final char[] grown = new char[mToken.length * 2];
+            System.arraycopy(mToken, 0, grown, 0, mTokenLength);
+            mToken = grown;
+        }
+        mToken[mTokenLength++] = (char) ch;
+    }
+
+    /**
+     * Read bytes until we find {@code end}, and append them to {@link #mToken}.
+     * The {@code end} will be read (rather than peeked) and won't be appended.
+     */
+    private void readTokenUntil(char end) throws IOException {
         for (;;) {
             final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            if (ch == end) {
+                return;
+            }
+            appendToken(ch);
+        }
+    }
+
+    /**
+     * Returns the content of {@link #mToken} as an {@link ImapString}, which is shared if it's
+     * one of {@link ImapAtoms}.
+     */
+    private ImapString tokenToImapString() {
+        final ImapString atom = ImapAtoms.get(mToken, mTokenLength);
+        if (atom != null) {
+            return atom;
+        }
+        return new ImapSimpleString(new String(mToken, 0, mTokenLength));
+    }
+
+    /**
+     * Returns true if {@link #mToken} case-insensitively equals to {@code s}.
+     */
+    private boolean tokenIs(String s) {
+        final int length = s.length();
+        if (mTokenLength != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toUpperCase(mToken[i]) != Character.toUpperCase(s.charAt(i))) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Read bytes until we find {@code end}, and return all as string.
+     * The {@code end} will be read (rather than peeked) and won't be included in the result.
+     */
+    /* package for test */ String readUntil(char end) throws IOException {
+        mTokenLength = 0;
+        readTokenUntil(end);
+        return new String(mToken, 0, mTokenLength);
     }
 
     /**
@@ -260,7 +358,7 @@ public class ImapResponseParser {
             if (ch == '+') { // Continuation request
                 readByte(); // skip +
                 expect(' ');
-                responseToDestroy = new ImapResponse(null, true);
+                responseToDestroy = new ImapResponse(null, true, mArrayPool);
 
                 // If it's continuation request, we don't really care what's in it.
                 responseToDestroy.add(new ImapSimpleString(readUntilEol()));
@@ -278,7 +376,7 @@ public class ImapResponseParser {
                 } else {
                     tag = readUntil(' ');
                 }
-                responseToDestroy = new ImapResponse(tag, false);
+                responseToDestroy = new ImapResponse(tag, false, mArrayPool);
 
                 final ImapString firstString = parseBareString();
                 responseToDestroy.add(firstString);
@@ -327,7 +425,7 @@ public class ImapResponseParser {
         return responseToReturn;
     }
 
-    private ImapElement parseElement() throws IOException, MessagingException {
+    private ImapElement parseElement(ImapList list) throws IOException, MessagingException {
         final int next = peek();
         switch (next) {
             case '(':
@@ -336,9 +434,11 @@ public class ImapResponseParser {
                 return parseList('[', ']');
             case '"':
                 readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                mTokenLength = 0;
+                readTokenUntil('"');
+                return tokenToImapString();
             case '{':
-                return parseLiteral();
+                return parseLiteral(list);
             case '\r':  // CR
                 readByte(); // Consume \r
                 expect('\n'); // Should be followed by LF.
@@ -361,7 +461,7 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mTokenLength = 0;
         for (;;) {
             final int ch = peek();
 
@@ -378,23 +478,22 @@ public class ImapResponseParser {
                     // it as a flag instead
                     // ch == '"' || ch == '\' ||
                     ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
+                if (mTokenLength == 0) {
                     throw new MessagingException("Expected string, none found.");
                 }
-                String s = mParseBareString.toString();
 
                 // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                if (tokenIs(ImapConstants.NIL)) {
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return tokenToImapString();
             } else if (ch == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                appendToken(readByte());
+                readTokenUntil(']');
+                appendToken(']'); // readTokenUntil won't append the end char.
             } else {
-                mParseBareString.append((char) readByte());
+                appendToken(readByte());
             }
         }
     }
@@ -413,7 +512,7 @@ public class ImapResponseParser {
                 // Skip space
                 readByte();
             }
-            final ImapElement el = parseElement();
+            final ImapElement el = parseElement(list);
             if (el == null) { // EOL
                 return;
             }
@@ -424,23 +523,43 @@ public class ImapResponseParser {
     private ImapList parseList(char opening, char closing)
             throws IOException, MessagingException {
         expect(opening);
-        final ImapList list = new ImapList();
+        final ImapList list = new ImapList(mArrayPool);
         parseElements(list, closing);
         expect(closing);
         return list;
     }
 
-    private ImapString parseLiteral() throws IOException, MessagingException {
+    private ImapString parseLiteral(ImapList list) throws IOException, MessagingException {
         expect('{');
-        final int size;
-        try {
-            size = Integer.parseInt(readUntil('}'));
-        } catch (NumberFormatException nfe) {
+        // Parse the length digit by digit, rather than through a string
+        int size = 0;
+        int digits = 0;
+        for (int ch = readByte(); ch != '}'; ch = readByte()) {
+            if (ch < '0' || ch > '9' || size > (Integer.MAX_VALUE - 9) / 10) {
+                throw new MessagingException("Invalid length in literal");
+            }
+            size = size * 10 + (ch - '0');
+            digits++;
+        }
+        if (digits == 0) {
             throw new MessagingException("Invalid length in literal");
         }
         expect('\r');
         expect('\n');
         FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
+        if (mLiteralHandler != null) {
+            final ImapString handled = mLiteralHandler.handleLiteral(list, in);
+            if (handled != null) {
+                // Skip whatever the handler didn't read, so we're back on the response.
+                while (in.available() > 0) {
+                    if (in.skip(in.available()) <= 0) {
+                        throw newEOSException();
+                    }
+                }
+                return handled;
+            }
+        }
+        mLiteralBytesStored += size;
         if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
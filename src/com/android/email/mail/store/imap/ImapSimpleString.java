@@ -27,12 +27,31 @@ import java.io.InputStream;
 public class ImapSimpleString extends ImapString {
     private String mString;
 
+    /** Whether it's a shared instance, which is never destroyed.  See {@link ImapAtoms}. */
+    private final boolean mConstant;
+
     /* package */  ImapSimpleString(String string) {
+        this(string, false);
+    }
+
+    private ImapSimpleString(String string, boolean constant) {
         mString = (string != null) ? string : "";
+        mConstant = constant;
+    }
+
+    /**
+     * Create a shared instance, which can be put in any number of responses.
+     */
+    /* package */ static ImapSimpleString newConstant(String string) {
+        return new ImapSimpleString(string, true);
     }
 
     @Override
     public void destroy() {
+        if (mConstant) {
+            // It's a shared object.  We don't want the mDestroyed to be set on this.
+            return;
+        }
         mString = null;
         super.destroy();
     }
@@ -37,4 +37,9 @@ public class CountingOutputStream extends OutputStream {
     public void write(int oneByte) throws IOException {
         mCount++;
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mCount += len;
+    }
 }
@@ -30,7 +30,8 @@ import java.util.ArrayList;
  */
 public class DiscourseLogger {
     private final int mBufferSize;
-    private String[] mBuffer;
+    /** The lines; they're reused, so that logging a line doesn't allocate anything */
+    private StringBuilder[] mBuffer;
     private int mPos;
     private final StringBuilder mReceivingLine = new StringBuilder(100);
 
@@ -40,12 +41,18 @@ public class DiscourseLogger {
     }
 
     private void initBuffer() {
-        mBuffer = new String[mBufferSize];
+        mBuffer = new StringBuilder[mBufferSize];
     }
 
     /** Add a single line to {@link #mBuffer}. */
-    private void addLine(String s) {
-        mBuffer[mPos] = s;
+    private void addLine(CharSequence s) {
+        StringBuilder line = mBuffer[mPos];
+        if (line == null) {
+            line = new StringBuilder(s.length());
+            mBuffer[mPos] = line;
+        }
+        line.setLength(0);
+        line.append(s);
         mPos++;
         if (mPos >= mBufferSize) {
             mPos = 0;
@@ -54,8 +61,8 @@ public class DiscourseLogger {
 
     private void addReceivingLineToBuffer() {
         if (mReceivingLine.length() > 0) {
-            addLine(mReceivingLine.toString());
-            mReceivingLine.delete(0, Integer.MAX_VALUE);
+            addLine(mReceivingLine);
+            mReceivingLine.setLength(0);
         }
     }
 
@@ -70,8 +77,9 @@ public class DiscourseLogger {
             addReceivingLineToBuffer();
         } else if (b == '\r') { // CR
         } else {
-            final String hex = "00" + Integer.toHexString(b);
-            mReceivingLine.append("\\x" + hex.substring(hex.length() - 2, hex.length()));
+            b &= 0xff;
+            mReceivingLine.append("\\x").append(Character.forDigit(b >> 4, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
         }
     }
 
@@ -89,9 +97,9 @@ public class DiscourseLogger {
         final int start = mPos;
         int pos = mPos;
         do {
-            String s = mBuffer[pos];
-            if (s != null) {
-                list.add(s);
+            StringBuilder line = mBuffer[pos];
+            if (line != null) {
+                list.add(line.toString());
             }
             pos = (pos + 1) % mBufferSize;
         } while (pos != start);
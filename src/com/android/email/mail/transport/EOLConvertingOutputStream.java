@@ -20,7 +20,13 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Converts the bare LFs written to it to CRLFs.  Arrays are scanned and passed on in runs, so
+ * that a message written in chunks doesn't go through the underlying stream byte by byte.
+ */
 public class EOLConvertingOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = { '\r', '\n' };
+
     int lastChar;
 
     public EOLConvertingOutputStream(OutputStream out) {
@@ -31,19 +37,44 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
     public void write(int oneByte) throws IOException {
         if (oneByte == '\n') {
             if (lastChar != '\r') {
-                super.write('\r');
+                out.write('\r');
             }
         }
-        super.write(oneByte);
+        out.write(oneByte);
         lastChar = oneByte;
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int runStart = off;
+        int previous = lastChar;
+        for (int i = off; i < end; i++) {
+            final int c = b[i];
+            if (c == '\n' && previous != '\r') {
+                // Pass on the run before the bare LF, and the LF as a CRLF
+                if (i > runStart) {
+                    out.write(b, runStart, i - runStart);
+                }
+                out.write(CRLF, 0, 2);
+                runStart = i + 1;
+            }
+            previous = c;
+        }
+        if (end > runStart) {
+            out.write(b, runStart, end - runStart);
+        }
+        if (len > 0) {
+            lastChar = b[end - 1];
+        }
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
-            super.write('\n');
+            out.write('\n');
             lastChar = '\n';
         }
-        super.flush();
+        out.flush();
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link BufferedInputStream} that can also read lines, by scanning its buffer rather than
+ * reading one byte at a time.  The lines and the bytes read with the {@link InputStream}
+ * methods come from the same buffer, so they can be mixed.
+ */
+public class LineInputStream extends BufferedInputStream {
+    /** The line being read; reused from line to line */
+    private char[] mLine = new char[128];
+    private boolean mReachedEnd;
+
+    public LineInputStream(InputStream in, int size) {
+        super(in, size);
+    }
+
+    /**
+     * Reads a line, using either \r\n or \n as the delimiter.  The delimiter char(s), and any
+     * other \r, are not included in the result.  Each byte is read as a char (ISO-8859-1).
+     *
+     * @return the line, which is empty (or partial) if the end of the stream was reached
+     */
+    public synchronized String readLine() throws IOException {
+        int length = 0;
+        mReachedEnd = false;
+        for (;;) {
+            if (pos >= count) {
+                // Let read() refill the buffer
+                final int d = read();
+                if (d == -1) {
+                    mReachedEnd = true;
+                    break;
+                }
+                // Unread it, since read() filled the buffer with it first
+                pos--;
+            }
+            final byte[] buffer = buf;
+            final int end = count;
+            int i = pos;
+            boolean found = false;
+            for (; i < end; i++) {
+                final int c = buffer[i] & 0xff;
+                if (c == '\n') {
+                    found = true;
+                    break;
+                }
+                if (c != '\r') {
+                    if (length == mLine.length) {
+                        final char[] line = new char[length * 2];
+                        System.arraycopy(mLine, 0, line, 0, length);
+                        mLine = line;
+                    }
+                    mLine[length++] = (char) c;
+                }
+            }
+            if (found) {
+                pos = i + 1;
+                break;
+            }
+            pos = end;
+        }
+        return new String(mLine, 0, length);
+    }
+
+    /**
+     * Whether the last {@link #readLine()} reached the end of the stream.
+     */
+    public synchronized boolean reachedEnd() {
+        return mReachedEnd;
+    }
+}
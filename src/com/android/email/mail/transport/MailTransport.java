@@ -25,7 +25,6 @@ import com.android.emailcommon.utility.SSLUtils;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -73,8 +72,11 @@ public class MailTransport implements Transport {
      */
     private boolean mTrustCertificates;
 
+    /** The size of the buffers of the socket streams, large enough for a TLS record */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
     private Socket mSocket;
-    private InputStream mIn;
+    private LineInputStream mIn;
     private OutputStream mOut;
 
     /**
@@ -177,8 +179,8 @@ public class MailTransport implements Transport {
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new LineInputStream(mSocket.getInputStream(), BUFFER_SIZE);
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -208,8 +210,8 @@ public class MailTransport implements Transport {
                     SSLUtils.getSSLSocketFactory(canTrustAllCertificates(), SOCKET_CONNECT_TIMEOUT)
                             .createSocket(mSocket, getHost(), getPort(), true);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new LineInputStream(mSocket.getInputStream(), BUFFER_SIZE);
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -353,22 +355,14 @@ public class MailTransport implements Transport {
      */
     @Override
     public String readLine() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
-            }
+        final LineInputStream in = mIn;
+        if (in == null) {
+            throw new IOException("Reading from a closed transport");
         }
-        if (d == -1 && Email.DEBUG) {
+        String ret = in.readLine();
+        if (in.reachedEnd() && Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "End of stream reached while trying to read line.");
         }
-        String ret = sb.toString();
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "<<< " + ret);
         }
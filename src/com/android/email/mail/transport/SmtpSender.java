@@ -34,10 +34,12 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Formatter;
 
 import javax.crypto.Mac;
@@ -47,14 +49,30 @@ import javax.net.ssl.SSLException;
 /**
  * This class handles all of the protocol-level aspects of sending messages via
  * SMTP. TODO Remove dependence upon URI; there's no reason why we need it here
+ *
+ * The session opened for the first message is kept for the following ones, until
+ * {@link #close()}: each new transaction starts with a RSET instead of a new connection, EHLO
+ * and AUTH.  If the server supports PIPELINING (RFC 2920), the envelope of a message (RSET,
+ * MAIL FROM and all the RCPT TO) is sent in one go, and its responses read afterwards; if it
+ * supports CHUNKING (RFC 3030), the message is sent with BDAT rather than DATA, which saves
+ * the round trip of the DATA command.
  */
 public class SmtpSender extends Sender {
+    /** The size of the chunks of a message sent with BDAT */
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
 
     private final Context mContext;
     private Transport mTransport;
     private String mUsername;
     private String mPassword;
 
+    /** Whether the server advertised PIPELINING in its EHLO response */
+    private boolean mPipelining;
+    /** Whether the server advertised CHUNKING in its EHLO response */
+    private boolean mChunking;
+    /** Whether a transaction was started in the current session, so a RSET is needed */
+    private boolean mSessionUsed;
+
     /**
      * Static named constructor.
      */
@@ -163,6 +181,9 @@ public class SmtpSender extends Sender {
             boolean authLoginSupported = result.matches(".*AUTH.*LOGIN.*$");
             boolean authPlainSupported = result.matches(".*AUTH.*PLAIN.*$");
             boolean cramMD5Supported = result.matches(".*AUTH.*CRAM-MD5.*$");
+            mPipelining = result.matches(".*PIPELINING.*$");
+            mChunking = result.matches(".*CHUNKING.*$");
+            mSessionUsed = false;
 
             if (mUsername != null && mUsername.length() > 0 && mPassword != null
                     && mPassword.length() > 0) {
@@ -195,10 +216,15 @@ public class SmtpSender extends Sender {
         }
     }
 
+    /**
+     * Sends a message, in the current session if there is one (see {@link #close()}).
+     */
     @Override
     public void sendMessage(long messageId) throws MessagingException {
-        close();
-        open();
+        final boolean reusingSession = mTransport.isOpen();
+        if (!reusingSession) {
+            open();
+        }
 
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
@@ -206,40 +232,224 @@ public class SmtpSender extends Sender {
                     + Long.toString(messageId));
         }
         Address from = Address.unpackFirst(message.mFrom);
-        Address[] to = Address.unpack(message.mTo);
-        Address[] cc = Address.unpack(message.mCc);
-        Address[] bcc = Address.unpack(message.mBcc);
+        ArrayList<String> envelope = new ArrayList<String>();
+        envelope.add("MAIL FROM:" + "<" + from.getAddress() + ">");
+        for (Address address : Address.unpack(message.mTo)) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
+        for (Address address : Address.unpack(message.mCc)) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
+        for (Address address : Address.unpack(message.mBcc)) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress() + ">");
+        }
 
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
-            for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+            try {
+                sendEnvelope(envelope);
+            } catch (IOException ioe) {
+                if (!reusingSession) {
+                    throw ioe;
+                }
+                // The server may have dropped the idle session; start a new one
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "SMTP session lost, reconnecting: " + ioe);
+                }
+                close();
+                open();
+                sendEnvelope(envelope);
             }
-            for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+            if (mChunking) {
+                sendBodyChunked(messageId);
+            } else {
+                sendBodyData(messageId);
             }
-            for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress() + ">");
+        } catch (IOException ioe) {
+            close();
+            throw new MessagingException("Unable to send message", ioe);
+        }
+    }
+
+    /**
+     * Starts a transaction: resets the previous one, if any, and sends the envelope commands,
+     * as a single pipelined group if the server supports it.  The responses are all read before
+     * the first error is thrown, so that the session stays usable.
+     */
+    private void sendEnvelope(ArrayList<String> envelope) throws IOException, MessagingException {
+        ArrayList<String> commands = new ArrayList<String>(envelope.size() + 1);
+        if (mSessionUsed) {
+            commands.add("RSET");
+        }
+        commands.addAll(envelope);
+        mSessionUsed = true;
+        if (!mPipelining) {
+            for (String command : commands) {
+                executeSimpleCommand(command);
             }
-            executeSimpleCommand("DATA");
+            return;
+        }
+        for (String command : commands) {
+            mTransport.writeLine(command, null);
+        }
+        MessagingException error = null;
+        for (int i = 0, count = commands.size(); i < count; i++) {
+            try {
+                executeSimpleCommand(null);
+            } catch (MessagingException me) {
+                if (error == null) {
+                    error = me;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Sends the message with DATA, ended by a line with a single dot.  If writing the message
+     * fails, the session is closed, since the server can't tell where the message ends.
+     */
+    private void sendBodyData(long messageId) throws IOException, MessagingException {
+        executeSimpleCommand("DATA");
+        try {
             // TODO byte stuffing
             Rfc822Output.writeTo(mContext, messageId,
                     new EOLConvertingOutputStream(mTransport.getOutputStream()),
                     false /* do not use smart reply */,
                     false /* do not send BCC */);
-            executeSimpleCommand("\r\n.");
-        } catch (IOException ioe) {
-            throw new MessagingException("Unable to send message", ioe);
+        } catch (MessagingException me) {
+            close();
+            throw me;
+        }
+        executeSimpleCommand("\r\n.");
+    }
+
+    /**
+     * Sends the message with BDAT chunks.  No dot stuffing is needed, and if the server supports
+     * PIPELINING, the responses to the chunks are read after the last one was sent.
+     */
+    private void sendBodyChunked(long messageId) throws IOException, MessagingException {
+        final BdatOutputStream out = new BdatOutputStream();
+        try {
+            Rfc822Output.writeTo(mContext, messageId, new EOLConvertingOutputStream(out),
+                    false /* do not use smart reply */,
+                    false /* do not send BCC */);
+        } catch (MessagingException me) {
+            // The chunks sent so far are part of the transaction, which a RSET will abort
+            try {
+                out.readResponses();
+            } catch (MessagingException chunkError) {
+                // Ignore, we report the original error
+            }
+            throw me;
+        }
+        out.finish();
+    }
+
+    /**
+     * Sends what is written to it in BDAT chunks of {@link #BDAT_CHUNK_SIZE} bytes, and the rest
+     * in a last chunk when {@link #finish()} is called.  The message is ended with a CRLF if it
+     * doesn't end with one already.
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] mBuffer = new byte[BDAT_CHUNK_SIZE];
+        private int mCount;
+        private int mUnreadResponses;
+        /** The first error response to a chunk, if the responses aren't pipelined */
+        private MessagingException mChunkError;
+        private int mLast = -1;
+        private int mBeforeLast = -1;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                sendChunk(false);
+            }
+            mBuffer[mCount++] = (byte) oneByte;
+            mBeforeLast = mLast;
+            mLast = oneByte & 0xff;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBuffer.length) {
+                    sendChunk(false);
+                }
+                final int n = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                if (n >= 2) {
+                    mBeforeLast = mBuffer[mCount - 2] & 0xff;
+                    mLast = mBuffer[mCount - 1] & 0xff;
+                } else {
+                    mBeforeLast = mLast;
+                    mLast = mBuffer[mCount - 1] & 0xff;
+                }
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            mTransport.writeLine("BDAT " + mCount + (last ? " LAST" : ""), null);
+            final OutputStream out = mTransport.getOutputStream();
+            out.write(mBuffer, 0, mCount);
+            out.flush();
+            mCount = 0;
+            mUnreadResponses++;
+            if (!mPipelining) {
+                try {
+                    readResponses();
+                } catch (MessagingException me) {
+                    // Reported, with the other responses, by finish()
+                    mChunkError = me;
+                }
+            }
+        }
+
+        /**
+         * Reads the responses to the chunks sent so far.
+         */
+        void readResponses() throws IOException, MessagingException {
+            MessagingException error = mChunkError;
+            mChunkError = null;
+            for (; mUnreadResponses > 0; mUnreadResponses--) {
+                try {
+                    executeSimpleCommand(null);
+                } catch (MessagingException me) {
+                    if (error == null) {
+                        error = me;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /**
+         * Sends the last chunk, and reads the responses to all the chunks.
+         */
+        void finish() throws IOException, MessagingException {
+            if (mBeforeLast != '\r' || mLast != '\n') {
+                write('\r');
+                write('\n');
+            }
+            sendChunk(true);
+            readResponses();
         }
     }
 
     /**
-     * Close the protocol (and the transport below it). MUST NOT return any
-     * exceptions.
+     * Close the protocol (and the transport below it), ending the session kept across
+     * {@link #sendMessage} calls. MUST NOT return any exceptions.
      */
     @Override
     public void close() {
         mTransport.close();
+        mSessionUsed = false;
     }
 
     /**
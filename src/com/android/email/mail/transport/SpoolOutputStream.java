@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.TempDirectory;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that keeps what is written to it, so that it can be sent once its length is
+ * known: in memory up to a threshold, and in a temp file beyond it.
+ *
+ * {@link #destroy()} must be called when the spool isn't needed anymore, to delete the temp file.
+ */
+public class SpoolOutputStream extends OutputStream {
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final int mMemoryThreshold;
+    private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+    private File mFile;
+    private OutputStream mFileOut;
+    private long mLength;
+    private boolean mClosed;
+
+    /**
+     * @param memoryThreshold the number of bytes kept in memory; a spool that grows beyond it is
+     * moved to a temp file
+     */
+    public SpoolOutputStream(int memoryThreshold) {
+        mMemoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * The number of bytes written so far.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Whether the spool has been moved to a temp file.
+     */
+    public boolean isInFile() {
+        return mFile != null;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        getOutputStream(1).write(oneByte);
+        mLength++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getOutputStream(len).write(b, off, len);
+        mLength += len;
+    }
+
+    /**
+     * Returns the stream to write the next {@code len} bytes to, moving the spool to a temp file
+     * if they don't fit under the threshold.
+     */
+    private OutputStream getOutputStream(int len) throws IOException {
+        if (mFileOut != null) {
+            return mFileOut;
+        }
+        if (mLength + len <= mMemoryThreshold) {
+            return mMemory;
+        }
+        mFile = File.createTempFile("spool", ".tmp", TempDirectory.getTempDirectory());
+        mFileOut = new BufferedOutputStream(new FileOutputStream(mFile), COPY_BUFFER_SIZE);
+        mMemory.writeTo(mFileOut);
+        mMemory = null;
+        return mFileOut;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mClosed && mFileOut != null) {
+            mFileOut.close();
+        }
+        mClosed = true;
+    }
+
+    /**
+     * Closes the spool, and writes its content to {@code out}.  Can be called more than once.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        close();
+        if (mFile == null) {
+            mMemory.writeTo(out);
+            return;
+        }
+        final InputStream in = new FileInputStream(mFile);
+        try {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Releases the spool, and deletes its temp file if it has one.
+     */
+    public void destroy() {
+        mMemory = null;
+        if (mFile != null) {
+            try {
+                close();
+            } catch (IOException e) {
+                // Nothing to do; the file is deleted anyway
+            }
+            if (!mFile.delete()) {
+                Log.w(Logging.LOG_TAG, "Failed to remove spool file " + mFile);
+            }
+        }
+    }
+}
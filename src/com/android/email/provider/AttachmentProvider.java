@@ -21,10 +21,14 @@ import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.utility.AttachmentStore;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.AttachmentUtilities.Columns;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -38,11 +42,14 @@ import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 /*
@@ -57,11 +64,16 @@ import java.util.List;
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
- * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
+ * or, when they are kept in the {@link AttachmentStore}, at:
+ *                             <database-path>/attachment_store/sha1-of-the-content
+ * Thumbnails are stored at:   <cache-path>/thumbnails/account#_item#_width#xheight#
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
  *      /data/data/com.android.email/databases/10.db_att/20
- *      /data/data/com.android.email/cache/thmb_10_20
+ *      /data/data/com.android.email/cache/thumbnails/10_20_62x62
+ *
+ * The thumbnails are a cache bounded in size (see {@link ThumbnailCache}), and are deleted with
+ * their attachments.
  */
 public class AttachmentProvider extends ContentProvider {
 
@@ -73,6 +85,13 @@ public class AttachmentProvider extends ContentProvider {
     private static final String[] PROJECTION_QUERY = new String[] { AttachmentColumns.FILENAME,
             AttachmentColumns.SIZE, AttachmentColumns.CONTENT_URI };
 
+    /** The maximum total size of the thumbnails kept in memory */
+    private static final int THUMBNAIL_MEMORY_CACHE_SIZE = 256 * 1024;
+    /** The maximum total size of the thumbnails kept in the cache dir */
+    private static final int THUMBNAIL_DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private ThumbnailCache mThumbnailCache;
+
     @Override
     public boolean onCreate() {
         /*
@@ -82,10 +101,13 @@ public class AttachmentProvider extends ContentProvider {
         File[] files = getContext().getCacheDir().listFiles();
         for (File file : files) {
             String filename = file.getName();
+            // Thumbnails used to be kept in the cache dir itself, without bounds
             if (filename.endsWith(".tmp") || filename.startsWith("thmb_")) {
                 file.delete();
             }
         }
+        mThumbnailCache = new ThumbnailCache(AttachmentUtilities.getThumbnailDirectory(
+                getContext()), THUMBNAIL_MEMORY_CACHE_SIZE, THUMBNAIL_DISK_CACHE_SIZE);
         return true;
     }
 
@@ -129,7 +151,7 @@ public class AttachmentProvider extends ContentProvider {
      * Open an attachment file.  There are two "formats" - "raw", which returns an actual file,
      * and "thumbnail", which attempts to generate a thumbnail image.
      *
-     * Thumbnails are cached for easy space recovery and cleanup.
+     * Thumbnails are cached, in memory and in the cache dir, and served through a pipe.
      *
      * TODO:  The thumbnail format returns null for its failure cases, instead of throwing
      * FileNotFoundException, and should be fixed for consistency.
@@ -166,56 +188,41 @@ public class AttachmentProvider extends ContentProvider {
             String id = segments.get(1);
             String format = segments.get(2);
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
-                int width = Integer.parseInt(segments.get(3));
-                int height = Integer.parseInt(segments.get(4));
-                String filename = "thmb_" + accountId + "_" + id;
-                File dir = getContext().getCacheDir();
-                File file = new File(dir, filename);
-                if (!file.exists()) {
-                    Uri attachmentUri = AttachmentUtilities.
-                        getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
-                    Cursor c = query(attachmentUri,
-                            new String[] { Columns.DATA }, null, null, null);
-                    if (c != null) {
-                        try {
-                            if (c.moveToFirst()) {
-                                attachmentUri = Uri.parse(c.getString(0));
-                            } else {
-                                return null;
-                            }
-                        } finally {
-                            c.close();
-                        }
-                    }
-                    String type = getContext().getContentResolver().getType(attachmentUri);
-                    try {
-                        InputStream in =
-                            getContext().getContentResolver().openInputStream(attachmentUri);
-                        Bitmap thumbnail = createThumbnail(type, in);
-                        if (thumbnail == null) {
-                            return null;
-                        }
-                        thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                        FileOutputStream out = new FileOutputStream(file);
-                        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                        out.close();
-                        in.close();
-                    } catch (IOException ioe) {
-                        Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                ioe.getMessage());
-                        return null;
-                    } catch (OutOfMemoryError oome) {
-                        Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                oome.getMessage());
-                        return null;
+                final int width = Integer.parseInt(segments.get(3));
+                final int height = Integer.parseInt(segments.get(4));
+                final long account = Long.parseLong(accountId);
+                final long attachmentId = Long.parseLong(id);
+                String key = ThumbnailCache.getKey(
+                        AttachmentUtilities.getThumbnailPrefix(account, attachmentId),
+                        width, height);
+                byte[] thumbnail = mThumbnailCache.get(key, new ThumbnailCache.Creator() {
+                    @Override
+                    public byte[] create() {
+                        return createThumbnail(account, attachmentId, width, height);
                     }
+                });
+                if (thumbnail == null) {
+                    return null;
+                }
+                try {
+                    return openPipe(thumbnail);
+                } catch (IOException ioe) {
+                    Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
+                            ioe.getMessage());
+                    return null;
                 }
-                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
             else {
-                return ParcelFileDescriptor.open(
-                        new File(getContext().getDatabasePath(accountId + ".db_att"), id),
-                        ParcelFileDescriptor.MODE_READ_ONLY);
+                File file = new File(getContext().getDatabasePath(accountId + ".db_att"), id);
+                if (!file.exists()) {
+                    // The content may be kept in the store, shared with other attachments
+                    File storeFile = AttachmentStore.getAttachmentFile(getContext(),
+                            Long.parseLong(id));
+                    if (storeFile != null) {
+                        file = storeFile;
+                    }
+                }
+                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
         } finally {
             Binder.restoreCallingIdentity(callingId);
@@ -304,26 +311,109 @@ public class AttachmentProvider extends ContentProvider {
         return 0;
     }
 
-    private Bitmap createThumbnail(String type, InputStream data) {
-        if(MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
+    /**
+     * Returns the PNG thumbnail of an attachment, or null if the attachment isn't an image, or
+     * can't be read.  The image is decoded at the coarsest sampling that is still at least as
+     * large as the thumbnail, rather than at full size.
+     */
+    private byte[] createThumbnail(long accountId, long id, int width, int height) {
+        Uri attachmentUri = AttachmentUtilities.getAttachmentUri(accountId, id);
+        Cursor c = query(attachmentUri, new String[] { Columns.DATA }, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    attachmentUri = Uri.parse(c.getString(0));
+                } else {
+                    return null;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        ContentResolver resolver = getContext().getContentResolver();
+        if (!MimeUtility.mimeTypeMatches(resolver.getType(attachmentUri), "image/*")) {
+            return null;
         }
-        return null;
-    }
-
-    private Bitmap createImageThumbnail(InputStream data) {
         try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
+            // Read the size of the image first
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(resolver, attachmentUri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize =
+                computeSampleSize(options.outWidth, options.outHeight, width, height);
+            Bitmap bitmap = decodeStream(resolver, attachmentUri, options);
+            if (bitmap == null) {
+                return null;
+            }
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (thumbnail != bitmap) {
+                bitmap.recycle();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            thumbnail.recycle();
+            return out.toByteArray();
+        } catch (IOException ioe) {
+            Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " + ioe.getMessage());
+            return null;
         } catch (OutOfMemoryError oome) {
-            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
+            Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " + oome.getMessage());
             return null;
-        } catch (Exception e) {
-            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " + e.getMessage());
             return null;
         }
     }
 
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri,
+            BitmapFactory.Options options) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the largest power of two by which an image can be subsampled while staying at
+     * least as large as the thumbnail in both dimensions.
+     */
+    @VisibleForTesting
+    static int computeSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width
+                && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns the read end of a pipe through which a thumbnail is written, in the background.
+     */
+    private static ParcelFileDescriptor openPipe(final byte[] data) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.write(data);
+                } catch (IOException ioe) {
+                    // The reader went away
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
     /**
      * Need this to suppress warning in unit tests.
      */
@@ -17,11 +17,12 @@
 package com.android.email.provider;
 
 import android.content.ContentValues;
+import android.database.AbstractCursor;
 import android.database.CrossProcessCursor;
 import android.database.Cursor;
 import android.database.CursorWindow;
 import android.database.CursorWrapper;
-import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
 import android.util.LruCache;
@@ -34,6 +35,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -53,7 +55,9 @@ import java.util.Set;
  * 1. Get a CacheToken: CacheToken token = cache.getToken(id);
  * 2. Get a cursor from the database: Cursor cursor = db.query(....);
  * 3. Put the cursor in the cache: cache.putCursor(cursor, id, token);
- * Only cursors with the projection given in the definition of the cache can be cached
+ * Only cursors with the projection given in the definition of the cache can be cached; the row
+ * is kept as typed column arrays, from which queries with any projection whose columns are in
+ * that of the cache are served (cache.putRow() caches a row read for such a query)
  *
  * To delete one or more rows or update multiple rows from a table that uses cached data:
  * 1. Lock the row in the cache: cache.lock(id);
@@ -68,10 +72,12 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: Rows are spread over a number of stripes, by id, and the methods that
+ * work on a single row (tokens, locks, puts and gets) synchronize on the row's stripe, so that
+ * threads working on unrelated rows don't wait for each other.  invalidate() goes through all of
+ * the stripes.  The LRU itself is thread-safe, and the reference counts of active cursors are
+ * striped as well; the decision to close an underlying cursor is made under the lock of its
+ * reference count (see CachedCursor.close()), which is never held while taking a stripe's lock.
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -87,24 +93,31 @@ public final class ContentCache {
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
+    /** Default number of stripes of a cache */
+    private static final int DEFAULT_STRIPE_COUNT = 16;
+
+    private final LruCache<String, CachedRow> mLruCache;
 
     // All defined caches
     private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
     // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
     // tend to be closed quickly after use.  The value, for each cursor, is its reference count
-    /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
+    /*package*/ static final StripedCounterMap<Cursor> sActiveCursors =
+            new StripedCounterMap<Cursor>(DEFAULT_STRIPE_COUNT);
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // The stripes over which the rows are spread; each has the locked ids and active tokens of
+    // its rows, and is the lock for them
+    private final Stripe[] mStripes;
 
     // The name of the cache (used for logging)
     private final String mName;
     // The base projection (only queries in which all columns exist in this projection will be
     // able to avoid a cache miss)
     private final String[] mBaseProjection;
+    // The index of each column of the base projection
+    private final HashMap<String, Integer> mColumnIndexes = new HashMap<String, Integer>();
+    // The column map of the base projection onto itself
+    private final int[] mBaseColumnMap;
     // The tag used for logging
     private final String mLogTag;
     // Cache statistics
@@ -234,6 +247,81 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * A reference counter spread over a number of CounterMaps, so that unrelated objects don't
+     * share a lock.  The lock of an object's CounterMap is given by {@link #lockFor}.
+     */
+    /*package*/ static class StripedCounterMap<T> {
+        private final ArrayList<CounterMap<T>> mMaps;
+
+        /*package*/ StripedCounterMap(int stripeCount) {
+            mMaps = new ArrayList<CounterMap<T>>(stripeCount);
+            for (int i = 0; i < stripeCount; i++) {
+                mMaps.add(new CounterMap<T>(4));
+            }
+        }
+
+        /*package*/ Object lockFor(T object) {
+            return mapFor(object);
+        }
+
+        private CounterMap<T> mapFor(T object) {
+            return mMaps.get(stripeIndex(object.hashCode(), mMaps.size()));
+        }
+
+        /*package*/ int subtract(T object) {
+            return mapFor(object).subtract(object);
+        }
+
+        /*package*/ void add(T object) {
+            mapFor(object).add(object);
+        }
+
+        /*package*/ boolean contains(T object) {
+            return mapFor(object).contains(object);
+        }
+
+        /*package*/ int getCount(T object) {
+            return mapFor(object).getCount(object);
+        }
+
+        int size() {
+            int size = 0;
+            for (CounterMap<T> map : mMaps) {
+                size += map.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The locked ids and active tokens of the rows whose ids fall in one stripe of a cache.  All
+     * access to a stripe is synchronized on the stripe.
+     */
+    private static class Stripe {
+        // A set of locked content id's
+        final CounterMap<String> mLockMap = new CounterMap<String>(4);
+        // A set of active tokens
+        final TokenList mTokenList;
+
+        Stripe(String name) {
+            mTokenList = new TokenList(name);
+        }
+    }
+
+    /**
+     * Returns the stripe for a hash code, among {@code stripeCount} stripes.
+     */
+    private static int stripeIndex(int hashCode, int stripeCount) {
+        // Spread the bits, as ids that differ in their high bits only are common
+        hashCode ^= (hashCode >>> 16);
+        return (hashCode & 0x7fffffff) % stripeCount;
+    }
+
+    private Stripe stripeFor(String id) {
+        return mStripes[stripeIndex(id.hashCode(), mStripes.length)];
+    }
+
     /**
      * A CacheToken is an opaque object that must be passed into putCursor in order to attempt to
      * write into the cache.  The token becomes invalidated by any intervening write to the cached
@@ -294,8 +382,10 @@ public final class ContentCache {
             mCursor = cursor;
             mCache = cache;
             mId = id;
-            // Add this to our set of active cursors
-            sActiveCursors.add(cursor);
+            // Add this to our set of active cursors; see closeIfInactive
+            synchronized (sActiveCursors.lockFor(cursor)) {
+                sActiveCursors.add(cursor);
+            }
         }
 
         /**
@@ -305,9 +395,10 @@ public final class ContentCache {
          */
         @Override
         public void close() {
-            synchronized(mCache) {
+            synchronized(sActiveCursors.lockFor(mCursor)) {
                 int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
+                if ((count == 0) && !mCache.isCachedCursor(mId, mCursor)
+                        && !mCursor.isClosed()) {
                     super.close();
                 }
             }
@@ -400,6 +491,250 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * A cached row, in the columns of the base projection.  The values are held in typed arrays
+     * (integers, and the bits of floats, in a long[]; strings in a String[]), so that a cursor
+     * with any projection can be served from them without copying.  A CachedRow is immutable.
+     */
+    /*package*/ static final class CachedRow {
+        // The type of each column (Cursor.FIELD_TYPE_*); null if the row doesn't exist
+        private final int[] mTypes;
+        // The values of the integer and float columns
+        private final long[] mLongs;
+        // The values of the string columns
+        private final String[] mStrings;
+        // The values of the blob columns; null if there are none
+        private final byte[][] mBlobs;
+        // The cursor the row was read from, which reads with the base projection share; null if
+        // the row was changed since
+        /*package*/ final Cursor mCursor;
+
+        private CachedRow(int[] types, long[] longs, String[] strings, byte[][] blobs,
+                Cursor cursor) {
+            mTypes = types;
+            mLongs = longs;
+            mStrings = strings;
+            mBlobs = blobs;
+            mCursor = cursor;
+        }
+
+        /**
+         * Reads the row at the current position of a cursor, which holds zero or one rows
+         */
+        /*package*/ static CachedRow fromCursor(Cursor c, boolean keepCursor) {
+            final Cursor cursor = keepCursor ? c : null;
+            if (c.getCount() == 0) {
+                return new CachedRow(null, null, null, null, cursor);
+            }
+            final int count = c.getColumnCount();
+            final int[] types = new int[count];
+            final long[] longs = new long[count];
+            final String[] strings = new String[count];
+            byte[][] blobs = null;
+            for (int i = 0; i < count; i++) {
+                final int type = c.getType(i);
+                types[i] = type;
+                switch (type) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        longs[i] = c.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        longs[i] = Double.doubleToRawLongBits(c.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        strings[i] = c.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        if (blobs == null) {
+                            blobs = new byte[count][];
+                        }
+                        blobs[i] = c.getBlob(i);
+                        break;
+                }
+            }
+            return new CachedRow(types, longs, strings, blobs, cursor);
+        }
+
+        /**
+         * Returns a copy of this row with the given values, or null if a value is not in one of
+         * the row's columns
+         */
+        /*package*/ CachedRow withValues(ContentValues values,
+                HashMap<String, Integer> columnIndexes) {
+            if (mTypes == null) {
+                return new CachedRow(null, null, null, null, null);
+            }
+            final int[] types = mTypes.clone();
+            final long[] longs = mLongs.clone();
+            final String[] strings = mStrings.clone();
+            byte[][] blobs = (mBlobs == null) ? null : mBlobs.clone();
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                final Integer index = columnIndexes.get(entry.getKey());
+                if (index == null) {
+                    return null;
+                }
+                final int i = index;
+                final Object value = entry.getValue();
+                strings[i] = null;
+                if (blobs != null) {
+                    blobs[i] = null;
+                }
+                if (value == null) {
+                    types[i] = Cursor.FIELD_TYPE_NULL;
+                } else if (value instanceof Boolean) {
+                    types[i] = Cursor.FIELD_TYPE_INTEGER;
+                    longs[i] = ((Boolean) value) ? 1 : 0;
+                } else if (value instanceof Float || value instanceof Double) {
+                    types[i] = Cursor.FIELD_TYPE_FLOAT;
+                    longs[i] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+                } else if (value instanceof Number) {
+                    types[i] = Cursor.FIELD_TYPE_INTEGER;
+                    longs[i] = ((Number) value).longValue();
+                } else if (value instanceof byte[]) {
+                    types[i] = Cursor.FIELD_TYPE_BLOB;
+                    if (blobs == null) {
+                        blobs = new byte[types.length][];
+                    }
+                    blobs[i] = (byte[]) value;
+                } else {
+                    types[i] = Cursor.FIELD_TYPE_STRING;
+                    strings[i] = value.toString();
+                }
+            }
+            return new CachedRow(types, longs, strings, blobs, null);
+        }
+    }
+
+    /**
+     * A read-only cursor over a CachedRow, with any projection whose columns are in the row.
+     * Nothing is copied; the columns of the projection are mapped onto those of the row.
+     */
+    /*package*/ static final class RowCursor extends AbstractCursor {
+        private final CachedRow mRow;
+        private final String[] mColumnNames;
+        // The index, in the row, of each column of the projection
+        private final int[] mColumnMap;
+
+        /*package*/ RowCursor(CachedRow row, String[] projection, int[] columnMap) {
+            mRow = row;
+            mColumnNames = projection;
+            mColumnMap = columnMap;
+        }
+
+        @Override
+        public int getCount() {
+            return (mRow.mTypes == null) ? 0 : 1;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        private int rowColumn(int column) {
+            checkPosition();
+            return mColumnMap[column];
+        }
+
+        @Override
+        public int getType(int column) {
+            return mRow.mTypes[rowColumn(column)];
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
+        }
+
+        @Override
+        public String getString(int column) {
+            final int i = rowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return Long.toString(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return Double.toString(Double.longBitsToDouble(mRow.mLongs[i]));
+                case Cursor.FIELD_TYPE_BLOB:
+                    throw new SQLiteException("Unable to convert BLOB to string");
+                default:
+                    return mRow.mStrings[i];
+            }
+        }
+
+        @Override
+        public long getLong(int column) {
+            final int i = rowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mRow.mLongs[i];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return (long) Double.longBitsToDouble(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_STRING:
+                    return (long) parseDouble(mRow.mStrings[i]);
+                case Cursor.FIELD_TYPE_BLOB:
+                    throw new SQLiteException("Unable to convert BLOB to long");
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public double getDouble(int column) {
+            final int i = rowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mRow.mLongs[i];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return Double.longBitsToDouble(mRow.mLongs[i]);
+                case Cursor.FIELD_TYPE_STRING:
+                    return parseDouble(mRow.mStrings[i]);
+                case Cursor.FIELD_TYPE_BLOB:
+                    throw new SQLiteException("Unable to convert BLOB to double");
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Converts a string value as SQLite does: the number it starts with, or 0
+         */
+        private static double parseDouble(String value) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            final int i = rowColumn(column);
+            switch (mRow.mTypes[i]) {
+                case Cursor.FIELD_TYPE_BLOB:
+                    return mRow.mBlobs[i];
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                default:
+                    return getString(column).getBytes();
+            }
+        }
+    }
+
     /**
      * Public constructor
      * @param name the name of the cache (used for logging)
@@ -408,24 +743,54 @@ public final class ContentCache {
      * @param maxSize the maximum number of content cursors to cache
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
+        this(name, baseProjection, maxSize, DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * Constructor that takes the number of stripes; a single stripe makes all of the rows share
+     * one lock
+     */
+    /*package*/ ContentCache(String name, String[] baseProjection, int maxSize,
+            int stripeCount) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
+        mLruCache = new LruCache<String, CachedRow>(maxSize) {
             @Override
             protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
+                    boolean evicted, String key, CachedRow oldValue, CachedRow newValue) {
+                // Close this row's cursor if it's no longer being used
+                if (evicted && oldValue.mCursor != null) {
+                    closeIfInactive(oldValue.mCursor);
                 }
             }
         };
         mBaseProjection = baseProjection;
+        mBaseColumnMap = new int[baseProjection.length];
+        for (int i = 0; i < baseProjection.length; i++) {
+            mColumnIndexes.put(baseProjection[i], i);
+            mBaseColumnMap[i] = i;
+        }
         mLogTag = "ContentCache-" + name;
-        sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
+        synchronized (sContentCaches) {
+            sContentCaches.add(this);
+        }
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe(mName);
+        }
         mStats = new Statistics(this);
     }
 
+    /**
+     * Closes a cursor that is no longer cached, unless a CachedCursor still uses it
+     */
+    private static void closeIfInactive(Cursor c) {
+        synchronized (sActiveCursors.lockFor(c)) {
+            if (!sActiveCursors.contains(c) && !c.isClosed()) {
+                c.close();
+            }
+        }
+    }
+
     /**
      * Return the base projection for cached rows
      * Get the projection used for cached rows (typically, the largest possible projection)
@@ -441,13 +806,16 @@ public final class ContentCache {
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = stripe.mTokenList.add(id);
+            if (stripe.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
         }
-        return token;
     }
 
     public int size() {
@@ -455,12 +823,58 @@ public final class ContentCache {
     }
 
     @VisibleForTesting
-    Cursor get(String id) {
+    CachedRow get(String id) {
         return mLruCache.get(id);
     }
 
+    /**
+     * Returns whether {@code c} is the cursor of the cached row for the given id
+     */
+    private boolean isCachedCursor(String id, Cursor c) {
+        CachedRow row = mLruCache.get(id);
+        return (row != null) && (row.mCursor == c);
+    }
+
+    /**
+     * Returns a cursor, with the base projection, for each cached row
+     */
     protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
+        Map<String, CachedRow> rows = mLruCache.snapshot();
+        Map<String, Cursor> snapshot = new HashMap<String, Cursor>(rows.size());
+        for (Map.Entry<String, CachedRow> entry : rows.entrySet()) {
+            snapshot.put(entry.getKey(),
+                    new RowCursor(entry.getValue(), mBaseProjection, mBaseColumnMap));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns whether the rows of this cache hold all of the columns of a projection
+     */
+    public boolean hasColumns(String[] projection) {
+        return getColumnMap(projection) != null;
+    }
+
+    /**
+     * Returns the index, in the base projection, of each column of a projection, or null if one
+     * of its columns isn't there
+     */
+    private int[] getColumnMap(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        if (projection == mBaseProjection) {
+            return mBaseColumnMap;
+        }
+        int[] columnMap = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            Integer index = mColumnIndexes.get(projection[i]);
+            if (index == null) {
+                return null;
+            }
+            columnMap[i] = index;
+        }
+        return columnMap;
     }
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
@@ -478,31 +892,63 @@ public final class ContentCache {
         c.moveToPosition(0);
         return putCursorImpl(c, id, projection, token);
     }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
+
+    /**
+     * Like putCursor, for a cursor with the base projection, read for a query with another
+     * projection, whose columns must all be in the base projection; returns a cursor with that
+     * projection, whether or not the row was cached
+     */
+    public Cursor putRow(Cursor c, String id, String[] projection, CacheToken token) {
+        Cursor cachedCursor = putCursor(c, id, mBaseProjection, token);
+        if (Arrays.equals(projection, mBaseProjection)) {
+            return cachedCursor;
+        }
+        Cursor cursor = new RowCursor(CachedRow.fromCursor(c, false), projection,
+                getColumnMap(projection));
+        cachedCursor.close();
+        return cursor;
+    }
+    public Cursor putCursorImpl(Cursor c, String id, String[] projection,
+            CacheToken token) {
+        // Read the row before taking the stripe's lock
+        CachedRow row = null;
+        if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
+            row = CachedRow.fromCursor(c, true);
+        }
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            return putCursorLocked(stripe, c, row, id, token);
+        }
+    }
+
+    private Cursor putCursorLocked(Stripe stripe, Cursor c, CachedRow row, String id,
             CacheToken token) {
         try {
             if (!token.isValid()) {
                 if (Email.DEBUG && DEBUG_CACHE) {
                     Log.d(mLogTag, "============ Stale token for " + id);
                 }
-                mStats.mStaleCount++;
+                mStats.mStaleCount.incrementAndGet();
                 return c;
             }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
+            if (row != null) {
                 if (Email.DEBUG && DEBUG_CACHE) {
                     Log.d(mLogTag, "============ Caching cursor for: " + id);
                 }
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
+                // If we've already cached this row, invalidate the older one
+                CachedRow existingRow = get(id);
+                if (existingRow != null) {
+                   unlockLocked(stripe, id, null, false);
                 }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
+                // The cursor is active before the row is shared: once it's in the cache, a put
+                // on another stripe can evict the row, and would otherwise close the cursor
+                CachedCursor cachedCursor = new CachedCursor(c, this, id);
+                mLruCache.put(id, row);
+                return cachedCursor;
             }
             return c;
         } finally {
-            mTokenList.remove(token);
+            stripe.mTokenList.remove(token);
         }
     }
 
@@ -512,91 +958,55 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
+    public Cursor getCachedCursor(String id, String[] projection) {
         if (Email.DEBUG && DEBUG_STATISTICS) {
             // Every 200 calls to getCursor, report cache statistics
             dumpOnCount(200);
         }
-        if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
-        }
-    }
-
-    private CachedCursor getCachedCursorImpl(String id) {
-        Cursor c = get(id);
-        if (c != null) {
-            mStats.mHitCount++;
-            return new CachedCursor(c, this, id);
-        }
-        mStats.mMissCount++;
-        return null;
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
-            ContentValues values) {
-        Cursor c = get(id);
-        if (c != null) {
-            // Make a new MatrixCursor with the requested columns
-            MatrixCursor mc = new MatrixCursor(projection, 1);
-            if (c.getCount() == 0) {
-                return mc;
-            }
-            Object[] row = new Object[projection.length];
-            if (values != null) {
-                // Make a copy; we don't want to change the original
-                values = new ContentValues(values);
-            }
-            int i = 0;
-            for (String column: projection) {
-                int columnIndex = c.getColumnIndex(column);
-                if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
-                    return null;
-                } else {
-                    String value;
-                    if (values != null && values.containsKey(column)) {
-                        Object val = values.get(column);
-                        if (val instanceof Boolean) {
-                            value = (val == Boolean.TRUE) ? "1" : "0";
-                        } else {
-                            value = values.getAsString(column);
-                        }
-                        values.remove(column);
-                    } else {
-                        value = c.getString(columnIndex);
+        // The row's stripe keeps the cached cursor from being replaced (and closed) while
+        // we're wrapping it
+        synchronized (stripeFor(id)) {
+            CachedRow row = get(id);
+            if (row == null) {
+                mStats.mMissCount.incrementAndGet();
+                return null;
+            }
+            if (projection == mBaseProjection && row.mCursor != null) {
+                // A put on another stripe may have evicted the row, and closed its cursor, since
+                // we got it; the cursor's lock orders its activation with closeIfInactive
+                synchronized (sActiveCursors.lockFor(row.mCursor)) {
+                    if (!row.mCursor.isClosed()) {
+                        mStats.mHitCount.incrementAndGet();
+                        return new CachedCursor(row.mCursor, this, id);
                     }
-                    row[i++] = value;
                 }
             }
-            if (values != null && values.size() != 0) {
+            int[] columnMap = getColumnMap(projection);
+            if (columnMap == null) {
+                mStats.mProjectionMissCount.incrementAndGet();
                 return null;
             }
-            mc.addRow(row);
-            mStats.mHitCount++;
-            return mc;
+            mStats.mHitCount.incrementAndGet();
+            mStats.mRowHitCount.incrementAndGet();
+            return new RowCursor(row, projection, columnMap);
         }
-        mStats.mMissCount++;
-        return null;
     }
 
     /**
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        if (Email.DEBUG && DEBUG_TOKENS) {
-            Log.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+    public void lock(String id) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            // Prevent new valid tokens from being created
+            stripe.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = stripe.mTokenList.invalidateTokens(id);
+            if (Email.DEBUG && DEBUG_TOKENS) {
+                Log.d(stripe.mTokenList.mLogTag, "============ Lock invalidated " + count +
+                        " tokens for: " + id);
+            }
         }
     }
 
@@ -604,8 +1014,8 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        unlock(id, null);
     }
 
     /**
@@ -615,8 +1025,11 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            unlockLocked(stripe, id, values, true);
+        }
     }
 
     /**
@@ -628,40 +1041,51 @@ public final class ContentCache {
      * @param values new ContentValues for the row (or null if row should simply be removed)
      * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
-        Cursor c = get(id);
-        if (c != null) {
+    private void unlockLocked(Stripe stripe, String id, ContentValues values,
+            boolean wasLocked) {
+        CachedRow row = get(id);
+        if (row != null) {
             if (Email.DEBUG && DEBUG_CACHE) {
                 Log.d(mLogTag, "=========== Unlocking cache for: " + id);
             }
+            CachedRow newRow = null;
             if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
-                if (cursor != null) {
-                    if (Email.DEBUG && DEBUG_CACHE) {
-                        Log.d(mLogTag, "=========== Recaching with new values: " + id);
+                newRow = row.withValues(values, mColumnIndexes);
+            }
+            final Cursor c = row.mCursor;
+            if (c == null) {
+                replaceRow(id, newRow);
+            } else {
+                // Replace (or remove) the old cached row, and close its cursor if there are no
+                // cursors using it; this is atomic with respect to CachedCursor.close()
+                synchronized (sActiveCursors.lockFor(c)) {
+                    replaceRow(id, newRow);
+                    if (!sActiveCursors.contains(c) && !c.isClosed()) {
+                        c.close();
                     }
-                    cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
-                } else {
-                    mLruCache.remove(id);
                 }
-            } else {
-                mLruCache.remove(id);
-            }
-            // If there are no cursors using the old cached cursor, close it
-            if (!sActiveCursors.contains(c)) {
-                c.close();
             }
         }
         if (wasLocked) {
-            mLockMap.subtract(id);
+            stripe.mLockMap.subtract(id);
+        }
+    }
+
+    private void replaceRow(String id, CachedRow newRow) {
+        if (newRow != null) {
+            if (Email.DEBUG && DEBUG_CACHE) {
+                Log.d(mLogTag, "=========== Recaching with new values: " + id);
+            }
+            mLruCache.put(id, newRow);
+        } else {
+            mLruCache.remove(id);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -673,23 +1097,40 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             Log.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
+        mStats.mInvalidateCount.incrementAndGet();
+        // Invalidate all current tokens first, so that no cursor read before the write can be
+        // put in the cache once it has been emptied
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.mTokenList.invalidate();
+            }
+        }
         // Close all cached cursors that are no longer in use
         mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+    }
+
+    /**
+     * Returns the number of active tokens
+     */
+    /*package*/ int getTokenCount() {
+        int count = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.mTokenList.size();
+            }
+        }
+        return count;
     }
 
     // Debugging code below
 
     private void dumpOnCount(int num) {
-        mStats.mOpCount++;
-        if ((mStats.mOpCount % num) == 0) {
+        if ((mStats.mOpCount.incrementAndGet() % num) == 0) {
             dumpStats();
         }
     }
@@ -745,8 +1186,10 @@ public final class ContentCache {
 
     // For use with unit tests
     public static void invalidateAllCaches() {
-        for (ContentCache cache: sContentCaches) {
-            cache.invalidate();
+        synchronized (sContentCaches) {
+            for (ContentCache cache: sContentCaches) {
+                cache.invalidate();
+            }
         }
     }
 
@@ -758,24 +1201,32 @@ public final class ContentCache {
         }
     }
 
+    @VisibleForTesting
+    Statistics getStatistics() {
+        return mStats;
+    }
+
     static class Statistics {
         private final ContentCache mCache;
         private final String mName;
 
-        // Cache statistics
+        // Cache statistics; these are updated without holding any lock
         // The item is in the cache AND is used to create a cursor
-        private int mHitCount = 0;
+        private final AtomicInteger mHitCount = new AtomicInteger();
+        // The hits served from the cached row with a projection other than the base projection
+        // (or after the row was changed); included in mHitCount
+        private final AtomicInteger mRowHitCount = new AtomicInteger();
         // Basic cache miss (the item is not cached)
-        private int mMissCount = 0;
+        private final AtomicInteger mMissCount = new AtomicInteger();
         // Incremented when a cachePut is invalid due to an intervening write
-        private int mStaleCount = 0;
+        private final AtomicInteger mStaleCount = new AtomicInteger();
         // A projection miss occurs when the item is cached, but not all requested columns are
         // available in the base projection
-        private int mProjectionMissCount = 0;
+        private final AtomicInteger mProjectionMissCount = new AtomicInteger();
         // Incremented whenever the entire cache is invalidated
-        private int mInvalidateCount = 0;
+        private final AtomicInteger mInvalidateCount = new AtomicInteger();
         // Count of operations put/get
-        private int mOpCount = 0;
+        private final AtomicInteger mOpCount = new AtomicInteger();
         // The following are for timing statistics
         private long hits = 0;
         private long hitTimes = 0;
@@ -798,19 +1249,35 @@ public final class ContentCache {
 
         private void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
+                mHitCount.addAndGet(cache.mStats.mHitCount.get());
+                mRowHitCount.addAndGet(cache.mStats.mRowHitCount.get());
+                mMissCount.addAndGet(cache.mStats.mMissCount.get());
+                mProjectionMissCount.addAndGet(cache.mStats.mProjectionMissCount.get());
+                mStaleCount.addAndGet(cache.mStats.mStaleCount.get());
                 hitTimes += cache.mStats.hitTimes;
                 missTimes += cache.mStats.missTimes;
                 hits += cache.mStats.hits;
                 miss += cache.mStats.miss;
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                mTokenCount += cache.getTokenCount();
             }
         }
 
+        /*package*/ int getHitCount() {
+            return mHitCount.get();
+        }
+
+        /*package*/ int getRowHitCount() {
+            return mRowHitCount.get();
+        }
+
+        /**
+         * Returns the number of misses, including projection misses
+         */
+        /*package*/ int getMissCount() {
+            return mMissCount.get() + mProjectionMissCount.get();
+        }
+
         private void append(StringBuilder sb, String name, Object value) {
             sb.append(", ");
             sb.append(name);
@@ -820,16 +1287,20 @@ public final class ContentCache {
 
         @Override
         public String toString() {
-            if (mHitCount + mMissCount == 0) return "No cache";
-            int totalTries = mMissCount + mProjectionMissCount + mHitCount;
+            final int hitCount = mHitCount.get();
+            final int missCount = mMissCount.get();
+            final int projectionMissCount = mProjectionMissCount.get();
+            if (hitCount + missCount == 0) return "No cache";
+            int totalTries = missCount + projectionMissCount + hitCount;
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
             append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
-            append(sb, "Hits", mHitCount);
-            append(sb, "Misses", mMissCount + mProjectionMissCount);
-            append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
-            append(sb, "Hit%", mHitCount * 100 / totalTries);
+            append(sb, "Hits", hitCount);
+            append(sb, "RowHits", mRowHitCount.get());
+            append(sb, "Misses", missCount + projectionMissCount);
+            append(sb, "Inval", mInvalidateCount.get());
+            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.getTokenCount());
+            append(sb, "Hit%", hitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
             return sb.toString();
@@ -839,10 +1310,12 @@ public final class ContentCache {
     public static void dumpStats() {
         Statistics totals = new Statistics("Totals");
 
-        for (ContentCache cache: sContentCaches) {
-            if (cache != null) {
-                Log.d(cache.mName, cache.mStats.toString());
-                totals.addCacheStatistics(cache);
+        synchronized (sContentCaches) {
+            for (ContentCache cache: sContentCaches) {
+                if (cache != null) {
+                    Log.d(cache.mName, cache.mStats.toString());
+                    totals.addCacheStatistics(cache);
+                }
             }
         }
         Log.d(totals.mName, totals.toString());
@@ -121,10 +121,17 @@ public final class DBHelper {
     // Version 36: mblank intentionally left this space
     // Version 37: Add flag for settings support in folders
     // Version 38&39: Add threadTopic to message (for future support)
+    // Version 40: Add highestModSeq to mailbox
+    // Version 41: Add MessageSearch full-text index
+    // Version 42: Add account/mailbox indexes to the Message_Updates and Message_Deletes tables
+    // Version 43: Replace the mailboxKey and flagRead indexes of the Message table with composite
+    //             indexes for the message lists and the sync lookups
+    // Version 44: Add newUnreadCount to Mailbox, kept by triggers
+    // Version 45: Add contentHash to Attachment, for the AttachmentStore
 
     // Versions 100+ are in Email2
 
-    public static final int DATABASE_VERSION = 39;
+    public static final int DATABASE_VERSION = 45;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -150,6 +157,24 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /*
+     * Internal helper method for the creation of an index on several columns, named after all
+     * of them, e.g. "message_mailboxKey_timeStamp_flagLoaded".
+     */
+    /* package */
+    static String createCompositeIndex(String tableName, String... columnNames) {
+        StringBuilder name = new StringBuilder(tableName.toLowerCase());
+        StringBuilder columns = new StringBuilder();
+        for (String columnName : columnNames) {
+            name.append('_').append(columnName);
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append(columnName);
+        }
+        return "create index " + name + " on " + tableName + " (" + columns + ");";
+    }
+
     static void createMessageTable(SQLiteDatabase db) {
         String messageColumns = MessageColumns.DISPLAY_NAME + " text, "
             + MessageColumns.TIMESTAMP + " integer, "
@@ -196,15 +221,17 @@ public final class DBHelper {
 
         String indexColumns[] = {
             MessageColumns.TIMESTAMP,
-            MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageListIndexes(db);
+        createPendingChangeIndexes(db);
+
+        createMessageSearchTable(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -285,9 +312,171 @@ public final class DBHelper {
                 '=' + MailboxColumns.MESSAGE_COUNT + "+1" +
                 " where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
                 "; end");
+
+        createNewUnreadCountTriggers(db);
+    }
+
+    /**
+     * The condition for a message to be counted in the newUnreadCount of its mailbox (besides
+     * having been added since the mailbox was last notified of): the same as in the notification
+     * query of EmailProvider.
+     */
+    private static String isNewUnread(String message) {
+        return message + '.' + MessageColumns.FLAG_READ + "=0 AND " + message + '.'
+                + MessageColumns.TIMESTAMP + "!=0";
+    }
+
+    /**
+     * Counts the new unread messages of a mailbox, from scratch.
+     */
+    private static String countNewUnread(String mailbox) {
+        return "(select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + '=' + mailbox + '.' + EmailContent.RECORD_ID
+                + " AND " + Message.TABLE_NAME + '.' + EmailContent.RECORD_ID + ">" + mailbox + '.'
+                + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " AND "
+                + isNewUnread(Message.TABLE_NAME) + ")";
+    }
+
+    /**
+     * Adds {@code delta} to the newUnreadCount of the mailbox of a message, if it was added
+     * since the mailbox was last notified of.
+     */
+    private static String addToNewUnreadCount(String message, String delta) {
+        return "update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.NEW_UNREAD_COUNT + '='
+                + MailboxColumns.NEW_UNREAD_COUNT + delta + " where " + EmailContent.RECORD_ID
+                + '=' + message + '.' + MessageColumns.MAILBOX_KEY + " AND " + message + '.'
+                + EmailContent.RECORD_ID + '>' + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY;
+    }
+
+    /**
+     * Creates the triggers that keep the newUnreadCount of the mailboxes up to date as messages
+     * are added, read, dated, moved or deleted, so that the notification query needn't join the
+     * messages each time one of them changes.  They are "after" triggers, since the id of a new
+     * message isn't known before it's inserted.
+     */
+    static void createNewUnreadCountTriggers(SQLiteDatabase db) {
+        db.execSQL("create trigger new_unread_message_insert after insert on "
+                + Message.TABLE_NAME + " when " + isNewUnread("NEW")
+                + " begin " + addToNewUnreadCount("NEW", "+1") + "; end");
+        db.execSQL("create trigger new_unread_message_delete after delete on "
+                + Message.TABLE_NAME + " when " + isNewUnread("OLD")
+                + " begin " + addToNewUnreadCount("OLD", "-1") + "; end");
+        db.execSQL("create trigger new_unread_message_update after update of "
+                + MessageColumns.FLAG_READ + ", " + MessageColumns.TIMESTAMP + ", "
+                + MessageColumns.MAILBOX_KEY + " on " + Message.TABLE_NAME
+                + " begin " + addToNewUnreadCount("OLD", "-1") + " AND " + isNewUnread("OLD")
+                + "; " + addToNewUnreadCount("NEW", "+1") + " AND " + isNewUnread("NEW")
+                + "; end");
+    }
+
+    /**
+     * Creates the trigger that recounts the new unread messages of a mailbox when it's notified
+     * of, which is rare compared to the changes of its messages.
+     */
+    static void createMailboxLastNotifiedTrigger(SQLiteDatabase db) {
+        db.execSQL("create trigger mailbox_last_notified after update of "
+                + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " on " + Mailbox.TABLE_NAME
+                + " when OLD." + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " IS NOT NEW."
+                + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY
+                + " begin update " + Mailbox.TABLE_NAME + " set "
+                + MailboxColumns.NEW_UNREAD_COUNT + '=' + countNewUnread("NEW")
+                + " where " + EmailContent.RECORD_ID + "=NEW." + EmailContent.RECORD_ID
+                + "; end");
+    }
+
+    // The columns of the full-text search index of the messages; its docid is the message's id
+    static final String SEARCH_SUBJECT = "subject";
+    static final String SEARCH_SENDER = "sender";
+    static final String SEARCH_BODY = "body";
+
+    // The text of the sender of a message (in a trigger), as it is indexed
+    private static String searchSender(String row) {
+        return "coalesce(" + row + "." + MessageColumns.DISPLAY_NAME + ", '') || ' ' || coalesce("
+                + row + "." + MessageColumns.FROM_LIST + ", '')";
+    }
+
+    /**
+     * Creates the full-text search index of the messages, and the triggers that keep its subject
+     * and sender in sync with the Message table.  The body can't be indexed by a trigger, as the
+     * Body table is in another database; see {@link #indexBodies}.
+     */
+    static void createMessageSearchTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + Message.SEARCH_TABLE_NAME + " using fts4 ("
+                + SEARCH_SUBJECT + ", " + SEARCH_SENDER + ", " + SEARCH_BODY + ")");
+
+        db.execSQL("create trigger message_search_insert after insert on " + Message.TABLE_NAME +
+                " begin insert into " + Message.SEARCH_TABLE_NAME + " (docid, " + SEARCH_SUBJECT +
+                ", " + SEARCH_SENDER + ") values (NEW." + EmailContent.RECORD_ID +
+                ", NEW." + MessageColumns.SUBJECT + ", " + searchSender("NEW") + "); end");
+
+        db.execSQL("create trigger message_search_update after update of " +
+                MessageColumns.SUBJECT + ", " + MessageColumns.DISPLAY_NAME + ", " +
+                MessageColumns.FROM_LIST + " on " + Message.TABLE_NAME +
+                " begin update " + Message.SEARCH_TABLE_NAME + " set " + SEARCH_SUBJECT +
+                "=NEW." + MessageColumns.SUBJECT + ", " + SEARCH_SENDER + "=" +
+                searchSender("NEW") + " where docid=NEW." + EmailContent.RECORD_ID + "; end");
+
+        db.execSQL("create trigger message_search_delete after delete on " + Message.TABLE_NAME +
+                " begin delete from " + Message.SEARCH_TABLE_NAME +
+                " where docid=OLD." + EmailContent.RECORD_ID + "; end");
+    }
+
+    /**
+     * Copies the text of some bodies (the plain text, or else the HTML) into the search index of
+     * their messages.  The body database must be attached.
+     *
+     * @param bodySelection a selection on the Body table; null for all bodies
+     */
+    static void indexBodies(SQLiteDatabase db, String bodySelection, String[] selectionArgs) {
+        String sql = "update " + Message.SEARCH_TABLE_NAME + " set " + SEARCH_BODY +
+                "=(select coalesce(" + BodyColumns.TEXT_CONTENT + ", " + BodyColumns.HTML_CONTENT +
+                ") from " + Body.TABLE_NAME + " where " + BodyColumns.MESSAGE_KEY + "=" +
+                Message.SEARCH_TABLE_NAME + ".docid limit 1) where docid in (select " +
+                BodyColumns.MESSAGE_KEY + " from " + Body.TABLE_NAME +
+                (bodySelection == null ? "" : " where " + bodySelection) + ")";
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, selectionArgs);
+        }
+    }
+
+    /**
+     * Indexes the Message table for the message lists, which are sorted by time stamp, and for
+     * the lookups of the sync.  Each message list is read in order from the index of the column
+     * it filters on (e.g. the messages of a mailbox, or the unread or starred messages of all
+     * mailboxes), rather than sorted once read; the flagLoaded column follows the time stamp in
+     * the mailbox index, so that the messages that aren't loaded are skipped in the index.
+     */
+    static void createMessageListIndexes(SQLiteDatabase db) {
+        db.execSQL(createCompositeIndex(Message.TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                MessageColumns.TIMESTAMP, MessageColumns.FLAG_LOADED));
+        db.execSQL(createCompositeIndex(Message.TABLE_NAME, MessageColumns.FLAG_READ,
+                MessageColumns.TIMESTAMP));
+        db.execSQL(createCompositeIndex(Message.TABLE_NAME, MessageColumns.FLAG_FAVORITE,
+                MessageColumns.TIMESTAMP));
+        db.execSQL(createCompositeIndex(Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
+                MessageColumns.MAILBOX_KEY, SyncColumns.SERVER_ID));
+    }
+
+    /**
+     * Indexes the shadow tables of the updated and deleted messages the way they are scanned for
+     * the changes to upsync: by account, in mailbox order.
+     */
+    static void createPendingChangeIndexes(SQLiteDatabase db) {
+        for (String tableName : new String[] {
+                Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME }) {
+            db.execSQL("create index " + tableName.toLowerCase() + "_account_mailbox on "
+                    + tableName + " (" + MessageColumns.ACCOUNT_KEY + ", "
+                    + MessageColumns.MAILBOX_KEY + ");");
+        }
     }
 
     static void resetMessageTable(SQLiteDatabase db, int oldVersion, int newVersion) {
+        try {
+            db.execSQL("drop table " + Message.SEARCH_TABLE_NAME);
+        } catch (SQLException e) {
+        }
         try {
             db.execSQL("drop table " + Message.TABLE_NAME);
             db.execSQL("drop table " + Message.UPDATED_TABLE_NAME);
@@ -410,7 +599,9 @@ public final class DBHelper {
             + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " integer not null default 0, "
             + MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT + " integer not null default 0, "
             + MailboxColumns.TOTAL_COUNT + " integer, "
-            + MailboxColumns.LAST_SEEN_MESSAGE_KEY + " integer"
+            + MailboxColumns.LAST_SEEN_MESSAGE_KEY + " integer, "
+            + MailboxColumns.HIGHEST_MOD_SEQ + " integer not null default 0, "
+            + MailboxColumns.NEW_UNREAD_COUNT + " integer not null default 0"
             + ");";
         db.execSQL("create table " + Mailbox.TABLE_NAME + s);
         db.execSQL("create index mailbox_" + MailboxColumns.SERVER_ID
@@ -419,6 +610,7 @@ public final class DBHelper {
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY + ")");
         // Deleting a Mailbox deletes associated Messages in all three tables
         db.execSQL(TRIGGER_MAILBOX_DELETE);
+        createMailboxLastNotifiedTrigger(db);
     }
 
     static void resetMailboxTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -445,10 +637,12 @@ public final class DBHelper {
             + AttachmentColumns.ACCOUNT_KEY + " integer, "
             + AttachmentColumns.UI_STATE + " integer, "
             + AttachmentColumns.UI_DESTINATION + " integer, "
-            + AttachmentColumns.UI_DOWNLOADED_SIZE + " integer"
+            + AttachmentColumns.UI_DOWNLOADED_SIZE + " integer, "
+            + AttachmentColumns.CONTENT_HASH + " text"
             + ");";
         db.execSQL("create table " + Attachment.TABLE_NAME + s);
         db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.MESSAGE_KEY));
+        db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.CONTENT_HASH));
     }
 
     static void resetAttachmentTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -555,6 +749,8 @@ public final class DBHelper {
 
     protected static class DatabaseHelper extends SQLiteOpenHelper {
         Context mContext;
+        // Whether the search index was created by an upgrade, and lacks the bodies
+        boolean mBodiesNeedIndexing;
 
         DatabaseHelper(Context context, String name) {
             super(context, name, null, DATABASE_VERSION);
@@ -939,6 +1135,83 @@ public final class DBHelper {
                 }
                 oldVersion = 39;
             }
+            if (oldVersion == 39) {
+                try {
+                    db.execSQL("alter table " + Mailbox.TABLE_NAME
+                            + " add column " + MailboxColumns.HIGHEST_MOD_SEQ
+                            + " integer not null default 0;");
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 39 to 40 " + e);
+                }
+                oldVersion = 40;
+            }
+            if (oldVersion == 40) {
+                try {
+                    createMessageSearchTable(db);
+                    db.execSQL("insert into " + Message.SEARCH_TABLE_NAME + " (docid, " +
+                            SEARCH_SUBJECT + ", " + SEARCH_SENDER + ") select " +
+                            EmailContent.RECORD_ID + ", " + MessageColumns.SUBJECT + ", " +
+                            searchSender(Message.TABLE_NAME) + " from " + Message.TABLE_NAME);
+                    // The bodies are indexed once the body database is attached
+                    mBodiesNeedIndexing = true;
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 40 to 41 " + e);
+                }
+                oldVersion = 41;
+            }
+            if (oldVersion == 41) {
+                try {
+                    createPendingChangeIndexes(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 41 to 42 " + e);
+                }
+                oldVersion = 42;
+            }
+            if (oldVersion == 42) {
+                try {
+                    // The composite indexes start with the columns of these two
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_'
+                            + MessageColumns.MAILBOX_KEY);
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_'
+                            + MessageColumns.FLAG_READ);
+                    createMessageListIndexes(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 42 to 43 " + e);
+                }
+                oldVersion = 43;
+            }
+            if (oldVersion == 43) {
+                try {
+                    db.execSQL("alter table " + Mailbox.TABLE_NAME
+                            + " add column " + MailboxColumns.NEW_UNREAD_COUNT
+                            + " integer not null default 0;");
+                    db.execSQL("update " + Mailbox.TABLE_NAME + " set "
+                            + MailboxColumns.NEW_UNREAD_COUNT + '='
+                            + countNewUnread(Mailbox.TABLE_NAME));
+                    createNewUnreadCountTriggers(db);
+                    createMailboxLastNotifiedTrigger(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 43 to 44 " + e);
+                }
+                oldVersion = 44;
+            }
+            if (oldVersion == 44) {
+                try {
+                    db.execSQL("alter table " + Attachment.TABLE_NAME
+                            + " add column " + AttachmentColumns.CONTENT_HASH + " text;");
+                    db.execSQL(createIndex(Attachment.TABLE_NAME,
+                            AttachmentColumns.CONTENT_HASH));
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 44 to 45 " + e);
+                }
+                oldVersion = 45;
+            }
         }
 
         @Override
@@ -58,12 +58,17 @@ import com.android.emailcommon.provider.QuickResponse;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author mblank
@@ -159,6 +164,7 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -281,6 +287,27 @@ public class EmailProvider extends ContentProvider {
     private static final String UPDATED_MESSAGE_DELETE = "delete from " +
         Message.UPDATED_TABLE_NAME + " where " + EmailContent.RECORD_ID + '=';
 
+    /**
+     * Deletes the original copy of a message from the updated table if the message is back in
+     * its original state (e.g. it was marked read, then unread), since there is nothing left to
+     * upsync.  This keeps the updated table down to the messages that really changed.
+     */
+    private static final String UPDATED_MESSAGE_COMPACT;
+    static {
+        StringBuilder sb = new StringBuilder("delete from " + Message.UPDATED_TABLE_NAME +
+                " where exists (select 1 from " + Message.TABLE_NAME + " where " +
+                Message.TABLE_NAME + '.' + EmailContent.RECORD_ID + '=' +
+                Message.UPDATED_TABLE_NAME + '.' + EmailContent.RECORD_ID);
+        for (String column : Message.CONTENT_PROJECTION) {
+            if (!EmailContent.RECORD_ID.equals(column)) {
+                sb.append(" and " + Message.TABLE_NAME + '.' + column + " is " +
+                        Message.UPDATED_TABLE_NAME + '.' + column);
+            }
+        }
+        sb.append(") and " + EmailContent.RECORD_ID + '=');
+        UPDATED_MESSAGE_COMPACT = sb.toString();
+    }
+
     private static final String DELETED_MESSAGE_INSERT = "insert or replace into " +
         Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
         EmailContent.RECORD_ID + '=';
@@ -334,6 +361,8 @@ public class EmailProvider extends ContentProvider {
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+        // Full-text search of the messages (query only)
+        matcher.addURI(EmailContent.AUTHORITY, "messageSearch", MESSAGE_SEARCH);
 
         // A specific attachment
         matcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -435,6 +464,22 @@ public class EmailProvider extends ContentProvider {
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
 
+    /** Coalesces and debounces the change notifications of batches */
+    private final NotificationCoalescer mNotificationCoalescer = new NotificationCoalescer(
+            new NotificationCoalescer.Notifier() {
+                @Override
+                public void notifyChange(Uri uri) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                    // If a message has changed, notify any widgets
+                    if (uri.toString().startsWith(Message.NOTIFIER_URI.toString())) {
+                        sendMessageListDataChangedNotification();
+                    }
+                }
+            });
+
+    /** Number of write transactions committed (one per write, or one per batch) */
+    private final AtomicInteger mTransactionCount = new AtomicInteger();
+
     public static Uri uiUri(String type, long id) {
         return Uri.parse(uiUriString(type, id));
     }
@@ -481,6 +526,9 @@ public class EmailProvider extends ContentProvider {
         if (mBodyDatabase != null) {
             String bodyFileName = mBodyDatabase.getPath();
             mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
+            if (helper.mBodiesNeedIndexing) {
+                DBHelper.indexBodies(mDatabase, null, null);
+            }
         }
 
         // Restore accounts if the database is corrupted...
@@ -850,11 +898,13 @@ public class EmailProvider extends ContentProvider {
             }
         }
 
+        countTransaction();
+
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return result;
     }
 
@@ -943,6 +993,9 @@ public class EmailProvider extends ContentProvider {
                     longId = db.insert(TABLE_NAMES[table], "foo", values);
                     resultUri = ContentUris.withAppendedId(uri, longId);
                     switch(match) {
+                        case BODY:
+                            DBHelper.indexBodies(db, EmailContent.RECORD_ID + "=" + longId, null);
+                            break;
                         case MAILBOX:
                             if (values.containsKey(MailboxColumns.TYPE)) {
                                 // Only cache special mailbox types
@@ -1014,11 +1067,13 @@ public class EmailProvider extends ContentProvider {
             throw e;
         }
 
+        countTransaction();
+
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return resultUri;
     }
 
@@ -1115,6 +1170,9 @@ public class EmailProvider extends ContentProvider {
                 case MAILBOX_MOST_RECENT_MESSAGE:
                     c = mostRecentMessageQuery(uri);
                     return c;
+                case MESSAGE_SEARCH:
+                    c = searchMessages(db, uri, selection, selectionArgs, limit);
+                    break;
                 case ACCOUNT_DEFAULT_ID:
                     // Start with a snapshot of the cache
                     Map<String, Cursor> accountCache = mCacheAccount.getSnapshot();
@@ -1199,10 +1257,19 @@ public class EmailProvider extends ContentProvider {
                         if (cache != null) {
                             token = cache.getCacheToken(id);
                         }
-                        c = db.query(tableName, projection, whereWithId(id, selection),
-                                selectionArgs, null, null, sortOrder, limit);
-                        if (cache != null) {
-                            c = cache.putCursor(c, id, projection, token);
+                        if (cache != null && cache.hasColumns(projection)) {
+                            // Read (and cache) the whole row, so that later queries with any
+                            // projection can be served from it
+                            c = db.query(tableName, cache.getProjection(),
+                                    whereWithId(id, selection), selectionArgs, null, null,
+                                    sortOrder, limit);
+                            c = cache.putRow(c, id, projection, token);
+                        } else {
+                            c = db.query(tableName, projection, whereWithId(id, selection),
+                                    selectionArgs, null, null, sortOrder, limit);
+                            if (cache != null) {
+                                c = cache.putCursor(c, id, projection, token);
+                            }
                         }
                     }
                     break;
@@ -1540,6 +1607,9 @@ outer:
                         }
                         result = db.update(tableName, values, whereWithId(id, selection),
                                 selectionArgs);
+                        if (match == SYNCED_MESSAGE_ID) {
+                            db.execSQL(UPDATED_MESSAGE_COMPACT + id);
+                        }
                     } catch (SQLiteException e) {
                         // Null out values (so they aren't cached) and re-throw
                         values = null;
@@ -1549,6 +1619,9 @@ outer:
                             cache.unlock(id, values);
                         }
                     }
+                    if (match == BODY_ID && hasBodyText(values)) {
+                        DBHelper.indexBodies(db, whereWithId(id, selection), selectionArgs);
+                    }
                     if (match == ATTACHMENT_ID) {
                         long attId = Integer.parseInt(id);
                         if (values.containsKey(Attachment.FLAGS)) {
@@ -1597,6 +1670,9 @@ outer:
                             //$FALL-THROUGH$
                         default:
                             result = db.update(tableName, values, selection, selectionArgs);
+                            if (match == BODY && hasBodyText(values)) {
+                                DBHelper.indexBodies(db, selection, selectionArgs);
+                            }
                             break outer;
                     }
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -1637,10 +1713,12 @@ outer:
             throw e;
         }
 
+        countTransaction();
+
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
 
-        resolver.notifyChange(notificationUri, null);
+        notifyChange(notificationUri);
         return result;
     }
 
@@ -1674,6 +1752,8 @@ outer:
      * NOTE: If <<op>> is specified, notifications for <<baseURI>>/<<id>> will NOT be invoked.
      * If this is necessary, it can be added. However, due to the implementation of
      * {@link ContentObserver}, observers of <<baseURI>> will receive multiple notifications.
+     * Within a batch, notifications are sent to <<baseURI>> itself, once the batch has been
+     * committed; this also notifies the observers of <<baseURI>>/<<op>>/<<id>>.
      *
      * @param baseUri The base URI to send notifications to. Must be able to take appended IDs.
      * @param op Optional operation to be appended to the URI.
@@ -1694,19 +1774,61 @@ outer:
             longId = Long.valueOf(id);
         } catch (NumberFormatException ignore) {}
 
-        final ContentResolver resolver = getContext().getContentResolver();
-        if (longId > 0) {
-            resolver.notifyChange(ContentUris.withAppendedId(uri, longId), null);
+        if (mNotificationCoalescer.isInWindow()) {
+            notifyChange(baseUri);
+        } else if (longId > 0) {
+            notifyChange(ContentUris.withAppendedId(uri, longId));
         } else {
-            resolver.notifyChange(uri, null);
+            notifyChange(uri);
         }
+    }
+
+    /**
+     * Notifies the observers of the given URI, through the notification coalescer.
+     */
+    private void notifyChange(Uri uri) {
+        mNotificationCoalescer.notifyChange(uri);
+    }
 
-        // If a message has changed, notify any widgets
-        if (baseUri.equals(Message.NOTIFIER_URI)) {
-            sendMessageListDataChangedNotification();
+    /**
+     * Counts a completed write.  Outside of a batch, each write is a transaction of its own.
+     */
+    private void countTransaction() {
+        if (!mNotificationCoalescer.isInWindow()) {
+            mTransactionCount.incrementAndGet();
         }
     }
 
+    @VisibleForTesting
+    public int getTransactionCount() {
+        return mTransactionCount.get();
+    }
+
+    /**
+     * Returns the number of change notifications sent.
+     */
+    @VisibleForTesting
+    public int getNotificationCount() {
+        return mNotificationCoalescer.getDeliveredCount();
+    }
+
+    /**
+     * Returns the number of change notifications that were coalesced into another one.
+     */
+    @VisibleForTesting
+    public int getSuppressedNotificationCount() {
+        return mNotificationCoalescer.getSuppressedCount();
+    }
+
+    /**
+     * Sets the delay within which the notifications of a URI by successive batches are coalesced;
+     * 0 disables debouncing (each batch is still coalesced).
+     */
+    @VisibleForTesting
+    public void setNotificationDebounceDelay(long delay) {
+        mNotificationCoalescer.setDebounceDelay(delay);
+    }
+
     private void sendMessageListDataChangedNotification() {
         final Context context = getContext();
         final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
@@ -1716,18 +1838,29 @@ outer:
         context.sendBroadcast(intent);
     }
 
+    /**
+     * Applies the operations in a single transaction.  The change notifications they raise are
+     * coalesced, and each distinct base URI is notified once the transaction has been committed.
+     */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        boolean committed = false;
+        mNotificationCoalescer.beginWindow();
         db.beginTransaction();
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
             db.setTransactionSuccessful();
+            committed = true;
             return results;
         } finally {
             db.endTransaction();
+            mNotificationCoalescer.endWindow(committed);
+            if (committed) {
+                mTransactionCount.incrementAndGet();
+            }
         }
     }
 
@@ -1743,8 +1876,7 @@ outer:
         int table = match >> BASE_SHIFT;
         ContentCache cache = mContentCaches[table];
         if (cache == null) return false;
-        Cursor cc = cache.get(Long.toString(id));
-        return (cc != null);
+        return cache.get(Long.toString(id)) != null;
     }
 
     public static interface AttachmentService {
@@ -1771,30 +1903,20 @@ outer:
         mAttachmentService = (as == null) ? DEFAULT_ATTACHMENT_SERVICE : as;
     }
 
-    // SELECT DISTINCT Boxes._id, Boxes.unreadCount count(Message._id) from Message,
-    //   (SELECT _id, unreadCount, messageCount, lastNotifiedMessageCount, lastNotifiedMessageKey
-    //   FROM Mailbox WHERE accountKey=6 AND ((type = 0) OR (syncInterval!=0 AND syncInterval!=-1)))
-    //      AS Boxes
-    // WHERE Boxes.messageCount!=Boxes.lastNotifiedMessageCount
-    //   OR (Boxes._id=Message.mailboxKey AND Message._id>Boxes.lastNotifiedMessageKey)
-    //   AND flagRead = 0 AND timeStamp != 0
-    // TODO: This query can be simplified a bit
+    // SELECT _id, unreadCount, sum(newUnreadCount) FROM Mailbox
+    //   WHERE accountKey=6 AND ((type = 0) OR (syncInterval!=0 AND syncInterval!=-1))
+    //   AND newUnreadCount>0
+    // The newUnreadCount of each mailbox is kept by triggers (see DBHelper) as the number of its
+    // messages with _id>lastNotifiedMessageKey AND flagRead=0 AND timeStamp!=0, so this gives the
+    // same single row as joining the messages of the mailboxes, without reading any message.
     private static final String NOTIFICATION_QUERY =
-        "SELECT DISTINCT Boxes." + MailboxColumns.ID + ", Boxes." + MailboxColumns.UNREAD_COUNT +
-            ", count(" + Message.TABLE_NAME + "." + MessageColumns.ID + ")" +
-        " FROM " +
-            Message.TABLE_NAME + "," +
-            "(SELECT " + MailboxColumns.ID + "," + MailboxColumns.UNREAD_COUNT + "," +
-                MailboxColumns.MESSAGE_COUNT + "," + MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT +
-                "," + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " FROM " + Mailbox.TABLE_NAME +
-                " WHERE " + MailboxColumns.ACCOUNT_KEY + "=?" +
-                " AND (" + MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX + " OR ("
-                + MailboxColumns.SYNC_INTERVAL + "!=0 AND " +
-                MailboxColumns.SYNC_INTERVAL + "!=-1))) AS Boxes " +
-        "WHERE Boxes." + MailboxColumns.ID + '=' + Message.TABLE_NAME + "." +
-                MessageColumns.MAILBOX_KEY + " AND " + Message.TABLE_NAME + "." +
-                MessageColumns.ID + ">Boxes." + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY +
-                " AND " + MessageColumns.FLAG_READ + "=0 AND " + MessageColumns.TIMESTAMP + "!=0";
+        "SELECT " + MailboxColumns.ID + ", " + MailboxColumns.UNREAD_COUNT +
+            ", coalesce(sum(" + MailboxColumns.NEW_UNREAD_COUNT + "),0)" +
+        " FROM " + Mailbox.TABLE_NAME +
+        " WHERE " + MailboxColumns.ACCOUNT_KEY + "=?" +
+            " AND (" + MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX + " OR (" +
+            MailboxColumns.SYNC_INTERVAL + "!=0 AND " + MailboxColumns.SYNC_INTERVAL + "!=-1))" +
+            " AND " + MailboxColumns.NEW_UNREAD_COUNT + ">0";
 
     public Cursor notificationQuery(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
@@ -1802,6 +1924,157 @@ outer:
         return db.rawQuery(NOTIFICATION_QUERY, new String[] {accountId});
    }
 
+    /**
+     * Returns whether an update of the Body table changes the text that is indexed for search
+     */
+    private static boolean hasBodyText(ContentValues values) {
+        return values.containsKey(BodyColumns.TEXT_CONTENT)
+                || values.containsKey(BodyColumns.HTML_CONTENT);
+    }
+
+    // The weight of a match in each column of the search index, for ranking
+    private static final int[] SEARCH_COLUMN_WEIGHTS = {
+        4, // Subject
+        2, // Sender
+        1  // Body
+    };
+
+    /**
+     * Ranks the matches of a search: matchinfo() gives the number of occurrences of each phrase
+     * of the query in each column (from the doclists, without reading the indexed text), and the
+     * timeStamp orders the matches of the same rank
+     */
+    private static final String SEARCH_RANK_QUERY =
+        "SELECT docid, matchinfo(" + Message.SEARCH_TABLE_NAME + ", 'pcx'), " +
+            Message.TABLE_NAME + "." + MessageColumns.TIMESTAMP +
+        " FROM " + Message.SEARCH_TABLE_NAME + " JOIN " + Message.TABLE_NAME +
+            " ON " + Message.TABLE_NAME + "." + MessageColumns.ID + "=docid" +
+        " WHERE " + Message.SEARCH_TABLE_NAME + " MATCH ?";
+
+    /** Makes the snippets of the matches that are returned, whose docids are appended */
+    private static final String SEARCH_SNIPPET_QUERY =
+        "SELECT docid, snippet(" + Message.SEARCH_TABLE_NAME + ", '', '', '...', -1, 16)" +
+        " FROM " + Message.SEARCH_TABLE_NAME +
+        " WHERE " + Message.SEARCH_TABLE_NAME + " MATCH ? AND docid IN ";
+
+    /**
+     * Searches the full-text index of the messages for the terms given by the search query
+     * parameter of the uri.  Each match is ranked by the columns it was found in (subject, then
+     * sender, then body), and matches of the same rank by recency.  Only the matches that are
+     * returned get a snippet, which is the costly part, as it reads the indexed text.
+     *
+     * @param selection an optional selection on the Message table, which narrows the search
+     * @return a cursor with Message.SEARCH_PROJECTION, best matches first
+     */
+    private static Cursor searchMessages(SQLiteDatabase db, Uri uri, String selection,
+            String[] selectionArgs, String limit) {
+        String terms = uri.getQueryParameter(Message.SEARCH_QUERY_PARAMETER);
+        if (TextUtils.isEmpty(terms)) {
+            throw new IllegalArgumentException("No search terms in " + uri);
+        }
+        String sql = SEARCH_RANK_QUERY;
+        String[] args = new String[] {terms};
+        if (selection != null) {
+            sql += " AND docid IN (SELECT " + MessageColumns.ID + " FROM " + Message.TABLE_NAME +
+                    " WHERE " + selection + ")";
+            if (selectionArgs != null) {
+                args = new String[selectionArgs.length + 1];
+                args[0] = terms;
+                System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+            }
+        }
+
+        final long[] ids;
+        final int[] scores;
+        final long[] timeStamps;
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            int count = c.getCount();
+            ids = new long[count];
+            scores = new int[count];
+            timeStamps = new long[count];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                scores[i] = searchScore(c.getBlob(1));
+                timeStamps[i] = c.getLong(2);
+            }
+        } finally {
+            c.close();
+        }
+
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                if (scores[lhs] != scores[rhs]) {
+                    return scores[lhs] > scores[rhs] ? -1 : 1;
+                }
+                if (timeStamps[lhs] != timeStamps[rhs]) {
+                    return timeStamps[lhs] > timeStamps[rhs] ? -1 : 1;
+                }
+                return ids[lhs] > ids[rhs] ? -1 : (ids[lhs] == ids[rhs] ? 0 : 1);
+            }
+        });
+        int count = order.length;
+        if (limit != null) {
+            count = Math.min(count, Integer.parseInt(limit));
+        }
+        MatrixCursor result = new MatrixCursor(Message.SEARCH_PROJECTION, count);
+        if (count == 0) {
+            return result;
+        }
+
+        StringBuilder idList = new StringBuilder("(");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                idList.append(',');
+            }
+            idList.append(ids[order[i]]);
+        }
+        idList.append(')');
+        HashMap<Long, String> snippets = new HashMap<Long, String>(count);
+        c = db.rawQuery(SEARCH_SNIPPET_QUERY + idList, new String[] {terms});
+        try {
+            while (c.moveToNext()) {
+                snippets.put(c.getLong(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        for (int i = 0; i < count; i++) {
+            long id = ids[order[i]];
+            result.addRow(new Object[] {id, snippets.get(id)});
+        }
+        return result;
+    }
+
+    /**
+     * Scores a search match from the value of matchinfo() with format 'pcx': the number of
+     * phrases and of columns, then 3 integers (in native byte order) for each phrase and column,
+     * the first of which is the number of occurrences of the phrase in the column of this row
+     */
+    private static int searchScore(byte[] matchInfo) {
+        int score = 0;
+        if (matchInfo == null) {
+            return score;
+        }
+        IntBuffer values = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        int phraseCount = values.get(0);
+        int columnCount = values.get(1);
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount
+                    && column < SEARCH_COLUMN_WEIGHTS.length; column++) {
+                int hits = values.get(2 + 3 * (phrase * columnCount + column));
+                score += SEARCH_COLUMN_WEIGHTS[column] * hits;
+            }
+        }
+        return score;
+    }
+
     public Cursor mostRecentMessageQuery(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
         String mailboxId = uri.getLastPathSegment();
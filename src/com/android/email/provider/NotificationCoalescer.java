@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the change notifications sent by {@link EmailProvider}, so that a bulk sync doesn't
+ * make every observer re-query once per row.
+ *
+ * A thread can open a window (e.g. for the transaction of a batch); the URIs notified inside it
+ * are only marked dirty, and each distinct one is notified once, when the outermost window is
+ * committed.  Nothing is notified for a window that is rolled back.
+ *
+ * The notifications of committed windows are also debounced per URI, so that the many batches
+ * of a sync don't each make the observers re-query: the first one is sent right away, and those
+ * that follow within the debounce delay are folded into a single notification, sent at the end
+ * of the delay.  A notification outside of a window (e.g. the user marking a message read) is
+ * always sent right away.
+ */
+public class NotificationCoalescer {
+    /** Callback that actually sends a notification */
+    public interface Notifier {
+        void notifyChange(Uri uri);
+    }
+
+    public static final long DEFAULT_DEBOUNCE_DELAY = 100;
+
+    /** Runs the debounce tasks; a daemon, so that it doesn't keep the process alive */
+    private static final Timer TIMER = new Timer("NotificationCoalescer", true);
+
+    private final Notifier mNotifier;
+    private final Timer mTimer;
+    private volatile long mDebounceDelay;
+
+    /** The window opened by the current thread, if any */
+    private final ThreadLocal<Window> mWindow = new ThreadLocal<Window>();
+
+    /**
+     * The URIs notified within the last debounce delay; the value is whether they have been
+     * notified again since, and need a notification at the end of the delay.
+     */
+    private final HashMap<Uri, Boolean> mDebouncing = new HashMap<Uri, Boolean>();
+
+    private final AtomicInteger mDeliveredCount = new AtomicInteger();
+    private final AtomicInteger mSuppressedCount = new AtomicInteger();
+
+    private static class Window {
+        int mDepth;
+        final LinkedHashSet<Uri> mDirtyUris = new LinkedHashSet<Uri>();
+    }
+
+    public NotificationCoalescer(Notifier notifier) {
+        this(notifier, TIMER, DEFAULT_DEBOUNCE_DELAY);
+    }
+
+    /* package */ NotificationCoalescer(Notifier notifier, Timer timer, long debounceDelay) {
+        mNotifier = notifier;
+        mTimer = timer;
+        mDebounceDelay = debounceDelay;
+    }
+
+    /**
+     * Sets the debounce delay; 0 disables debouncing.
+     */
+    public void setDebounceDelay(long debounceDelay) {
+        mDebounceDelay = debounceDelay;
+    }
+
+    /**
+     * Opens a window on the current thread.  Windows nest; only the outermost one sends the
+     * notifications.  Each call must be matched by a call to {@link #endWindow}.
+     */
+    public void beginWindow() {
+        Window window = mWindow.get();
+        if (window == null) {
+            window = new Window();
+            mWindow.set(window);
+        }
+        window.mDepth++;
+    }
+
+    /**
+     * Closes the current thread's window.  When the outermost window is closed, each URI marked
+     * dirty inside it is notified if {@code commit} is true, and dropped otherwise.
+     */
+    public void endWindow(boolean commit) {
+        final Window window = mWindow.get();
+        if (window == null) {
+            throw new IllegalStateException("No window open");
+        }
+        if (--window.mDepth > 0) {
+            return;
+        }
+        mWindow.set(null);
+        for (Uri uri : window.mDirtyUris) {
+            if (commit) {
+                notifyDebounced(uri);
+            } else {
+                mSuppressedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current thread has a window open.
+     */
+    public boolean isInWindow() {
+        return mWindow.get() != null;
+    }
+
+    /**
+     * Notifies the observers of {@code uri} right away, or marks it dirty if the current thread
+     * has a window open.
+     */
+    public void notifyChange(Uri uri) {
+        final Window window = mWindow.get();
+        if (window != null) {
+            if (!window.mDirtyUris.add(uri)) {
+                mSuppressedCount.incrementAndGet();
+            }
+        } else {
+            deliver(uri);
+        }
+    }
+
+    private void notifyDebounced(Uri uri) {
+        final long delay = mDebounceDelay;
+        if (delay > 0) {
+            synchronized (this) {
+                final Boolean notifiedAgain = mDebouncing.get(uri);
+                if (notifiedAgain != null) {
+                    if (notifiedAgain) {
+                        mSuppressedCount.incrementAndGet();
+                    } else {
+                        // The notification is sent at the end of the delay
+                        mDebouncing.put(uri, true);
+                    }
+                    return;
+                }
+                mDebouncing.put(uri, false);
+                mTimer.schedule(new DebounceTask(uri), delay);
+            }
+        }
+        deliver(uri);
+    }
+
+    private void deliver(Uri uri) {
+        mDeliveredCount.incrementAndGet();
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * Ends the debounce delay of a URI, and sends the notification folded into it, if any.  That
+     * notification starts a new delay.
+     */
+    private class DebounceTask extends TimerTask {
+        private final Uri mUri;
+
+        DebounceTask(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public void run() {
+            synchronized (NotificationCoalescer.this) {
+                final Boolean notifiedAgain = mDebouncing.remove(mUri);
+                if (notifiedAgain == null || !notifiedAgain) {
+                    return;
+                }
+                mDebouncing.put(mUri, false);
+                mTimer.schedule(new DebounceTask(mUri), mDebounceDelay);
+            }
+            deliver(mUri);
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent.
+     */
+    public int getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * Returns the number of notifications that were folded into another one (or dropped with a
+     * rolled back window), rather than sent.
+     */
+    public int getSuppressedCount() {
+        return mSuppressedCount.get();
+    }
+}
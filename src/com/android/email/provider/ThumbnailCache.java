@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.email.Email;
+import com.android.emailcommon.Logging;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The encoded thumbnails of the attachments, in two tiers: a directory of files, bounded in
+ * total size, and a smaller in-memory cache of the thumbnails used last.  Both evict the
+ * thumbnails used least recently; across restarts, the files are ordered by the time they were
+ * written.
+ *
+ * The thumbnails of deleted attachments are deleted from the directory by
+ * {@link com.android.emailcommon.utility.AttachmentUtilities}, which doesn't know about this
+ * cache; a thumbnail is therefore only served while its file exists.
+ */
+/* package */ class ThumbnailCache {
+    /**
+     * Creates the thumbnail of a cache miss.
+     */
+    public interface Creator {
+        /**
+         * Returns the encoded thumbnail, or null if there can't be one (e.g. the attachment isn't
+         * an image, or can't be read).
+         */
+        byte[] create();
+    }
+
+    private final File mDirectory;
+    private final LruCache<String, byte[]> mMemoryCache;
+    /** The sizes of the files of the directory, by name; null until the directory is read */
+    private LruCache<String, Integer> mDiskCache;
+    private final int mMaxDiskSize;
+    /** The locks of the thumbnails being created, so that each is only created once */
+    private final HashMap<String, Object> mInFlight = new HashMap<String, Object>();
+
+    /**
+     * @param directory the directory of the thumbnail files
+     * @param maxMemorySize the maximum total size of the thumbnails kept in memory, in bytes
+     * @param maxDiskSize the maximum total size of the thumbnail files, in bytes
+     */
+    public ThumbnailCache(File directory, int maxMemorySize, int maxDiskSize) {
+        mDirectory = directory;
+        mMaxDiskSize = maxDiskSize;
+        mMemoryCache = new LruCache<String, byte[]>(maxMemorySize) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the name of the thumbnail of an attachment, at a given size; it starts with
+     * {@link com.android.emailcommon.utility.AttachmentUtilities#getThumbnailPrefix}.
+     */
+    public static String getKey(String prefix, int width, int height) {
+        return prefix + width + "x" + height;
+    }
+
+    /**
+     * Returns a thumbnail, from the cache or from the creator, or null if there can't be one.
+     * Concurrent requests of the same thumbnail wait for a single creation.
+     */
+    public byte[] get(String key, Creator creator) {
+        byte[] data = getCached(key);
+        if (data != null) {
+            return data;
+        }
+        final Object lock;
+        synchronized (mInFlight) {
+            Object inFlight = mInFlight.get(key);
+            if (inFlight == null) {
+                inFlight = new Object();
+                mInFlight.put(key, inFlight);
+            }
+            lock = inFlight;
+        }
+        try {
+            synchronized (lock) {
+                // Another request may have created the thumbnail while we waited
+                data = getCached(key);
+                if (data == null) {
+                    data = creator.create();
+                    if (data != null) {
+                        put(key, data);
+                    }
+                }
+                return data;
+            }
+        } finally {
+            synchronized (mInFlight) {
+                if (mInFlight.get(key) == lock) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+    }
+
+    private byte[] getCached(String key) {
+        final File file = new File(mDirectory, key);
+        byte[] data = mMemoryCache.get(key);
+        if (data != null) {
+            if (file.exists()) {
+                return data;
+            }
+            // The thumbnail was invalidated
+            mMemoryCache.remove(key);
+            getDiskCache().remove(key);
+            return null;
+        }
+        if (getDiskCache().get(key) == null) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            data = IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            // Includes the files deleted by an invalidation
+            getDiskCache().remove(key);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        mMemoryCache.put(key, data);
+        return data;
+    }
+
+    private void put(String key, byte[] data) {
+        final File file = new File(mDirectory, key);
+        final File tmpFile = new File(mDirectory, key + ".tmp");
+        OutputStream out = null;
+        try {
+            mDirectory.mkdirs();
+            out = new FileOutputStream(tmpFile);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+            getDiskCache().put(key, data.length);
+            mMemoryCache.put(key, data);
+        } catch (IOException e) {
+            // The thumbnail will be created again
+            Log.w(Logging.LOG_TAG, "Unable to save thumbnail " + file + ": " + e);
+            IOUtils.closeQuietly(out);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns the index of the files of the directory, which is read on first use.  Evicting a
+     * file from the index deletes it.
+     */
+    private synchronized LruCache<String, Integer> getDiskCache() {
+        if (mDiskCache == null) {
+            mDiskCache = new LruCache<String, Integer>(mMaxDiskSize) {
+                @Override
+                protected int sizeOf(String key, Integer value) {
+                    return value;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Integer oldValue,
+                        Integer newValue) {
+                    if (newValue == null) {
+                        new File(mDirectory, key).delete();
+                    }
+                }
+            };
+            final File[] files = mDirectory.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        final long lhsModified = lhs.lastModified();
+                        final long rhsModified = rhs.lastModified();
+                        return lhsModified < rhsModified ? -1
+                                : (lhsModified == rhsModified ? 0 : 1);
+                    }
+                });
+                for (File file : files) {
+                    if (file.getName().endsWith(".tmp")) {
+                        file.delete();
+                    } else {
+                        mDiskCache.put(file.getName(), (int) file.length());
+                    }
+                }
+            }
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "Thumbnail cache: " + mDiskCache.size() + " bytes in "
+                        + mDirectory);
+            }
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Returns the total size of the thumbnail files.
+     */
+    /* package */ int getDiskSize() {
+        return getDiskCache().size();
+    }
+}
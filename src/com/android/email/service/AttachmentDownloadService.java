@@ -44,6 +44,7 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.emailcommon.utility.AttachmentStore;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.Utility;
 
@@ -88,6 +89,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
     // Limit on the number of attachments we'll check for background download
     private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
+    // How often the files of the attachment store that nothing refers to are deleted
+    private static final long STORE_GARBAGE_COLLECTION_INTERVAL = DateUtils.DAY_IN_MILLIS;
 
     private static final String EXTRA_ATTACHMENT =
         "com.android.email.AttachmentDownloadService.attachment";
@@ -95,6 +98,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // sRunningService is only set in the UI thread; it's visibility elsewhere is guaranteed
     // by the use of "volatile"
     /*package*/ static volatile AttachmentDownloadService sRunningService = null;
+    // The last time the attachment store was collected, in this process; only used within the
+    // service thread
+    private static long sLastStoreGarbageCollection = 0;
 
     /*package*/ Context mContext;
     /*package*/ EmailConnectivityManager mConnectivityManager;
@@ -174,6 +180,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         int lastProgress;
         long lastCallbackTime;
         long startTime;
+        // The number of bytes saved by the attempts so far, for the downloads done in chunks
+        long downloadedSize;
 
         private DownloadRequest(Context context, Attachment attachment) {
             attachmentId = attachment.mId;
@@ -186,6 +194,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
             priority = getPriority(attachment);
             time = System.currentTimeMillis();
+            downloadedSize = AttachmentUtilities.getPartialAttachmentLength(context, attachmentId);
         }
 
         @Override
@@ -438,6 +447,20 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
         }
 
+        /**
+         * Whether more chunks of the attachment of {@code req} have been saved since it was
+         * last checked.
+         */
+        private boolean madeProgress(DownloadRequest req) {
+            long downloadedSize = AttachmentUtilities.getPartialAttachmentLength(mContext,
+                    req.attachmentId);
+            if (downloadedSize <= req.downloadedSize) {
+                return false;
+            }
+            req.downloadedSize = downloadedSize;
+            return true;
+        }
+
         /**
          * Attempt to execute the DownloadRequest, enforcing the maximum downloads per account
          * parameter
@@ -513,17 +536,22 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest inProgress = mDownloadsInProgress.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
             // sense to be cautious here. Once logic is in place to prevent connecting
             // in a tight loop, we can exclude counting connection issues as "failures".
 
-            // Update the attachment failure list if needed
+            // Update the attachment failure list if needed.  The attachments that are downloaded
+            // in chunks resume from the last chunk saved, so only the failures to save the next
+            // chunk are counted, rather than every failure since the start of the download.
             Integer downloadCount;
             downloadCount = mAttachmentFailureMap.remove(attachmentId);
             if (statusCode != EmailServiceStatus.SUCCESS) {
+                if (inProgress != null && madeProgress(inProgress)) {
+                    downloadCount = null;
+                }
                 if (downloadCount == null) {
                     downloadCount = 0;
                 }
@@ -901,6 +929,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
         // Loop until stopped, with a 30 minute wait loop
         while (!mStop) {
+            collectStoreGarbage();
             // Here's where we run our attachment loading logic...
             mConnectivityManager.waitForConnectivity();
             mDownloadSet.processQueue();
@@ -924,6 +953,21 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
     }
 
+    /**
+     * Deletes the files of the attachment store that no attachment refers to any more (e.g.
+     * because their attachments were deleted with their messages by the provider, without being
+     * released): the first time the service runs in this process, and then at most once a day.
+     */
+    private void collectStoreGarbage() {
+        long now = System.currentTimeMillis();
+        if (sLastStoreGarbageCollection != 0
+                && now - sLastStoreGarbageCollection < STORE_GARBAGE_COLLECTION_INTERVAL) {
+            return;
+        }
+        sLastStoreGarbageCollection = now;
+        AttachmentStore.collectGarbage(this);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (sRunningService == null) {
@@ -1008,5 +1052,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 }
             }
         }
+        AttachmentStore.Stats stats = AttachmentStore.getStats(this);
+        pw.println("  Attachment store" + (AttachmentStore.isEnabled() ? "" : " [disabled]")
+                + ", " + stats.mAttachmentCount + " attachments, " + stats.mAttachmentBytes
+                + " bytes");
+        pw.println("    Files: " + stats.mFileCount + ", " + stats.mStoredBytes + " bytes, saved "
+                + stats.getSavedBytes() + " bytes");
     }
 }
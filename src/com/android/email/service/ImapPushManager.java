@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.email.Controller;
+import com.android.email.Email;
+import com.android.email.MessagingController;
+import com.android.email.mail.Store;
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps an IMAP IDLE command (RFC 2177) running on the inbox of each account it is given, so
+ * that new messages and flag changes are synced as soon as the server reports them, rather than
+ * on the next {@link MailService} alarm.  Each account gets its own thread, which holds a
+ * connection taken from the store's connection pool for as long as it is pushing.
+ *
+ * If the server doesn't support IDLE, or the connection keeps failing, the account is dropped
+ * and {@link MailService} goes back to polling it.
+ */
+public class ImapPushManager {
+    private static final String LOG_TAG = "Email-ImapPush";
+
+    /** How long a single IDLE command is kept running.  RFC 2177 asks for less than 29 minutes */
+    private static final int IDLE_TIMEOUT = 28 * 60 * 1000;
+    /** Delay before reconnecting after an error; doubled after each consecutive error */
+    private static final long RETRY_DELAY = 30 * 1000;
+    /** Number of consecutive errors after which we fall back to polling */
+    private static final int MAX_RETRIES = 5;
+    private static final String[] EMPTY_UIDS = new String[0];
+
+    private static ImapPushManager sInstance;
+
+    private final Context mContext;
+    /** Push threads, by account id */
+    private final HashMap<Long, PushThread> mPushThreads = new HashMap<Long, PushThread>();
+    /** Accounts whose server doesn't support IDLE; we won't try to push them again */
+    private final HashSet<Long> mUnsupportedAccounts = new HashSet<Long>();
+
+    public static synchronized ImapPushManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImapPushManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ImapPushManager(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts pushing the given accounts, and stops pushing any other account.
+     */
+    public synchronized void setPushAccounts(Set<Long> accountIds) {
+        for (Long accountId : new ArrayList<Long>(mPushThreads.keySet())) {
+            if (!accountIds.contains(accountId)) {
+                mPushThreads.remove(accountId).quit();
+            }
+        }
+        mUnsupportedAccounts.retainAll(accountIds);
+        for (Long accountId : accountIds) {
+            if (!mPushThreads.containsKey(accountId)
+                    && !mUnsupportedAccounts.contains(accountId)) {
+                PushThread thread = new PushThread(accountId);
+                mPushThreads.put(accountId, thread);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the account is being pushed, in which case it doesn't need to be polled.
+     */
+    public synchronized boolean isPushing(long accountId) {
+        return mPushThreads.containsKey(accountId);
+    }
+
+    /**
+     * Stops pushing all accounts.
+     */
+    public synchronized void stopAll() {
+        for (PushThread thread : mPushThreads.values()) {
+            thread.quit();
+        }
+        mPushThreads.clear();
+    }
+
+    /**
+     * Called by a push thread that gives up on its account.
+     *
+     * @param unsupported true if the server doesn't support IDLE
+     */
+    private void onPushStopped(PushThread thread, boolean unsupported) {
+        synchronized (this) {
+            if (mPushThreads.get(thread.mAccountId) != thread) {
+                return;
+            }
+            mPushThreads.remove(thread.mAccountId);
+            if (unsupported) {
+                mUnsupportedAccounts.add(thread.mAccountId);
+            }
+        }
+        // Let MailService schedule a poll for the account
+        MailService.actionReschedule(mContext);
+    }
+
+    /**
+     * Idles on the inbox of a single account, and asks {@link MessagingController} to sync what
+     * the server reports as changed.  A thread that is asked to quit drops its connection, which
+     * ends the IDLE command it's blocked in.
+     */
+    private class PushThread extends Thread implements Folder.IdleListener {
+        private final long mAccountId;
+        private volatile boolean mStopped;
+        /** The folder being idled on, if any */
+        private volatile Folder mFolder;
+        /** The number of consecutive errors; only used by the thread itself */
+        private int mFailures;
+
+        // Changes reported by the current IDLE command
+        private Message[] mNewMessages;
+        private Message[] mChangedMessages;
+        private String[] mVanishedUids;
+        private boolean mExpunged;
+
+        PushThread(long accountId) {
+            super("ImapPush-" + accountId);
+            mAccountId = accountId;
+        }
+
+        void quit() {
+            mStopped = true;
+            interrupt();
+            final Folder folder = mFolder;
+            if (folder != null) {
+                folder.abortIdle();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean unsupported = false;
+            try {
+                unsupported = push();
+            } finally {
+                // However the thread ends, the account is polled again, unless it was quit()
+                if (!mStopped) {
+                    onPushStopped(this, unsupported);
+                }
+            }
+        }
+
+        /**
+         * Pushes the account until the thread is asked to quit, or gives up.
+         *
+         * @return true if the thread gave up because the server doesn't support IDLE
+         */
+        private boolean push() {
+            final MessagingController controller =
+                    MessagingController.getInstance(mContext, Controller.getInstance(mContext));
+            while (!mStopped) {
+                Account account = Account.restoreAccountWithId(mContext, mAccountId);
+                Mailbox inbox = Mailbox.restoreMailboxOfType(mContext, mAccountId,
+                        Mailbox.TYPE_INBOX);
+                if (account == null || inbox == null) {
+                    return false;
+                }
+                Folder folder = null;
+                try {
+                    Store store = Store.getInstance(account, mContext);
+                    if (store == null) {
+                        return false;
+                    }
+                    folder = store.getFolder(inbox.mServerId);
+                    // If quit() comes before the folder is opened, the loop below ends at once
+                    mFolder = folder;
+                    folder.open(OpenMode.READ_WRITE);
+                    if (!folder.canIdle()) {
+                        Log.d(LOG_TAG, "IDLE not supported; polling account " + mAccountId);
+                        return true;
+                    }
+                    // Catch up on anything we missed while we weren't idling
+                    controller.synchronizeMailbox(account, inbox, null);
+                    mFailures = 0;
+                    while (!mStopped) {
+                        mNewMessages = Message.EMPTY_ARRAY;
+                        mChangedMessages = Message.EMPTY_ARRAY;
+                        mVanishedUids = EMPTY_UIDS;
+                        mExpunged = false;
+                        if (folder.idle(this, IDLE_TIMEOUT)) {
+                            if (Email.DEBUG) {
+                                Log.d(LOG_TAG, "Changes for account " + mAccountId + ": "
+                                        + mNewMessages.length + " new, " + mChangedMessages.length
+                                        + " changed, " + mVanishedUids.length + " vanished,"
+                                        + " expunged=" + mExpunged);
+                            }
+                            controller.synchronizeMailboxChanges(account, inbox, mNewMessages,
+                                    mChangedMessages, mVanishedUids, mExpunged);
+                        }
+                    }
+                } catch (MessagingException e) {
+                    if (!mStopped && !retryAfter(e)) {
+                        return false;
+                    }
+                } catch (RuntimeException e) {
+                    // Includes the errors of a connection dropped by quit() while it's being used
+                    if (!mStopped && !retryAfter(e)) {
+                        return false;
+                    }
+                } finally {
+                    mFolder = null;
+                    if (folder != null) {
+                        try {
+                            folder.close(false);
+                        } catch (MessagingException e) {
+                            // Nothing to do
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Counts an error, and waits before the next attempt.
+         *
+         * @return false if there were too many consecutive errors, and the thread gives up
+         */
+        private boolean retryAfter(Exception e) {
+            if (++mFailures > MAX_RETRIES) {
+                Log.w(LOG_TAG, "Giving up push for account " + mAccountId + ": " + e);
+                return false;
+            }
+            if (Email.DEBUG) {
+                Log.d(LOG_TAG, "Push error for account " + mAccountId + ": " + e);
+            }
+            try {
+                Thread.sleep(RETRY_DELAY << (mFailures - 1));
+            } catch (InterruptedException ie) {
+                // Loop around; we'll exit if we were asked to quit
+            }
+            return true;
+        }
+
+        @Override
+        public void messagesArrived(Message[] messages) {
+            mNewMessages = messages;
+        }
+
+        @Override
+        public void flagsChanged(Message[] messages) {
+            mChangedMessages = messages;
+        }
+
+        @Override
+        public void messagesExpunged() {
+            mExpunged = true;
+        }
+
+        @Override
+        public void messagesVanished(String[] uids) {
+            mVanishedUids = uids;
+        }
+    }
+}
@@ -50,6 +50,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -78,6 +79,11 @@ public class MailService extends Service {
 
     /** Time between watchdog checks; in milliseconds */
     private static final long WATCHDOG_DELAY = 10 * 60 * 1000;   // 10 minutes
+    /** Time between checks that pushed accounts are still being pushed; in milliseconds */
+    private static final long PUSH_WATCHDOG_DELAY = 30 * 60 * 1000;   // 30 minutes
+    /** Time between checks of a push account that can't be pushed; in minutes */
+    @VisibleForTesting
+    static final int PUSH_FALLBACK_INTERVAL = 15;
 
     /** Sentinel value asking to update mSyncReports if it's currently empty */
     @VisibleForTesting
@@ -288,6 +294,7 @@ public class MailService extends Service {
         AlarmManager alarmMgr = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
         PendingIntent pi = createAlarmIntent(-1, null, false);
         alarmMgr.cancel(pi);
+        ImapPushManager.getInstance(this).stopAll();
     }
 
     /**
@@ -316,13 +323,27 @@ public class MailService extends Service {
     /**
      * Create and send an alarm with the entire list.  This also sends a list of known last-sync
      * times with the alarm, so if we are killed between alarms, we don't lose this info.
+     * IMAP accounts set to push, with auto-sync enabled, are pushed with IDLE rather than polled,
+     * unless their server doesn't support it; they are polled every
+     * {@link #PUSH_FALLBACK_INTERVAL} minutes then.
      *
      * @param alarmMgr passed in so we can mock for testing.
      */
     private void reschedule(AlarmManager alarmMgr) {
         // restore the reports if lost
         setupSyncReports(SYNC_REPORTS_ALL_ACCOUNTS_IF_EMPTY);
+        ImapPushManager pushManager = ImapPushManager.getInstance(this);
         synchronized (mSyncReports) {
+            HashSet<Long> pushAccounts = new HashSet<Long>();
+            if (ContentResolver.getMasterSyncAutomatically()) {
+                for (AccountSyncReport report : mSyncReports.values()) {
+                    if (report.isPush && report.syncEnabled) {
+                        pushAccounts.add(report.accountId);
+                    }
+                }
+            }
+            pushManager.setPushAccounts(pushAccounts);
+
             int numAccounts = mSyncReports.size();
             long[] accountInfo = new long[numAccounts * 2];     // pairs of { accountId, lastSync }
             int accountInfoIndex = 0;
@@ -339,7 +360,10 @@ public class MailService extends Service {
                 long nextSyncTime = report.nextSyncTime;
 
                 // select next account to sync
-                if ((prevSyncTime == 0) || (nextSyncTime < timeNow)) {  // never checked, or overdue
+                if (pushManager.isPushing(report.accountId)) {
+                    // pushed - no timed checks, but still collect its last-sync-time below
+                } else if ((prevSyncTime == 0) || (nextSyncTime < timeNow)) {
+                    // never checked, or overdue
                     nextCheckTime = 0;
                     nextAccount = report;
                 } else if (nextSyncTime < nextCheckTime) {              // next to be checked
@@ -357,11 +381,17 @@ public class MailService extends Service {
                 accountInfo[accountInfoIndex++] = -1;
             }
 
+            // Pushed accounts aren't polled, but if we're killed, so are the push threads.  Wake
+            // up now and then so they can be restarted.
+            if (nextAccount == null && !pushAccounts.isEmpty()) {
+                nextCheckTime = timeNow + PUSH_WATCHDOG_DELAY;
+            }
+
             // set/clear alarm as needed
             long idToCheck = (nextAccount == null) ? -1 : nextAccount.accountId;
             PendingIntent pi = createAlarmIntent(idToCheck, accountInfo, false);
 
-            if (nextAccount == null) {
+            if (nextAccount == null && pushAccounts.isEmpty()) {
                 alarmMgr.cancel(pi);
                 if (Email.DEBUG) {
                     Log.d(LOG_TAG, "reschedule: alarm cancel - no account to check");
@@ -443,6 +473,11 @@ public class MailService extends Service {
         int syncInterval;
         /** If {@code true}, auto sync is enabled. */
         boolean syncEnabled;
+        /**
+         * If {@code true}, this is an IMAP account set to push, which is pushed with IDLE; its
+         * {@link #syncInterval} is the one used when it can't be.
+         */
+        boolean isPush;
 
         /**
          * Sets the next sync time using the previous sync time and sync interval.
@@ -531,6 +566,10 @@ public class MailService extends Service {
                     syncInterval = Account.CHECK_INTERVAL_NEVER;
                 } else if (oneMinuteRefresh && syncInterval >= 0) {
                     syncInterval = 1;
+                } else if (syncInterval == Account.CHECK_INTERVAL_PUSH
+                        && HostAuth.SCHEME_IMAP.equals(account.getProtocol(context))) {
+                    report.isPush = true;
+                    syncInterval = PUSH_FALLBACK_INTERVAL;
                 }
 
                 report.accountId = account.mId;
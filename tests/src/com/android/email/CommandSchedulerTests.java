@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.email.benchmark.Benchmark;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the {@link CommandScheduler} of {@link MessagingController}.
+ */
+@MediumTest
+public class CommandSchedulerTests extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long ACCOUNT_1 = 1;
+    private static final long ACCOUNT_2 = 2;
+    private static final long NO_MAILBOX = CommandScheduler.NO_MAILBOX;
+    private static final int FOREGROUND = CommandScheduler.PRIORITY_FOREGROUND;
+    private static final int USER_REFRESH = CommandScheduler.PRIORITY_USER_REFRESH;
+    private static final int BACKGROUND = CommandScheduler.PRIORITY_BACKGROUND;
+
+    /** Time a simulated server takes to answer a command */
+    private static final long SERVER_LATENCY_MILLIS = 100;
+    /** Time a simulated sync takes per message */
+    private static final long MESSAGE_MILLIS = 10;
+    private static final int SYNC_MESSAGE_COUNT = 50;
+    private static final int LOAD_COUNT = 10;
+
+    private final List<String> mLog = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * A command that logs its start and end, and waits for {@code release} in between.
+     */
+    private Runnable logging(final String name, final CountDownLatch release) {
+        return new Runnable() {
+            public void run() {
+                mLog.add("start " + name);
+                try {
+                    if (release != null) {
+                        release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                mLog.add("end " + name);
+            }
+        };
+    }
+
+    /**
+     * Submits a command that counts {@code done} down, and waits for it.
+     */
+    private static void drain(CommandScheduler scheduler, long lane) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(lane, NO_MAILBOX, BACKGROUND, "drain", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    public void testCommandsOfOneLaneRunInOrder() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 3, 2);
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "c" + i, logging("c" + i, null));
+        }
+        drain(scheduler, ACCOUNT_1);
+        assertEquals("[start c0, end c0, start c1, end c1, start c2, end c2, start c3, end c3,"
+                + " start c4, end c4]", mLog.toString());
+    }
+
+    public void testLanesRunInParallel() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 2, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        // A slow account...
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "slow", logging("slow", release));
+        // ...doesn't hold the other one back
+        drain(scheduler, ACCOUNT_2);
+        assertTrue(scheduler.isBusy());
+        release.countDown();
+        drain(scheduler, ACCOUNT_1);
+        assertEquals("[start slow, end slow]", mLog.toString());
+    }
+
+    public void testMailboxCommandsRunInParallel() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 3, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        for (long mailbox = 10; mailbox <= 11; mailbox++) {
+            final Runnable command = logging("m" + mailbox, release);
+            scheduler.submit(ACCOUNT_1, mailbox, BACKGROUND, "m" + mailbox, new Runnable() {
+                public void run() {
+                    bothStarted.countDown();
+                    command.run();
+                }
+            });
+        }
+        // Waits for both mailboxes
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "all", logging("all", null));
+
+        assertTrue(bothStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(mLog.contains("start all"));
+        release.countDown();
+        drain(scheduler, ACCOUNT_1);
+        assertEquals("start all", mLog.get(4));
+        assertEquals("end all", mLog.get(5));
+    }
+
+    public void testMailboxCommandsLimits() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 3, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+        // Two commands for each of three mailboxes: at most 2 run at once, never for the same
+        // mailbox
+        final boolean[] mailboxRunning = new boolean[3];
+        final AtomicInteger sameMailboxOverlaps = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            final int mailbox = i % 3;
+            scheduler.submit(ACCOUNT_1, mailbox, BACKGROUND, "m" + mailbox, new Runnable() {
+                public void run() {
+                    synchronized (mailboxRunning) {
+                        if (mailboxRunning[mailbox]) {
+                            sameMailboxOverlaps.incrementAndGet();
+                        }
+                        mailboxRunning[mailbox] = true;
+                    }
+                    final int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    SystemClock.sleep(20);
+                    running.decrementAndGet();
+                    synchronized (mailboxRunning) {
+                        mailboxRunning[mailbox] = false;
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        assertEquals(0, sameMailboxOverlaps.get());
+    }
+
+    public void testFailingCommandDoesNotStopTheLane() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 1, 2);
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "fail", new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Expected");
+            }
+        });
+        drain(scheduler, ACCOUNT_1);
+        assertFalse(scheduler.hasPendingCommands());
+    }
+
+    public void testMostUrgentCommandsRunFirst() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch gateStarted = new CountDownLatch(1);
+        final Runnable gate = logging("gate", release);
+        scheduler.submit(3, NO_MAILBOX, BACKGROUND, "gate", new Runnable() {
+            public void run() {
+                gateStarted.countDown();
+                gate.run();
+            }
+        });
+        // Queue the others while the only worker is busy
+        assertTrue(gateStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "sync", logging("sync", null));
+        scheduler.submit(ACCOUNT_2, NO_MAILBOX, USER_REFRESH, "refresh", logging("refresh", null));
+        // Within a lane, too
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, FOREGROUND, "load", logging("load", null));
+        release.countDown();
+        drain(scheduler, ACCOUNT_1);
+        drain(scheduler, ACCOUNT_2);
+        assertEquals("[start gate, end gate, start load, end load, start refresh, end refresh,"
+                + " start sync, end sync]", mLog.toString());
+    }
+
+    public void testYieldToUrgentCommands() throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 1, 2);
+        final CountDownLatch syncStarted = new CountDownLatch(1);
+        final CountDownLatch loadSubmitted = new CountDownLatch(1);
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "sync", new Runnable() {
+            public void run() {
+                syncStarted.countDown();
+                mLog.add("message 1");
+                try {
+                    loadSubmitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                scheduler.yieldToUrgentCommands();
+                mLog.add("message 2");
+                // Nothing more urgent left
+                scheduler.yieldToUrgentCommands();
+                mLog.add("message 3");
+            }
+        });
+        assertTrue(syncStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        scheduler.submit(ACCOUNT_2, NO_MAILBOX, FOREGROUND, "load", logging("load", null));
+        scheduler.submit(ACCOUNT_2, NO_MAILBOX, BACKGROUND, "sync 2", logging("sync 2", null));
+        loadSubmitted.countDown();
+        drain(scheduler, ACCOUNT_1);
+        drain(scheduler, ACCOUNT_2);
+        assertEquals("[message 1, start load, end load, message 2, message 3, start sync 2,"
+                + " end sync 2]", mLog.toString());
+
+        // Outside of a command, it does nothing
+        scheduler.yieldToUrgentCommands();
+    }
+
+    /**
+     * Loads {@link #LOAD_COUNT} messages for view while the only worker syncs a large mailbox,
+     * and returns how long each load waited to be started, sorted.
+     */
+    private static long[] measureLoadLatencies(final boolean syncYields) throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", 1, 2);
+        final CountDownLatch syncStarted = new CountDownLatch(1);
+        scheduler.submit(ACCOUNT_1, NO_MAILBOX, BACKGROUND, "sync", new Runnable() {
+            public void run() {
+                syncStarted.countDown();
+                for (int i = 0; i < SYNC_MESSAGE_COUNT; i++) {
+                    SystemClock.sleep(MESSAGE_MILLIS);
+                    if (syncYields) {
+                        scheduler.yieldToUrgentCommands();
+                    }
+                }
+            }
+        });
+        assertTrue(syncStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final long[] latencies = new long[LOAD_COUNT];
+        final CountDownLatch loaded = new CountDownLatch(LOAD_COUNT);
+        for (int i = 0; i < LOAD_COUNT; i++) {
+            final int load = i;
+            final long submitted = SystemClock.elapsedRealtime();
+            scheduler.submit(ACCOUNT_2, NO_MAILBOX, FOREGROUND, "load", new Runnable() {
+                public void run() {
+                    latencies[load] = SystemClock.elapsedRealtime() - submitted;
+                    loaded.countDown();
+                }
+            });
+            SystemClock.sleep(SYNC_MESSAGE_COUNT * MESSAGE_MILLIS / (2 * LOAD_COUNT));
+        }
+        assertTrue(loaded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * Loading the message being viewed doesn't wait for a background sync that yields.
+     */
+    public void testLoadLatencyUnderBackgroundSync() throws Exception {
+        final long[] fifo = measureLoadLatencies(false);
+        final long[] yielding = measureLoadLatencies(true);
+        Log.i(Benchmark.LOG_TAG, "loadMessageForView latency under background sync: p50 "
+                + percentile(fifo, 50) + " ms, p99 " + percentile(fifo, 99)
+                + " ms without yielding; p50 " + percentile(yielding, 50) + " ms, p99 "
+                + percentile(yielding, 99) + " ms when yielding");
+        // Without yielding, the loads wait for the end of the sync
+        assertTrue(percentile(fifo, 50) >= SYNC_MESSAGE_COUNT * MESSAGE_MILLIS / 4);
+        // When yielding, for the end of the message being synced
+        assertTrue(percentile(yielding, 99) < SYNC_MESSAGE_COUNT * MESSAGE_MILLIS / 4);
+    }
+
+    /**
+     * Checks mail for {@code accountCount} accounts, each one a listFolders and a checkMail
+     * command that wait for a slow server, and returns how long it took.
+     */
+    private static long timeCheckMail(int workerCount, int accountCount) throws Exception {
+        final CommandScheduler scheduler = new CommandScheduler("test", workerCount, 2);
+        final CountDownLatch done = new CountDownLatch(accountCount * 2);
+        final Runnable serverCommand = new Runnable() {
+            public void run() {
+                SystemClock.sleep(SERVER_LATENCY_MILLIS);
+                done.countDown();
+            }
+        };
+        final long start = SystemClock.elapsedRealtime();
+        for (long account = 1; account <= accountCount; account++) {
+            scheduler.submit(account, NO_MAILBOX, BACKGROUND, "listFolders", serverCommand);
+            scheduler.submit(account, NO_MAILBOX, BACKGROUND, "checkMail", serverCommand);
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * The wall-clock time of a mail check of several accounts goes down with the number of
+     * workers.
+     */
+    public void testCheckMailWallClock() throws Exception {
+        final int accounts = 3;
+        final long serial = timeCheckMail(1, accounts);
+        final long parallel = timeCheckMail(accounts, accounts);
+        Log.i(Benchmark.LOG_TAG, "checkMail of " + accounts + " accounts: " + serial
+                + " ms with 1 worker, " + parallel + " ms with " + accounts + " workers");
+        assertTrue(serial >= accounts * 2 * SERVER_LATENCY_MILLIS);
+        assertTrue(parallel < serial / 2);
+    }
+}
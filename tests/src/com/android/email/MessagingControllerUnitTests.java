@@ -16,14 +16,24 @@
 
 package com.android.email;
 
+import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.mail.MockFolder;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.provider.Mailbox;
 
 import android.content.ContentUris;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This is a series of unit tests for the MessagingController class.
  * 
@@ -81,5 +91,85 @@ public class MessagingControllerUnitTests extends AndroidTestCase {
         
         mAccountId = mAccount.mId;
     }
+
+    /**
+     * Create a dummy account whose incoming server uses {@code protocol}
+     */
+    private void createTestAccount(String protocol) {
+        mAccount = ProviderTestUtils.setupAccount("controller", false, getContext());
+        HostAuth auth = new HostAuth();
+        auth.setLogin("user", "password");
+        auth.setConnection(protocol, "server", 999);
+        mAccount.mHostAuthRecv = auth;
+        mAccount.save(getContext());
+
+        mAccountId = mAccount.mId;
+    }
+
+    public void testUserLoadLane() {
+        MessagingController controller = new MessagingController(getContext(), null);
+        createTestAccount(HostAuth.SCHEME_IMAP);
+        assertEquals(MessagingController.LANE_USER_LOADS,
+                controller.getUserLoadLane(mAccountId));
+
+        getContext().getContentResolver().delete(
+                ContentUris.withAppendedId(Account.CONTENT_URI, mAccountId), null, null);
+        createTestAccount(HostAuth.SCHEME_POP3);
+        assertEquals(mAccountId, controller.getUserLoadLane(mAccountId));
+    }
+
+    /**
+     * A POP3 store has a single connection (see Pop3StoreUnitTests#testSingleConnection), which
+     * a load mustn't use while the sync of the account is using it: the load waits for the sync.
+     * The message is already loaded, so that the load completes without the server.
+     */
+    public void testPop3LoadWaitsForSync() throws Exception {
+        createTestAccount(HostAuth.SCHEME_POP3);
+        Mailbox inbox = ProviderTestUtils.setupMailbox("INBOX", mAccountId, true, getContext(),
+                Mailbox.TYPE_INBOX);
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, inbox.mId,
+                false, false, getContext());
+        message.mFlagLoaded = Message.FLAG_LOADED_COMPLETE;
+        message.save(getContext());
+
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch syncStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSync = new CountDownLatch(1);
+        final CountDownLatch loadDone = new CountDownLatch(1);
+        MessagingController controller = new MessagingController(getContext(), null);
+        controller.addListener(new MessagingListener() {
+            @Override
+            public void loadMessageForViewFinished(long messageId) {
+                log.add("load");
+                loadDone.countDown();
+            }
+
+            @Override
+            public void loadMessageForViewFailed(long messageId, String message) {
+                log.add("load");
+                loadDone.countDown();
+            }
+        });
+        controller.put("sync", mAccountId, CommandScheduler.PRIORITY_BACKGROUND, null,
+                new Runnable() {
+            public void run() {
+                try {
+                    syncStarted.countDown();
+                    // The sync is using the connection
+                    releaseSync.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                log.add("sync");
+            }
+        });
+        assertTrue(syncStarted.await(5, TimeUnit.SECONDS));
+
+        controller.loadMessageForView(message.mId, null);
+        assertFalse(loadDone.await(500, TimeUnit.MILLISECONDS));
+        releaseSync.countDown();
+        assertTrue(loadDone.await(5, TimeUnit.SECONDS));
+        assertEquals("[sync, load]", log.toString());
+    }
     
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.email.PendingChangePlanner.Batch;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link PendingChangePlanner}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.PendingChangePlannerTests email
+ */
+@SmallTest
+public class PendingChangePlannerTests extends TestCase {
+    private static Mailbox createMailbox(long id) {
+        Mailbox mailbox = new Mailbox();
+        mailbox.mId = id;
+        mailbox.mServerId = "box" + id;
+        return mailbox;
+    }
+
+    private static Message createMessage(long id) {
+        Message message = new Message();
+        message.mId = id;
+        message.mServerId = Long.toString(100 + id);
+        return message;
+    }
+
+    /**
+     * Marking 500 messages read offline replays as one batch, i.e. one command.
+     */
+    public void testSameChangesAreBatched() {
+        PendingChangePlanner planner = new PendingChangePlanner();
+        Mailbox inbox = createMailbox(1);
+        for (int i = 0; i < 500; i++) {
+            Message message = createMessage(i);
+            planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message,
+                    message.mServerId);
+        }
+        List<Batch> batches = planner.getBatches();
+        assertEquals(1, batches.size());
+        assertEquals(500, batches.get(0).size());
+        assertEquals("100", batches.get(0).getChanges().get(0).mServerId);
+    }
+
+    /**
+     * Changes of different mailboxes, operations or values go to different batches.
+     */
+    public void testDifferentChangesAreNotBatched() {
+        PendingChangePlanner planner = new PendingChangePlanner();
+        Mailbox inbox = createMailbox(1);
+        Mailbox other = createMailbox(2);
+        Mailbox trash = createMailbox(3);
+        Message message1 = createMessage(1);
+        Message message2 = createMessage(2);
+        Message message3 = createMessage(3);
+        Message message4 = createMessage(4);
+        Message message5 = createMessage(5);
+
+        planner.addChange(inbox, PendingChangePlanner.OP_MOVE_TO_TRASH, trash, message1, "101");
+        planner.addFlagChange(other, PendingChangePlanner.OP_SET_SEEN, true, message2, "102");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, false, message3, "103");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message4, "104");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_FLAGGED, true, message4, "104");
+        planner.addChange(inbox, PendingChangePlanner.OP_MOVE, other, message5, "105");
+        planner.addChange(inbox, PendingChangePlanner.OP_MOVE_TO_TRASH, trash, message5, "105");
+
+        // By mailbox, in the order they were first seen, then by operation
+        List<Batch> batches = planner.getBatches();
+        assertEquals(6, batches.size());
+        assertEquals(inbox, batches.get(0).mMailbox);
+        assertEquals(PendingChangePlanner.OP_SET_SEEN, batches.get(0).mOperation);
+        assertEquals(PendingChangePlanner.OP_SET_SEEN, batches.get(1).mOperation);
+        assertTrue(batches.get(0).mValue != batches.get(1).mValue);
+        assertEquals(PendingChangePlanner.OP_SET_FLAGGED, batches.get(2).mOperation);
+        assertEquals(PendingChangePlanner.OP_MOVE, batches.get(3).mOperation);
+        assertEquals(other, batches.get(3).mTargetMailbox);
+        assertEquals(PendingChangePlanner.OP_MOVE_TO_TRASH, batches.get(4).mOperation);
+        assertEquals(2, batches.get(4).size());
+        assertEquals(other, batches.get(5).mMailbox);
+    }
+
+    /**
+     * A flag change that undoes a planned one cancels it.
+     */
+    public void testTogglesCancelOut() {
+        PendingChangePlanner planner = new PendingChangePlanner();
+        Mailbox inbox = createMailbox(1);
+        Message message1 = createMessage(1);
+        Message message2 = createMessage(2);
+
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message1, "101");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message2, "102");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, false, message1, "101");
+        // The same change twice is planned once
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message2, "102");
+
+        List<Batch> batches = planner.getBatches();
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertFalse(planner.isPending(1));
+        assertTrue(planner.isPending(2));
+
+        // Both ways, the batch disappears
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, false, message2, "102");
+        assertEquals(0, planner.getBatches().size());
+        assertFalse(planner.isPending(2));
+    }
+
+    /**
+     * A message is finished once all of its batches are.
+     */
+    public void testFinish() {
+        PendingChangePlanner planner = new PendingChangePlanner();
+        Mailbox inbox = createMailbox(1);
+        Mailbox other = createMailbox(2);
+        Message message1 = createMessage(1);
+        Message message2 = createMessage(2);
+
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message1, "101");
+        planner.addFlagChange(inbox, PendingChangePlanner.OP_SET_SEEN, true, message2, "102");
+        planner.addChange(inbox, PendingChangePlanner.OP_MOVE, other, message2, "102");
+
+        List<Batch> batches = planner.getBatches();
+        assertEquals(2, batches.size());
+        List<Long> finished = planner.finish(batches.get(0));
+        assertEquals(1, finished.size());
+        assertEquals(1L, (long) finished.get(0));
+        assertFalse(planner.isPending(1));
+        assertTrue(planner.isPending(2));
+
+        finished = planner.finish(batches.get(1));
+        assertEquals(1, finished.size());
+        assertEquals(2L, (long) finished.get(0));
+        assertFalse(planner.isPending(2));
+    }
+}
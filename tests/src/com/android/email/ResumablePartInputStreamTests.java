@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.MockFolder;
+import com.android.emailcommon.utility.Utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Tests of {@link ResumablePartInputStream}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.ResumablePartInputStreamTests email
+ */
+@SmallTest
+public class ResumablePartInputStreamTests extends AndroidTestCase {
+    private static final String CONTENT = "0123456789";
+
+    private File mPartialFile;
+    private final ArrayList<Long> mSavedLengths = new ArrayList<Long>();
+
+    private final ResumablePartInputStream.ProgressListener mListener =
+            new ResumablePartInputStream.ProgressListener() {
+        @Override
+        public void onChunkSaved(long savedLength) {
+            mSavedLengths.add(savedLength);
+        }
+    };
+
+    /**
+     * Serves the ranges of {@link #CONTENT}, and fails once it has served
+     * {@link #mFailAfter} of them.
+     */
+    private static class RangeFolder extends MockFolder {
+        final ArrayList<Long> mOffsets = new ArrayList<Long>();
+        int mFailAfter = Integer.MAX_VALUE;
+
+        @Override
+        public int fetchPartRange(String uid, String partId, long offset, int length,
+                OutputStream out) throws MessagingException {
+            if (mOffsets.size() == mFailAfter) {
+                throw new MessagingException(MessagingException.IOERROR);
+            }
+            mOffsets.add(offset);
+            final int end = (int) Math.min(CONTENT.length(), offset + length);
+            final byte[] range = Utility.toUtf8(CONTENT.substring((int) offset, end));
+            try {
+                out.write(range);
+            } catch (IOException e) {
+                throw new MessagingException("write", e);
+            }
+            return range.length;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPartialFile = new File(getContext().getCacheDir(), "test.partial");
+        mPartialFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPartialFile.delete();
+        super.tearDown();
+    }
+
+    private String readFully(ResumablePartInputStream in) throws IOException {
+        try {
+            return Utility.fromUtf8(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testChunks() throws Exception {
+        final RangeFolder folder = new RangeFolder();
+        final ResumablePartInputStream in = new ResumablePartInputStream(folder, "1", "2",
+                mPartialFile, 4, mListener);
+
+        assertEquals(CONTENT, readFully(in));
+        assertEquals(3, folder.mOffsets.size());
+        assertEquals(8L, (long) folder.mOffsets.get(2));
+        assertEquals(3, mSavedLengths.size());
+        assertEquals(10L, (long) mSavedLengths.get(2));
+        assertEquals(10, in.getSavedLength());
+        assertEquals(10, mPartialFile.length());
+    }
+
+    public void testResume() throws Exception {
+        // The first attempt fails after the first chunk
+        RangeFolder folder = new RangeFolder();
+        folder.mFailAfter = 1;
+        ResumablePartInputStream in = new ResumablePartInputStream(folder, "1", "2",
+                mPartialFile, 4, mListener);
+        try {
+            readFully(in);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof MessagingException);
+        }
+        assertEquals(1, mSavedLengths.size());
+        assertEquals(4L, (long) mSavedLengths.get(0));
+
+        assertEquals(4, mPartialFile.length());
+
+        // The second attempt only fetches the chunks not saved yet
+        folder = new RangeFolder();
+        in = new ResumablePartInputStream(folder, "1", "2", mPartialFile, 4, mListener);
+        assertEquals(CONTENT, readFully(in));
+        assertEquals(2, folder.mOffsets.size());
+        assertEquals(4L, (long) folder.mOffsets.get(0));
+        assertEquals(10, mPartialFile.length());
+    }
+
+    public void testResumePartlyWrittenChunk() throws Exception {
+        // The beginning of a chunk whose write was interrupted is kept
+        final FileOutputStream out = new FileOutputStream(mPartialFile);
+        out.write(Utility.toUtf8(CONTENT.substring(0, 6)));
+        out.close();
+
+        final RangeFolder folder = new RangeFolder();
+        final ResumablePartInputStream in = new ResumablePartInputStream(folder, "1", "2",
+                mPartialFile, 4, mListener);
+        assertEquals(CONTENT, readFully(in));
+        assertEquals(1, folder.mOffsets.size());
+        assertEquals(6L, (long) folder.mOffsets.get(0));
+        assertEquals(10, mPartialFile.length());
+    }
+}
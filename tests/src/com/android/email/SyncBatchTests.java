@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Tests of {@link SyncBatch}, which also measure the number of provider transactions and change
+ * notifications that a sync costs.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.SyncBatchTests email
+ */
+@MediumTest
+public class SyncBatchTests extends ProviderTestCase2<EmailProvider> {
+    private static final int MESSAGE_COUNT = 1000;
+
+    private Context mMockContext;
+    private ContentResolver mResolver;
+    private EmailProvider mProvider;
+
+    public SyncBatchTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        mProvider = getProvider();
+        // Count the notifications of each batch, without debouncing them across batches
+        mProvider.setNotificationDebounceDelay(0);
+    }
+
+    /**
+     * Test that inserted content gets its id, and that updates and deletes are applied.
+     */
+    public void testInsertUpdateDelete() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message message = ProviderTestUtils.setupMessage("message", account.mId, mailbox.mId,
+                false, false, mMockContext);
+
+        SyncBatch batch = new SyncBatch(mResolver);
+        batch.insert(message);
+        // Nothing is written until the batch is applied
+        assertFalse(message.isSaved());
+        assertEquals(0, batch.getBatchCount());
+        batch.flush();
+        assertTrue(message.isSaved());
+        assertEquals(1, batch.getBatchCount());
+
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, false);
+        batch.update(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv);
+        batch.flush();
+        assertFalse(Message.restoreMessageWithId(mMockContext, message.mId).mFlagRead);
+
+        batch.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId));
+        batch.flush();
+        assertNull(Message.restoreMessageWithId(mMockContext, message.mId));
+
+        // Flushing an empty batch does nothing
+        batch.flush();
+        assertEquals(3, batch.getBatchCount());
+    }
+
+    /**
+     * Test that a batch is applied as soon as it is full.
+     */
+    public void testMaxOperations() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+
+        SyncBatch batch = new SyncBatch(mResolver, 2);
+        Message[] messages = new Message[3];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = ProviderTestUtils.setupMessage("message" + i, account.mId, mailbox.mId,
+                    false, false, mMockContext);
+            batch.insert(messages[i]);
+        }
+        assertEquals(1, batch.getBatchCount());
+        assertTrue(messages[0].isSaved());
+        assertTrue(messages[1].isSaved());
+        assertFalse(messages[2].isSaved());
+        batch.flush();
+        assertTrue(messages[2].isSaved());
+    }
+
+    /**
+     * Test that a failing operation only loses itself: the rest of its batch is applied.
+     */
+    public void testFailedOperation() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message message1 = ProviderTestUtils.setupMessage("message1", account.mId, mailbox.mId,
+                false, false, mMockContext);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account.mId, mailbox.mId,
+                false, false, mMockContext);
+
+        SyncBatch batch = new SyncBatch(mResolver);
+        batch.insert(message1);
+        // The update of a row that doesn't exist, which is expected to update one
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, true);
+        batch.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Message.CONTENT_URI, 987654321L))
+                .withValues(cv).withExpectedCount(1).build());
+        batch.insert(message2);
+        batch.flush();
+
+        assertTrue(message1.isSaved());
+        assertTrue(message2.isSaved());
+        assertNotNull(Message.restoreMessageWithId(mMockContext, message1.mId));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, message2.mId));
+        assertEquals(1, batch.getBatchCount());
+        assertEquals(1, batch.getFailureCount());
+    }
+
+    /**
+     * Measures the transactions and notifications of the writes of a 1,000 message sync: the
+     * insertion of the new messages, an update of their flags, and their removal (with their
+     * updated & deleted rows), as MessagingController does them.  Written one at a time, each
+     * of the 5,000 writes costs a transaction and two notifications (the message notifier and
+     * the content URI).
+     */
+    public void testSyncTransactionsAndNotifications() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message[] messages = new Message[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages[i] = ProviderTestUtils.setupMessage("message" + i, account.mId, mailbox.mId,
+                    false, false, mMockContext);
+        }
+
+        // One write on its own, for comparison
+        Message single = ProviderTestUtils.setupMessage("single", account.mId, mailbox.mId,
+                false, true, mMockContext);
+        int transactions = mProvider.getTransactionCount();
+        int notifications = mProvider.getNotificationCount();
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, false);
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, single.mId), cv, null,
+                null);
+        assertEquals(1, mProvider.getTransactionCount() - transactions);
+        assertEquals(2, mProvider.getNotificationCount() - notifications);
+
+        transactions = mProvider.getTransactionCount();
+        notifications = mProvider.getNotificationCount();
+        SyncBatch batch = new SyncBatch(mResolver);
+        for (Message message : messages) {
+            batch.insert(message);
+        }
+        batch.flush();
+        for (Message message : messages) {
+            assertTrue(message.isSaved());
+            batch.update(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv);
+        }
+        batch.flush();
+        for (Message message : messages) {
+            batch.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId));
+            batch.delete(ContentUris.withAppendedId(Message.UPDATED_CONTENT_URI, message.mId));
+            batch.delete(ContentUris.withAppendedId(Message.DELETED_CONTENT_URI, message.mId));
+        }
+        batch.flush();
+
+        // 5,000 operations in batches of 100
+        final int batches = 5 * MESSAGE_COUNT / SyncBatch.DEFAULT_MAX_OPERATIONS;
+        assertEquals(batches, batch.getBatchCount());
+        assertEquals(batches, mProvider.getTransactionCount() - transactions);
+        assertEquals(2 * batches, mProvider.getNotificationCount() - notifications);
+        assertEquals(1, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=" + mailbox.mId, null));
+    }
+}
@@ -63,7 +63,7 @@ public class AccountSetupOptionsTests
     }
 
     /**
-     * Test that IMAP accounts aren't displayed with a push option
+     * Test that IMAP accounts are displayed with a push option
      */
     public void testPushOptionIMAP()
             throws URISyntaxException {
@@ -73,7 +73,7 @@ public class AccountSetupOptionsTests
         getActivityAndFields();
 
         boolean hasPush = frequencySpinnerHasValue(Account.CHECK_INTERVAL_PUSH);
-        assertFalse(hasPush);
+        assertTrue(hasPush);
     }
 
     /**
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.benchmark;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A minimal microbenchmark harness.
+ *
+ * A workload is first run for {@link #WARMUP_MILLIS}, so that it's compiled, then timed for at
+ * least {@link #MEASURE_MILLIS}.  Its allocations are counted over a separate, shorter run,
+ * since counting them slows the allocator down.  The results are logged with the
+ * {@link #LOG_TAG} tag, e.g.
+ *
+ *   adb logcat -s EmailBenchmark
+ */
+public class Benchmark {
+    public static final String LOG_TAG = "EmailBenchmark";
+
+    private static final long WARMUP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 2000;
+    private static final int MIN_ITERATIONS = 10;
+    private static final int ALLOC_ITERATIONS = 10;
+
+    /**
+     * Keeps the results of the workloads, so that they can't be optimized away.
+     */
+    private static volatile int sSink;
+
+    /**
+     * One iteration of the code being measured.
+     */
+    public interface Workload {
+        /**
+         * Runs one iteration, and returns a value that depends on its result.
+         */
+        int run() throws Exception;
+    }
+
+    /**
+     * What was measured of a workload.
+     */
+    public static class Result {
+        public final String mName;
+        public final String mUnit;
+        public final int mIterations;
+        public final long mElapsedNanos;
+        public final long mBytesPerIteration;
+        public final int mUnitsPerIteration;
+        public final long mAllocCountPerIteration;
+        public final long mAllocBytesPerIteration;
+
+        private Result(String name, String unit, int iterations, long elapsedNanos,
+                long bytesPerIteration, int unitsPerIteration, long allocCountPerIteration,
+                long allocBytesPerIteration) {
+            mName = name;
+            mUnit = unit;
+            mIterations = iterations;
+            mElapsedNanos = elapsedNanos;
+            mBytesPerIteration = bytesPerIteration;
+            mUnitsPerIteration = unitsPerIteration;
+            mAllocCountPerIteration = allocCountPerIteration;
+            mAllocBytesPerIteration = allocBytesPerIteration;
+        }
+
+        private double getSeconds() {
+            return mElapsedNanos / 1e9;
+        }
+
+        /** Input processed per second, in MB */
+        public double getMegabytesPerSecond() {
+            return (double) mBytesPerIteration * mIterations / (1024 * 1024) / getSeconds();
+        }
+
+        /** Units (messages, responses, addresses...) processed per second */
+        public double getUnitsPerSecond() {
+            return (double) mUnitsPerIteration * mIterations / getSeconds();
+        }
+
+        /** Bytes allocated per input byte */
+        public double getAllocBytesPerInputByte() {
+            return (mBytesPerIteration == 0) ? 0
+                    : (double) mAllocBytesPerIteration / mBytesPerIteration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.2f MB/s, %.0f %s/s, %d allocs (%d bytes, %.2f per byte)"
+                    + " per iteration, %d iterations",
+                    mName, getMegabytesPerSecond(), getUnitsPerSecond(), mUnit,
+                    mAllocCountPerIteration, mAllocBytesPerIteration,
+                    getAllocBytesPerInputByte(), mIterations);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Measures {@code workload}, which processes {@code bytesPerIteration} bytes of input, made of
+     * {@code unitsPerIteration} {@code unit}s, in each iteration.
+     */
+    public static Result run(String name, long bytesPerIteration, int unitsPerIteration,
+            String unit, Workload workload) throws Exception {
+        // Warm up
+        long end = SystemClock.uptimeMillis() + WARMUP_MILLIS;
+        while (SystemClock.uptimeMillis() < end) {
+            sSink += workload.run();
+        }
+
+        // Measure the throughput
+        int iterations = 0;
+        final long start = System.nanoTime();
+        end = SystemClock.uptimeMillis() + MEASURE_MILLIS;
+        while (iterations < MIN_ITERATIONS || SystemClock.uptimeMillis() < end) {
+            sSink += workload.run();
+            iterations++;
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // Count the allocations
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        try {
+            for (int i = 0; i < ALLOC_ITERATIONS; i++) {
+                sSink += workload.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final long allocCount = Debug.getThreadAllocCount() / ALLOC_ITERATIONS;
+        final long allocSize = Debug.getThreadAllocSize() / ALLOC_ITERATIONS;
+
+        final Result result = new Result(name, unit, iterations, elapsed, bytesPerIteration,
+                unitsPerIteration, allocCount, allocSize);
+        Log.i(LOG_TAG, result.toString());
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.benchmark;
+
+import com.android.emailcommon.utility.Utility;
+
+import android.util.Base64;
+
+import java.util.Random;
+
+/**
+ * The input of the parser benchmarks: synthetic FETCH responses and RFC 822 messages, generated
+ * from a fixed seed so that runs can be compared, and samples taken from real mail, with the
+ * names, addresses and hosts anonymized.
+ */
+public class BenchmarkCorpus {
+    private static final long SEED = 822;
+
+    private static final String[] WORDS = {
+        "the", "meeting", "agenda", "quarterly", "report", "please", "review", "attached",
+        "thanks", "schedule", "tomorrow", "update", "project", "budget", "deadline", "team",
+        "follow-up", "regarding", "proposal", "draft", "comments", "\u00dcbersicht",
+        "caf\u00e9", "\u65e5\u7a0b",
+    };
+
+    /** Headers of a message sent through a large provider, anonymized */
+    public static final String REAL_WORLD_HEADERS =
+            "Delivered-To: user@example.com\r\n" +
+            "Received: by 10.0.0.1 with SMTP id a1csp123456;\r\n" +
+            "        Tue, 14 Feb 2012 09:12:34 -0800 (PST)\r\n" +
+            "Received: from mail-out.example.net (mail-out.example.net. [192.0.2.10])\r\n" +
+            "        by mx.example.com with ESMTPS id x1si123456abc.12.2012.02.14.09.12.33\r\n" +
+            "        (version=TLSv1/SSLv3 cipher=OTHER);\r\n" +
+            "        Tue, 14 Feb 2012 09:12:33 -0800 (PST)\r\n" +
+            "DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed; d=example.net; s=20120113;\r\n" +
+            "        h=mime-version:date:message-id:subject:from:to:content-type;\r\n" +
+            "        bh=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=;\r\n" +
+            "        b=Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4\r\n" +
+            "         Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4Zm9vYmFyYmF6cXV4\r\n" +
+            "MIME-Version: 1.0\r\n" +
+            "Date: Tue, 14 Feb 2012 18:12:32 +0100\r\n" +
+            "Message-ID: <CAB1x2y3z4=abcdefGHIJKL@mail.example.net>\r\n" +
+            "Subject: =?UTF-8?Q?R=C3=A9union_de_l=27=C3=A9quipe_=E2=80=93_ordre_du_jour?=\r\n" +
+            " =?UTF-8?Q?_et_documents?=\r\n" +
+            "From: =?UTF-8?B?SsOpcsO0bWUgRHVwb250?= <sender@example.net>\r\n" +
+            "To: \"Alice Example\" <alice@example.com>, bob@example.com,\r\n" +
+            "        \"Carol, Team Lead\" <carol@example.org>\r\n" +
+            "Cc: Dave <dave@example.com>\r\n" +
+            "Content-Type: multipart/alternative; boundary=e89a8f234a8b1c2d3e04b8f5c1a2\r\n";
+
+    /** Address lists as they appear in real headers, anonymized */
+    public static final String[] REAL_WORLD_ADDRESS_LISTS = {
+        "\"Alice Example\" <alice@example.com>, bob@example.com, " +
+                "\"Carol, Team Lead\" <carol@example.org>",
+        "=?UTF-8?B?SsOpcsO0bWUgRHVwb250?= <sender@example.net>",
+        "Dave <dave@example.com>; eve@example.com",
+        "\"Support (no reply)\" <no-reply+12345@notifications.example.com>",
+        "undisclosed-recipients:;",
+    };
+
+    /** Folded and encoded header values, as they appear in real headers, anonymized */
+    public static final String[] REAL_WORLD_ENCODED_HEADERS = {
+        "=?UTF-8?Q?R=C3=A9union_de_l=27=C3=A9quipe_=E2=80=93_ordre_du_jour?=\r\n" +
+                " =?UTF-8?Q?_et_documents?=",
+        "=?ISO-8859-1?Q?Caf=E9_cr=E8me?= tomorrow",
+        "=?UTF-8?B?5LuK5pel44Gu5LqI5a6a?=",
+        "Re: [project] Weekly status\r\n update for the\r\n\tteam",
+        "=?windows-1252?Q?Quarterly_report_=96_draft?=",
+    };
+
+    private final Random mRandom = new Random(SEED);
+
+    private String words(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns {@code size} bytes of random binary data, e.g. for an attachment.
+     */
+    public byte[] binary(int size) {
+        final byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Returns {@code data} encoded in base64, in lines of 76 characters.
+     */
+    public static String base64(byte[] data) {
+        return Utility.fromAscii(Base64.encode(data, Base64.CRLF));
+    }
+
+    /**
+     * Returns {@code lines} lines of text, encoded in quoted-printable, with soft line breaks and
+     * encoded non-ASCII characters.
+     */
+    public String quotedPrintable(int lines) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            final String line = words(8 + mRandom.nextInt(8));
+            int column = 0;
+            for (byte b : Utility.toUtf8(line)) {
+                final int c = b & 0xff;
+                final String encoded;
+                if (c >= 33 && c <= 126 && c != '=') {
+                    encoded = String.valueOf((char) c);
+                } else if (c == ' ') {
+                    encoded = " ";
+                } else {
+                    encoded = String.format("=%02X", c);
+                }
+                if (column + encoded.length() > 75) {
+                    sb.append("=\r\n");
+                    column = 0;
+                }
+                sb.append(encoded);
+                column += encoded.length();
+            }
+            sb.append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a multipart/mixed message made of a quoted-printable text/plain part of
+     * {@code textLines} lines, and a base64 attachment of {@code attachmentSize} bytes (if not 0).
+     */
+    public String message(int index, int textLines, int attachmentSize) {
+        final StringBuilder sb = new StringBuilder();
+        final String boundary = "----=_Part_" + index + "_" + mRandom.nextInt(1000000);
+        sb.append("From: \"Sender ").append(index).append("\" <sender").append(index)
+                .append("@example.com>\r\n");
+        sb.append("To: \"Recipient\" <recipient@example.com>, other@example.org\r\n");
+        sb.append("Subject: ").append(words(6)).append("\r\n");
+        sb.append("Date: Tue, 14 Feb 2012 09:12:33 -0800\r\n");
+        sb.append("Message-ID: <").append(index).append(".benchmark@example.com>\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        sb.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n");
+        sb.append("\r\n");
+        sb.append("--").append(boundary).append("\r\n");
+        sb.append("Content-Type: text/plain; charset=UTF-8\r\n");
+        sb.append("Content-Transfer-Encoding: quoted-printable\r\n");
+        sb.append("\r\n");
+        sb.append(quotedPrintable(textLines));
+        if (attachmentSize > 0) {
+            sb.append("--").append(boundary).append("\r\n");
+            sb.append("Content-Type: application/octet-stream; name=\"data").append(index)
+                    .append(".bin\"\r\n");
+            sb.append("Content-Transfer-Encoding: base64\r\n");
+            sb.append("Content-Disposition: attachment; filename=\"data").append(index)
+                    .append(".bin\"\r\n");
+            sb.append("\r\n");
+            sb.append(base64(binary(attachmentSize)));
+        }
+        sb.append("--").append(boundary).append("--\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns a message of about {@code size} bytes, with bare LF line endings (as messages are
+     * composed), made of a few headers and a base64 attachment.
+     */
+    public byte[] bareLfMessage(int size) {
+        final byte[] headers = Utility.toAscii("From: sender@example.com\n"
+                + "To: recipient@example.com\n"
+                + "Subject: " + words(6) + "\n"
+                + "MIME-Version: 1.0\n"
+                + "Content-Type: application/octet-stream; name=\"data.bin\"\n"
+                + "Content-Transfer-Encoding: base64\n"
+                + "\n");
+        final byte[] data = new byte[size];
+        System.arraycopy(headers, 0, data, 0, headers.length);
+        final byte[] line = Utility.toAscii(Utility.fromAscii(
+                Base64.encode(binary(57), Base64.NO_WRAP)) + "\n");
+        for (int i = headers.length; i < size; i++) {
+            data[i] = line[(i - headers.length) % line.length];
+        }
+        return data;
+    }
+
+    /**
+     * Returns the untagged responses to a flags refresh of {@code count} messages, followed by the
+     * tagged completion with tag "A1".
+     */
+    public String flagsFetchResponses(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i).append(" FLAGS (");
+            switch (mRandom.nextInt(4)) {
+                case 0:
+                    break;
+                case 1:
+                    sb.append("\\Seen \\Flagged");
+                    break;
+                default:
+                    sb.append("\\Seen");
+                    break;
+            }
+            sb.append("))\r\n");
+        }
+        sb.append("A1 OK FETCH completed\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the untagged responses to a header sync of {@code count} messages (FLAGS,
+     * INTERNALDATE, RFC822.SIZE, the header fields as a literal, and BODYSTRUCTURE), followed by
+     * the tagged completion with tag "A1".
+     */
+    public String headerFetchResponses(int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            final String headers = "Date: Tue, 14 Feb 2012 09:12:33 -0800\r\n" +
+                    "Subject: " + words(6) + "\r\n" +
+                    "From: \"Sender " + i + "\" <sender" + i + "@example.com>\r\n" +
+                    "Content-Type: text/plain; charset=UTF-8\r\n" +
+                    "To: recipient@example.com\r\n" +
+                    "Cc: \r\n" +
+                    "Message-ID: <" + i + ".benchmark@example.com>\r\n" +
+                    "\r\n";
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i)
+                    .append(" FLAGS (\\Seen").append(i % 3 == 0 ? " \\Flagged" : "")
+                    .append(") INTERNALDATE \"14-Feb-2012 09:12:33 -0800\" RFC822.SIZE ")
+                    .append(1000 + mRandom.nextInt(100000))
+                    .append(" BODY[HEADER.FIELDS (date subject from content-type to cc"
+                            + " message-id)] {").append(Utility.toUtf8(headers).length)
+                    .append("}\r\n").append(headers)
+                    .append(" BODYSTRUCTURE ((\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") NIL NIL"
+                            + " \"QUOTED-PRINTABLE\" 1234 30 NIL NIL NIL)(\"APPLICATION\""
+                            + " \"PDF\" (\"NAME\" \"report.pdf\") NIL NIL \"BASE64\" 56789 NIL"
+                            + " (\"ATTACHMENT\" (\"FILENAME\" \"report.pdf\")) NIL)"
+                            + " \"MIXED\"))\r\n");
+        }
+        sb.append("A1 OK FETCH completed\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the untagged response carrying {@code message} as BODY[], followed by the tagged
+     * completion with tag "A1".
+     */
+    public static String bodyFetchResponse(String message) {
+        return "* 1 FETCH (UID 1001 BODY[] {" + Utility.toUtf8(message).length + "}\r\n"
+                + message + ")\r\nA1 OK FETCH completed\r\n";
+    }
+}
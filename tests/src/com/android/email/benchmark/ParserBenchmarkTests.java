@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.benchmark;
+
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.internet.MimeMultipart;
+import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.utility.Utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Microbenchmarks of the byte-level parsers of the mail stack: the IMAP response parser, the
+ * MIME parser, the transfer encoding decoders, and the address and header parsers.  Each one
+ * reports its throughput and allocation rate (see {@link Benchmark}), so that a change to a
+ * parser can be measured against the same corpus before and after.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.benchmark.ParserBenchmarkTests email
+ * and read the results with:
+ *   adb logcat -s EmailBenchmark
+ */
+@LargeTest
+public class ParserBenchmarkTests extends AndroidTestCase {
+    private static final int FLAGS_FETCH_COUNT = 1000;
+    private static final int MAX_ALLOCS_PER_FLAGS_LINE = 12;
+    private static final int HEADER_FETCH_COUNT = 200;
+    private static final int MESSAGE_COUNT = 20;
+    private static final int TEXT_LINES = 200;
+    private static final int ATTACHMENT_SIZE = 64 * 1024;
+    private static final int ENCODED_SIZE = 256 * 1024;
+
+    private BenchmarkCorpus mCorpus;
+    private final byte[] mBuffer = new byte[16 * 1024];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+        mCorpus = new BenchmarkCorpus();
+    }
+
+    /**
+     * Parses the responses in {@code data} until the tagged one, and returns their number.  Each
+     * response is destroyed once it's been parsed, as ImapFolder does with FETCH responses.
+     */
+    private static int parseResponses(byte[] data) throws Exception {
+        final ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(data),
+                new DiscourseLogger(64));
+        int count = 0;
+        boolean tagged;
+        do {
+            try {
+                tagged = parser.readResponse().isTagged();
+                count++;
+            } finally {
+                parser.destroyResponses();
+            }
+        } while (!tagged);
+        return count;
+    }
+
+    /**
+     * Reads {@code in} to the end, and returns the number of bytes read.
+     */
+    private int drain(InputStream in) throws IOException {
+        int total = 0;
+        int n;
+        while ((n = in.read(mBuffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * FETCH responses of a flags refresh, which are made of a few keywords, flags and numbers.
+     */
+    public void testImapFlagsFetchResponses() throws Exception {
+        final byte[] data = Utility.toAscii(mCorpus.flagsFetchResponses(FLAGS_FETCH_COUNT));
+        assertEquals(FLAGS_FETCH_COUNT + 1, parseResponses(data));
+        final Benchmark.Result result = Benchmark.run("ImapResponseParser (flags)", data.length,
+                FLAGS_FETCH_COUNT, "responses", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return parseResponses(data);
+            }
+        });
+        // The keywords and flags are shared and the list arrays recycled, so each line only
+        // allocates the response, its two lists, and the two numbers.
+        assertTrue(result.toString(),
+                result.mAllocCountPerIteration / FLAGS_FETCH_COUNT <= MAX_ALLOCS_PER_FLAGS_LINE);
+    }
+
+    /**
+     * FETCH responses of a header sync: bare strings, lists, and small literals.
+     */
+    public void testImapHeaderFetchResponses() throws Exception {
+        final byte[] data = Utility.toUtf8(mCorpus.headerFetchResponses(HEADER_FETCH_COUNT));
+        assertEquals(HEADER_FETCH_COUNT + 1, parseResponses(data));
+        Benchmark.run("ImapResponseParser (headers)", data.length, HEADER_FETCH_COUNT,
+                "responses", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return parseResponses(data);
+            }
+        });
+    }
+
+    /**
+     * A FETCH response carrying a whole message as a literal.
+     */
+    public void testImapBodyFetchResponse() throws Exception {
+        final byte[] data = Utility.toUtf8(BenchmarkCorpus.bodyFetchResponse(
+                mCorpus.message(0, TEXT_LINES, ATTACHMENT_SIZE)));
+        assertEquals(2, parseResponses(data));
+        Benchmark.run("ImapResponseParser (body)", data.length, 1, "responses",
+                new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return parseResponses(data);
+            }
+        });
+    }
+
+    /**
+     * Messages parsed by {@link MimeMessage} through the MIME stream parser, with their parts
+     * decoded.
+     */
+    public void testMimeMessageParse() throws Exception {
+        final byte[][] messages = new byte[MESSAGE_COUNT][];
+        long size = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            // Every other message has an attachment
+            messages[i] = Utility.toUtf8(mCorpus.message(i, TEXT_LINES / 4,
+                    (i % 2 == 0) ? ATTACHMENT_SIZE / 4 : 0));
+            size += messages[i].length;
+        }
+        final byte[] realWorld = Utility.toUtf8(BenchmarkCorpus.REAL_WORLD_HEADERS + "\r\n"
+                + "--e89a8f234a8b1c2d3e04b8f5c1a2\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n\r\n"
+                + "See you tomorrow.\r\n"
+                + "--e89a8f234a8b1c2d3e04b8f5c1a2--\r\n");
+        size += realWorld.length;
+
+        Benchmark.run("MimeMessage.parse", size, MESSAGE_COUNT + 1, "messages",
+                new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                int parts = 0;
+                for (byte[] message : messages) {
+                    final MimeMessage m = new MimeMessage(new ByteArrayInputStream(message));
+                    parts += ((MimeMultipart) m.getBody()).getCount();
+                }
+                final MimeMessage m = new MimeMessage(new ByteArrayInputStream(realWorld));
+                parts += m.getFrom().length;
+                return parts;
+            }
+        });
+    }
+
+    /**
+     * Base64 decoding, as applied to fetched attachments.
+     */
+    public void testBase64Decode() throws Exception {
+        final byte[] data = Utility.toAscii(BenchmarkCorpus.base64(mCorpus.binary(ENCODED_SIZE)));
+        Benchmark.run("Base64InputStream", data.length, 1, "parts", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                final int decoded = drain(MimeUtility.getInputStreamForContentTransferEncoding(
+                        new ByteArrayInputStream(data), "base64"));
+                assertEquals(ENCODED_SIZE, decoded);
+                return decoded;
+            }
+        });
+    }
+
+    /**
+     * Quoted-printable decoding, as applied to text parts.
+     */
+    public void testQuotedPrintableDecode() throws Exception {
+        final byte[] data = Utility.toAscii(mCorpus.quotedPrintable(ENCODED_SIZE / 80));
+        Benchmark.run("QuotedPrintableInputStream", data.length, 1, "parts",
+                new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return drain(MimeUtility.getInputStreamForContentTransferEncoding(
+                        new ByteArrayInputStream(data), "quoted-printable"));
+            }
+        });
+    }
+
+    /**
+     * Address lists parsed from headers, packed for the provider, and unpacked again.
+     */
+    public void testAddressParsePackUnpack() throws Exception {
+        final String[] lists = BenchmarkCorpus.REAL_WORLD_ADDRESS_LISTS;
+        long size = 0;
+        for (String list : lists) {
+            size += list.length();
+        }
+        Benchmark.run("Address.parse/pack/unpack", size, lists.length, "lists",
+                new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                int count = 0;
+                for (String list : lists) {
+                    count += Address.unpack(Address.pack(Address.parse(list))).length;
+                }
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Folded and encoded header values, unfolded and decoded.
+     */
+    public void testUnfoldAndDecode() throws Exception {
+        final String[] headers = BenchmarkCorpus.REAL_WORLD_ENCODED_HEADERS;
+        long size = 0;
+        for (String header : headers) {
+            size += header.length();
+        }
+        assertEquals("Caf\u00e9 cr\u00e8me tomorrow", MimeUtility.unfoldAndDecode(headers[1]));
+        Benchmark.run("MimeUtility.unfoldAndDecode", size, headers.length, "headers",
+                new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                int length = 0;
+                for (String header : headers) {
+                    length += MimeUtility.unfoldAndDecode(header).length();
+                }
+                return length;
+            }
+        });
+    }
+}
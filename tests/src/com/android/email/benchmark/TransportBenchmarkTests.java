@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.benchmark;
+
+import com.android.email.mail.transport.CountingOutputStream;
+import com.android.email.mail.transport.EOLConvertingOutputStream;
+import com.android.email.mail.transport.LineInputStream;
+import com.android.emailcommon.utility.Utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Microbenchmarks of the line-level I/O of the mail transports: the CRLF conversion of the
+ * messages being sent, and the reading of the server responses.  Each one is measured both
+ * byte by byte, as these streams used to be driven, and in bulk.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.benchmark.TransportBenchmarkTests email
+ * and read the results with:
+ *   adb logcat -s EmailBenchmark
+ */
+@LargeTest
+public class TransportBenchmarkTests extends AndroidTestCase {
+    private static final int MESSAGE_SIZE = 20 * 1024 * 1024;
+    /** The size of the writes of a message, as done by the buffered writers of Rfc822Output */
+    private static final int WRITE_SIZE = 8 * 1024;
+    private static final int HEADER_FETCH_COUNT = 200;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private BenchmarkCorpus mCorpus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCorpus = new BenchmarkCorpus();
+    }
+
+    /**
+     * Sends {@code message} to a null sink, through the CRLF conversion, and returns the number
+     * of bytes sent.
+     */
+    private static long send(byte[] message, boolean bulk) throws IOException {
+        final CountingOutputStream sink = new CountingOutputStream();
+        final EOLConvertingOutputStream out = new EOLConvertingOutputStream(sink);
+        if (bulk) {
+            for (int off = 0; off < message.length; off += WRITE_SIZE) {
+                out.write(message, off, Math.min(WRITE_SIZE, message.length - off));
+            }
+        } else {
+            for (byte b : message) {
+                out.write(b);
+            }
+        }
+        out.flush();
+        return sink.getCount();
+    }
+
+    /**
+     * A 20 MB message sent to a null sink.
+     */
+    public void testSendMessage() throws Exception {
+        final byte[] message = mCorpus.bareLfMessage(MESSAGE_SIZE);
+        final long expected = send(message, false);
+        assertEquals(expected, send(message, true));
+        assertTrue(expected > MESSAGE_SIZE);
+
+        final Benchmark.Result perByte = Benchmark.run("EOLConvertingOutputStream (per byte)",
+                message.length, 1, "messages", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return (int) send(message, false);
+            }
+        });
+        final Benchmark.Result bulk = Benchmark.run("EOLConvertingOutputStream (bulk)",
+                message.length, 1, "messages", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return (int) send(message, true);
+            }
+        });
+        assertTrue(bulk.toString() + " vs. " + perByte.toString(),
+                bulk.getMegabytesPerSecond() > perByte.getMegabytesPerSecond());
+    }
+
+    /**
+     * Reads the lines of {@code in} byte by byte, as MailTransport used to, and returns their
+     * total length.
+     */
+    private static int readLinesPerByte(InputStream in) throws IOException {
+        int total = 0;
+        int d;
+        do {
+            final StringBuffer sb = new StringBuffer();
+            while ((d = in.read()) != -1) {
+                if (((char) d) == '\r') {
+                    continue;
+                } else if (((char) d) == '\n') {
+                    break;
+                } else {
+                    sb.append((char) d);
+                }
+            }
+            total += sb.toString().length();
+        } while (d != -1);
+        return total;
+    }
+
+    /**
+     * Reads the lines of {@code in} with {@link LineInputStream#readLine()}, and returns their
+     * total length.
+     */
+    private static int readLines(LineInputStream in) throws IOException {
+        int total = 0;
+        do {
+            total += in.readLine().length();
+        } while (!in.reachedEnd());
+        return total;
+    }
+
+    /**
+     * The lines of the responses to a header sync.
+     */
+    public void testReadLines() throws Exception {
+        final byte[] data = Utility.toUtf8(mCorpus.headerFetchResponses(HEADER_FETCH_COUNT));
+        final int expected = readLinesPerByte(
+                new LineInputStream(new ByteArrayInputStream(data), BUFFER_SIZE));
+        assertEquals(expected,
+                readLines(new LineInputStream(new ByteArrayInputStream(data), BUFFER_SIZE)));
+
+        Benchmark.run("MailTransport.readLine (per byte)", data.length, HEADER_FETCH_COUNT,
+                "responses", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return readLinesPerByte(
+                        new LineInputStream(new ByteArrayInputStream(data), BUFFER_SIZE));
+            }
+        });
+        Benchmark.run("MailTransport.readLine (bulk)", data.length, HEADER_FETCH_COUNT,
+                "responses", new Benchmark.Workload() {
+            @Override
+            public int run() throws Exception {
+                return readLines(new LineInputStream(new ByteArrayInputStream(data), BUFFER_SIZE));
+            }
+        });
+    }
+}
@@ -27,6 +27,7 @@ import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.email.DBTestHelper;
+import com.android.email.MockClock;
 import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
 import com.android.email.VendorPolicyLoader;
@@ -37,6 +38,7 @@ import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
@@ -59,6 +61,7 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.regex.Pattern;
@@ -170,6 +173,28 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 }));
     }
 
+    private Message[] createMessages(String... uids) throws Exception {
+        Message[] messages = new Message[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            messages[i] = mFolder.createMessage(uids[i]);
+        }
+        return messages;
+    }
+
+    public void testJoinMessageUidSet() throws Exception {
+        assertEquals("", ImapStore.joinMessageUidSet(createMessages()));
+        assertEquals("7", ImapStore.joinMessageUidSet(createMessages("7")));
+        // Two consecutive UIDs aren't worth a range
+        assertEquals("11,12", ImapStore.joinMessageUidSet(createMessages("12", "11")));
+        assertEquals("1:5,7,9:12,20,21", ImapStore.joinMessageUidSet(createMessages(
+                "9", "1", "2", "20", "3", "4", "5", "7", "10", "11", "12", "21")));
+        // Duplicates are dropped
+        assertEquals("1:3,8,9", ImapStore.joinMessageUidSet(createMessages(
+                "1", "2", "2", "3", "8", "8", "9")));
+        // Not numbers
+        assertEquals("a,XX", ImapStore.joinMessageUidSet(createMessages("a", "XX")));
+    }
+
     /**
      * Confirms simple non-SSL non-TLS login
      */
@@ -664,9 +689,15 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
     private void expectCapability(MockTransport mockTransport, boolean withId,
             boolean withUidPlus) {
+        expectCapability(mockTransport, withId, withUidPlus, "");
+    }
+
+    private void expectCapability(MockTransport mockTransport, boolean withId,
+            boolean withUidPlus, String otherCapabilities) {
         String capabilityList = "* cAPABILITY iMAP4rev1 sTARTTLS aUTH=gSSAPI lOGINDISABLED";
         capabilityList += withId ? " iD" : "";
         capabilityList += withUidPlus ? " UiDPlUs" : "";
+        capabilityList += otherCapabilities;
 
         mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
             capabilityList,
@@ -1008,6 +1039,64 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Test that a fetched body is parsed, and a fetched part decoded, as it arrives, rather than
+     * first being stored as a literal.
+     */
+    public void testFetchBodyStreamed() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final long storedBefore = mFolder.getLiteralBytesStoredForTest();
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[] {23}",
+                "from: a@b.com", // 15 bytes
+                "", // 2
+                "test", // 6
+                " fLAGS (\\sEEN))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+        assertEquals("a@b.com", message.getHeader("from")[0]);
+        assertTrue(Utility.fromUtf8(IOUtils.toByteArray(message.getBody().getInputStream()))
+                .startsWith("test"));
+        assertEquals(storedBefore, mFolder.getLiteralBytesStoredForTest());
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setSize(3);
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "YWJj)", // abc in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetchParts(new Message[] { message }, new Part[] { part }, null);
+        assertEquals("abc",
+                Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream())));
+        assertEquals(storedBefore, mFolder.getLiteralBytesStoredForTest());
+
+        // A literal that comes before the UID can't be matched up, and is stored as usual
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[\\]\\)",
+                new String[] {
+                "* 9 fETCH (bODY[] {23}",
+                "from: c@d.com", // 15 bytes
+                "", // 2
+                "test", // 6
+                " uID 1)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+        assertEquals("c@d.com", message.getHeader("from")[0]);
+        assertEquals(storedBefore + 23, mFolder.getLiteralBytesStoredForTest());
+    }
+
     public void testFetchAttachment() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1055,6 +1144,422 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Test that a large UID FETCH is split into windows, and that the windows are sent without
+     * waiting for the previous one to complete.
+     */
+    public void testFetchPipelined() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        mFolder.setFetchWindowForTest(2, 2);
+        final Message[] messages = new Message[] {
+                mFolder.createMessage("1"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("3"),
+                mFolder.createMessage("4"),
+                mFolder.createMessage("5"),
+        };
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        final String tag1 = getNextTag(false);
+        getNextTag(true);
+        // No response until the second command has been sent
+        mock.expect(tag1 + " UID FETCH 1,2 \\(UID FLAGS\\)");
+        final String tag2 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag2 + " UID FETCH 3,4 \\(UID FLAGS\\)", new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\sEEN))",
+                "* 2 fETCH (uID 2 fLAGS ())",
+                tag1 + " oK SUCCESS",
+                "* 3 fETCH (uID 3 fLAGS (\\fLAGGED))",
+                "* 4 fETCH (uID 4 fLAGS (\\sEEN))",
+                tag2 + " oK SUCCESS",
+        });
+        // The last window goes out as soon as the first one completes
+        final String tag3 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag3 + " UID FETCH 5 \\(UID FLAGS\\)", new String[] {
+                "* 5 fETCH (uID 5 fLAGS (\\sEEN))",
+                tag3 + " oK SUCCESS",
+        });
+
+        final int roundTripsBefore = mock.getRoundTripCount();
+        final ArrayList<String> retrieved = new ArrayList<String>();
+        mFolder.fetch(messages, fp, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+                retrieved.add(message.getUid());
+            }
+
+            @Override
+            public void loadAttachmentProgress(int progress) {
+            }
+        });
+
+        // 3 commands in 2 round trips
+        assertEquals(2, mock.getRoundTripCount() - roundTripsBefore);
+        MoreAsserts.assertEquals(new String[] {"1", "2", "3", "4", "5"},
+                retrieved.toArray(new String[0]));
+        assertTrue(messages[0].isSet(Flag.SEEN));
+        assertFalse(messages[1].isSet(Flag.SEEN));
+        assertTrue(messages[2].isSet(Flag.FLAGGED));
+        assertTrue(messages[3].isSet(Flag.SEEN));
+        assertTrue(messages[4].isSet(Flag.SEEN));
+    }
+
+    /**
+     * Test that a tagged response to none of the pipelined commands fails the fetch, and drops
+     * the connection.
+     */
+    public void testFetchPipelinedUnknownTag() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message[] messages = new Message[] { mFolder.createMessage("1") };
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID FLAGS\\)", new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\sEEN))",
+                "X999 oK SUCCESS",
+        });
+
+        try {
+            mFolder.fetch(messages, fp, null);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        assertFalse(mock.isOpen());
+    }
+
+    /**
+     * Test that the parts requested by {@link ImapFolder#fetchParts} are pipelined, and that each
+     * response is matched up with its part.
+     */
+    public void testFetchPartsPipelined() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+        final MimeBodyPart part1 = new MimeBodyPart();
+        part1.setSize(3);
+        part1.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "1");
+        part1.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        final MimeBodyPart part2 = new MimeBodyPart();
+        part2.setSize(3);
+        part2.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part2.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+
+        final String tag1 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag1 + " UID FETCH 1 \\(UID BODY.PEEK\\[1\\]\\)");
+        final String tag2 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag2 + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[1] {4}",
+                "YWJj)", // abc in base64
+                tag1 + " oK SUCCESS",
+                "* 9 fETCH (uID 1 bODY[2] {4}",
+                "ZGVm)", // def in base64
+                tag2 + " oK SUCCESS",
+        });
+
+        final int roundTripsBefore = mock.getRoundTripCount();
+        mFolder.fetchParts(new Message[] { message, message }, new Part[] { part1, part2 },
+                null);
+
+        assertEquals(1, mock.getRoundTripCount() - roundTripsBefore);
+        assertEquals("abc",
+                Utility.fromUtf8(IOUtils.toByteArray(part1.getBody().getInputStream())));
+        assertEquals("def",
+                Utility.fromUtf8(IOUtils.toByteArray(part2.getBody().getInputStream())));
+    }
+
+    /**
+     * A range of a part is fetched with a partial FETCH, and copied as is (still encoded).
+     */
+    public void testFetchPartRange() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mFolder.canFetchPartRanges());
+
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<4.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<4> {4}",
+                "ZGVm)",
+                getNextTag(true) + " oK SUCCESS",
+        });
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(4, mFolder.fetchPartRange("1", "2", 4, 4, out));
+        assertEquals("ZGVm", Utility.fromUtf8(out.toByteArray()));
+
+        // Past the end of the part
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<8.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<8> \"\")",
+                getNextTag(true) + " oK SUCCESS",
+        });
+        out.reset();
+        assertEquals(0, mFolder.fetchPartRange("1", "2", 8, 4, out));
+        assertEquals(0, out.size());
+    }
+
+    /**
+     * Records the changes reported by {@link ImapFolder#idle}.
+     */
+    private static class IdleRecorder implements Folder.IdleListener {
+        Message[] mArrived;
+        Message[] mChanged;
+        String[] mVanished;
+        boolean mExpunged;
+
+        @Override
+        public void messagesArrived(Message[] messages) {
+            mArrived = messages;
+        }
+
+        @Override
+        public void flagsChanged(Message[] messages) {
+            mChanged = messages;
+        }
+
+        @Override
+        public void messagesExpunged() {
+            mExpunged = true;
+        }
+
+        @Override
+        public void messagesVanished(String[] uids) {
+            mVanished = uids;
+        }
+    }
+
+    /**
+     * Helper which stuffs the mock with enough strings to open a folder on a server which
+     * supports IDLE.
+     */
+    private void setupOpenFolderWithIdle(MockTransport mockTransport) {
+        mockTransport.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 iDlE",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mockTransport.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        expectSelect(mockTransport, FOLDER_ENCODED, "rEAD-wRITE");
+    }
+
+    public void testCanIdleWithoutCapability() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertFalse(mFolder.canIdle());
+    }
+
+    /**
+     * Test that new messages reported while idling are looked up by sequence number.
+     */
+    public void testIdleNewMessages() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithIdle(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mFolder.canIdle());
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* 2 eXISTS",
+                "* 2 rECENT"});
+        mock.expect("DONE", getNextTag(true) + " oK IDLE terminated");
+        mock.expect(getNextTag(false) + " UID SEARCH 1:2 NOT DELETED", new String[] {
+                "* sEARCH 7 8",
+                getNextTag(true) + " oK SEARCH completed"});
+
+        IdleRecorder recorder = new IdleRecorder();
+        assertTrue(mFolder.idle(recorder, 1000));
+        assertEquals(2, mFolder.getMessageCount());
+        assertEquals(2, recorder.mArrived.length);
+        assertEquals("7", recorder.mArrived[0].getUid());
+        assertEquals("8", recorder.mArrived[1].getUid());
+        assertNull(recorder.mChanged);
+        assertFalse(recorder.mExpunged);
+    }
+
+    /**
+     * Test that flag changes reported while idling are resolved to UIDs, and that expunges are
+     * reported as such.
+     */
+    public void testIdleFlagsChangedAndExpunged() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithIdle(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        // Get to 2 messages first
+        mock.expect(getNextTag(false) + " IDLE", new String[] {"+ idling", "* 2 eXISTS"});
+        mock.expect("DONE", getNextTag(true) + " oK IDLE terminated");
+        mock.expect(getNextTag(false) + " UID SEARCH 1:2 NOT DELETED", new String[] {
+                "* sEARCH 7 8",
+                getNextTag(true) + " oK SEARCH completed"});
+        mFolder.idle(new IdleRecorder(), 1000);
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* 2 fETCH (fLAGS (\\sEEN))"});
+        mock.expect("DONE", getNextTag(true) + " oK IDLE terminated");
+        mock.expect(getNextTag(false) + " FETCH 2 \\(UID FLAGS\\)", new String[] {
+                "* 2 fETCH (uID 8 fLAGS (\\sEEN \\fLAGGED))",
+                getNextTag(true) + " oK FETCH completed"});
+
+        IdleRecorder recorder = new IdleRecorder();
+        assertTrue(mFolder.idle(recorder, 1000));
+        assertNull(recorder.mArrived);
+        assertEquals(1, recorder.mChanged.length);
+        assertEquals("8", recorder.mChanged[0].getUid());
+        assertTrue(recorder.mChanged[0].isSet(Flag.SEEN));
+        assertTrue(recorder.mChanged[0].isSet(Flag.FLAGGED));
+        assertFalse(recorder.mExpunged);
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* 1 eXPUNGE"});
+        mock.expect("DONE", getNextTag(true) + " oK IDLE terminated");
+
+        recorder = new IdleRecorder();
+        assertTrue(mFolder.idle(recorder, 1000));
+        assertEquals(1, mFolder.getMessageCount());
+        assertTrue(recorder.mExpunged);
+        assertNull(recorder.mArrived);
+        assertNull(recorder.mChanged);
+    }
+
+    /**
+     * Helper which logs in to a server with the given capabilities and selects a folder which
+     * reports its UIDVALIDITY and HIGHESTMODSEQ.
+     */
+    private void setupOpenFolderWithModSeq(MockTransport mockTransport, boolean qresync) {
+        mockTransport.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cONDSTORE" + (qresync ? " qRESYNC" : ""),
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mockTransport.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        if (qresync) {
+            mockTransport.expect(getNextTag(false) + " ENABLE QRESYNC", new String[] {
+                    "* eNABLED qRESYNC",
+                    getNextTag(true) + " oK ENABLE completed"});
+        }
+        // CONDSTORE is enabled by the SELECT, unless QRESYNC enabled it already
+        mockTransport.expect(getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\""
+                + (qresync ? "" : " \\(CONDSTORE\\)"),
+                new String[] {
+                "* fLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
+                "* 10 eXISTS",
+                "* OK [uIDVALIDITY 3857529045]",
+                "* OK [hIGHESTMODSEQ 715194045007]",
+                getNextTag(true) + " oK [rEAD-wRITE] " + FOLDER_ENCODED + " selected."});
+    }
+
+    /**
+     * Test that UIDVALIDITY and HIGHESTMODSEQ are taken from the SELECT response, and are
+     * absent for servers which don't report them.
+     */
+    public void testSelectModSeq() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertNull(mFolder.getUidValidity());
+        assertEquals(0, mFolder.getHighestModSeq());
+
+        mock = openAndInjectMockTransport();
+        setupOpenFolderWithModSeq(mock, false);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals("3857529045", mFolder.getUidValidity());
+        assertEquals(715194045007L, mFolder.getHighestModSeq());
+    }
+
+    /**
+     * Test that only the changed flags are fetched with CONDSTORE.
+     */
+    public void testGetMessagesChangedSince() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithModSeq(mock, false);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 715194045000\\)",
+                new String[] {
+                "* 3 fETCH (uID 7 fLAGS (\\sEEN) mODSEQ (715194045003))",
+                "* 5 fETCH (uID 9 fLAGS () mODSEQ (715194045007))",
+                getNextTag(true) + " oK FETCH completed"});
+
+        ArrayList<String> vanished = new ArrayList<String>();
+        Message[] messages = mFolder.getMessagesChangedSince(715194045000L, vanished);
+        assertEquals(2, messages.length);
+        assertEquals("7", messages[0].getUid());
+        assertTrue(messages[0].isSet(Flag.SEEN));
+        assertEquals("9", messages[1].getUid());
+        assertFalse(messages[1].isSet(Flag.SEEN));
+        assertTrue(vanished.isEmpty());
+    }
+
+    /**
+     * Test that with QRESYNC, the UIDs of the messages removed since the given mod-sequence are
+     * returned apart from the changed messages, which keep their \Deleted flag as it is.
+     */
+    public void testGetMessagesChangedSinceVanished() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithModSeq(mock, true);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " UID FETCH 1:\\* \\(UID FLAGS\\)"
+                + " \\(CHANGEDSINCE 715194045000 VANISHED\\)",
+                new String[] {
+                "* vANISHED (eARLIER) 2,4:5",
+                "* 3 fETCH (uID 7 fLAGS (\\fLAGGED) mODSEQ (715194045003))",
+                "* 4 fETCH (uID 8 fLAGS (\\dELETED) mODSEQ (715194045004))",
+                getNextTag(true) + " oK FETCH completed"});
+
+        ArrayList<String> vanished = new ArrayList<String>();
+        Message[] messages = mFolder.getMessagesChangedSince(715194045000L, vanished);
+        MoreAsserts.assertEquals(new String[] {"2", "4", "5"},
+                vanished.toArray(new String[0]));
+        assertEquals(2, messages.length);
+        assertEquals("7", messages[0].getUid());
+        assertTrue(messages[0].isSet(Flag.FLAGGED));
+        assertFalse(messages[0].isSet(Flag.DELETED));
+        // A message flagged \Deleted by another client is still there
+        assertEquals("8", messages[1].getUid());
+        assertTrue(messages[1].isSet(Flag.DELETED));
+    }
+
+    /**
+     * Test that the UIDs reported as VANISHED while idling are passed on as such, apart from the
+     * flag changes.
+     */
+    public void testIdleVanished() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolderWithModSeq(mock, true);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* vANISHED 3,5",
+                "* 3 fETCH (uID 7 fLAGS (\\dELETED))"});
+        mock.expect("DONE", getNextTag(true) + " oK IDLE terminated");
+
+        IdleRecorder recorder = new IdleRecorder();
+        assertTrue(mFolder.idle(recorder, 1000));
+        assertEquals(8, mFolder.getMessageCount());
+        MoreAsserts.assertEquals(new String[] {"3", "5"}, recorder.mVanished);
+        assertEquals(1, recorder.mChanged.length);
+        assertEquals("7", recorder.mChanged[0].getUid());
+        assertTrue(recorder.mChanged[0].isSet(Flag.DELETED));
+        assertNull(recorder.mArrived);
+        assertFalse(recorder.mExpunged);
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1143,6 +1648,11 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
 
     private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
+        return prepareForAppendTest(mock, response, false);
+    }
+
+    private ImapMessage prepareForAppendTest(MockTransport mock, String response,
+            boolean literalPlus) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
         message.setFrom(new Address("me@test.com"));
         message.setRecipient(RecipientType.TO, new Address("you@test.com"));
@@ -1154,9 +1664,16 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // * 12345 EXISTS
         // OK [APPENDUID 627684530 17] (Success)
 
-        mock.expect(getNextTag(false) +
-                " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166\\}",
-                new String[] {"+ gO aHead"});
+        if (literalPlus) {
+            // No continuation request
+            mock.expect(getNextTag(false) +
+                    " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166\\+\\}",
+                    NO_REPLY);
+        } else {
+            mock.expect(getNextTag(false) +
+                    " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166\\}",
+                    new String[] {"+ gO aHead"});
+        }
 
         mock.expectLiterally("From: me@test.com", NO_REPLY);
         mock.expectLiterally("To: you@test.com", NO_REPLY);
@@ -1189,6 +1706,28 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(7, mFolder.getMessageCount());
     }
 
+    /**
+     * Test for APPEND to a server that supports LITERAL+: the message is sent without waiting
+     * for a continuation request.
+     */
+    public void testAppendMessagesLiteralPlus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        expectCapability(mock, false, false, " lITERAL+");
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message = prepareForAppendTest(mock, "oK [aPPENDUID 1234567 13] (Success)",
+                true);
+
+        mFolder.appendMessages(new Message[] {message});
+
+        assertEquals("13", message.getUid());
+        assertEquals(7, mFolder.getMessageCount());
+    }
+
     /**
      * Test for APPEND when the response doesn't have APPENDUID.
      */
@@ -1459,7 +1998,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         }
 
         // READ-WRITE
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 1 eXISTS",
@@ -1476,7 +2014,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertFalse(folder.isOpen());
 
         // READ-ONLY
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 2 eXISTS",
@@ -1489,7 +2026,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(OpenMode.READ_ONLY, folder.getMode());
 
         // Try to re-open as read-write.  Should send SELECT again.
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 15 eXISTS",
@@ -1516,9 +2052,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.exists());
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Doesn't exist
         folder = mStore.getFolder("no such folder");
         mock.expect(getNextTag(false) + " STATUS \\\"no such folder\\\" \\(UIDVALIDITY\\)",
@@ -1545,9 +2078,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.create(FolderType.HOLDS_MESSAGES));
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Failure
         mock.expect(getNextTag(false) + " CREATE \\\"&ZeVnLIqe-\\\"",
                 new String[] {
@@ -1984,14 +2514,17 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      */
     public void testGetConnection() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
+        final MockClock clock = new MockClock();
+        final ImapConnectionPool pool = mStore.getConnectionPoolForTest();
+        pool.setClockForTest(clock);
 
         // Start: No pooled connections.
-        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertEquals(0, pool.size());
 
         // Get 1st connection.
         final ImapConnection con1 = mStore.getConnection();
         assertNotNull(con1);
-        assertEquals(0, mStore.getConnectionPoolForTest().size()); // Pool size not changed.
+        assertEquals(0, pool.size()); // Pool size not changed.
         assertFalse(con1.isTransportOpenForTest()); // Transport not open yet.
 
         // Open con1
@@ -2002,7 +2535,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // Get 2nd connection.
         final ImapConnection con2 = mStore.getConnection();
         assertNotNull(con2);
-        assertEquals(0, mStore.getConnectionPoolForTest().size()); // Pool size not changed.
+        assertEquals(0, pool.size()); // Pool size not changed.
         assertFalse(con2.isTransportOpenForTest()); // Transport not open yet.
 
         // con1 != con2
@@ -2020,33 +2553,158 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Save con1 in the pool.
         mStore.poolConnection(con1);
-        assertEquals(1, mStore.getConnectionPoolForTest().size());
+        assertEquals(1, pool.size());
+
+        // Get another connection right away.  Should get con1, without verifying it.
+        final ImapConnection con1b = mStore.getConnection();
+        assertEquals(0, pool.size()); // No connections left in pool
+        assertSame(con1, con1b);
+        assertEquals(0, pool.getHealthCheckCount());
 
-        // Get another connection.  Should get con1, after verifying the connection.
+        // Save con1 again, and get it back after a while.  It's verified first this time.
+        mStore.poolConnection(con1);
+        clock.advance(ImapConnectionPool.FRESHNESS_WINDOW);
         saveTag = resetTag(saveTag);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + " oK success"});
 
-        final ImapConnection con1b = mStore.getConnection();
-        assertEquals(0, mStore.getConnectionPoolForTest().size()); // No connections left in pool
-        assertSame(con1, con1b);
+        final ImapConnection con1c = mStore.getConnection();
+        assertEquals(0, pool.size()); // No connections left in pool
+        assertSame(con1, con1c);
         assertTrue(con1.isTransportOpenForTest()); // We opened it.
+        assertEquals(1, pool.getHealthCheckCount());
 
         // Save con2.
         mStore.poolConnection(con2);
-        assertEquals(1, mStore.getConnectionPoolForTest().size());
+        assertEquals(1, pool.size());
 
         // Resume con2 tags ...
         resetTag(saveTag);
 
-        // Try to get connection, but this time, connection gets closed.
+        // Try to get connection after a while, but this time, connection gets closed.
+        clock.advance(ImapConnectionPool.FRESHNESS_WINDOW);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + "* bYE bye"});
         final ImapConnection con3 = mStore.getConnection();
         assertNotNull(con3);
-        assertEquals(0, mStore.getConnectionPoolForTest().size()); // No connections left in pool
+        assertEquals(0, pool.size()); // No connections left in pool
 
         // It should be a new connection.
         assertNotSame(con1, con3);
         assertNotSame(con2, con3);
+
+        assertEquals(2, pool.getHitCount());
+        assertEquals(3, pool.getMissCount());
+        assertEquals(3, pool.getCreationCount());
+        assertEquals(1, pool.getEvictionCount());
+    }
+
+    /**
+     * Test that the pool keeps at most {@link ImapConnectionPool#DEFAULT_MAX_SIZE} connections,
+     * the most recently used ones, and closes those idle for more than the TTL.
+     */
+    public void testConnectionPoolLimits() throws Exception {
+        openAndInjectMockTransport();
+        final MockClock clock = new MockClock();
+        final ImapConnectionPool pool = mStore.getConnectionPoolForTest();
+        pool.setClockForTest(clock);
+
+        final int count = ImapConnectionPool.DEFAULT_MAX_SIZE + 1;
+        final ImapConnection[] connections = new ImapConnection[count];
+        for (int i = 0; i < count; i++) {
+            connections[i] = mStore.getConnection();
+        }
+        for (int i = 0; i < count; i++) {
+            mStore.poolConnection(connections[i]);
+            clock.advance();
+        }
+        // The least recently used connection didn't fit
+        assertEquals(ImapConnectionPool.DEFAULT_MAX_SIZE, pool.size());
+        assertEquals(1, pool.getEvictionCount());
+
+        // The most recently used connection comes first
+        assertSame(connections[count - 1], mStore.getConnection());
+        mStore.poolConnection(connections[count - 1]);
+
+        // Connections idle for longer than the TTL are closed, rather than reused
+        clock.advance(ImapConnectionPool.IDLE_TTL);
+        final ImapConnection connection = mStore.getConnection();
+        for (ImapConnection c : connections) {
+            assertNotSame(c, connection);
+        }
+        assertEquals(0, pool.size());
+        assertEquals(1 + ImapConnectionPool.DEFAULT_MAX_SIZE, pool.getEvictionCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(count + 1, pool.getCreationCount());
+        assertEquals(0, pool.getHealthCheckCount());
+    }
+
+    /**
+     * Test that a checkout beyond the maximum number of connections waits for one to be returned,
+     * and opens one more if none is in time.
+     */
+    public void testConnectionPoolCheckoutLimit() throws Exception {
+        openAndInjectMockTransport();
+        final ImapConnectionPool pool =
+                new ImapConnectionPool(ImapConnectionPool.DEFAULT_MAX_SIZE, 1, 10);
+        final ImapConnection first = pool.checkout(mStore, "user", "password");
+        assertEquals(1, pool.getCheckedOutCount());
+
+        // Nothing is returned in time
+        final ImapConnection second = pool.checkout(mStore, "user", "password");
+        assertNotSame(first, second);
+        assertEquals(2, pool.getCheckedOutCount());
+        assertEquals(1, pool.getOverflowCount());
+
+        // A discarded connection isn't counted any more
+        pool.discard(second);
+        assertEquals(1, pool.getCheckedOutCount());
+
+        // The connection returned while waiting is handed out
+        final ImapConnectionPool waiting = new ImapConnectionPool(
+                ImapConnectionPool.DEFAULT_MAX_SIZE, 1, ImapConnectionPool.CHECKOUT_WAIT);
+        final ImapConnection connection = waiting.checkout(mStore, "user", "password");
+        final Thread returner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Return it right away
+                }
+                waiting.checkin(connection);
+            }
+        };
+        returner.start();
+        assertSame(connection, waiting.checkout(mStore, "user", "password"));
+        returner.join();
+        assertEquals(1, waiting.getCheckedOutCount());
+        assertEquals(0, waiting.getOverflowCount());
+        assertEquals(1, waiting.getHitCount());
+    }
+
+    /**
+     * Test that returning a connection closes the expired connections of the other pools, and
+     * that the connections of a store are closed when it's removed.
+     */
+    public void testConnectionPoolCleanup() throws Exception {
+        openAndInjectMockTransport();
+        final MockClock clock = new MockClock();
+        final ImapConnectionPool pool = mStore.getConnectionPoolForTest();
+        pool.setClockForTest(clock);
+        final ImapConnectionPool otherPool = new ImapConnectionPool();
+        otherPool.setClockForTest(clock);
+
+        final ImapConnection other = mStore.getConnection();
+        mStore.poolConnection(mStore.getConnection());
+        assertEquals(1, pool.size());
+        clock.advance(ImapConnectionPool.IDLE_TTL);
+        otherPool.checkin(other);
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(1, otherPool.size());
+
+        mStore.poolConnection(mStore.getConnection());
+        mStore.closeConnections();
+        assertEquals(0, pool.size());
     }
 
     public void testCheckSettings() throws Exception {
@@ -2159,7 +2817,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 );
 
         // Try to open the folders.
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_1_QUOTED + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
@@ -2171,7 +2828,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         folders[2].open(OpenMode.READ_WRITE);
         folders[2].close(false);
 
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_2 + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
@@ -39,6 +39,9 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 
+import java.io.File;
+import java.util.ArrayList;
+
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
  * complete - no server(s) required.
@@ -867,6 +870,112 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * With PIPELINING, the bodies of several messages are fetched in a single round trip.
+     */
+    public void testPipelinedRetr() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 2, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = mFolder.getMessages(1, 2, null);
+
+        mockTransport.expect("RETR 1", getSingleMessageResponse());
+        mockTransport.expect("RETR 2", getSingleMessageResponse());
+        int roundTripsBefore = mockTransport.getRoundTripCount();
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        mFolder.fetch(messages, fp, null);
+        assertEquals(1, mockTransport.getRoundTripCount() - roundTripsBefore);
+        checkFetchedMessage(messages[0], 1, true);
+        checkFetchedMessage(messages[1], 2, true);
+    }
+
+    /**
+     * Once the UIDL index is saved, the next session only asks for the UIDs of the new
+     * messages, and the index follows the messages deleted by QUIT.
+     */
+    public void testUidlIndex() throws MessagingException {
+        File indexFile = new File(getContext().getCacheDir(), "test_uidl");
+        indexFile.delete();
+        mStore.mUidlIndex = new Pop3UidlIndex(indexFile);
+        try {
+            // The first session lists all the UIDs, and saves them
+            MockTransport mockTransport = openAndInjectMockTransport();
+            setupOpenFolder(mockTransport, 2, null);
+            mFolder.open(OpenMode.READ_WRITE);
+            setupUidlSequence(mockTransport, 2);
+            mFolder.getMessages(1, 2, null);
+            mockTransport.expect("QUIT", "+OK bye");
+            mFolder.close(false);
+            assertEquals(2, mStore.mUidlIndex.read().size());
+
+            // The next one checks the last saved UID, and asks for the UID of the new message
+            setupOpenFolder(mockTransport, 3, null);
+            mFolder.open(OpenMode.READ_WRITE);
+            mockTransport.expect("UIDL 2", "+OK 2 " + getSingleMessageUID(2));
+            mockTransport.expect("UIDL 3", "+OK 3 " + getSingleMessageUID(3));
+            Message[] messages = mFolder.getMessages(1, 3, null);
+            assertEquals(getSingleMessageUID(1), messages[0].getUid());
+            assertEquals(getSingleMessageUID(3), messages[2].getUid());
+
+            // Deleting the first message renumbers the others
+            mockTransport.expect("DELE 1", "+OK message deleted");
+            mFolder.setFlags(new Message[] { messages[0] }, new Flag[] { Flag.DELETED }, true);
+            mockTransport.expect("QUIT", "+OK bye");
+            mFolder.close(false);
+            ArrayList<String> uids = mStore.mUidlIndex.read();
+            assertEquals(2, uids.size());
+            assertEquals(getSingleMessageUID(2), uids.get(0));
+            assertEquals(getSingleMessageUID(3), uids.get(1));
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * If the last saved UID is no longer at its number, the index is rebuilt with a full listing.
+     */
+    public void testUidlIndexMismatch() throws MessagingException {
+        File indexFile = new File(getContext().getCacheDir(), "test_uidl");
+        indexFile.delete();
+        mStore.mUidlIndex = new Pop3UidlIndex(indexFile);
+        try {
+            ArrayList<String> saved = new ArrayList<String>();
+            saved.add("OLD-1");
+            saved.add("OLD-2");
+            mStore.mUidlIndex.write(saved);
+
+            MockTransport mockTransport = openAndInjectMockTransport();
+            setupOpenFolder(mockTransport, 2, null);
+            mFolder.open(OpenMode.READ_WRITE);
+            mockTransport.expect("UIDL 2", "+OK 2 " + getSingleMessageUID(2));
+            setupUidlSequence(mockTransport, 2);
+            Message[] messages = mFolder.getMessages(1, 2, null);
+            assertEquals(getSingleMessageUID(1), messages[0].getUid());
+            assertEquals(getSingleMessageUID(1), mStore.mUidlIndex.read().get(0));
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * A POP3 store has a single connection: whoever gets the folder while it's open (e.g. a
+     * message load during a sync) uses the same connection, rather than opening another one.
+     * This is why MessagingController runs the loads of a POP3 account in the account's lane.
+     */
+    public void testSingleConnection() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        openFolderWithMessage(mockTransport);
+
+        Folder folder = mStore.getFolder("INBOX");
+        assertSame(mFolder, folder);
+        // No new banner or login is expected
+        folder.open(OpenMode.READ_WRITE);
+        assertTrue(folder.isOpen());
+        assertEquals(1, folder.getMessageCount());
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -1058,6 +1167,22 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         transport.expect(null, ".");
     }
 
+    /**
+     * Returns the response of a RETR of the message set up by {@link #setupSingleMessage}, for
+     * a single expect, as the responses of pipelined commands have to be queued together.
+     */
+    private static String[] getSingleMessageResponse() {
+        return new String[] {
+                "+OK message follows",
+                "Date: 26 Aug 76 1429 EDT",
+                "From: Jones@Registry.Org",
+                "To:   Smith@Registry.Org",
+                "CC:   Chris@Registry.Org",
+                "Reply-To: Roger@Registry.Org",
+                "",
+                "." };
+    }
+
     /**
      * Generates a simple unique code for each message.  Repeatable.
      * @param msgNum The message number
@@ -348,6 +348,59 @@ public class ImapResponseParserTest extends AndroidTestCase {
         expectMessagingException("* {3}\r\nab");
     }
 
+    /**
+     * Test that the well-known atoms are shared instances, which survive the responses they're
+     * in, and that other strings aren't.
+     */
+    public void testInternedAtoms() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 10 FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 11 FLAGS (\\Seen))\r\n" +
+                "* 3 fEtCh (UID 12 FLAGS (\\Seen))\r\n");
+        final ImapResponse r1 = p.readResponse();
+        final ImapString fetch = r1.getStringOrEmpty(1);
+        final ImapString seen = r1.getListOrEmpty(2).getListOrEmpty(3).getStringOrEmpty(0);
+        assertEquals("FETCH", fetch.getString());
+        assertEquals("\\Seen", seen.getString());
+        p.destroyResponses();
+
+        // Destroying the response doesn't destroy the shared atoms
+        assertEquals("FETCH", fetch.getString());
+        final ImapResponse r2 = p.readResponse();
+        assertSame(fetch, r2.getStringOrEmpty(1));
+        assertSame(seen, r2.getListOrEmpty(2).getListOrEmpty(3).getStringOrEmpty(0));
+        // Numbers aren't shared
+        assertEquals("11", r2.getListOrEmpty(2).getStringOrEmpty(1).getString());
+
+        // Atoms are only shared as servers usually spell them, so that getString() is unchanged
+        final ImapResponse r3 = p.readResponse();
+        assertNotSame(fetch, r3.getStringOrEmpty(1));
+        assertEquals("fEtCh", r3.getStringOrEmpty(1).getString());
+        assertTrue(r3.isDataResponse(1, ImapConstants.FETCH));
+        p.destroyResponses();
+    }
+
+    /**
+     * Test that the backing arrays of the lists are recycled when the responses are destroyed.
+     */
+    public void testListArraysRecycled() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 10 FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 11 FLAGS (\\Seen))\r\n");
+        assertEquals(0, p.getPooledArrayCount());
+        assertEquals("10", p.readResponse().getListOrEmpty(2).getStringOrEmpty(1).getString());
+        assertEquals(0, p.getPooledArrayCount());
+        p.destroyResponses();
+        // The response, the FETCH list and the FLAGS list
+        assertEquals(3, p.getPooledArrayCount());
+
+        // The next response reuses them
+        assertEquals("11", p.readResponse().getListOrEmpty(2).getStringOrEmpty(1).getString());
+        assertEquals(0, p.getPooledArrayCount());
+        p.destroyResponses();
+        assertEquals(3, p.getPooledArrayCount());
+    }
+
     private static void expectMessagingException(String response) throws Exception {
         final ImapResponseParser p = generateParser(100000, response);
         try {
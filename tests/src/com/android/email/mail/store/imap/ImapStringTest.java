@@ -91,6 +91,17 @@ public class ImapStringTest extends AndroidTestCase {
         assertEquals(0, new ImapSimpleString("99999999999999999999").getNumberOrZero());
     }
 
+    public void testGetLongOrZero() {
+        assertEquals(1234L, new ImapSimpleString("1234").getLongOrZero());
+        assertEquals(715194045007L, new ImapSimpleString("715194045007").getLongOrZero());
+        assertEquals(0L, new ImapSimpleString("").getLongOrZero());
+        assertEquals(0L, new ImapSimpleString("X").getLongOrZero());
+        assertEquals(0L, ImapString.EMPTY.getLongOrZero());
+
+        // Too large for 64 bit long
+        assertEquals(0L, new ImapSimpleString("99999999999999999999").getLongOrZero());
+    }
+
     public void testGetDateOrNull() {
         final ImapString date = new ImapSimpleString("01-Jan-2009 11:34:56 -0100");
 
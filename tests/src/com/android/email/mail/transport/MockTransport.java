@@ -54,6 +54,10 @@ public class MockTransport implements Transport {
 
     private ArrayList<String> mQueuedInput = new ArrayList<String>();
 
+    /** Whether something was written since the last read; see {@link #getRoundTripCount()} */
+    private boolean mWrittenSinceLastRead;
+    private int mRoundTripCount;
+
     private static class Transaction {
         public static final int ACTION_INJECT_TEXT = 0;
         public static final int ACTION_CLIENT_CLOSE = 1;
@@ -162,6 +166,15 @@ public class MockTransport implements Transport {
         }
     }
 
+    /**
+     * Returns the number of times the client had to wait for the server; that is, the number
+     * of times something was read after something had been written.  Commands sent back to back
+     * without reading any response in between count as a single round trip.
+     */
+    public int getRoundTripCount() {
+        return mRoundTripCount;
+    }
+
     @Override
     public boolean canTrySslSecurity() {
         return (mConnectionSecurity == CONNECTION_SECURITY_SSL);
@@ -283,6 +296,10 @@ public class MockTransport implements Transport {
     @Override
     public String readLine() throws IOException {
         SmtpSenderUnitTests.assertTrue(mOpen);
+        if (mWrittenSinceLastRead) {
+            mWrittenSinceLastRead = false;
+            mRoundTripCount++;
+        }
         if (!mInputOpen) {
             throw new IOException("Reading from MockTransport with closed input");
         }
@@ -342,6 +359,7 @@ public class MockTransport implements Transport {
             Log.d(LOG_TAG, ">>> " + s);
         }
         SmtpSenderUnitTests.assertTrue(mOpen);
+        mWrittenSinceLastRead = true;
         SmtpSenderUnitTests.assertTrue("Overflow writing to MockTransport: Getting " + s,
                 0 != mPairs.size());
         Transaction pair = mPairs.remove(0);
@@ -33,6 +33,7 @@ import com.android.emailcommon.provider.HostAuth;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.net.UnknownHostException;
 
 /**
@@ -103,8 +104,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testSendMessageWithBody() throws Exception {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
+        // SmtpSender.sendMessage() opens the session, as there is none yet
         setupOpen(mockTransport, null);
 
         Message message = setupSimpleMessage();
@@ -134,8 +134,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testSendMessageWithEmptyAttachment() throws MessagingException, IOException {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
+        // SmtpSender.sendMessage() opens the session, as there is none yet
         setupOpen(mockTransport, null);
 
         Message message = setupSimpleMessage();
@@ -158,6 +157,182 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Saves a message with a text body, to {@code recipientCount} recipients.
+     */
+    private Message saveMessageWithBody(int recipientCount) {
+        Message message = setupSimpleMessage();
+        StringBuilder to = new StringBuilder();
+        for (int i = 0; i < recipientCount; i++) {
+            to.append(i == 0 ? "" : ",").append("Smith").append(i).append("@Registry.Org");
+        }
+        message.mTo = Address.parseAndPack(to.toString());
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+        return message;
+    }
+
+    /**
+     * Prepare to receive a message saved by {@link #saveMessageWithBody}, with a RSET first if
+     * {@code reset} is set.  The responses to the envelope are sent in one go if
+     * {@code pipelined} is set, as the server would once it has read all the commands.
+     */
+    private void expectMessageWithBody(MockTransport mockTransport, int recipientCount,
+            boolean reset, boolean pipelined, boolean chunked) {
+        ArrayList<String> commands = new ArrayList<String>();
+        ArrayList<String> responses = new ArrayList<String>();
+        if (reset) {
+            commands.add("RSET");
+            responses.add("250 2.0.0 Flushed");
+        }
+        commands.add("MAIL FROM:<Jones@Registry.Org>");
+        responses.add("250 2.1.0 <Jones@Registry.Org> sender ok");
+        for (int i = 0; i < recipientCount; i++) {
+            commands.add("RCPT TO:<Smith" + i + "@Registry.Org>");
+            responses.add("250 2.1.5 <Smith" + i + "@Registry.Org> recipient ok");
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            if (!pipelined) {
+                mockTransport.expect(commands.get(i), responses.get(i));
+            } else if (i < commands.size() - 1) {
+                mockTransport.expect(commands.get(i));
+            } else {
+                mockTransport.expect(commands.get(i), responses.toArray(new String[0]));
+            }
+        }
+        if (chunked) {
+            mockTransport.expect("BDAT \\d+ LAST", "250 2.0.0 Message accepted");
+        } else {
+            mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        }
+        mockTransport.expect("Date: .*");
+        mockTransport.expect("Message-ID: .*");
+        mockTransport.expect("From: Jones@Registry.Org");
+        mockTransport.expect("To: .*");
+        mockTransport.expect("MIME-Version: 1.0");
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING_BASE64);
+        if (!chunked) {
+            mockTransport.expect("\r\n\\.",
+                    "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        }
+    }
+
+    /**
+     * Test:  The session is kept for the next message, which starts with a RSET
+     */
+    public void testSessionReused() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, null);
+        Message message1 = saveMessageWithBody(1);
+        Message message2 = saveMessageWithBody(1);
+
+        expectMessageWithBody(mockTransport, 1, false, false, false);
+        mSender.sendMessage(message1.mId);
+        // No banner, EHLO or AUTH this time
+        expectMessageWithBody(mockTransport, 1, true, false, false);
+        mSender.sendMessage(message2.mId);
+    }
+
+    /**
+     * Test:  A session the server dropped is replaced by a new one
+     */
+    public void testSessionLost() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, null);
+        Message message1 = saveMessageWithBody(1);
+        Message message2 = saveMessageWithBody(1);
+
+        expectMessageWithBody(mockTransport, 1, false, false, false);
+        mSender.sendMessage(message1.mId);
+
+        mockTransport.expectIOException();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+        expectMessageWithBody(mockTransport, 1, false, false, false);
+        mSender.sendMessage(message2.mId);
+    }
+
+    /**
+     * Sends two messages to {@code recipientCount} recipients each, and returns the number of
+     * round trips the second one took.
+     */
+    private int countRoundTrips(String capabilities, int recipientCount) throws Exception {
+        final boolean pipelined = capabilities.contains("PIPELINING");
+        final boolean chunked = capabilities.contains("CHUNKING");
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, capabilities);
+        Message message1 = saveMessageWithBody(recipientCount);
+        Message message2 = saveMessageWithBody(recipientCount);
+
+        expectMessageWithBody(mockTransport, recipientCount, false, pipelined, chunked);
+        mSender.sendMessage(message1.mId);
+        final int before = mockTransport.getRoundTripCount();
+        expectMessageWithBody(mockTransport, recipientCount, true, pipelined, chunked);
+        mSender.sendMessage(message2.mId);
+        mSender.close();
+        return mockTransport.getRoundTripCount() - before;
+    }
+
+    /**
+     * Test:  Without PIPELINING, each envelope command takes a round trip
+     */
+    public void testRoundTripsWithoutPipelining() throws Exception {
+        // RSET, MAIL FROM, 5 RCPT TO, DATA, end of data
+        assertEquals(9, countRoundTrips("AUTH PLAIN", 5));
+    }
+
+    /**
+     * Test:  With PIPELINING, the envelope takes a single round trip, whatever the number of
+     * recipients
+     */
+    public void testRoundTripsWithPipelining() throws Exception {
+        // Envelope, DATA, end of data
+        assertEquals(3, countRoundTrips("AUTH PLAIN,PIPELINING", 5));
+    }
+
+    /**
+     * Test:  With PIPELINING and CHUNKING, the message is sent with BDAT, without waiting for the
+     * DATA response
+     */
+    public void testRoundTripsWithChunking() throws Exception {
+        // Envelope, BDAT
+        assertEquals(2, countRoundTrips("AUTH PLAIN,PIPELINING,CHUNKING", 5));
+    }
+
+    /**
+     * Test:  With PIPELINING, a rejected recipient fails the message, once all the responses to
+     * the envelope are read, and the session stays usable
+     */
+    public void testPipelinedRecipientRejected() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpen(mockTransport, "AUTH PLAIN,PIPELINING");
+        Message message1 = saveMessageWithBody(2);
+        Message message2 = saveMessageWithBody(1);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>");
+        mockTransport.expect("RCPT TO:<Smith0@Registry.Org>");
+        mockTransport.expect("RCPT TO:<Smith1@Registry.Org>", new String[] {
+                "250 2.1.0 <Jones@Registry.Org> sender ok",
+                "550 5.1.1 <Smith0@Registry.Org> no such user",
+                "250 2.1.5 <Smith1@Registry.Org> recipient ok"});
+        try {
+            mSender.sendMessage(message1.mId);
+            fail("The rejected recipient should fail the message");
+        } catch (MessagingException me) {
+            assertTrue(me.getMessage().startsWith("550"));
+        }
+
+        expectMessageWithBody(mockTransport, 1, true, true, false);
+        mSender.sendMessage(message2.mId);
+    }
+
     /**
      * Prepare to send a simple message (see setReceiveSimpleMessage)
      */
@@ -225,9 +400,6 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
     public void testEmptyLineResponse() throws Exception {
         MockTransport mockTransport = openAndInjectMockTransport();
 
-        // Since SmtpSender.sendMessage() does a close then open, we need to preset for the open
-        mockTransport.expectClose();
-
         // Load up just the bare minimum to expose the error
         mockTransport.expect(null, "220 MockTransport 2000 Ready To Assist You Peewee");
         mockTransport.expectLiterally("EHLO [" + LOCAL_ADDRESS + "]", null);
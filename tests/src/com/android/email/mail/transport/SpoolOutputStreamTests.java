@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import com.android.emailcommon.TempDirectory;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests of {@link SpoolOutputStream}.
+ */
+@SmallTest
+public class SpoolOutputStreamTests extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] createData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] readSpool(SpoolOutputStream spool) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spool.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public void testInMemory() throws Exception {
+        final byte[] data = createData(100);
+        final SpoolOutputStream spool = new SpoolOutputStream(100);
+        spool.write(data[0]);
+        spool.write(data, 1, data.length - 1);
+        spool.close();
+
+        assertFalse(spool.isInFile());
+        assertEquals(100, spool.getLength());
+        assertTrue(Arrays.equals(data, readSpool(spool)));
+        // It can be sent again
+        assertTrue(Arrays.equals(data, readSpool(spool)));
+        spool.destroy();
+    }
+
+    public void testInFile() throws Exception {
+        final byte[] data = createData(1000);
+        final int tempFileCount = TempDirectory.getTempDirectory().list().length;
+        final SpoolOutputStream spool = new SpoolOutputStream(100);
+        spool.write(data, 0, 60);
+        assertFalse(spool.isInFile());
+        // Crosses the threshold
+        spool.write(data, 60, 60);
+        assertTrue(spool.isInFile());
+        spool.write(data[120]);
+        spool.write(data, 121, data.length - 121);
+        spool.close();
+
+        assertEquals(1000, spool.getLength());
+        assertTrue(Arrays.equals(data, readSpool(spool)));
+        assertEquals(tempFileCount + 1, TempDirectory.getTempDirectory().list().length);
+        spool.destroy();
+        assertEquals(tempFileCount, TempDirectory.getTempDirectory().list().length);
+    }
+}
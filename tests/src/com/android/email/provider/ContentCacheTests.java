@@ -25,12 +25,16 @@ import com.android.emailcommon.provider.Mailbox;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.util.Random;
 
 /**
  * Tests of ContentCache
@@ -296,4 +300,227 @@ public class ContentCacheTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(0, ContentCache.sActiveCursors.getCount(underlyingCursor));
         assertTrue(underlyingCursor.isClosed());
     }
+
+    private static final String[] ROW_PROJECTION = new String[] {"_id", "name", "flags", "blank"};
+
+    private Cursor getTypedRowCursor() {
+        MatrixCursor cursor = new MatrixCursor(ROW_PROJECTION, 1);
+        cursor.addRow(new Object[] {7L, "Name", 3L, null});
+        return cursor;
+    }
+
+    public void testRowCursor() {
+        ContentCache cache = new ContentCache("Name", ROW_PROJECTION, 2);
+        ContentCache.Statistics stats = cache.getStatistics();
+        Cursor cursor = cache.putCursor(getTypedRowCursor(), "7", ROW_PROJECTION,
+                cache.getCacheToken("7"));
+        cursor.close();
+
+        // A query with another projection is served from the cached row
+        String[] projection = new String[] {"flags", "name"};
+        Cursor c = cache.getCachedCursor("7", projection);
+        assertNotNull(c);
+        assertFalse(c instanceof CachedCursor);
+        assertEquals(1, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals(projection, c.getColumnNames());
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, c.getType(0));
+        assertEquals(3, c.getInt(0));
+        assertEquals("3", c.getString(0));
+        assertEquals(Cursor.FIELD_TYPE_STRING, c.getType(1));
+        assertEquals("Name", c.getString(1));
+        assertFalse(c.moveToNext());
+        c.close();
+
+        c = cache.getCachedCursor("7", new String[] {"blank"});
+        assertTrue(c.moveToFirst());
+        assertTrue(c.isNull(0));
+        assertNull(c.getString(0));
+        assertEquals(0, c.getLong(0));
+        c.close();
+
+        // A column that isn't cached is a miss, as is a row that isn't cached
+        assertNull(cache.getCachedCursor("7", new String[] {"other"}));
+        assertNull(cache.getCachedCursor("8", ROW_PROJECTION));
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getRowHitCount());
+        assertEquals(2, stats.getMissCount());
+
+        // A row read for a query with another projection is cached, and served to both
+        cursor = cache.putRow(getTypedRowCursor(), "8", projection, cache.getCacheToken("8"));
+        assertEquals(projection, cursor.getColumnNames());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(3, cursor.getInt(0));
+        cursor.close();
+        c = cache.getCachedCursor("8", ROW_PROJECTION);
+        assertTrue(c instanceof CachedCursor);
+        c.close();
+        c = cache.getCachedCursor("8", projection);
+        assertNotNull(c);
+        c.close();
+        assertEquals(4, stats.getHitCount());
+    }
+
+    public void testUnlockWithValues() {
+        ContentCache cache = new ContentCache("Name", ROW_PROJECTION, 2);
+        Cursor underlyingCursor = getTypedRowCursor();
+        cache.putCursor(underlyingCursor, "7", ROW_PROJECTION, cache.getCacheToken("7")).close();
+
+        cache.lock("7");
+        ContentValues values = new ContentValues();
+        values.put("flags", true);
+        values.put("name", "New name");
+        cache.unlock("7", values);
+        // The old cursor is no longer cached, nor used
+        assertTrue(underlyingCursor.isClosed());
+
+        // The new values are served, with their types
+        Cursor c = cache.getCachedCursor("7", ROW_PROJECTION);
+        assertTrue(c.moveToFirst());
+        assertEquals(7, c.getLong(0));
+        assertEquals("New name", c.getString(1));
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, c.getType(2));
+        assertEquals(1, c.getInt(2));
+        c.close();
+
+        // Values for a column that isn't cached remove the row
+        cache.lock("7");
+        values = new ContentValues();
+        values.put("other", 1);
+        cache.unlock("7", values);
+        assertNull(cache.getCachedCursor("7", ROW_PROJECTION));
+    }
+
+    private static final int STRESS_THREADS = 8;
+    private static final int STRESS_ROWS = 64;
+    private static final int STRESS_OPERATIONS = 5000;
+
+    /**
+     * Runs the read/write pattern of EmailProvider on a cache, from several threads at once, and
+     * returns the number of operations per second.  Any exception thrown by a thread fails the
+     * test.
+     */
+    private long runStressTest(final ContentCache cache) throws InterruptedException {
+        final int activeCursors = ContentCache.sActiveCursors.size();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[STRESS_THREADS];
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int op = 0; op < STRESS_OPERATIONS; op++) {
+                            String id = Integer.toString(random.nextInt(STRESS_ROWS));
+                            if (random.nextInt(10) == 0) {
+                                // A write to the row
+                                cache.lock(id);
+                                cache.unlock(id);
+                                continue;
+                            }
+                            // A read of the row, which caches it on a miss
+                            CacheToken token = cache.getCacheToken(id);
+                            Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                            if (c == null) {
+                                c = cache.putCursor(getOneRowCursor(), id, SIMPLE_PROJECTION,
+                                        token);
+                            }
+                            assertTrue(c.moveToFirst());
+                            assertEquals(SIMPLE_ROW[0], c.getString(0));
+                            c.close();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new RuntimeException(failure[0]);
+            }
+        }
+        // Every token was used, and every cached cursor was closed
+        assertEquals(0, cache.getTokenCount());
+        assertEquals(activeCursors, ContentCache.sActiveCursors.size());
+        return STRESS_THREADS * STRESS_OPERATIONS * 1000000000L / elapsed;
+    }
+
+    /**
+     * Caches rows of many ids in a cache much smaller than that from several threads, so that
+     * the rows are constantly evicted by puts on other stripes, and checks that the cursors
+     * returned by the cache are never closed under their users.
+     */
+    public void testEvictionByOtherStripes() throws InterruptedException {
+        final ContentCache cache = new ContentCache("Evicting", SIMPLE_PROJECTION, 2);
+        final int activeCursors = ContentCache.sActiveCursors.size();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[STRESS_THREADS];
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int op = 0; op < STRESS_OPERATIONS; op++) {
+                            String id = Integer.toString(random.nextInt(STRESS_ROWS));
+                            CacheToken token = cache.getCacheToken(id);
+                            Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                            Cursor underlying;
+                            if (c == null) {
+                                underlying = getOneRowCursor();
+                                c = cache.putCursor(underlying, id, SIMPLE_PROJECTION, token);
+                            } else {
+                                underlying = ((CursorWrapper) c).getWrappedCursor();
+                            }
+                            assertFalse(underlying.isClosed());
+                            c.close();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new RuntimeException(failure[0]);
+            }
+        }
+        assertEquals(activeCursors, ContentCache.sActiveCursors.size());
+    }
+
+    /**
+     * Stress test of concurrent access to a cache, which compares the throughput of a striped
+     * cache with that of a cache whose rows all share one lock (as they did in the original
+     * implementation).
+     */
+    public void testConcurrentThroughput() throws InterruptedException {
+        long sharedLock = runStressTest(
+                new ContentCache("Shared", SIMPLE_PROJECTION, STRESS_ROWS / 2, 1));
+        long striped = runStressTest(
+                new ContentCache("Striped", SIMPLE_PROJECTION, STRESS_ROWS / 2));
+        Log.d("ContentCacheTests", "Operations/sec, shared lock: " + sharedLock
+                + ", striped: " + striped);
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the queries of the message lists and of the sync, and checks that
+ * none of them scans the whole Message table, or sorts the messages once read, so that a change
+ * of a selection or of the indexes can't silently slow them down.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageQueryPlanTests email
+ */
+@MediumTest
+public class MessageQueryPlanTests extends ProviderTestCase2<EmailProvider> {
+    private static final String ORDER_BY_TIMESTAMP = " order by " + MessageColumns.TIMESTAMP
+            + " desc";
+
+    private Context mMockContext;
+    private SQLiteDatabase mDatabase;
+    private Account mAccount;
+
+    public MessageQueryPlanTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mDatabase = getProvider().getDatabase(mMockContext);
+        mAccount = ProviderTestUtils.setupAccount("plan", true, mMockContext);
+    }
+
+    /**
+     * Returns the plan of a query on the Message table, one step per line.
+     */
+    private String getPlan(String selection, String[] selectionArgs, String orderBy) {
+        Cursor c = mDatabase.rawQuery("explain query plan select " + EmailContent.RECORD_ID
+                + ", " + MessageColumns.DISPLAY_NAME + " from " + Message.TABLE_NAME + " where "
+                + selection + (orderBy == null ? "" : orderBy), selectionArgs);
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                // The description of the step is the last column, whatever the SQLite version
+                plan.append(c.getString(c.getColumnCount() - 1)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Checks that the plan of a query reads the messages through an index.  The mailbox
+     * subqueries of the combined views may scan the Mailbox table, which is small.
+     */
+    private static void assertNoFullScan(String plan) {
+        for (String step : plan.split("\n")) {
+            boolean scan = step.startsWith("SCAN TABLE " + Message.TABLE_NAME + " ")
+                    || step.equals("SCAN TABLE " + Message.TABLE_NAME)
+                    || step.startsWith("SCAN " + Message.TABLE_NAME + " ")
+                    || step.equals("SCAN " + Message.TABLE_NAME);
+            assertFalse(plan, scan && step.indexOf("INDEX") < 0);
+        }
+    }
+
+    /**
+     * Checks that the plan of a query uses an index, and reads the messages in order.
+     */
+    private static void assertIndexedAndSorted(String plan) {
+        assertNoFullScan(plan);
+        assertTrue(plan, plan.indexOf("TEMP B-TREE") < 0);
+    }
+
+    public void testMailboxMessageList() {
+        Mailbox inbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        assertIndexedAndSorted(getPlan(Message.buildMessageListSelection(mMockContext,
+                mAccount.mId, inbox.mId), null, ORDER_BY_TIMESTAMP));
+
+        // The outbox doesn't check flagLoaded
+        Mailbox outbox = ProviderTestUtils.setupMailbox("outbox", mAccount.mId, true,
+                mMockContext, Mailbox.TYPE_OUTBOX);
+        assertIndexedAndSorted(getPlan(Message.buildMessageListSelection(mMockContext,
+                mAccount.mId, outbox.mId), null, ORDER_BY_TIMESTAMP));
+    }
+
+    public void testCombinedUnreadAndFavoriteMessageLists() {
+        assertIndexedAndSorted(getPlan(Message.ALL_UNREAD_SELECTION, null, ORDER_BY_TIMESTAMP));
+        assertIndexedAndSorted(getPlan(Message.ALL_FAVORITE_SELECTION, null,
+                ORDER_BY_TIMESTAMP));
+        assertIndexedAndSorted(getPlan(Message.buildMessageListSelection(mMockContext,
+                mAccount.mId, Mailbox.QUERY_ALL_FAVORITES), null, ORDER_BY_TIMESTAMP));
+    }
+
+    /**
+     * The messages of several mailboxes are read from as many ranges of the mailbox index, which
+     * then have to be merged; these lists are only checked not to scan the table.
+     */
+    public void testCombinedMailboxMessageLists() {
+        assertNoFullScan(getPlan(Message.ALL_INBOX_SELECTION, null, ORDER_BY_TIMESTAMP));
+        assertNoFullScan(getPlan(Message.ALL_DRAFT_SELECTION, null, ORDER_BY_TIMESTAMP));
+        assertNoFullScan(getPlan(Message.ALL_OUTBOX_SELECTION, null, ORDER_BY_TIMESTAMP));
+    }
+
+    public void testCounts() {
+        String[] accountArgs = new String[] { Long.toString(mAccount.mId) };
+        assertNoFullScan(getPlan(Message.PER_ACCOUNT_UNREAD_SELECTION, accountArgs, null));
+        assertNoFullScan(getPlan(Message.PER_ACCOUNT_FAVORITE_SELECTION, accountArgs, null));
+        assertNoFullScan(getPlan(MessageColumns.MAILBOX_KEY + "=1 AND "
+                + MessageColumns.FLAG_READ + "=0", null, null));
+    }
+
+    /**
+     * The lookups of the local messages of a mailbox by server id, by the sync, use all three
+     * columns of the account/mailbox/server id index.
+     */
+    public void testSyncLookups() {
+        String plan = getPlan(MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY
+                + "=? AND " + SyncColumns.SERVER_ID + "=?", new String[] { "1", "2", "3" },
+                null);
+        assertNoFullScan(plan);
+        assertTrue(plan, plan.indexOf("message_" + MessageColumns.ACCOUNT_KEY + '_'
+                + MessageColumns.MAILBOX_KEY + '_' + SyncColumns.SERVER_ID) >= 0);
+
+        assertNoFullScan(getPlan(MessageColumns.ACCOUNT_KEY + "=? AND "
+                + MessageColumns.MAILBOX_KEY + "=?", new String[] { "1", "2" }, null));
+    }
+}
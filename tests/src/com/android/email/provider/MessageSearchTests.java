@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Tests of the full-text search of the messages in EmailProvider
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageSearchTests email
+ */
+@MediumTest
+public class MessageSearchTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mMailbox;
+
+    public MessageSearchTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        mAccount = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        mMailbox = ProviderTestUtils.setupMailbox("box", mAccount.mId, true, mMockContext);
+    }
+
+    private Message setupMessage(String subject, String from, String text) {
+        return setupMessage(subject, from, text, 0);
+    }
+
+    private Message setupMessage(String subject, String from, String text, long timeStamp) {
+        Message message = ProviderTestUtils.setupMessage("message", mAccount.mId, mMailbox.mId,
+                text != null, false, mMockContext);
+        if (timeStamp != 0) {
+            message.mTimeStamp = timeStamp;
+        }
+        message.mSubject = subject;
+        message.mDisplayName = from;
+        message.mFrom = "sender@example.com";
+        message.mText = text;
+        message.mHtml = null;
+        message.save(mMockContext);
+        return message;
+    }
+
+    private long[] search(String terms, String selection) {
+        Uri uri = Message.SEARCH_URI.buildUpon()
+                .appendQueryParameter(Message.SEARCH_QUERY_PARAMETER, terms).build();
+        Cursor c = mResolver.query(uri, Message.SEARCH_PROJECTION, selection, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(Message.SEARCH_ID_COLUMN);
+                assertNotNull(c.getString(Message.SEARCH_SNIPPET_COLUMN));
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void assertIds(long[] actual, long... expected) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    public void testSearchSubjectSenderBody() {
+        Message bodyMatch = setupMessage("lunch", "alice", "about the quarterly report");
+        Message subjectMatch = setupMessage("quarterly report", "bob", "see attached");
+        Message senderMatch = setupMessage("hello", "quarterly", null);
+        setupMessage("unrelated", "carol", "nothing here");
+
+        // Matches in the subject rank above those in the sender, then in the body
+        assertIds(search("quarterly", null), subjectMatch.mId, senderMatch.mId, bodyMatch.mId);
+        // All of the terms must match
+        assertIds(search("quarterly report", null), subjectMatch.mId, bodyMatch.mId);
+        assertIds(search("missing", null));
+
+        // The selection narrows the search to some messages
+        assertIds(search("quarterly", MessageColumns.ID + "!=" + subjectMatch.mId),
+                senderMatch.mId, bodyMatch.mId);
+    }
+
+    public void testIndexFollowsWrites() {
+        Message message = setupMessage("first subject", "alice", "first body");
+        assertIds(search("first", null), message.mId);
+
+        // Updating the subject and the body updates the index
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "second subject");
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv, null,
+                null);
+        cv = new ContentValues();
+        cv.put(BodyColumns.TEXT_CONTENT, "second body");
+        mResolver.update(Body.CONTENT_URI, cv, BodyColumns.MESSAGE_KEY + "=" + message.mId,
+                null);
+        assertIds(search("first", null));
+        assertIds(search("second", null), message.mId);
+
+        // Deleting the message removes it from the index
+        mResolver.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), null,
+                null);
+        assertIds(search("second", null));
+    }
+
+    public void testNewestFirst() {
+        // Inserted in another order than their dates
+        Message older = setupMessage("report", "alice", null, 1000);
+        Message newest = setupMessage("report", "bob", null, 3000);
+        Message old = setupMessage("report", "carol", null, 2000);
+        Message subjectAndBody = setupMessage("report", "dave", "the report", 500);
+
+        // Matches of the same rank are ordered by date, whatever their ids
+        assertIds(search("report", null), subjectAndBody.mId, newest.mId, old.mId, older.mId);
+    }
+
+    public void testLimit() {
+        for (int i = 0; i < 5; i++) {
+            setupMessage("common subject " + i, "sender", null);
+        }
+        Uri uri = EmailContent.uriWithLimit(Message.SEARCH_URI.buildUpon()
+                .appendQueryParameter(Message.SEARCH_QUERY_PARAMETER, "common").build(), 2);
+        Cursor c = mResolver.query(uri, Message.SEARCH_PROJECTION, null, null, null);
+        try {
+            assertEquals(2, c.getCount());
+            while (c.moveToNext()) {
+                // The snippets are made for the returned matches
+                assertTrue(c.getString(Message.SEARCH_SNIPPET_COLUMN).contains("common"));
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Tests of the newUnreadCount of the mailboxes, which the triggers of the Message table keep up
+ * to date for the notification query.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.NewUnreadCountTests email
+ */
+@MediumTest
+public class NewUnreadCountTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mInbox;
+    private Mailbox mOther;
+
+    public NewUnreadCountTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        mAccount = ProviderTestUtils.setupAccount("new", true, mMockContext);
+        mInbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        mOther = ProviderTestUtils.setupMailbox("other", mAccount.mId, true, mMockContext);
+    }
+
+    private Message addMessage(Mailbox mailbox, boolean read, long timeStamp) {
+        Message message = ProviderTestUtils.setupMessage("message", mAccount.mId, mailbox.mId,
+                false, false, mMockContext, false, read);
+        message.mTimeStamp = timeStamp;
+        message.save(mMockContext);
+        return message;
+    }
+
+    private void updateMessage(Message message, String column, long value) {
+        ContentValues cv = new ContentValues();
+        cv.put(column, value);
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv,
+                null, null);
+    }
+
+    private void setLastNotifiedMessage(Mailbox mailbox, Message message) {
+        ContentValues cv = new ContentValues();
+        cv.put(MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY, message.mId);
+        mResolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId), cv,
+                null, null);
+    }
+
+    private int getNewUnreadCount(Mailbox mailbox) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId),
+                new String[] { MailboxColumns.NEW_UNREAD_COUNT }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Checks that the notification query returns what the join of the messages it replaced does.
+     */
+    private void checkNotificationQuery() {
+        Cursor join = getProvider().getDatabase(mMockContext).rawQuery(
+                NotificationBenchmarkTests.JOIN_QUERY,
+                new String[] { Long.toString(mAccount.mId) });
+        Cursor c = mResolver.query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_NOTIFICATION_URI, mAccount.mId),
+                EmailContent.NOTIFICATION_PROJECTION, null, null, null);
+        try {
+            assertEquals(join.getCount(), c.getCount());
+            assertTrue(join.moveToFirst());
+            assertTrue(c.moveToFirst());
+            int count = join.getInt(EmailContent.NOTIFICATION_MAILBOX_MESSAGE_COUNT_COLUMN);
+            assertEquals(count, c.getInt(EmailContent.NOTIFICATION_MAILBOX_MESSAGE_COUNT_COLUMN));
+            if (count > 0) {
+                assertEquals(join.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN),
+                        c.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN));
+                assertEquals(join.getInt(EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN),
+                        c.getInt(EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN));
+            }
+        } finally {
+            join.close();
+            c.close();
+        }
+    }
+
+    public void testMessageChanges() {
+        Message message1 = addMessage(mInbox, false, 100);
+        Message message2 = addMessage(mInbox, false, 100);
+        Message undated = addMessage(mInbox, false, 0);
+        addMessage(mInbox, true, 100);
+        assertEquals(2, getNewUnreadCount(mInbox));
+        checkNotificationQuery();
+
+        updateMessage(message1, MessageColumns.FLAG_READ, 1);
+        assertEquals(1, getNewUnreadCount(mInbox));
+        updateMessage(message1, MessageColumns.FLAG_READ, 0);
+        assertEquals(2, getNewUnreadCount(mInbox));
+
+        updateMessage(undated, MessageColumns.TIMESTAMP, 100);
+        assertEquals(3, getNewUnreadCount(mInbox));
+        checkNotificationQuery();
+
+        updateMessage(message2, MessageColumns.MAILBOX_KEY, mOther.mId);
+        assertEquals(2, getNewUnreadCount(mInbox));
+        assertEquals(1, getNewUnreadCount(mOther));
+
+        mResolver.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message1.mId),
+                null, null);
+        assertEquals(1, getNewUnreadCount(mInbox));
+        checkNotificationQuery();
+    }
+
+    /**
+     * Only the messages added since the mailbox was last notified of are counted.
+     */
+    public void testLastNotifiedMessage() {
+        addMessage(mInbox, false, 100);
+        Message message2 = addMessage(mInbox, false, 100);
+        assertEquals(2, getNewUnreadCount(mInbox));
+
+        setLastNotifiedMessage(mInbox, message2);
+        assertEquals(0, getNewUnreadCount(mInbox));
+        checkNotificationQuery();
+
+        // Changes of the messages already notified of don't count either
+        updateMessage(message2, MessageColumns.FLAG_READ, 1);
+        updateMessage(message2, MessageColumns.FLAG_READ, 0);
+        assertEquals(0, getNewUnreadCount(mInbox));
+
+        addMessage(mInbox, false, 100);
+        assertEquals(1, getNewUnreadCount(mInbox));
+        checkNotificationQuery();
+    }
+
+    /**
+     * The notification query sums the new messages of the notifying mailboxes of the account.
+     */
+    public void testNotificationQuery() {
+        Message notified = addMessage(mInbox, false, 100);
+        addMessage(mInbox, false, 100);
+        addMessage(mInbox, false, 100);
+        addMessage(mInbox, true, 100);
+        setLastNotifiedMessage(mInbox, notified);
+
+        Cursor c = mResolver.query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_NOTIFICATION_URI, mAccount.mId),
+                EmailContent.NOTIFICATION_PROJECTION, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(mInbox.mId, c.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN));
+            assertEquals(3, c.getInt(EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN));
+            assertEquals(2, c.getInt(EmailContent.NOTIFICATION_MAILBOX_MESSAGE_COUNT_COLUMN));
+        } finally {
+            c.close();
+        }
+        checkNotificationQuery();
+    }
+}
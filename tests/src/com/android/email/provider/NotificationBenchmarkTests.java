@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.email.benchmark.Benchmark;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures the notification query of an account, which is run each time a message of a notifying
+ * mailbox changes, on a database of 100,000 messages: as it used to be done, by joining the new
+ * messages of the mailboxes, and as it's now done, by summing the counts the triggers keep in the
+ * mailboxes.
+ *
+ * No results are recorded here; each run logs its own, and the speedup of the counters.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.NotificationBenchmarkTests email
+ * and read the results with:
+ *   adb logcat -s EmailBenchmark
+ */
+@LargeTest
+public class NotificationBenchmarkTests extends ProviderTestCase2<EmailProvider> {
+    private static final int MESSAGE_COUNT = 100000;
+
+    /** The join EmailProvider used to run for the notification query of an account */
+    static final String JOIN_QUERY = "SELECT DISTINCT Boxes." + MailboxColumns.ID
+            + ", Boxes." + MailboxColumns.UNREAD_COUNT + ", count(" + Message.TABLE_NAME + "."
+            + MessageColumns.ID + ") FROM " + Message.TABLE_NAME + ",(SELECT "
+            + MailboxColumns.ID + "," + MailboxColumns.UNREAD_COUNT + ","
+            + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " FROM " + Mailbox.TABLE_NAME
+            + " WHERE " + MailboxColumns.ACCOUNT_KEY + "=? AND (" + MailboxColumns.TYPE + "="
+            + Mailbox.TYPE_INBOX + " OR (" + MailboxColumns.SYNC_INTERVAL + "!=0 AND "
+            + MailboxColumns.SYNC_INTERVAL + "!=-1))) AS Boxes WHERE Boxes." + MailboxColumns.ID
+            + '=' + Message.TABLE_NAME + "." + MessageColumns.MAILBOX_KEY + " AND "
+            + Message.TABLE_NAME + "." + MessageColumns.ID + ">Boxes."
+            + MailboxColumns.LAST_NOTIFIED_MESSAGE_KEY + " AND " + MessageColumns.FLAG_READ
+            + "=0 AND " + MessageColumns.TIMESTAMP + "!=0";
+
+    private SQLiteDatabase mDatabase;
+    private Account mAccount;
+    private Mailbox mInbox;
+
+    public NotificationBenchmarkTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = getProvider().getDatabase(getMockContext());
+        mAccount = ProviderTestUtils.setupAccount("benchmark", true, getMockContext());
+        mInbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, getMockContext(),
+                Mailbox.TYPE_INBOX);
+
+        // As after the first sync of a large mailbox, which hasn't been notified of yet: half of
+        // the messages are unread
+        final SQLiteStatement insert = mDatabase.compileStatement("insert into "
+                + Message.TABLE_NAME + " (" + MessageColumns.MAILBOX_KEY + ", "
+                + MessageColumns.ACCOUNT_KEY + ", " + SyncColumns.SERVER_ID + ", "
+                + MessageColumns.TIMESTAMP + ", " + MessageColumns.FLAG_READ + ", "
+                + MessageColumns.FLAG_LOADED + ", " + MessageColumns.SUBJECT
+                + ") values (?, ?, ?, ?, ?, ?, ?)");
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                insert.bindLong(1, mInbox.mId);
+                insert.bindLong(2, mAccount.mId);
+                insert.bindString(3, Integer.toString(i));
+                insert.bindLong(4, 1000000L + i);
+                insert.bindLong(5, i % 2);
+                insert.bindLong(6, Message.FLAG_LOADED_COMPLETE);
+                insert.bindString(7, "subject " + i);
+                insert.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Returns the count in the last column of the first row of a query.
+     */
+    private static int readCount(Cursor c) {
+        try {
+            return c.moveToFirst() ? c.getInt(c.getColumnCount() - 1) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testNotificationQuery() throws Exception {
+        final int expected = MESSAGE_COUNT / 2;
+        final String[] args = new String[] { Long.toString(mAccount.mId) };
+        final Uri uri = ContentUris.withAppendedId(EmailContent.MAILBOX_NOTIFICATION_URI,
+                mAccount.mId);
+        assertEquals(expected, readCount(mDatabase.rawQuery(JOIN_QUERY, args)));
+        assertEquals(expected, readCount(getProvider().notificationQuery(uri)));
+
+        final Benchmark.Result join = Benchmark.run("Notification query (join)", 0, 1,
+                "lookups", new Benchmark.Workload() {
+            @Override
+            public int run() {
+                return readCount(mDatabase.rawQuery(JOIN_QUERY, args));
+            }
+        });
+        final Benchmark.Result counter = Benchmark.run("Notification query (counters)", 0, 1,
+                "lookups", new Benchmark.Workload() {
+            @Override
+            public int run() {
+                return readCount(getProvider().notificationQuery(uri));
+            }
+        });
+        Log.i(Benchmark.LOG_TAG, String.format(
+                "Notification query: counters %.1fx faster than join",
+                counter.getUnitsPerSecond() / join.getUnitsPerSecond()));
+        assertTrue(counter + " vs. " + join,
+                counter.getUnitsPerSecond() > join.getUnitsPerSecond());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Tests of {@link NotificationCoalescer}
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.NotificationCoalescerTests email
+ */
+@SmallTest
+public class NotificationCoalescerTests extends AndroidTestCase {
+    private static final Uri URI_A = Uri.parse("content://test/a");
+    private static final Uri URI_B = Uri.parse("content://test/b");
+
+    private final ArrayList<Uri> mNotified = new ArrayList<Uri>();
+    private final MockTimer mTimer = new MockTimer();
+    private final NotificationCoalescer mCoalescer = new NotificationCoalescer(
+            new NotificationCoalescer.Notifier() {
+                @Override
+                public void notifyChange(Uri uri) {
+                    mNotified.add(uri);
+                }
+            }, mTimer, 100);
+
+    /**
+     * Timer which runs its tasks when asked to, rather than when they are due.
+     */
+    private static class MockTimer extends Timer {
+        private final ArrayList<TimerTask> mTasks = new ArrayList<TimerTask>();
+
+        @Override
+        public void schedule(TimerTask task, long delay) {
+            mTasks.add(task);
+        }
+
+        /** Runs the tasks scheduled so far (but not those they schedule) */
+        void runScheduledTasks() {
+            ArrayList<TimerTask> tasks = new ArrayList<TimerTask>(mTasks);
+            mTasks.clear();
+            for (TimerTask task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    public void testWindow() {
+        mCoalescer.beginWindow();
+        assertTrue(mCoalescer.isInWindow());
+        mCoalescer.notifyChange(URI_A);
+        mCoalescer.notifyChange(URI_B);
+        mCoalescer.notifyChange(URI_A);
+        mCoalescer.notifyChange(URI_A);
+        assertTrue(mNotified.isEmpty());
+
+        // Only the outermost window sends notifications
+        mCoalescer.beginWindow();
+        mCoalescer.notifyChange(URI_B);
+        mCoalescer.endWindow(true);
+        assertTrue(mNotified.isEmpty());
+
+        mCoalescer.endWindow(true);
+        assertFalse(mCoalescer.isInWindow());
+        assertEquals(2, mNotified.size());
+        assertEquals(URI_A, mNotified.get(0));
+        assertEquals(URI_B, mNotified.get(1));
+        assertEquals(2, mCoalescer.getDeliveredCount());
+        assertEquals(3, mCoalescer.getSuppressedCount());
+    }
+
+    public void testWindowRolledBack() {
+        mCoalescer.beginWindow();
+        mCoalescer.notifyChange(URI_A);
+        mCoalescer.notifyChange(URI_B);
+        mCoalescer.endWindow(false);
+        assertTrue(mNotified.isEmpty());
+        assertEquals(0, mCoalescer.getDeliveredCount());
+        assertEquals(2, mCoalescer.getSuppressedCount());
+
+        try {
+            mCoalescer.endWindow(true);
+            fail("Closing a window that isn't open should throw an exception");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /**
+     * Notifies {@code uri} from a window of its own, as a batch would.
+     */
+    private void notifyInWindow(Uri uri) {
+        mCoalescer.beginWindow();
+        mCoalescer.notifyChange(uri);
+        mCoalescer.endWindow(true);
+    }
+
+    public void testDebounce() {
+        // The first notification is sent right away
+        notifyInWindow(URI_A);
+        assertEquals(1, mNotified.size());
+
+        // The next ones are folded into one, sent at the end of the delay
+        notifyInWindow(URI_A);
+        notifyInWindow(URI_A);
+        notifyInWindow(URI_A);
+        // Other URIs are debounced separately
+        notifyInWindow(URI_B);
+        assertEquals(2, mNotified.size());
+        mTimer.runScheduledTasks();
+        assertEquals(3, mNotified.size());
+        assertEquals(URI_A, mNotified.get(2));
+        assertEquals(3, mCoalescer.getDeliveredCount());
+        assertEquals(2, mCoalescer.getSuppressedCount());
+
+        // That notification started a new delay, during which nothing happened
+        notifyInWindow(URI_A);
+        mTimer.runScheduledTasks();
+        assertEquals(4, mNotified.size());
+        mTimer.runScheduledTasks();
+        assertEquals(4, mNotified.size());
+
+        // Once it's over, the next notification is sent right away again
+        notifyInWindow(URI_A);
+        assertEquals(5, mNotified.size());
+    }
+
+    public void testNoWindow() {
+        // Notifications outside of a window are sent right away, even during a debounce delay
+        notifyInWindow(URI_A);
+        mCoalescer.notifyChange(URI_A);
+        mCoalescer.notifyChange(URI_A);
+        assertEquals(3, mNotified.size());
+        assertEquals(0, mCoalescer.getSuppressedCount());
+    }
+
+    public void testNoDebounce() {
+        mCoalescer.setDebounceDelay(0);
+        notifyInWindow(URI_A);
+        notifyInWindow(URI_A);
+        assertEquals(2, mNotified.size());
+        assertEquals(0, mCoalescer.getSuppressedCount());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Tests of the shadow tables in which EmailProvider records the changes of the messages that are
+ * to be upsynced.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.PendingChangeTests email
+ */
+@MediumTest
+public class PendingChangeTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private ContentResolver mResolver;
+    private Mailbox mInbox;
+    private Mailbox mOther;
+    private Message mMessage;
+
+    public PendingChangeTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mResolver = mMockContext.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("pending", true, mMockContext);
+        mInbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true, mMockContext);
+        mOther = ProviderTestUtils.setupMailbox("other", account.mId, true, mMockContext);
+        mMessage = ProviderTestUtils.setupMessage("message", account.mId, mInbox.mId, false,
+                true, mMockContext, false, false);
+    }
+
+    /**
+     * Updates the message the way the UI does, so that the change is to be upsynced.
+     */
+    private void update(String column, long value) {
+        ContentValues cv = new ContentValues();
+        cv.put(column, value);
+        mResolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, mMessage.mId),
+                cv, null, null);
+    }
+
+    private int getUpdatedCount() {
+        Cursor c = mResolver.query(Message.UPDATED_CONTENT_URI, EmailContent.ID_PROJECTION,
+                null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The original copy of the message is kept until the message is back in its original state.
+     */
+    public void testToggleIsCompacted() {
+        update(MessageColumns.FLAG_READ, 1);
+        assertEquals(1, getUpdatedCount());
+        update(MessageColumns.FLAG_FAVORITE, 1);
+        assertEquals(1, getUpdatedCount());
+        update(MessageColumns.FLAG_READ, 0);
+        // Still flagged
+        assertEquals(1, getUpdatedCount());
+        update(MessageColumns.FLAG_FAVORITE, 0);
+        // Nothing left to upsync
+        assertEquals(0, getUpdatedCount());
+    }
+
+    /**
+     * A move back to the original mailbox leaves nothing to upsync either.
+     */
+    public void testMoveBackIsCompacted() {
+        update(MessageColumns.MAILBOX_KEY, mOther.mId);
+        assertEquals(1, getUpdatedCount());
+        Message original = Message.restoreMessageWithId(mMockContext, mMessage.mId);
+        assertEquals(mOther.mId, original.mMailboxKey);
+        Cursor c = mResolver.query(Message.UPDATED_CONTENT_URI, Message.CONTENT_PROJECTION,
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(mInbox.mId, c.getLong(Message.CONTENT_MAILBOX_KEY_COLUMN));
+        } finally {
+            c.close();
+        }
+        update(MessageColumns.MAILBOX_KEY, mInbox.mId);
+        assertEquals(0, getUpdatedCount());
+    }
+
+    /**
+     * The shadow tables are indexed for the scans of the pending changes of an account.
+     */
+    public void testPendingChangeIndexes() {
+        SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        for (String tableName : new String[] {
+                Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME }) {
+            Cursor c = db.rawQuery("explain query plan select " + EmailContent.RECORD_ID
+                    + " from " + tableName + " where " + MessageColumns.ACCOUNT_KEY
+                    + "=1 order by " + MessageColumns.MAILBOX_KEY, null);
+            try {
+                StringBuilder plan = new StringBuilder();
+                while (c.moveToNext()) {
+                    plan.append(c.getString(c.getColumnCount() - 1)).append('\n');
+                }
+                assertTrue(plan.toString(), plan.indexOf("_account_mailbox") >= 0);
+                assertTrue(plan.toString(), plan.indexOf("TEMP B-TREE") < 0);
+            } finally {
+                c.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.utility.AttachmentUtilities;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests of {@link ThumbnailCache}, and of the sampling of the thumbnails of
+ * {@link AttachmentProvider}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ThumbnailCacheTests email
+ */
+@SmallTest
+public class ThumbnailCacheTests extends AndroidTestCase {
+    /** An account id that no test account uses */
+    private static final long ACCOUNT_ID = 987654321L;
+
+    /** A directory of its own, so that the tests control its size */
+    private File mDirectory;
+
+    /**
+     * Creates thumbnails of a given size, and counts them.
+     */
+    private static class CountingCreator implements ThumbnailCache.Creator {
+        private final int mSize;
+        int mCount;
+
+        CountingCreator(int size) {
+            mSize = size;
+        }
+
+        @Override
+        public byte[] create() {
+            mCount++;
+            final byte[] data = new byte[mSize];
+            Arrays.fill(data, (byte) mCount);
+            return data;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "thumbnail_tests");
+        deleteThumbnails(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteThumbnails(mDirectory);
+        deleteThumbnails(AttachmentUtilities.getThumbnailDirectory(getContext()));
+        super.tearDown();
+    }
+
+    private static void deleteThumbnails(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(ACCOUNT_ID + "_")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static String getKey(long attachmentId) {
+        return ThumbnailCache.getKey(AttachmentUtilities.getThumbnailPrefix(ACCOUNT_ID,
+                attachmentId), 62, 62);
+    }
+
+    public void testComputeSampleSize() {
+        assertEquals(1, AttachmentProvider.computeSampleSize(62, 62, 62, 62));
+        assertEquals(1, AttachmentProvider.computeSampleSize(123, 500, 62, 62));
+        assertEquals(2, AttachmentProvider.computeSampleSize(124, 500, 62, 62));
+        assertEquals(32, AttachmentProvider.computeSampleSize(2592, 1944, 62, 62));
+        // Smaller than the thumbnail
+        assertEquals(1, AttachmentProvider.computeSampleSize(10, 10, 62, 62));
+    }
+
+    public void testCreatedOnce() {
+        final CountingCreator creator = new CountingCreator(10);
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 1000, 1000);
+        final byte[] data = cache.get(getKey(1), creator);
+        assertEquals(10, data.length);
+        assertSame(data, cache.get(getKey(1), creator));
+        assertEquals(1, creator.mCount);
+
+        // A new cache (e.g. after a restart) reads the thumbnail from its file
+        cache = new ThumbnailCache(mDirectory, 1000, 1000);
+        assertTrue(Arrays.equals(data, cache.get(getKey(1), creator)));
+        assertEquals(1, creator.mCount);
+    }
+
+    public void testNoThumbnail() {
+        final ThumbnailCache cache = new ThumbnailCache(mDirectory, 1000, 1000);
+        final ThumbnailCache.Creator creator = new ThumbnailCache.Creator() {
+            @Override
+            public byte[] create() {
+                return null;
+            }
+        };
+        assertNull(cache.get(getKey(1), creator));
+        assertFalse(new File(mDirectory, getKey(1)).exists());
+    }
+
+    public void testEviction() {
+        final CountingCreator creator = new CountingCreator(100);
+        final ThumbnailCache cache = new ThumbnailCache(mDirectory, 150, 250);
+        cache.get(getKey(1), creator);
+        cache.get(getKey(2), creator);
+        // Using the first thumbnail makes the second one the least recently used
+        cache.get(getKey(1), creator);
+        cache.get(getKey(3), creator);
+        assertEquals(3, creator.mCount);
+        assertTrue(new File(mDirectory, getKey(1)).exists());
+        assertFalse(new File(mDirectory, getKey(2)).exists());
+        assertTrue(new File(mDirectory, getKey(3)).exists());
+        assertEquals(200, cache.getDiskSize());
+
+        // The evicted thumbnail is created again
+        cache.get(getKey(2), creator);
+        assertEquals(4, creator.mCount);
+    }
+
+    public void testInvalidation() {
+        final File directory = AttachmentUtilities.getThumbnailDirectory(getContext());
+        final CountingCreator creator = new CountingCreator(10);
+        final ThumbnailCache cache = new ThumbnailCache(directory, 1000, 100000);
+        cache.get(getKey(1), creator);
+        cache.get(getKey(2), creator);
+        assertEquals(2, creator.mCount);
+
+        // The thumbnails of a deleted account go too, including those still in memory
+        AttachmentUtilities.deleteAllAccountAttachmentFiles(getContext(), ACCOUNT_ID);
+        assertFalse(new File(directory, getKey(1)).exists());
+        assertFalse(new File(directory, getKey(2)).exists());
+        cache.get(getKey(1), creator);
+        assertEquals(3, creator.mCount);
+    }
+}
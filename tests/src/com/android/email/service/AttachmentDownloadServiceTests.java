@@ -30,8 +30,11 @@ import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
+import com.android.emailcommon.utility.AttachmentUtilities;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Iterator;
 
 /**
@@ -234,6 +237,40 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         }
     }
 
+    /**
+     * The failures of the downloads that are done in chunks are counted from the last chunk
+     * saved, rather than from the start of the download.
+     */
+    public void testFailuresCountedPerChunk() throws IOException {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 100000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        mDownloadSet.onChange(mMockContext, att);
+
+        mDownloadSet.processQueue();
+        mDownloadSet.endDownload(att.mId, EmailServiceStatus.CONNECTION_ERROR);
+        assertEquals(1, (int) mService.mAttachmentFailureMap.get(att.mId));
+
+        // The next attempt saves a chunk before failing
+        File partialFile = AttachmentUtilities.getPartialAttachmentFile(mMockContext, att.mId);
+        try {
+            mDownloadSet.processQueue();
+            FileOutputStream out = new FileOutputStream(partialFile);
+            out.write(new byte[40000]);
+            out.close();
+            mDownloadSet.endDownload(att.mId, EmailServiceStatus.CONNECTION_ERROR);
+            assertEquals(1, (int) mService.mAttachmentFailureMap.get(att.mId));
+
+            // And the one after it doesn't
+            mDownloadSet.processQueue();
+            mDownloadSet.endDownload(att.mId, EmailServiceStatus.CONNECTION_ERROR);
+            assertEquals(2, (int) mService.mAttachmentFailureMap.get(att.mId));
+        } finally {
+            partialFile.delete();
+        }
+    }
+
     public void testCanPrefetchForAccount() {
         // First, test our "global" limits (based on free storage)
         // Mock storage @ 100 total and 26 available
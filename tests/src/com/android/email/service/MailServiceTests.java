@@ -283,6 +283,16 @@ public class MailServiceTests extends AccountTestCase {
                 assertNotNull(syncReport);
                 // EAS sync interval should be "never" in this case as well
                 assertEquals(Account.CHECK_INTERVAL_NEVER, syncReport.syncInterval);
+                syncReport = syncReportMap.get(imapAccount.mId);
+                assertFalse(syncReport.isPush);
+                // Change the IMAP account to push; it's polled when it can't be pushed
+                imapAccount.update(mMockContext, cv);
+                syncReportMap.clear();
+                mailService.setupSyncReportsLocked(imapAccount.mId, mMockContext);
+                syncReport = syncReportMap.get(imapAccount.mId);
+                assertNotNull(syncReport);
+                assertTrue(syncReport.isPush);
+                assertEquals(MailService.PUSH_FALLBACK_INTERVAL, syncReport.syncInterval);
             }
         } finally {
             mailService.mController.cleanupForTest();
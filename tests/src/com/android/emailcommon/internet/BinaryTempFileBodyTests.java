@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.utility.Utility;
+
+import org.apache.commons.io.IOUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tests of {@link BinaryTempFileBody}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.internet.BinaryTempFileBodyTests email
+ */
+@SmallTest
+public class BinaryTempFileBodyTests extends AndroidTestCase {
+    private static final String CONTENT = "The content of the body";
+
+    private File mTarget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+        mTarget = new File(TempDirectory.getTempDirectory(), "moved_body");
+        mTarget.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTarget.delete();
+        super.tearDown();
+    }
+
+    private static BinaryTempFileBody createBody() throws Exception {
+        final BinaryTempFileBody body = new BinaryTempFileBody();
+        final OutputStream out = body.getOutputStream();
+        out.write(Utility.toUtf8(CONTENT));
+        out.close();
+        return body;
+    }
+
+    public void testMoveTo() throws Exception {
+        final BinaryTempFileBody body = createBody();
+        assertTrue(body.moveTo(mTarget));
+
+        // The body is consumed, and can't delete the moved file any more
+        try {
+            body.getInputStream();
+            fail("Moved body was read");
+        } catch (MessagingException expected) {
+        }
+        assertFalse(body.moveTo(new File(TempDirectory.getTempDirectory(), "moved_again")));
+        final InputStream in = new FileInputStream(mTarget);
+        try {
+            assertEquals(CONTENT, Utility.fromUtf8(IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testReadDeletesFile() throws Exception {
+        final BinaryTempFileBody body = createBody();
+        final InputStream in = body.getInputStream();
+        assertEquals(CONTENT, Utility.fromUtf8(IOUtils.toByteArray(in)));
+        in.close();
+
+        // Nothing left to move
+        assertFalse(body.moveTo(mTarget));
+        assertFalse(mTarget.exists());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests of {@link AttachmentStore}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.utility.AttachmentStoreTests email
+ */
+@MediumTest
+public class AttachmentStoreTests extends ProviderTestCase2<EmailProvider> {
+    private static final String CONTENT = "The same content";
+    private static final String OTHER_CONTENT = "Other content";
+
+    private Context mMockContext;
+    private Account mAccount;
+    private Message mMessage1;
+    private Message mMessage2;
+
+    public AttachmentStoreTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        deleteStore();
+        mAccount = ProviderTestUtils.setupAccount("store", true, mMockContext);
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("box", mAccount.mId, true,
+                mMockContext);
+        mMessage1 = ProviderTestUtils.setupMessage("message1", mAccount.mId, mailbox.mId,
+                false, true, mMockContext);
+        mMessage2 = ProviderTestUtils.setupMessage("message2", mAccount.mId, mailbox.mId,
+                false, true, mMockContext);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteStore();
+        super.tearDown();
+    }
+
+    private void deleteStore() {
+        final File[] files = AttachmentStore.getStoreDirectory(mMockContext).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private Attachment addAttachment(Message message, String content) throws IOException {
+        final Attachment attachment = ProviderTestUtils.setupAttachment(message.mId, "file",
+                content.length(), true, mMockContext);
+        assertEquals(content.length(), AttachmentStore.save(mMockContext,
+                new ByteArrayInputStream(Utility.toUtf8(content)), attachment.mId));
+        return attachment;
+    }
+
+    private int getFileCount() {
+        final File[] files = AttachmentStore.getStoreDirectory(mMockContext).listFiles();
+        return (files == null) ? 0 : files.length;
+    }
+
+    public void testSaveDeduplicates() throws IOException {
+        final Attachment attachment1 = addAttachment(mMessage1, CONTENT);
+        final Attachment attachment2 = addAttachment(mMessage2, CONTENT);
+        final Attachment other = addAttachment(mMessage2, OTHER_CONTENT);
+        assertEquals(2, getFileCount());
+
+        final File file = AttachmentStore.getAttachmentFile(mMockContext, attachment1.mId);
+        assertEquals(file, AttachmentStore.getAttachmentFile(mMockContext, attachment2.mId));
+        assertEquals(CONTENT.length(), file.length());
+        assertFalse(file.equals(AttachmentStore.getAttachmentFile(mMockContext, other.mId)));
+
+        final AttachmentStore.Stats stats = AttachmentStore.getStats(mMockContext);
+        assertEquals(3, stats.mAttachmentCount);
+        assertEquals(2, stats.mFileCount);
+        assertEquals(CONTENT.length(), stats.getSavedBytes());
+    }
+
+    public void testReleaseWithMessages() throws IOException {
+        final Attachment attachment1 = addAttachment(mMessage1, CONTENT);
+        final Attachment attachment2 = addAttachment(mMessage2, CONTENT);
+        final File file = AttachmentStore.getAttachmentFile(mMockContext, attachment1.mId);
+
+        // The content is kept while another attachment refers to it
+        AttachmentUtilities.deleteAllAttachmentFiles(mMockContext, mAccount.mId, mMessage1.mId);
+        assertNull(AttachmentStore.getAttachmentFile(mMockContext, attachment1.mId));
+        assertTrue(file.exists());
+
+        AttachmentUtilities.deleteAllAttachmentFiles(mMockContext, mAccount.mId, mMessage2.mId);
+        assertNull(AttachmentStore.getAttachmentFile(mMockContext, attachment2.mId));
+        assertFalse(file.exists());
+    }
+
+    public void testResave() throws IOException {
+        final Attachment attachment = addAttachment(mMessage1, CONTENT);
+        final File file = AttachmentStore.getAttachmentFile(mMockContext, attachment.mId);
+        AttachmentStore.save(mMockContext,
+                new ByteArrayInputStream(Utility.toUtf8(OTHER_CONTENT)), attachment.mId);
+        assertFalse(file.exists());
+        assertEquals(1, getFileCount());
+    }
+
+    public void testCollectGarbage() throws IOException {
+        final Attachment attachment1 = addAttachment(mMessage1, CONTENT);
+        final Attachment other = addAttachment(mMessage1, OTHER_CONTENT);
+        final File file = AttachmentStore.getAttachmentFile(mMockContext, attachment1.mId);
+
+        // An attachment deleted without being released
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment1.mId), null, null);
+        AttachmentStore.collectGarbage(mMockContext);
+        assertFalse(file.exists());
+        assertTrue(AttachmentStore.getAttachmentFile(mMockContext, other.mId).exists());
+    }
+}